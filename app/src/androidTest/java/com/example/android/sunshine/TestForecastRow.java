@@ -0,0 +1,98 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine;
+
+import android.content.Context;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.runner.AndroidJUnit4;
+
+import com.example.android.sunshine.data.ForecastBatch;
+import com.example.android.sunshine.utilities.SunshineDateUtils;
+import com.example.android.sunshine.utilities.SunshineWeatherUtils;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertFalse;
+import static junit.framework.Assert.assertTrue;
+
+@RunWith(AndroidJUnit4.class)
+public class TestForecastRow {
+
+    private final Context mContext = InstrumentationRegistry.getTargetContext();
+
+    /**
+     * Ensures that a prebuilt row shows exactly what binding a cursor directly used to.
+     */
+    @Test
+    public void testRowMatchesPerBindFormatting() {
+        long date = SunshineDateUtils.getNormalizedUtcDateForToday()
+                + 2 * SunshineDateUtils.DAY_IN_MILLIS;
+        int weatherId = 501;
+        double high = 21.6;
+        double low = 9.2;
+
+        ForecastRow row = createRow(date, weatherId, high, low);
+
+        assertEquals(date, row.date);
+        assertEquals(SunshineWeatherUtils.getLargeArtResourceIdForWeatherCondition(weatherId),
+                row.largeIconResourceId);
+        assertEquals(SunshineWeatherUtils.getSmallArtResourceIdForWeatherCondition(weatherId),
+                row.smallIconResourceId);
+        assertEquals(SunshineDateUtils.getFriendlyDateString(mContext, date, false),
+                row.dateText);
+
+        String description = SunshineWeatherUtils.getStringForWeatherCondition(mContext, weatherId);
+        assertEquals(description, row.description);
+        assertEquals(mContext.getString(R.string.a11y_forecast, description),
+                row.descriptionA11y);
+
+        String highString = SunshineWeatherUtils.formatTemperature(mContext, high);
+        assertEquals(highString, row.highText);
+        assertEquals(mContext.getString(R.string.a11y_high_temp, highString), row.highA11y);
+
+        String lowString = SunshineWeatherUtils.formatTemperature(mContext, low);
+        assertEquals(lowString, row.lowText);
+        assertEquals(mContext.getString(R.string.a11y_low_temp, lowString), row.lowA11y);
+    }
+
+    /**
+     * Ensures that reloading a day that didn't change isn't seen as a change, which would rebind
+     * its row, while a change to what the row shows is.
+     */
+    @Test
+    public void testSameContents() {
+        long date = SunshineDateUtils.getNormalizedUtcDateForToday();
+        ForecastRow row = createRow(date, 800, 21.6, 9.2);
+
+        assertTrue(row.hasSameContents(createRow(date, 800, 21.6, 9.2)));
+        assertFalse("A different high should change the row",
+                row.hasSameContents(createRow(date, 800, 25.1, 9.2)));
+        assertFalse("A different condition should change the row",
+                row.hasSameContents(createRow(date, 500, 21.6, 9.2)));
+    }
+
+    private ForecastRow createRow(long date, int weatherId, double high, double low) {
+        ForecastBatch snapshot = ForecastBatch.obtain();
+        try {
+            snapshot.add(date, weatherId, low, high, 0, 0, 0, 0);
+            return ForecastRow.fromSnapshot(mContext, snapshot, 0);
+        } finally {
+            snapshot.recycle();
+        }
+    }
+}
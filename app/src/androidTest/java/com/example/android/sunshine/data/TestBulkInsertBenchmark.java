@@ -0,0 +1,173 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.data;
+
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.sqlite.SQLiteDatabase;
+import android.os.SystemClock;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.runner.AndroidJUnit4;
+import android.util.Log;
+
+import com.example.android.sunshine.utilities.SunshineDateUtils;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.Locale;
+
+import static junit.framework.Assert.assertEquals;
+
+/**
+ * Measures how many rows per second we can write into the weather table, comparing
+ * SQLiteDatabase#insert (which compiles an INSERT for every row) with {@link WeatherBulkInserter}
+ * (which compiles one statement per transaction), as well as the full trip through
+ * {@link WeatherProvider#bulkInsert}. Results are written to logcat under this class's tag.
+ */
+@RunWith(AndroidJUnit4.class)
+public class TestBulkInsertBenchmark {
+
+    private static final String TAG = TestBulkInsertBenchmark.class.getSimpleName();
+
+    /* Two weeks, a year and a very large batch */
+    private static final int[] BATCH_SIZES = {14, 365, 10000};
+
+    /* Number of untimed runs for each batch size, so the JIT and SQLite caches have warmed up */
+    private static final int WARMUP_ITERATIONS = 2;
+
+    private final Context mContext = InstrumentationRegistry.getTargetContext();
+
+    private WeatherDbHelper mDbHelper;
+    private SQLiteDatabase mDatabase;
+    private long mLocationId;
+
+    @Before
+    public void setUp() {
+        mDbHelper = new WeatherDbHelper(mContext);
+        mDatabase = mDbHelper.getWritableDatabase();
+        mDatabase.delete(WeatherContract.WeatherEntry.TABLE_NAME, null, null);
+        mLocationId = TestUtilities.insertPreferredLocation(mContext, mDatabase);
+    }
+
+    @After
+    public void tearDown() {
+        mDatabase.delete(WeatherContract.WeatherEntry.TABLE_NAME, null, null);
+        mDbHelper.close();
+    }
+
+    private ContentValues[] createWeatherValues(int numRows) {
+        ContentValues[] values = new ContentValues[numRows];
+        long date = TestUtilities.DATE_NORMALIZED;
+        for (int i = 0; i < numRows; i++) {
+            ContentValues weatherValues = new ContentValues();
+            weatherValues.put(WeatherContract.WeatherEntry.COLUMN_LOCATION_ID, mLocationId);
+            weatherValues.put(WeatherContract.WeatherEntry.COLUMN_DATE, date);
+            weatherValues.put(WeatherContract.WeatherEntry.COLUMN_DEGREES, (i * 37) % 360);
+            weatherValues.put(WeatherContract.WeatherEntry.COLUMN_HUMIDITY, 40 + i % 50);
+            weatherValues.put(WeatherContract.WeatherEntry.COLUMN_PRESSURE, 1000.5 + i % 13);
+            weatherValues.put(WeatherContract.WeatherEntry.COLUMN_MAX_TEMP, 15 + (i % 11) * 0.75);
+            weatherValues.put(WeatherContract.WeatherEntry.COLUMN_MIN_TEMP, 5 + (i % 7) * 0.5);
+            weatherValues.put(WeatherContract.WeatherEntry.COLUMN_WIND_SPEED, 1.5 + i % 5);
+            weatherValues.put(WeatherContract.WeatherEntry.COLUMN_WEATHER_ID, 200 + (i % 7) * 100);
+            values[i] = weatherValues;
+            date += SunshineDateUtils.DAY_IN_MILLIS;
+        }
+        return values;
+    }
+
+    /**
+     * Inserts the way WeatherProvider used to: one SQLiteDatabase#insert per row.
+     */
+    private long timeDatabaseInsert(ContentValues[] values) {
+        mDatabase.delete(WeatherContract.WeatherEntry.TABLE_NAME, null, null);
+        long start = SystemClock.elapsedRealtimeNanos();
+        mDatabase.beginTransaction();
+        try {
+            for (ContentValues value : values) {
+                mDatabase.insert(WeatherContract.WeatherEntry.TABLE_NAME, null, value);
+            }
+            mDatabase.setTransactionSuccessful();
+        } finally {
+            mDatabase.endTransaction();
+        }
+        return SystemClock.elapsedRealtimeNanos() - start;
+    }
+
+    /**
+     * Inserts through one compiled statement, rebound for every row.
+     */
+    private long timeCompiledInsert(ContentValues[] values) {
+        mDatabase.delete(WeatherContract.WeatherEntry.TABLE_NAME, null, null);
+        long start = SystemClock.elapsedRealtimeNanos();
+        mDatabase.beginTransaction();
+        WeatherBulkInserter inserter = new WeatherBulkInserter(mDatabase, mLocationId);
+        try {
+            for (ContentValues value : values) {
+                inserter.insert(value);
+            }
+            mDatabase.setTransactionSuccessful();
+        } finally {
+            inserter.close();
+            mDatabase.endTransaction();
+        }
+        return SystemClock.elapsedRealtimeNanos() - start;
+    }
+
+    /**
+     * Inserts through the ContentResolver, which is what our sync actually does.
+     */
+    private long timeProviderBulkInsert(ContentValues[] values) {
+        mDatabase.delete(WeatherContract.WeatherEntry.TABLE_NAME, null, null);
+        long start = SystemClock.elapsedRealtimeNanos();
+        int inserted = mContext.getContentResolver()
+                .bulkInsert(WeatherContract.WeatherEntry.CONTENT_URI, values);
+        long elapsed = SystemClock.elapsedRealtimeNanos() - start;
+        assertEquals("Provider didn't insert every row", values.length, inserted);
+        return elapsed;
+    }
+
+    private static double rowsPerSecond(int rows, long nanos) {
+        return rows / (nanos / 1e9);
+    }
+
+    @Test
+    public void benchmarkBulkInsert() {
+        for (int batchSize : BATCH_SIZES) {
+            ContentValues[] values = createWeatherValues(batchSize);
+
+            for (int i = 0; i < WARMUP_ITERATIONS; i++) {
+                timeDatabaseInsert(values);
+                timeCompiledInsert(values);
+                timeProviderBulkInsert(values);
+            }
+
+            long databaseNanos = timeDatabaseInsert(values);
+            long compiledNanos = timeCompiledInsert(values);
+            long providerNanos = timeProviderBulkInsert(values);
+
+            Log.i(TAG, String.format(Locale.US,
+                    "%d rows: SQLiteDatabase#insert %.0f rows/s, compiled statement %.0f rows/s, "
+                            + "WeatherProvider#bulkInsert %.0f rows/s",
+                    batchSize,
+                    rowsPerSecond(batchSize, databaseNanos),
+                    rowsPerSecond(batchSize, compiledNanos),
+                    rowsPerSecond(batchSize, providerNanos)));
+        }
+    }
+}
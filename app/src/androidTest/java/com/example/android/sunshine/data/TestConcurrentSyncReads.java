@@ -0,0 +1,198 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.data;
+
+import android.content.ContentResolver;
+import android.content.Context;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.os.Bundle;
+import android.os.SystemClock;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.runner.AndroidJUnit4;
+import android.util.Log;
+
+import com.example.android.sunshine.MainActivity;
+import com.example.android.sunshine.utilities.SunshineDateUtils;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertNull;
+import static junit.framework.Assert.assertTrue;
+
+/**
+ * Reconciles forecasts through {@link WeatherProvider#call} on one thread, just like our sync
+ * does, while another thread queries the forecast list the same way MainActivity's CursorLoader
+ * does. Reports the p50 and p99 latency of those reads to logcat under this class's tag.
+ */
+@RunWith(AndroidJUnit4.class)
+public class TestConcurrentSyncReads {
+
+    private static final String TAG = TestConcurrentSyncReads.class.getSimpleName();
+
+    /* Number of syncs the writer runs while we measure reads */
+    private static final int SYNC_COUNT = 200;
+
+    /* Each sync writes two weeks of weather, like our real one does */
+    private static final int DAYS_PER_SYNC = 14;
+
+    /* Upper bound on the number of reads we record */
+    private static final int MAX_READS = 100000;
+
+    private final Context mContext = InstrumentationRegistry.getTargetContext();
+
+    private WeatherDbHelper mDbHelper;
+    private SQLiteDatabase mDatabase;
+
+    @Before
+    public void setUp() {
+        mDbHelper = new WeatherDbHelper(mContext);
+        mDatabase = mDbHelper.getWritableDatabase();
+        mDatabase.delete(WeatherContract.WeatherEntry.TABLE_NAME, null, null);
+    }
+
+    @After
+    public void tearDown() {
+        mDatabase.delete(WeatherContract.WeatherEntry.TABLE_NAME, null, null);
+        mDbHelper.close();
+    }
+
+    /**
+     * Creates a forecast for the days from today onwards. Every day within a sync shares the same
+     * weather ID, so a reader can tell whether it ever saw half of one sync and half of another.
+     */
+    private static ForecastBatch createForecast(int weatherId) {
+        ForecastBatch forecast = ForecastBatch.obtain();
+        long date = SunshineDateUtils.getNormalizedUtcDateForToday();
+        for (int i = 0; i < DAYS_PER_SYNC; i++) {
+            forecast.add(date, weatherId, 65, 75, 1.2, 1.3, 5.5, 1.1);
+            date += SunshineDateUtils.DAY_IN_MILLIS;
+        }
+        return forecast;
+    }
+
+    /**
+     * Hands a forecast to WeatherProvider exactly the way SunshineSyncTask does.
+     */
+    private static void sync(ContentResolver resolver, int weatherId) {
+        ForecastBatch forecast = createForecast(weatherId);
+        try {
+            Bundle extras = new Bundle();
+            extras.putParcelable(WeatherContract.WeatherEntry.EXTRA_FORECAST_BATCH, forecast);
+            resolver.call(
+                    WeatherContract.WeatherEntry.CONTENT_URI,
+                    WeatherContract.WeatherEntry.METHOD_RECONCILE,
+                    null,
+                    extras);
+        } finally {
+            forecast.recycle();
+        }
+    }
+
+    /**
+     * Reads the forecast list and verifies it came from a single sync.
+     */
+    private static void readForecast(ContentResolver resolver) {
+        Cursor cursor = resolver.query(
+                WeatherContract.WeatherEntry.CONTENT_URI,
+                MainActivity.MAIN_FORECAST_PROJECTION,
+                WeatherContract.WeatherEntry.getSqlSelectForTodayOnwards(),
+                null,
+                WeatherContract.WeatherEntry.COLUMN_DATE + " ASC");
+        try {
+            assertEquals("Read a partially written forecast", DAYS_PER_SYNC, cursor.getCount());
+            int weatherIdIndex = cursor.getColumnIndexOrThrow(
+                    WeatherContract.WeatherEntry.COLUMN_WEATHER_ID);
+            cursor.moveToFirst();
+            int weatherId = cursor.getInt(weatherIdIndex);
+            while (cursor.moveToNext()) {
+                assertEquals("Read rows from two different syncs",
+                        weatherId, cursor.getInt(weatherIdIndex));
+            }
+        } finally {
+            cursor.close();
+        }
+    }
+
+    private static long percentile(long[] sortedNanos, int count, double percentile) {
+        int index = (int) Math.ceil(percentile / 100 * count) - 1;
+        return sortedNanos[Math.max(0, Math.min(index, count - 1))];
+    }
+
+    @Test
+    public void testReadsDuringSyncs() throws InterruptedException {
+        final ContentResolver resolver = mContext.getContentResolver();
+        final AtomicBoolean syncing = new AtomicBoolean(true);
+        final AtomicReference<Throwable> failure = new AtomicReference<>();
+
+        /* Start with a forecast in place, just like the app does after its first sync */
+        sync(resolver, 0);
+
+        Thread writer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    for (int i = 1; i <= SYNC_COUNT; i++) {
+                        sync(resolver, i);
+                    }
+                } catch (Throwable t) {
+                    failure.compareAndSet(null, t);
+                } finally {
+                    syncing.set(false);
+                }
+            }
+        }, "sync-writer");
+
+        long[] readNanos = new long[MAX_READS];
+        int readCount = 0;
+
+        writer.start();
+        try {
+            while (syncing.get() && readCount < MAX_READS) {
+                long start = SystemClock.elapsedRealtimeNanos();
+                readForecast(resolver);
+                readNanos[readCount++] = SystemClock.elapsedRealtimeNanos() - start;
+            }
+        } finally {
+            syncing.set(false);
+            writer.join();
+        }
+
+        assertNull("Sync failed while reading: " + failure.get(), failure.get());
+        assertTrue("No reads completed during the syncs", readCount > 0);
+
+        Arrays.sort(readNanos, 0, readCount);
+        long p50 = percentile(readNanos, readCount, 50);
+        long p99 = percentile(readNanos, readCount, 99);
+
+        Log.i(TAG, String.format(Locale.US,
+                "%d reads during %d syncs: p50 %.3f ms, p99 %.3f ms, max %.3f ms",
+                readCount, SYNC_COUNT,
+                p50 / 1e6, p99 / 1e6, readNanos[readCount - 1] / 1e6));
+
+        assertTrue("Database is not in write-ahead logging mode",
+                mDatabase.isWriteAheadLoggingEnabled());
+    }
+}
@@ -0,0 +1,143 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.data;
+
+import android.content.ContentValues;
+import android.os.Parcel;
+import android.support.test.runner.AndroidJUnit4;
+
+import com.example.android.sunshine.data.WeatherContract.WeatherEntry;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import static com.example.android.sunshine.data.TestUtilities.BULK_INSERT_RECORDS_TO_INSERT;
+import static com.example.android.sunshine.data.TestUtilities.createBulkInsertTestWeatherValues;
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertSame;
+import static junit.framework.Assert.fail;
+
+@RunWith(AndroidJUnit4.class)
+public class TestForecastBatch {
+
+    /**
+     * Converting ContentValues into a batch and back again must not change any value, no matter
+     * how many days we add beyond the batch's initial capacity.
+     */
+    @Test
+    public void testContentValuesRoundTrip() {
+        ContentValues[] values = createBulkInsertTestWeatherValues();
+
+        ForecastBatch batch = ForecastBatch.fromContentValues(values);
+        try {
+            assertEquals(BULK_INSERT_RECORDS_TO_INSERT, batch.size());
+
+            for (int i = 0; i < values.length; i++) {
+                ContentValues roundTripped = toContentValues(batch, i);
+                for (String column : values[i].keySet()) {
+                    assertEquals("Column " + column + " of day " + i + " changed",
+                            values[i].getAsDouble(column),
+                            roundTripped.getAsDouble(column));
+                }
+            }
+        } finally {
+            batch.recycle();
+        }
+    }
+
+    private static ContentValues toContentValues(ForecastBatch batch, int index) {
+        ContentValues weatherValues = new ContentValues();
+        weatherValues.put(WeatherEntry.COLUMN_DATE, batch.getDate(index));
+        weatherValues.put(WeatherEntry.COLUMN_WEATHER_ID, batch.getWeatherId(index));
+        weatherValues.put(WeatherEntry.COLUMN_MIN_TEMP, batch.getMinTemp(index));
+        weatherValues.put(WeatherEntry.COLUMN_MAX_TEMP, batch.getMaxTemp(index));
+        weatherValues.put(WeatherEntry.COLUMN_HUMIDITY, batch.getHumidity(index));
+        weatherValues.put(WeatherEntry.COLUMN_PRESSURE, batch.getPressure(index));
+        weatherValues.put(WeatherEntry.COLUMN_WIND_SPEED, batch.getWindSpeed(index));
+        weatherValues.put(WeatherEntry.COLUMN_DEGREES, batch.getDegrees(index));
+        return weatherValues;
+    }
+
+    /**
+     * A batch written to a Parcel must read back with the same days, in the same order.
+     */
+    @Test
+    public void testParcelRoundTrip() {
+        ForecastBatch batch = ForecastBatch.obtain();
+        for (int i = 0; i < 100; i++) {
+            batch.add(TestUtilities.DATE_NORMALIZED + i, 800 + i, i - 0.5, i + 0.5, 40 + i,
+                    1000 + i, i * 0.25, (i * 37) % 360);
+        }
+
+        Parcel parcel = Parcel.obtain();
+        ForecastBatch unparceled;
+        try {
+            batch.writeToParcel(parcel, 0);
+            parcel.setDataPosition(0);
+            unparceled = ForecastBatch.CREATOR.createFromParcel(parcel);
+        } finally {
+            parcel.recycle();
+        }
+
+        assertEquals(batch.size(), unparceled.size());
+        for (int i = 0; i < batch.size(); i++) {
+            assertEquals(batch.getDate(i), unparceled.getDate(i));
+            assertEquals(batch.getWeatherId(i), unparceled.getWeatherId(i));
+            assertEquals(batch.getMinTemp(i), unparceled.getMinTemp(i), 0);
+            assertEquals(batch.getMaxTemp(i), unparceled.getMaxTemp(i), 0);
+            assertEquals(batch.getHumidity(i), unparceled.getHumidity(i), 0);
+            assertEquals(batch.getPressure(i), unparceled.getPressure(i), 0);
+            assertEquals(batch.getWindSpeed(i), unparceled.getWindSpeed(i), 0);
+            assertEquals(batch.getDegrees(i), unparceled.getDegrees(i), 0);
+        }
+
+        batch.recycle();
+        unparceled.recycle();
+    }
+
+    /**
+     * A recycled batch must be handed out again, empty, by the next call to obtain.
+     */
+    @Test
+    public void testRecycledBatchIsReused() {
+        ForecastBatch batch = ForecastBatch.obtain();
+        batch.add(TestUtilities.DATE_NORMALIZED, 800, 1, 2, 3, 4, 5, 6);
+        batch.recycle();
+
+        ForecastBatch reused = ForecastBatch.obtain();
+        try {
+            assertSame(batch, reused);
+            assertEquals(0, reused.size());
+        } finally {
+            reused.recycle();
+        }
+    }
+
+    /**
+     * Recycling a batch twice would let two callers obtain the same batch, so it must fail.
+     */
+    @Test
+    public void testDoubleRecycleThrows() {
+        ForecastBatch batch = ForecastBatch.obtain();
+        batch.recycle();
+        try {
+            batch.recycle();
+            fail("Recycling a batch twice should have thrown");
+        } catch (IllegalStateException expected) {
+            /* The batch is still in the pool exactly once */
+        }
+    }
+}
@@ -0,0 +1,157 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.data;
+
+import android.content.Context;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteQueryBuilder;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.runner.AndroidJUnit4;
+
+import com.example.android.sunshine.DetailActivity;
+import com.example.android.sunshine.MainActivity;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import static junit.framework.Assert.assertFalse;
+import static junit.framework.Assert.assertTrue;
+
+/**
+ * Uses EXPLAIN QUERY PLAN to verify that the queries Sunshine runs most often are answered
+ * through an index rather than by scanning the weather table. WeatherProvider restricts every
+ * weather query to a single location, so the queries below do too.
+ */
+@RunWith(AndroidJUnit4.class)
+public class TestQueryPlans {
+
+    private final Context mContext = InstrumentationRegistry.getTargetContext();
+
+    /* WeatherProvider embeds the location's _ID in its selection, just like this */
+    private static final String LOCATION_SELECTION =
+            WeatherContract.WeatherEntry.COLUMN_LOCATION_ID + " = 1 AND ";
+
+    private WeatherDbHelper mDbHelper;
+    private SQLiteDatabase mDatabase;
+
+    @Before
+    public void setUp() {
+        mContext.deleteDatabase(WeatherDbHelper.DATABASE_NAME);
+        mDbHelper = new WeatherDbHelper(mContext);
+        mDatabase = mDbHelper.getWritableDatabase();
+    }
+
+    @After
+    public void tearDown() {
+        mDbHelper.close();
+    }
+
+    /**
+     * Returns every line of the query plan for the given SELECT statement, joined by newlines.
+     */
+    private String explainQueryPlan(String sql, String[] selectionArgs) {
+        Cursor plan = mDatabase.rawQuery("EXPLAIN QUERY PLAN " + sql, selectionArgs);
+        StringBuilder details = new StringBuilder();
+        try {
+            int detailIndex = plan.getColumnIndexOrThrow("detail");
+            while (plan.moveToNext()) {
+                details.append(plan.getString(detailIndex)).append('\n');
+            }
+        } finally {
+            plan.close();
+        }
+        return details.toString();
+    }
+
+    private static void assertNoTableScan(String plan) {
+        /* Depending on the SQLite version, a scan reads "SCAN TABLE weather" or "SCAN weather" */
+        assertFalse("Query scans the weather table:\n" + plan,
+                plan.contains("SCAN TABLE " + WeatherContract.WeatherEntry.TABLE_NAME)
+                        || plan.contains("SCAN " + WeatherContract.WeatherEntry.TABLE_NAME));
+    }
+
+    /**
+     * The forecast list must be read from our covering index alone, already in date order.
+     */
+    @Test
+    public void testForecastListUsesCoveringIndex() {
+        String sql = SQLiteQueryBuilder.buildQueryString(
+                false,
+                WeatherContract.WeatherEntry.TABLE_NAME,
+                MainActivity.MAIN_FORECAST_PROJECTION,
+                LOCATION_SELECTION + WeatherContract.WeatherEntry.getSqlSelectForTodayOnwards(),
+                null,
+                null,
+                WeatherContract.WeatherEntry.COLUMN_DATE + " ASC",
+                null);
+
+        String plan = explainQueryPlan(sql, null);
+
+        assertNoTableScan(plan);
+        assertTrue("Forecast list doesn't use our covering index:\n" + plan,
+                plan.contains("COVERING INDEX " + WeatherDbHelper.FORECAST_INDEX_NAME));
+        assertFalse("Forecast list needs a separate sort:\n" + plan,
+                plan.contains("TEMP B-TREE"));
+    }
+
+    /**
+     * Checking whether we have any weather from today onwards must not touch the table either.
+     */
+    @Test
+    public void testTodayOnwardsCheckUsesCoveringIndex() {
+        String sql = SQLiteQueryBuilder.buildQueryString(
+                false,
+                WeatherContract.WeatherEntry.TABLE_NAME,
+                new String[]{WeatherContract.WeatherEntry._ID},
+                LOCATION_SELECTION + WeatherContract.WeatherEntry.getSqlSelectForTodayOnwards(),
+                null,
+                null,
+                null,
+                null);
+
+        String plan = explainQueryPlan(sql, null);
+
+        assertNoTableScan(plan);
+        assertTrue("Today onwards check isn't answered from an index:\n" + plan,
+                plan.contains("COVERING INDEX"));
+    }
+
+    /**
+     * The detail screen looks up a single day, which must be a search by date.
+     */
+    @Test
+    public void testDetailQuerySearchesByDate() {
+        String sql = SQLiteQueryBuilder.buildQueryString(
+                false,
+                WeatherContract.WeatherEntry.TABLE_NAME,
+                DetailActivity.WEATHER_DETAIL_PROJECTION,
+                LOCATION_SELECTION + WeatherContract.WeatherEntry.COLUMN_DATE + " = ? ",
+                null,
+                null,
+                null,
+                null);
+
+        String plan = explainQueryPlan(sql,
+                new String[]{Long.toString(TestUtilities.DATE_NORMALIZED)});
+
+        assertNoTableScan(plan);
+        assertTrue("Detail query doesn't search by date:\n" + plan,
+                plan.contains("SEARCH") && plan.contains("INDEX"));
+    }
+}
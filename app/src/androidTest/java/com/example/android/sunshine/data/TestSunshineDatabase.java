@@ -122,6 +122,9 @@ public class TestSunshineDatabase {
     private SQLiteDatabase database;
     private SQLiteOpenHelper dbHelper;
 
+    /* Every weather row must belong to a location, so our tests store one up front */
+    private long locationId;
+
     @Before
     public void before() {
         try {
@@ -176,6 +179,8 @@ public class TestSunshineDatabase {
             Method getWritableDatabase = SQLiteOpenHelper.class.getDeclaredMethod("getWritableDatabase");
             database = (SQLiteDatabase) getWritableDatabase.invoke(dbHelper);
 
+            locationId = TestUtilities.insertPreferredLocation(context, database);
+
         } catch (ClassNotFoundException e) {
             fail(studentReadableClassNotFound(e));
         } catch (NoSuchFieldException e) {
@@ -193,7 +198,7 @@ public class TestSunshineDatabase {
 
     @Test
     public void testDatabaseVersionWasIncremented() {
-        int expectedDatabaseVersion = 3;
+        int expectedDatabaseVersion = 5;
         String databaseVersionShouldBe1 = "Database version should be "
                 + expectedDatabaseVersion + " but isn't."
                 + "\n Database version: ";
@@ -226,7 +231,7 @@ public class TestSunshineDatabase {
     public void testDuplicateDateInsertBehaviorShouldReplace() {
 
         /* Obtain weather values from TestUtilities */
-        ContentValues testWeatherValues = TestUtilities.createTestWeatherContentValues();
+        ContentValues testWeatherValues = TestUtilities.createTestWeatherContentValues(locationId);
 
         /*
          * Get the original weather ID of the testWeatherValues to ensure we use a different
@@ -292,7 +297,7 @@ public class TestSunshineDatabase {
         weatherTableCursor.close();
 
         /* Obtain weather values from TestUtilities and make a copy to avoid altering singleton */
-        ContentValues testValues = TestUtilities.createTestWeatherContentValues();
+        ContentValues testValues = TestUtilities.createTestWeatherContentValues(locationId);
         /* Create a copy of the testValues to save as a reference point to restore values */
         ContentValues testValuesReferenceCopy = new ContentValues(testValues);
 
@@ -345,7 +350,7 @@ public class TestSunshineDatabase {
         testInsertSingleRecordIntoWeatherTable();
 
         /* Obtain weather values from TestUtilities */
-        ContentValues testWeatherValues = TestUtilities.createTestWeatherContentValues();
+        ContentValues testWeatherValues = TestUtilities.createTestWeatherContentValues(locationId);
 
         /* Get the date of the testWeatherValues to ensure we use a different date later */
         long originalDate = testWeatherValues.getAsLong(REFLECTED_COLUMN_DATE);
@@ -454,8 +459,9 @@ public class TestSunshineDatabase {
          */
         final HashSet<String> tableNameHashSet = new HashSet<>();
 
-        /* Here, we add the name of our only table in this particular database */
+        /* Here, we add the names of the tables in this particular database */
         tableNameHashSet.add(REFLECTED_TABLE_NAME);
+        tableNameHashSet.add(WeatherContract.LocationEntry.TABLE_NAME);
         /* Students, here is where you would add any other table names if you had them */
 //        tableNameHashSet.add(MyAwesomeSuperCoolTableName);
 //        tableNameHashSet.add(MyOtherCoolTableNameThatContainsOtherCoolData);
@@ -513,7 +519,7 @@ public class TestSunshineDatabase {
     public void testInsertSingleRecordIntoWeatherTable() {
 
         /* Obtain weather values from TestUtilities */
-        ContentValues testWeatherValues = TestUtilities.createTestWeatherContentValues();
+        ContentValues testWeatherValues = TestUtilities.createTestWeatherContentValues(locationId);
 
         /* Insert ContentValues into database and get a row ID back */
         long weatherRowId = database.insert(
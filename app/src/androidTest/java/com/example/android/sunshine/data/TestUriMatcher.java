@@ -37,6 +37,12 @@ public class TestUriMatcher {
     private static final Uri TEST_WEATHER_DIR = WeatherContract.WeatherEntry.CONTENT_URI;
     private static final Uri TEST_WEATHER_WITH_DATE_DIR = WeatherContract.WeatherEntry
             .buildWeatherUriWithDate(TestUtilities.DATE_NORMALIZED);
+    private static final Uri TEST_WEATHER_WITH_LOCATION_DIR = WeatherContract.WeatherEntry
+            .buildWeatherUriWithLocation(2);
+    private static final Uri TEST_WEATHER_WITH_LOCATION_AND_DATE_DIR = WeatherContract.WeatherEntry
+            .buildWeatherUriWithLocationAndDate(2, TestUtilities.DATE_NORMALIZED);
+    private static final Uri TEST_LOCATION_DIR = WeatherContract.LocationEntry.CONTENT_URI;
+    private static final Uri TEST_SYNC_METRICS_DIR = WeatherContract.SyncMetricsEntry.CONTENT_URI;
 
     private static final String weatherCodeVariableName = "CODE_WEATHER";
     private static int REFLECTED_WEATHER_CODE;
@@ -101,5 +107,22 @@ public class TestUriMatcher {
         assertEquals(weatherWithDateUriCodeDoesNotMatch,
                 expectedWeatherWithDateCode,
                 actualWeatherWithDateCode);
+
+        /* Test that per-location URIs match their own codes rather than the date code */
+        assertEquals("Error: The CODE_WEATHER_WITH_LOCATION URI was matched incorrectly.",
+                WeatherProvider.CODE_WEATHER_WITH_LOCATION,
+                testMatcher.match(TEST_WEATHER_WITH_LOCATION_DIR));
+
+        assertEquals("Error: The CODE_WEATHER_WITH_LOCATION_AND_DATE URI was matched incorrectly.",
+                WeatherProvider.CODE_WEATHER_WITH_LOCATION_AND_DATE,
+                testMatcher.match(TEST_WEATHER_WITH_LOCATION_AND_DATE_DIR));
+
+        assertEquals("Error: The CODE_LOCATION URI was matched incorrectly.",
+                WeatherProvider.CODE_LOCATION,
+                testMatcher.match(TEST_LOCATION_DIR));
+
+        assertEquals("Error: The CODE_SYNC_METRICS URI was matched incorrectly.",
+                WeatherProvider.CODE_SYNC_METRICS,
+                testMatcher.match(TEST_SYNC_METRICS_DIR));
     }
 }
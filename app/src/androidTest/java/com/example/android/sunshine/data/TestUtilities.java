@@ -16,8 +16,10 @@
 package com.example.android.sunshine.data;
 
 import android.content.ContentValues;
+import android.content.Context;
 import android.database.ContentObserver;
 import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
 import android.net.Uri;
 import android.os.Handler;
 import android.os.HandlerThread;
@@ -35,6 +37,7 @@ import java.util.regex.Pattern;
 import static com.example.android.sunshine.data.WeatherContract.WeatherEntry.COLUMN_DATE;
 import static com.example.android.sunshine.data.WeatherContract.WeatherEntry.COLUMN_DEGREES;
 import static com.example.android.sunshine.data.WeatherContract.WeatherEntry.COLUMN_HUMIDITY;
+import static com.example.android.sunshine.data.WeatherContract.WeatherEntry.COLUMN_LOCATION_ID;
 import static com.example.android.sunshine.data.WeatherContract.WeatherEntry.COLUMN_MAX_TEMP;
 import static com.example.android.sunshine.data.WeatherContract.WeatherEntry.COLUMN_MIN_TEMP;
 import static com.example.android.sunshine.data.WeatherContract.WeatherEntry.COLUMN_PRESSURE;
@@ -132,6 +135,48 @@ class TestUtilities {
         return testWeatherValues;
     }
 
+    /**
+     * Same as {@link #createTestWeatherContentValues()}, for values that are inserted straight
+     * into weather.db and so need to name the location they belong to.
+     *
+     * @param locationId _ID of a row in the location table
+     * @return ContentValues that can be inserted into weather.db
+     */
+    static ContentValues createTestWeatherContentValues(long locationId) {
+        ContentValues testWeatherValues = createTestWeatherContentValues();
+        testWeatherValues.put(COLUMN_LOCATION_ID, locationId);
+        return testWeatherValues;
+    }
+
+    /**
+     * Stores the location currently set in SunshinePreferences, which is the location our
+     * ContentProvider's weather URIs refer to, unless we've already stored it.
+     *
+     * @param context  Used to read the preferred location
+     * @param database A writable weather.db
+     * @return The _ID of the preferred location in the location table
+     */
+    static long insertPreferredLocation(Context context, SQLiteDatabase database) {
+        String locationSetting = SunshinePreferences.getPreferredWeatherLocation(context);
+
+        ContentValues locationValues = new ContentValues();
+        locationValues.put(WeatherContract.LocationEntry.COLUMN_LOCATION_SETTING, locationSetting);
+        database.insertWithOnConflict(WeatherContract.LocationEntry.TABLE_NAME, null,
+                locationValues, SQLiteDatabase.CONFLICT_IGNORE);
+
+        Cursor cursor = database.query(WeatherContract.LocationEntry.TABLE_NAME,
+                new String[]{WeatherContract.LocationEntry._ID},
+                WeatherContract.LocationEntry.COLUMN_LOCATION_SETTING + " = ?",
+                new String[]{locationSetting},
+                null, null, null);
+        try {
+            assertTrue("Preferred location wasn't stored", cursor.moveToFirst());
+            return cursor.getLong(0);
+        } finally {
+            cursor.close();
+        }
+    }
+
     /**
      * Used as a convenience method to return a singleton instance of an array of ContentValues to
      * populate our database or insert using our ContentProvider's bulk insert method.
@@ -0,0 +1,211 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.data;
+
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.runner.AndroidJUnit4;
+
+import com.example.android.sunshine.data.WeatherContract.WeatherEntry;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertFalse;
+import static junit.framework.Assert.assertTrue;
+
+/**
+ * Runs each step in {@link WeatherDbHelper#MIGRATIONS} against a database created with the
+ * schema of the version it upgrades from, and verifies that the cached forecast survives.
+ */
+@RunWith(AndroidJUnit4.class)
+public class TestWeatherDbMigrations {
+
+    /* A separate file, so that these tests never touch the app's real database */
+    private static final String TEST_DATABASE_NAME = "weather_migration_test.db";
+
+    /* The weather table exactly as version 3 of WeatherDbHelper created it */
+    private static final String SQL_CREATE_WEATHER_TABLE_V3 =
+            "CREATE TABLE " + WeatherEntry.TABLE_NAME + " (" +
+            WeatherEntry._ID               + " INTEGER PRIMARY KEY AUTOINCREMENT, " +
+            WeatherEntry.COLUMN_DATE       + " INTEGER NOT NULL, " +
+            WeatherEntry.COLUMN_WEATHER_ID + " INTEGER NOT NULL," +
+            WeatherEntry.COLUMN_MIN_TEMP   + " REAL NOT NULL, " +
+            WeatherEntry.COLUMN_MAX_TEMP   + " REAL NOT NULL, " +
+            WeatherEntry.COLUMN_HUMIDITY   + " REAL NOT NULL, " +
+            WeatherEntry.COLUMN_PRESSURE   + " REAL NOT NULL, " +
+            WeatherEntry.COLUMN_WIND_SPEED + " REAL NOT NULL, " +
+            WeatherEntry.COLUMN_DEGREES    + " REAL NOT NULL, " +
+            " UNIQUE (" + WeatherEntry.COLUMN_DATE + ") ON CONFLICT REPLACE);";
+
+    /* Version 4 kept the same table, and added our covering index */
+    private static final String SQL_CREATE_FORECAST_INDEX_V4 =
+            "CREATE INDEX " + WeatherDbHelper.FORECAST_INDEX_NAME + " ON " +
+            WeatherEntry.TABLE_NAME + " (" +
+            WeatherEntry.COLUMN_DATE + ", " +
+            WeatherEntry.COLUMN_MAX_TEMP + ", " +
+            WeatherEntry.COLUMN_MIN_TEMP + ", " +
+            WeatherEntry.COLUMN_WEATHER_ID + ");";
+
+    private final Context mContext = InstrumentationRegistry.getTargetContext();
+
+    private WeatherDbHelper mDbHelper;
+
+    @Before
+    public void setUp() {
+        mContext.deleteDatabase(TEST_DATABASE_NAME);
+    }
+
+    @After
+    public void tearDown() {
+        if (mDbHelper != null) {
+            mDbHelper.close();
+        }
+        mContext.deleteDatabase(TEST_DATABASE_NAME);
+    }
+
+    /**
+     * Creates a database at the given version with the given schema, holding our test forecast.
+     */
+    private void createSnapshot(int version, String... schema) {
+        SQLiteDatabase snapshot = mContext.openOrCreateDatabase(
+                TEST_DATABASE_NAME, Context.MODE_PRIVATE, null);
+        try {
+            for (String statement : schema) {
+                snapshot.execSQL(statement);
+            }
+            snapshot.insertOrThrow(WeatherEntry.TABLE_NAME, null,
+                    TestUtilities.createTestWeatherContentValues());
+            snapshot.setVersion(version);
+        } finally {
+            snapshot.close();
+        }
+    }
+
+    private static boolean hasIndex(SQLiteDatabase database, String indexName) {
+        return hasSchemaObject(database, "index", indexName);
+    }
+
+    private static boolean hasTable(SQLiteDatabase database, String tableName) {
+        return hasSchemaObject(database, "table", tableName);
+    }
+
+    private static boolean hasSchemaObject(SQLiteDatabase database, String type, String name) {
+        Cursor cursor = database.rawQuery(
+                "SELECT name FROM sqlite_master WHERE type=? AND name=?",
+                new String[]{type, name});
+        try {
+            return cursor.moveToFirst();
+        } finally {
+            cursor.close();
+        }
+    }
+
+    /**
+     * Verifies that the weather table holds exactly our test forecast, stored as the weather for
+     * the location currently set in SunshinePreferences.
+     */
+    private void assertForecastKeptForPreferredLocation(SQLiteDatabase database, String error) {
+        Cursor locationCursor = database.query(WeatherContract.LocationEntry.TABLE_NAME,
+                new String[]{WeatherContract.LocationEntry._ID},
+                WeatherContract.LocationEntry.COLUMN_LOCATION_SETTING + " = ?",
+                new String[]{SunshinePreferences.getPreferredWeatherLocation(mContext)},
+                null, null, null);
+        long locationId;
+        try {
+            assertTrue("Preferred location wasn't stored. " + error, locationCursor.moveToFirst());
+            locationId = locationCursor.getLong(0);
+        } finally {
+            locationCursor.close();
+        }
+
+        ContentValues expectedValues = TestUtilities.createTestWeatherContentValues(locationId);
+        Cursor cursor = database.query(WeatherEntry.TABLE_NAME,
+                null, null, null, null, null, null);
+        assertEquals("Cached forecast was not kept. " + error, 1, cursor.getCount());
+        TestUtilities.validateThenCloseCursor("Cached forecast changed. " + error,
+                cursor, expectedValues);
+    }
+
+    /**
+     * Every version we know how to migrate from must have an unbroken path of steps up to the
+     * current version. Otherwise, a forgotten step would quietly fall back to wiping the table.
+     */
+    @Test
+    public void testEveryMigrationReachesCurrentVersion() {
+        mDbHelper = new WeatherDbHelper(mContext, TEST_DATABASE_NAME);
+        int currentVersion = mDbHelper.getReadableDatabase().getVersion();
+
+        for (WeatherDbHelper.Migration migration : WeatherDbHelper.MIGRATIONS) {
+            assertTrue("No migration path from version " + migration.fromVersion
+                            + " to version " + currentVersion,
+                    WeatherDbHelper.hasMigrationPath(migration.fromVersion, currentVersion));
+        }
+    }
+
+    @Test
+    public void testUpgradeFromVersion3KeepsForecastAndAddsIndex() {
+        createSnapshot(3, SQL_CREATE_WEATHER_TABLE_V3);
+
+        mDbHelper = new WeatherDbHelper(mContext, TEST_DATABASE_NAME);
+        SQLiteDatabase database = mDbHelper.getReadableDatabase();
+
+        assertTrue("Covering forecast index was not added when upgrading from version 3",
+                hasIndex(database, WeatherDbHelper.FORECAST_INDEX_NAME));
+        assertForecastKeptForPreferredLocation(database, "Upgraded from version 3.");
+    }
+
+    @Test
+    public void testUpgradeFromVersion4KeepsForecastForPreferredLocation() {
+        createSnapshot(4, SQL_CREATE_WEATHER_TABLE_V3, SQL_CREATE_FORECAST_INDEX_V4);
+
+        mDbHelper = new WeatherDbHelper(mContext, TEST_DATABASE_NAME);
+        SQLiteDatabase database = mDbHelper.getReadableDatabase();
+
+        assertTrue("Covering forecast index was lost when upgrading from version 4",
+                hasIndex(database, WeatherDbHelper.FORECAST_INDEX_NAME));
+        assertFalse("Version 4 weather table was left behind",
+                hasTable(database, WeatherEntry.TABLE_NAME + "_v4"));
+        assertForecastKeptForPreferredLocation(database, "Upgraded from version 4.");
+    }
+
+    @Test
+    public void testUpgradeWithoutMigrationPathRecreatesTable() {
+        createSnapshot(2, SQL_CREATE_WEATHER_TABLE_V3);
+
+        assertFalse(WeatherDbHelper.hasMigrationPath(2, 5));
+
+        mDbHelper = new WeatherDbHelper(mContext, TEST_DATABASE_NAME);
+        SQLiteDatabase database = mDbHelper.getReadableDatabase();
+
+        assertTrue(hasIndex(database, WeatherDbHelper.FORECAST_INDEX_NAME));
+
+        Cursor cursor = database.query(WeatherEntry.TABLE_NAME,
+                null, null, null, null, null, null);
+        try {
+            assertEquals("Weather table should be empty after an upgrade with no migration path",
+                    0, cursor.getCount());
+        } finally {
+            cursor.close();
+        }
+    }
+}
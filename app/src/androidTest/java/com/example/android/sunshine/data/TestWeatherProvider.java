@@ -22,11 +22,15 @@ import android.content.Context;
 import android.content.pm.PackageManager;
 import android.content.pm.ProviderInfo;
 import android.database.Cursor;
+import android.database.DatabaseUtils;
 import android.database.sqlite.SQLiteDatabase;
 import android.net.Uri;
+import android.os.Bundle;
 import android.support.test.InstrumentationRegistry;
 import android.support.test.runner.AndroidJUnit4;
 
+import com.example.android.sunshine.utilities.SunshineDateUtils;
+
 import org.junit.Before;
 import org.junit.Test;
 import org.junit.runner.RunWith;
@@ -168,8 +172,12 @@ public class TestWeatherProvider {
         WeatherDbHelper dbHelper = new WeatherDbHelper(mContext);
         SQLiteDatabase database = dbHelper.getWritableDatabase();
 
-        /* Obtain weather values from TestUtilities */
-        ContentValues testWeatherValues = TestUtilities.createTestWeatherContentValues();
+        /*
+         * Obtain weather values from TestUtilities. CONTENT_URI refers to the preferred
+         * location, so that's the location our row must belong to.
+         */
+        long locationId = TestUtilities.insertPreferredLocation(mContext, database);
+        ContentValues testWeatherValues = TestUtilities.createTestWeatherContentValues(locationId);
 
         /* Insert ContentValues into database and get a row ID back */
         long weatherRowId = database.insert(
@@ -423,6 +431,296 @@ public class TestWeatherProvider {
         shouldBeEmptyCursor.close();
     }
 
+    /**
+     * This test reconciles a new forecast with stored weather using
+     * {@link WeatherProvider#call(String, String, Bundle)} and verifies that only the days that
+     * needed it were written: new days are inserted, changed days are updated, unchanged days are
+     * left alone and only days older than today are deleted.
+     */
+    @Test
+    public void testReconcileWritesOnlyChangedDays() {
+        long today = SunshineDateUtils.getNormalizedUtcDateForToday();
+        long day = SunshineDateUtils.DAY_IN_MILLIS;
+
+        /* Stored: yesterday, today, tomorrow and the day after tomorrow */
+        ContentValues[] storedValues = new ContentValues[4];
+        for (int i = 0; i < storedValues.length; i++) {
+            storedValues[i] = createReconcileTestValues(today + (i - 1) * day, 20 + i);
+        }
+
+        ContentResolver contentResolver = mContext.getContentResolver();
+        contentResolver.bulkInsert(WeatherContract.WeatherEntry.CONTENT_URI, storedValues);
+
+        /*
+         * Incoming: today and tomorrow haven't changed, the day after tomorrow has and the day
+         * after that is new. Yesterday is no longer part of the forecast.
+         */
+        ContentValues[] incomingValues = new ContentValues[4];
+        incomingValues[0] = createReconcileTestValues(today, 21);
+        incomingValues[1] = createReconcileTestValues(today + day, 22);
+        incomingValues[2] = createReconcileTestValues(today + 2 * day, 30);
+        incomingValues[3] = createReconcileTestValues(today + 3 * day, 24);
+
+        TestUtilities.TestContentObserver weatherObserver = TestUtilities.getTestContentObserver();
+        contentResolver.registerContentObserver(
+                WeatherContract.WeatherEntry.CONTENT_URI,
+                true,
+                weatherObserver);
+
+        Bundle extras = new Bundle();
+        extras.putParcelableArray(WeatherContract.WeatherEntry.EXTRA_WEATHER_VALUES,
+                incomingValues);
+        Bundle result = contentResolver.call(
+                WeatherContract.WeatherEntry.CONTENT_URI,
+                WeatherContract.WeatherEntry.METHOD_RECONCILE,
+                null,
+                extras);
+
+        /* If this fails, reconcile didn't notify observers of its changes */
+        weatherObserver.waitForNotificationOrFail();
+        contentResolver.unregisterContentObserver(weatherObserver);
+
+        assertNotNull("Reconcile didn't return a result", result);
+        assertEquals("Only the new day should have been inserted",
+                1, result.getInt(WeatherContract.WeatherEntry.RESULT_ROWS_INSERTED));
+        assertEquals("Only the changed day should have been updated",
+                1, result.getInt(WeatherContract.WeatherEntry.RESULT_ROWS_UPDATED));
+        assertEquals("Only the day older than today should have been deleted",
+                1, result.getInt(WeatherContract.WeatherEntry.RESULT_ROWS_DELETED));
+
+        Cursor cursor = contentResolver.query(
+                WeatherContract.WeatherEntry.CONTENT_URI,
+                null,
+                null,
+                null,
+                WeatherContract.WeatherEntry.COLUMN_DATE + " ASC");
+
+        assertNotNull("Cursor was null.", cursor);
+        assertEquals(incomingValues.length, cursor.getCount());
+
+        cursor.moveToFirst();
+        for (int i = 0; i < incomingValues.length; i++, cursor.moveToNext()) {
+            TestUtilities.validateCurrentRecord(
+                    "testReconcileWritesOnlyChangedDays. Error validating WeatherEntry " + i,
+                    cursor,
+                    incomingValues[i]);
+        }
+
+        cursor.close();
+    }
+
+    /**
+     * A day whose weather changed must be updated in place, keeping the _ID of its row, rather
+     * than being deleted and inserted again.
+     */
+    @Test
+    public void testReconcileUpdatesRowsInPlace() {
+        long today = SunshineDateUtils.getNormalizedUtcDateForToday();
+        Uri todayUri = WeatherContract.WeatherEntry.buildWeatherUriWithDate(today);
+
+        ContentResolver contentResolver = mContext.getContentResolver();
+        contentResolver.bulkInsert(WeatherContract.WeatherEntry.CONTENT_URI,
+                new ContentValues[]{createReconcileTestValues(today, 20)});
+        long idBefore = queryWeatherId(todayUri);
+
+        Bundle extras = new Bundle();
+        extras.putParcelableArray(WeatherContract.WeatherEntry.EXTRA_WEATHER_VALUES,
+                new ContentValues[]{createReconcileTestValues(today, 25)});
+        Bundle result = contentResolver.call(
+                WeatherContract.WeatherEntry.CONTENT_URI,
+                WeatherContract.WeatherEntry.METHOD_RECONCILE,
+                null,
+                extras);
+
+        assertNotNull("Reconcile didn't return a result", result);
+        assertEquals(1, result.getInt(WeatherContract.WeatherEntry.RESULT_ROWS_UPDATED));
+        assertEquals("An updated day should keep its _ID", idBefore, queryWeatherId(todayUri));
+    }
+
+    private long queryWeatherId(Uri uri) {
+        Cursor cursor = mContext.getContentResolver().query(uri,
+                new String[]{WeatherContract.WeatherEntry._ID}, null, null, null);
+        assertNotNull("Cursor was null.", cursor);
+        try {
+            assertTrue("No weather for " + uri, cursor.moveToFirst());
+            return cursor.getLong(0);
+        } finally {
+            cursor.close();
+        }
+    }
+
+    /**
+     * The detail screen watches a single day's URI, which isn't beneath any location's URI. This
+     * test verifies that reconciling the preferred location still reaches an observer of it.
+     */
+    @Test
+    public void testReconcileNotifiesObserversOfDates() {
+        long today = SunshineDateUtils.getNormalizedUtcDateForToday();
+
+        ContentResolver contentResolver = mContext.getContentResolver();
+        contentResolver.bulkInsert(WeatherContract.WeatherEntry.CONTENT_URI,
+                new ContentValues[]{createReconcileTestValues(today, 20)});
+
+        TestUtilities.TestContentObserver dateObserver = TestUtilities.getTestContentObserver();
+        contentResolver.registerContentObserver(
+                WeatherContract.WeatherEntry.buildWeatherUriWithDate(today),
+                false,
+                dateObserver);
+
+        Bundle extras = new Bundle();
+        extras.putParcelableArray(WeatherContract.WeatherEntry.EXTRA_WEATHER_VALUES,
+                new ContentValues[]{createReconcileTestValues(today, 25)});
+        contentResolver.call(
+                WeatherContract.WeatherEntry.CONTENT_URI,
+                WeatherContract.WeatherEntry.METHOD_RECONCILE,
+                null,
+                extras);
+
+        /* If this fails, the detail screen wouldn't refresh after a sync */
+        dateObserver.waitForNotificationOrFail();
+        contentResolver.unregisterContentObserver(dateObserver);
+    }
+
+    /**
+     * This test stores forecasts for two locations with the same dates and verifies that each
+     * location keeps its own weather, both when reconciling and when querying.
+     */
+    @Test
+    public void testWeatherIsStoredPerLocation() {
+        long today = SunshineDateUtils.getNormalizedUtcDateForToday();
+        long day = SunshineDateUtils.DAY_IN_MILLIS;
+        String otherLocationSetting = "sunshine-test-other-location";
+
+        ContentValues[] preferredValues = new ContentValues[3];
+        ContentValues[] otherValues = new ContentValues[3];
+        for (int i = 0; i < preferredValues.length; i++) {
+            preferredValues[i] = createReconcileTestValues(today + i * day, 20 + i);
+            otherValues[i] = createReconcileTestValues(today + i * day, 30 + i);
+        }
+
+        ContentResolver contentResolver = mContext.getContentResolver();
+        contentResolver.bulkInsert(WeatherContract.WeatherEntry.CONTENT_URI, preferredValues);
+
+        /* Reconciling the other location must leave the preferred location's weather alone */
+        Bundle extras = new Bundle();
+        extras.putParcelableArray(WeatherContract.WeatherEntry.EXTRA_WEATHER_VALUES, otherValues);
+        Bundle result = contentResolver.call(
+                WeatherContract.WeatherEntry.CONTENT_URI,
+                WeatherContract.WeatherEntry.METHOD_RECONCILE,
+                otherLocationSetting,
+                extras);
+
+        assertNotNull("Reconcile didn't return a result", result);
+        assertEquals("Every day of the other location's forecast should have been inserted",
+                otherValues.length,
+                result.getInt(WeatherContract.WeatherEntry.RESULT_ROWS_INSERTED));
+        assertEquals("No day should have been updated",
+                0, result.getInt(WeatherContract.WeatherEntry.RESULT_ROWS_UPDATED));
+
+        /* Look up the _ID the provider gave the other location */
+        Cursor locationCursor = contentResolver.query(
+                WeatherContract.LocationEntry.CONTENT_URI,
+                new String[]{WeatherContract.LocationEntry._ID},
+                WeatherContract.LocationEntry.COLUMN_LOCATION_SETTING + " = ?",
+                new String[]{otherLocationSetting},
+                null);
+        assertNotNull("Cursor was null.", locationCursor);
+        assertTrue("Other location wasn't stored", locationCursor.moveToFirst());
+        long otherLocationId = locationCursor.getLong(0);
+        locationCursor.close();
+
+        assertLocationWeather(WeatherContract.WeatherEntry.CONTENT_URI, preferredValues);
+        assertLocationWeather(
+                WeatherContract.WeatherEntry.buildWeatherUriWithLocation(otherLocationId),
+                otherValues);
+
+        /* A single day is looked up within its own location too */
+        Cursor dayCursor = contentResolver.query(
+                WeatherContract.WeatherEntry.buildWeatherUriWithLocationAndDate(
+                        otherLocationId, today + day),
+                null,
+                null,
+                null,
+                null);
+        assertNotNull("Cursor was null.", dayCursor);
+        assertEquals(1, dayCursor.getCount());
+        TestUtilities.validateThenCloseCursor("testWeatherIsStoredPerLocation",
+                dayCursor, otherValues[1]);
+    }
+
+    /**
+     * Locations the user has moved away from are deleted through the location URI. This test
+     * verifies that their weather goes with them, while the preferred location's stays.
+     */
+    @Test
+    public void testDeleteLocationDeletesItsWeather() {
+        long today = SunshineDateUtils.getNormalizedUtcDateForToday();
+        String otherLocationSetting = "sunshine-test-other-location";
+        ContentValues[] values = new ContentValues[]{createReconcileTestValues(today, 20)};
+
+        ContentResolver contentResolver = mContext.getContentResolver();
+        contentResolver.bulkInsert(WeatherContract.WeatherEntry.CONTENT_URI, values);
+
+        Bundle extras = new Bundle();
+        extras.putParcelableArray(WeatherContract.WeatherEntry.EXTRA_WEATHER_VALUES, values);
+        contentResolver.call(
+                WeatherContract.WeatherEntry.CONTENT_URI,
+                WeatherContract.WeatherEntry.METHOD_RECONCILE,
+                otherLocationSetting,
+                extras);
+
+        int locationsDeleted = contentResolver.delete(
+                WeatherContract.LocationEntry.CONTENT_URI,
+                WeatherContract.LocationEntry.COLUMN_LOCATION_SETTING + " = ?",
+                new String[]{otherLocationSetting});
+        assertEquals(1, locationsDeleted);
+
+        WeatherDbHelper helper = new WeatherDbHelper(mContext);
+        SQLiteDatabase database = helper.getReadableDatabase();
+        long weatherRows = DatabaseUtils.queryNumEntries(database,
+                WeatherContract.WeatherEntry.TABLE_NAME);
+        helper.close();
+
+        assertEquals("The deleted location's weather should have been deleted with it",
+                values.length, weatherRows);
+        assertLocationWeather(WeatherContract.WeatherEntry.CONTENT_URI, values);
+    }
+
+    private void assertLocationWeather(Uri uri, ContentValues[] expectedValues) {
+        Cursor cursor = mContext.getContentResolver().query(
+                uri,
+                null,
+                null,
+                null,
+                WeatherContract.WeatherEntry.COLUMN_DATE + " ASC");
+
+        assertNotNull("Cursor was null.", cursor);
+        assertEquals("Wrong number of days for " + uri, expectedValues.length, cursor.getCount());
+
+        cursor.moveToFirst();
+        for (int i = 0; i < expectedValues.length; i++, cursor.moveToNext()) {
+            TestUtilities.validateCurrentRecord(
+                    "Error validating WeatherEntry " + i + " for " + uri,
+                    cursor,
+                    expectedValues[i]);
+        }
+
+        cursor.close();
+    }
+
+    private static ContentValues createReconcileTestValues(long date, int maxTemp) {
+        ContentValues weatherValues = new ContentValues();
+        weatherValues.put(WeatherContract.WeatherEntry.COLUMN_DATE, date);
+        weatherValues.put(WeatherContract.WeatherEntry.COLUMN_DEGREES, 1.1);
+        weatherValues.put(WeatherContract.WeatherEntry.COLUMN_HUMIDITY, 1.2);
+        weatherValues.put(WeatherContract.WeatherEntry.COLUMN_PRESSURE, 1.3);
+        weatherValues.put(WeatherContract.WeatherEntry.COLUMN_MAX_TEMP, maxTemp);
+        weatherValues.put(WeatherContract.WeatherEntry.COLUMN_MIN_TEMP, 10);
+        weatherValues.put(WeatherContract.WeatherEntry.COLUMN_WIND_SPEED, 5.5);
+        weatherValues.put(WeatherContract.WeatherEntry.COLUMN_WEATHER_ID, 321);
+        return weatherValues;
+    }
+
     /**
      * This method will clear all rows from the weather table in our database.
      * <p>
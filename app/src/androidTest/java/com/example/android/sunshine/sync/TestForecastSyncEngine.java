@@ -0,0 +1,335 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.sync;
+
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.net.Uri;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.runner.AndroidJUnit4;
+import android.support.v4.os.CancellationSignal;
+import android.support.v4.os.OperationCanceledException;
+import android.util.Log;
+
+import com.example.android.sunshine.data.SunshinePreferences;
+import com.example.android.sunshine.data.WeatherContract;
+import com.example.android.sunshine.data.WeatherDbHelper;
+import com.example.android.sunshine.utilities.ForecastResponseCache;
+import com.example.android.sunshine.utils.PollingCheck;
+import com.example.android.sunshine.utils.StubHttpServer;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.IOException;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.Callable;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertFalse;
+import static junit.framework.Assert.assertTrue;
+
+/**
+ * Runs {@link ForecastSyncEngine} against a local stand-in for the weather server that serves a
+ * different fixture forecast for each location, slowly enough that fetches can only overlap if
+ * the engine really does run them concurrently.
+ */
+@RunWith(AndroidJUnit4.class)
+public class TestForecastSyncEngine {
+
+    private static final String TAG = TestForecastSyncEngine.class.getSimpleName();
+
+    /* Locations stored besides the preferred one */
+    private static final String[] SAVED_LOCATIONS = {"Paris,FR", "Tokyo,JP", "Sydney,AU"};
+
+    private static final int DAYS_PER_FORECAST = 14;
+
+    /* How long the stub server takes to answer each request */
+    private static final long RESPONSE_DELAY_MILLIS = 200;
+
+    private final Context mContext = InstrumentationRegistry.getTargetContext();
+
+    private WeatherDbHelper mDbHelper;
+    private ForecastResponseCache mCache;
+    private StubHttpServer mServer;
+
+    /* The preferred location followed by SAVED_LOCATIONS */
+    private final List<String> mLocations = new ArrayList<>();
+
+    private final AtomicInteger mRequestsInFlight = new AtomicInteger();
+    private final AtomicInteger mMaxRequestsInFlight = new AtomicInteger();
+
+    /* When set, the stub server answers requests for this location with a 500 */
+    private volatile String mFailingLocation;
+
+    @Before
+    public void setUp() throws IOException {
+        mDbHelper = new WeatherDbHelper(mContext);
+        SQLiteDatabase database = mDbHelper.getWritableDatabase();
+        database.delete(WeatherContract.LocationEntry.TABLE_NAME, null, null);
+
+        mLocations.add(SunshinePreferences.getPreferredWeatherLocation(mContext));
+        for (String locationSetting : SAVED_LOCATIONS) {
+            ContentValues location = new ContentValues();
+            location.put(WeatherContract.LocationEntry.COLUMN_LOCATION_SETTING, locationSetting);
+            database.insertOrThrow(WeatherContract.LocationEntry.TABLE_NAME, null, location);
+            mLocations.add(locationSetting);
+        }
+
+        mCache = ForecastResponseCache.getInstance(mContext);
+        mCache.clear();
+
+        mServer = new StubHttpServer(new StubHttpServer.Dispatcher() {
+            @Override
+            public StubHttpServer.StubResponse dispatch(StubHttpServer.RecordedRequest request) {
+                int inFlight = mRequestsInFlight.incrementAndGet();
+                try {
+                    int max;
+                    do {
+                        max = mMaxRequestsInFlight.get();
+                    } while (inFlight > max && !mMaxRequestsInFlight.compareAndSet(max, inFlight));
+
+                    Thread.sleep(RESPONSE_DELAY_MILLIS);
+
+                    String locationSetting = Uri.parse(request.path).getQueryParameter("q");
+                    if (locationSetting.equals(mFailingLocation)) {
+                        return new StubHttpServer.StubResponse(
+                                HttpURLConnection.HTTP_INTERNAL_ERROR);
+                    }
+                    return new StubHttpServer.StubResponse(HttpURLConnection.HTTP_OK)
+                            .setBody(createForecastJson(mLocations.indexOf(locationSetting)));
+                } catch (InterruptedException e) {
+                    return new StubHttpServer.StubResponse(HttpURLConnection.HTTP_UNAVAILABLE);
+                } finally {
+                    mRequestsInFlight.decrementAndGet();
+                }
+            }
+        });
+        mServer.start();
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        mServer.shutdown();
+        mCache.clear();
+        mDbHelper.getWritableDatabase()
+                .delete(WeatherContract.LocationEntry.TABLE_NAME, null, null);
+        mDbHelper.close();
+        SunshinePreferences.resetLocationCoordinates(mContext);
+    }
+
+    /**
+     * Builds the fixture forecast for the location at the given position of mLocations. Every
+     * day shares a weather ID, and the city's latitude, derived from that position, so that we
+     * can tell which location's forecast ended up where.
+     */
+    private static String createForecastJson(int locationIndex) {
+        StringBuilder json = new StringBuilder("{\"cod\":\"200\",\"message\":0.0032,")
+                .append("\"city\":{\"id\":").append(locationIndex)
+                .append(",\"coord\":{\"lon\":-122.0838,\"lat\":")
+                .append(getLatitude(locationIndex)).append("}},")
+                .append("\"cnt\":").append(DAYS_PER_FORECAST).append(",\"list\":[");
+        for (int i = 0; i < DAYS_PER_FORECAST; i++) {
+            if (i > 0) json.append(',');
+            json.append(String.format(Locale.US,
+                    "{\"dt\":%d,\"temp\":{\"min\":%.2f,\"max\":%.2f},"
+                            + "\"pressure\":1012.5,\"humidity\":60,"
+                            + "\"weather\":[{\"id\":%d,\"main\":\"Clear\"}],"
+                            + "\"speed\":3.5,\"deg\":270}",
+                    1475280000L + i * 86400L, 5 + i * 0.5, 15 + i * 0.5,
+                    getWeatherId(locationIndex)));
+        }
+        return json.append("]}").toString();
+    }
+
+    private static int getWeatherId(int locationIndex) {
+        return 800 + locationIndex;
+    }
+
+    private static double getLatitude(int locationIndex) {
+        return 10 + locationIndex;
+    }
+
+    private ForecastSyncEngine createEngine() {
+        return createEngine(ForecastSyncEngine.MAX_CONCURRENT_FETCHES);
+    }
+
+    private ForecastSyncEngine createEngine(int maxConcurrentFetches) {
+        return new ForecastSyncEngine(mContext, mCache, new ForecastSyncEngine.UrlFactory() {
+            @Override
+            public URL getUrl(String locationSetting) {
+                try {
+                    return mServer.getUrl("/weather?q=" + Uri.encode(locationSetting));
+                } catch (IOException e) {
+                    throw new AssertionError(e);
+                }
+            }
+        }, maxConcurrentFetches);
+    }
+
+    private long getLocationId(String locationSetting) {
+        Cursor cursor = mContext.getContentResolver().query(
+                WeatherContract.LocationEntry.CONTENT_URI,
+                new String[]{WeatherContract.LocationEntry._ID},
+                WeatherContract.LocationEntry.COLUMN_LOCATION_SETTING + " = ?",
+                new String[]{locationSetting},
+                null);
+        try {
+            assertTrue("Location " + locationSetting + " wasn't stored", cursor.moveToFirst());
+            return cursor.getLong(0);
+        } finally {
+            cursor.close();
+        }
+    }
+
+    /**
+     * Verifies that the location holds exactly the days of its own fixture forecast, or no
+     * days at all if expectedDays is 0.
+     */
+    private void assertStoredForecast(String locationSetting, int expectedDays) {
+        Cursor cursor = mContext.getContentResolver().query(
+                WeatherContract.WeatherEntry.buildWeatherUriWithLocation(
+                        getLocationId(locationSetting)),
+                new String[]{WeatherContract.WeatherEntry.COLUMN_WEATHER_ID},
+                null,
+                null,
+                null);
+        try {
+            assertEquals("Wrong number of days stored for " + locationSetting,
+                    expectedDays, cursor.getCount());
+            int expectedWeatherId = getWeatherId(mLocations.indexOf(locationSetting));
+            while (cursor.moveToNext()) {
+                assertEquals("Another location's forecast was stored for " + locationSetting,
+                        expectedWeatherId, cursor.getInt(0));
+            }
+        } finally {
+            cursor.close();
+        }
+    }
+
+    @Test
+    public void testSyncFetchesEveryLocationConcurrently() throws InterruptedException {
+        List<ForecastSyncEngine.LocationResult> results =
+                createEngine().sync(false, new CancellationSignal());
+
+        assertEquals("Every location should have been synced",
+                mLocations.size(), results.size());
+        assertEquals("Each location should have been requested exactly once",
+                mLocations.size(), mServer.getRequestCount());
+        assertTrue("Locations were fetched one after another",
+                mMaxRequestsInFlight.get() > 1);
+        assertTrue("More requests were in flight than the engine allows",
+                mMaxRequestsInFlight.get() <= ForecastSyncEngine.MAX_CONCURRENT_FETCHES);
+
+        for (int i = 0; i < results.size(); i++) {
+            ForecastSyncEngine.LocationResult result = results.get(i);
+            assertEquals("Results should be in the order of the locations",
+                    mLocations.get(i), result.locationSetting);
+            assertEquals("Failed to sync " + result.locationSetting + ": " + result.error,
+                    ForecastSyncEngine.STATUS_PARSED, result.status);
+            assertEquals(DAYS_PER_FORECAST, result.days);
+            assertTrue("Fetch time wasn't recorded", result.fetchNanos > 0);
+            assertTrue("Parse time wasn't recorded", result.parseNanos > 0);
+
+            Log.i(TAG, String.format(Locale.US, "%s: fetch %.1f ms, parse %.1f ms",
+                    result.locationSetting, result.fetchNanos / 1e6, result.parseNanos / 1e6));
+
+            assertStoredForecast(result.locationSetting, DAYS_PER_FORECAST);
+        }
+
+        double[] coordinates = SunshinePreferences.getLocationCoordinates(mContext);
+        assertEquals("Only the preferred location's coordinates should be saved",
+                getLatitude(0), coordinates[0], 0);
+    }
+
+    @Test
+    public void testFailedLocationDoesNotKeepOthersFromBeingStored() throws InterruptedException {
+        mFailingLocation = SAVED_LOCATIONS[1];
+
+        List<ForecastSyncEngine.LocationResult> results =
+                createEngine().sync(false, new CancellationSignal());
+
+        for (ForecastSyncEngine.LocationResult result : results) {
+            if (result.locationSetting.equals(mFailingLocation)) {
+                assertEquals(ForecastSyncEngine.STATUS_FAILED, result.status);
+                assertEquals("A 500 should be classified as the server's fault",
+                        SyncStatus.RESULT_SERVER_ERROR, SyncStatus.classify(result));
+                assertStoredForecast(result.locationSetting, 0);
+            } else {
+                assertEquals("Failed to sync " + result.locationSetting + ": " + result.error,
+                        ForecastSyncEngine.STATUS_PARSED, result.status);
+                assertStoredForecast(result.locationSetting, DAYS_PER_FORECAST);
+            }
+        }
+    }
+
+    /**
+     * Fetches one location at a time and cancels the sync while the first one is in flight. The
+     * remaining locations must never be requested, and nothing may be written.
+     */
+    @Test
+    public void testCancelledSyncStopsFetchingAndWritesNothing() throws Exception {
+        final ForecastSyncEngine engine = createEngine(1);
+        final CancellationSignal cancellationSignal = new CancellationSignal();
+        final AtomicReference<Throwable> failure = new AtomicReference<>();
+
+        Thread sync = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    engine.sync(false, cancellationSignal);
+                } catch (Throwable t) {
+                    failure.set(t);
+                }
+            }
+        });
+        sync.start();
+
+        PollingCheck.check("The first location was never requested", RESPONSE_DELAY_MILLIS * 10,
+                new Callable<Boolean>() {
+                    @Override
+                    public Boolean call() {
+                        return mServer.getRequestCount() == 1;
+                    }
+                });
+        cancellationSignal.cancel();
+        sync.join(RESPONSE_DELAY_MILLIS * 10);
+
+        assertFalse("A cancelled sync should stop", sync.isAlive());
+        assertTrue("A cancelled sync should end with OperationCanceledException, not "
+                + failure.get(), failure.get() instanceof OperationCanceledException);
+        assertEquals("Locations that hadn't started should never be requested",
+                1, mServer.getRequestCount());
+
+        Cursor cursor = mDbHelper.getReadableDatabase().query(
+                WeatherContract.WeatherEntry.TABLE_NAME, null, null, null, null, null, null);
+        try {
+            assertEquals("A cancelled sync shouldn't write any weather", 0, cursor.getCount());
+        } finally {
+            cursor.close();
+        }
+    }
+}
@@ -0,0 +1,383 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.sync;
+
+import android.support.test.runner.AndroidJUnit4;
+import android.support.v4.os.CancellationSignal;
+import android.support.v4.os.OperationCanceledException;
+
+import com.example.android.sunshine.utils.PollingCheck;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertFalse;
+import static junit.framework.Assert.assertNull;
+import static junit.framework.Assert.assertSame;
+import static junit.framework.Assert.assertTrue;
+import static junit.framework.Assert.fail;
+
+@RunWith(AndroidJUnit4.class)
+public class TestSyncCoordinator {
+
+    private static final String LOCATION = "94043,USA";
+    private static final String OTHER_LOCATION = "Paris,FR";
+
+    /* Long enough that nothing in these tests ever goes stale */
+    private static final long FRESHNESS_WINDOW_MILLIS = 60 * 1000;
+
+    private static final long TIMEOUT_MILLIS = 3000;
+
+    /* How often the stand-in sync checks whether it has been cancelled */
+    private static final long CANCELLATION_CHECK_MILLIS = 10;
+
+    /**
+     * A stand-in for our real sync that blocks until it is released, so that tests can pile up
+     * requests while it is in flight. Like the real one, it gives up once it is cancelled.
+     */
+    private static class BlockingRunner implements SyncCoordinator.SyncRunner {
+
+        final AtomicInteger mRunCount = new AtomicInteger();
+        final List<Boolean> mSkipIfNotModified =
+                Collections.synchronizedList(new ArrayList<Boolean>());
+        volatile CountDownLatch mRelease = new CountDownLatch(0);
+        volatile Exception mError;
+        volatile CancellationSignal mCancellationSignal;
+
+        @Override
+        public List<ForecastSyncEngine.LocationResult> runSync(boolean skipIfNotModified,
+                CancellationSignal cancellationSignal) throws Exception {
+            mCancellationSignal = cancellationSignal;
+            mRunCount.incrementAndGet();
+            mSkipIfNotModified.add(skipIfNotModified);
+            while (!mRelease.await(CANCELLATION_CHECK_MILLIS, TimeUnit.MILLISECONDS)) {
+                cancellationSignal.throwIfCanceled();
+            }
+            if (mError != null) {
+                throw mError;
+            }
+
+            ForecastSyncEngine.LocationResult result =
+                    new ForecastSyncEngine.LocationResult(LOCATION);
+            result.status = ForecastSyncEngine.STATUS_PARSED;
+            return Collections.singletonList(result);
+        }
+    }
+
+    /**
+     * Requests a sync on a thread of its own, recording what the request returned.
+     */
+    private static Thread requestOnNewThread(final SyncCoordinator coordinator,
+            final String locationSetting, final boolean skipIfNotModified,
+            final CancellationSignal cancellationSignal,
+            final List<List<ForecastSyncEngine.LocationResult>> results,
+            final AtomicReference<Throwable> failure) {
+        Thread thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    results.add(coordinator.requestSync(locationSetting, skipIfNotModified,
+                            cancellationSignal));
+                } catch (Throwable t) {
+                    failure.compareAndSet(null, t);
+                }
+            }
+        });
+        thread.start();
+        return thread;
+    }
+
+    private static List<List<ForecastSyncEngine.LocationResult>> newResultList() {
+        return Collections.synchronizedList(
+                new ArrayList<List<ForecastSyncEngine.LocationResult>>());
+    }
+
+    private static void waitForRequests(final SyncCoordinator coordinator,
+            final long expectedCoalesced) throws Exception {
+        PollingCheck.check("Requests were never coalesced", TIMEOUT_MILLIS,
+                new Callable<Boolean>() {
+                    @Override
+                    public Boolean call() {
+                        return coordinator.getCoalescedCount() == expectedCoalesced;
+                    }
+                });
+    }
+
+    private static void waitForSyncToStart(final BlockingRunner runner, final int runCount)
+            throws Exception {
+        PollingCheck.check("The sync never started", TIMEOUT_MILLIS,
+                new Callable<Boolean>() {
+                    @Override
+                    public Boolean call() {
+                        return runner.mRunCount.get() == runCount;
+                    }
+                });
+    }
+
+    @Test
+    public void testConcurrentRequestsShareOneSync() throws Exception {
+        final BlockingRunner runner = new BlockingRunner();
+        runner.mRelease = new CountDownLatch(1);
+        SyncCoordinator coordinator = new SyncCoordinator(runner, FRESHNESS_WINDOW_MILLIS);
+
+        List<List<ForecastSyncEngine.LocationResult>> results = newResultList();
+        AtomicReference<Throwable> failure = new AtomicReference<>();
+
+        int requestCount = 5;
+        List<Thread> threads = new ArrayList<>();
+        threads.add(requestOnNewThread(coordinator, LOCATION, true,
+                new CancellationSignal(), results, failure));
+        waitForSyncToStart(runner, 1);
+        for (int i = 1; i < requestCount; i++) {
+            threads.add(requestOnNewThread(coordinator, LOCATION, true,
+                    new CancellationSignal(), results, failure));
+        }
+        waitForRequests(coordinator, requestCount - 1);
+
+        runner.mRelease.countDown();
+        for (Thread thread : threads) {
+            thread.join(TIMEOUT_MILLIS);
+        }
+
+        assertNull("Request failed: " + failure.get(), failure.get());
+        assertEquals("Concurrent requests should run exactly one sync", 1, runner.mRunCount.get());
+        assertEquals(1, coordinator.getExecutedCount());
+        assertEquals(requestCount - 1, coordinator.getCoalescedCount());
+        assertEquals(0, coordinator.getSkippedCount());
+
+        assertEquals(requestCount, results.size());
+        for (List<ForecastSyncEngine.LocationResult> result : results) {
+            assertSame("Every request should share the results of the same sync",
+                    results.get(0), result);
+        }
+    }
+
+    @Test
+    public void testRequestWithinFreshnessWindowIsSkipped() throws Exception {
+        BlockingRunner runner = new BlockingRunner();
+        SyncCoordinator coordinator = new SyncCoordinator(runner, FRESHNESS_WINDOW_MILLIS);
+
+        List<ForecastSyncEngine.LocationResult> first =
+                coordinator.requestSync(LOCATION, false, new CancellationSignal());
+        List<ForecastSyncEngine.LocationResult> second =
+                coordinator.requestSync(LOCATION, true, new CancellationSignal());
+
+        assertEquals(1, runner.mRunCount.get());
+        assertEquals(1, coordinator.getExecutedCount());
+        assertEquals(1, coordinator.getSkippedCount());
+        assertSame("A skipped request should get the last sync's results", first, second);
+    }
+
+    @Test
+    public void testRequestAfterFreshnessWindowSyncs() throws Exception {
+        BlockingRunner runner = new BlockingRunner();
+        SyncCoordinator coordinator = new SyncCoordinator(runner, 0);
+
+        coordinator.requestSync(LOCATION, true, new CancellationSignal());
+        coordinator.requestSync(LOCATION, true, new CancellationSignal());
+
+        assertEquals(2, runner.mRunCount.get());
+        assertEquals(0, coordinator.getSkippedCount());
+    }
+
+    /**
+     * The fresh forecast of the old preferred location is of no use once the user picks another.
+     */
+    @Test
+    public void testRequestForAnotherLocationIsNeverSkipped() throws Exception {
+        BlockingRunner runner = new BlockingRunner();
+        SyncCoordinator coordinator = new SyncCoordinator(runner, FRESHNESS_WINDOW_MILLIS);
+
+        coordinator.requestSync(LOCATION, true, new CancellationSignal());
+        coordinator.requestSync(OTHER_LOCATION, true, new CancellationSignal());
+
+        assertEquals(2, runner.mRunCount.get());
+        assertEquals(0, coordinator.getSkippedCount());
+    }
+
+    /**
+     * A request that needs every forecast written can't make do with a sync that may skip
+     * unchanged ones, so it runs its own once that sync is done.
+     */
+    @Test
+    public void testForcedRequestIsNotCoalescedWithSkippingSync() throws Exception {
+        final BlockingRunner runner = new BlockingRunner();
+        runner.mRelease = new CountDownLatch(1);
+        SyncCoordinator coordinator = new SyncCoordinator(runner, 0);
+
+        List<List<ForecastSyncEngine.LocationResult>> results = newResultList();
+        AtomicReference<Throwable> failure = new AtomicReference<>();
+
+        Thread periodic = requestOnNewThread(coordinator, LOCATION, true,
+                new CancellationSignal(), results, failure);
+        waitForSyncToStart(runner, 1);
+        final Thread immediate = requestOnNewThread(coordinator, LOCATION, false,
+                new CancellationSignal(), results, failure);
+        PollingCheck.check("The immediate request never waited for the periodic sync",
+                TIMEOUT_MILLIS, new Callable<Boolean>() {
+                    @Override
+                    public Boolean call() {
+                        return immediate.getState() == Thread.State.WAITING;
+                    }
+                });
+
+        runner.mRelease.countDown();
+        periodic.join(TIMEOUT_MILLIS);
+        immediate.join(TIMEOUT_MILLIS);
+
+        assertNull("Request failed: " + failure.get(), failure.get());
+        assertEquals(2, runner.mRunCount.get());
+        assertEquals(0, coordinator.getCoalescedCount());
+        assertEquals(Boolean.FALSE, runner.mSkipIfNotModified.get(1));
+    }
+
+    /**
+     * Same as above, but within the freshness window. Once the periodic sync is done, its results
+     * are fresh, yet they still can't stand in for the immediate request that waited on it.
+     */
+    @Test
+    public void testForcedRequestIsNotSkippedAfterSkippingSync() throws Exception {
+        final BlockingRunner runner = new BlockingRunner();
+        runner.mRelease = new CountDownLatch(1);
+        SyncCoordinator coordinator = new SyncCoordinator(runner, FRESHNESS_WINDOW_MILLIS);
+
+        List<List<ForecastSyncEngine.LocationResult>> results = newResultList();
+        AtomicReference<Throwable> failure = new AtomicReference<>();
+
+        Thread periodic = requestOnNewThread(coordinator, LOCATION, true,
+                new CancellationSignal(), results, failure);
+        waitForSyncToStart(runner, 1);
+        final Thread immediate = requestOnNewThread(coordinator, LOCATION, false,
+                new CancellationSignal(), results, failure);
+        PollingCheck.check("The immediate request never waited for the periodic sync",
+                TIMEOUT_MILLIS, new Callable<Boolean>() {
+                    @Override
+                    public Boolean call() {
+                        return immediate.getState() == Thread.State.WAITING;
+                    }
+                });
+
+        runner.mRelease.countDown();
+        periodic.join(TIMEOUT_MILLIS);
+        immediate.join(TIMEOUT_MILLIS);
+
+        assertNull("Request failed: " + failure.get(), failure.get());
+        assertEquals("The immediate request should have run a sync of its own",
+                2, runner.mRunCount.get());
+        assertEquals(0, coordinator.getSkippedCount());
+        assertEquals(Boolean.FALSE, runner.mSkipIfNotModified.get(1));
+
+        /* Its sync skipped nothing, so it now stands in for requests of either kind */
+        coordinator.requestSync(LOCATION, false, new CancellationSignal());
+        coordinator.requestSync(LOCATION, true, new CancellationSignal());
+        assertEquals(2, runner.mRunCount.get());
+        assertEquals(2, coordinator.getSkippedCount());
+    }
+
+    @Test
+    public void testFailedSyncIsSharedAndNotFresh() throws Exception {
+        BlockingRunner runner = new BlockingRunner();
+        runner.mError = new IOException("Server unreachable");
+        SyncCoordinator coordinator = new SyncCoordinator(runner, FRESHNESS_WINDOW_MILLIS);
+
+        try {
+            coordinator.requestSync(LOCATION, true, new CancellationSignal());
+            fail("The sync's failure should have been passed on to the request");
+        } catch (ExecutionException e) {
+            assertSame(runner.mError, e.getCause());
+        }
+
+        runner.mError = null;
+        coordinator.requestSync(LOCATION, true, new CancellationSignal());
+
+        assertEquals("A failed sync shouldn't keep the next request from syncing",
+                2, runner.mRunCount.get());
+        assertEquals(0, coordinator.getSkippedCount());
+    }
+
+    @Test
+    public void testCancellingEveryRequestCancelsSync() throws Exception {
+        BlockingRunner runner = new BlockingRunner();
+        runner.mRelease = new CountDownLatch(1);
+        SyncCoordinator coordinator = new SyncCoordinator(runner, FRESHNESS_WINDOW_MILLIS);
+
+        List<List<ForecastSyncEngine.LocationResult>> results = newResultList();
+        AtomicReference<Throwable> failure = new AtomicReference<>();
+        CancellationSignal cancellationSignal = new CancellationSignal();
+
+        Thread request = requestOnNewThread(coordinator, LOCATION, true,
+                cancellationSignal, results, failure);
+        waitForSyncToStart(runner, 1);
+
+        cancellationSignal.cancel();
+        request.join(TIMEOUT_MILLIS);
+
+        assertFalse("A cancelled request should stop waiting", request.isAlive());
+        assertTrue("A cancelled request should end with OperationCanceledException",
+                failure.get() instanceof OperationCanceledException);
+        assertTrue("A sync nobody waits for any more should be cancelled",
+                runner.mCancellationSignal.isCanceled());
+
+        /* A cancelled sync isn't fresh, so the next request syncs again */
+        runner.mRelease.countDown();
+        coordinator.requestSync(LOCATION, true, new CancellationSignal());
+        assertEquals(2, runner.mRunCount.get());
+    }
+
+    @Test
+    public void testCancellingOneRequestKeepsSharedSyncRunning() throws Exception {
+        BlockingRunner runner = new BlockingRunner();
+        runner.mRelease = new CountDownLatch(1);
+        SyncCoordinator coordinator = new SyncCoordinator(runner, FRESHNESS_WINDOW_MILLIS);
+
+        List<List<ForecastSyncEngine.LocationResult>> results = newResultList();
+        AtomicReference<Throwable> failure = new AtomicReference<>();
+        CancellationSignal cancelledSignal = new CancellationSignal();
+
+        Thread kept = requestOnNewThread(coordinator, LOCATION, true,
+                new CancellationSignal(), results, failure);
+        waitForSyncToStart(runner, 1);
+        Thread cancelled = requestOnNewThread(coordinator, LOCATION, true,
+                cancelledSignal, results, failure);
+        waitForRequests(coordinator, 1);
+
+        cancelledSignal.cancel();
+        cancelled.join(TIMEOUT_MILLIS);
+
+        assertFalse("A cancelled request should stop waiting", cancelled.isAlive());
+        assertTrue(failure.get() instanceof OperationCanceledException);
+        assertFalse("The sync is still needed by the other request",
+                runner.mCancellationSignal.isCanceled());
+
+        runner.mRelease.countDown();
+        kept.join(TIMEOUT_MILLIS);
+
+        assertEquals("The remaining request should get the sync's results", 1, results.size());
+        assertEquals(1, runner.mRunCount.get());
+    }
+}
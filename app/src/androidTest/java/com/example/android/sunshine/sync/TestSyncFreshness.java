@@ -0,0 +1,135 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.sync;
+
+import android.content.Context;
+import android.database.sqlite.SQLiteDatabase;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.runner.AndroidJUnit4;
+import android.text.format.DateUtils;
+
+import com.example.android.sunshine.data.SunshinePreferences;
+import com.example.android.sunshine.data.WeatherDbHelper;
+import com.example.android.sunshine.utilities.SunshineDateUtils;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.Collections;
+
+import static junit.framework.Assert.assertFalse;
+import static junit.framework.Assert.assertTrue;
+
+@RunWith(AndroidJUnit4.class)
+public class TestSyncFreshness {
+
+    private static final String LOCATION = "94043,USA";
+    private static final String OTHER_LOCATION = "Paris,FR";
+
+    private static final long TODAY = SunshineDateUtils.getNormalizedUtcDateForToday();
+    private static final long NOW = TODAY + 12 * DateUtils.HOUR_IN_MILLIS;
+    private static final long AN_HOUR_AGO = NOW - DateUtils.HOUR_IN_MILLIS;
+
+    private Context mContext;
+
+    @Before
+    public void setUp() {
+        mContext = InstrumentationRegistry.getTargetContext();
+        SyncFreshness.clear(mContext);
+        SyncStatus.clear(mContext);
+    }
+
+    @After
+    public void tearDown() {
+        SyncFreshness.clear(mContext);
+        SyncStatus.clear(mContext);
+    }
+
+    @Test
+    public void testFreshForecastNeedsNoImmediateSync() {
+        long lastDate = TODAY + 13 * DateUtils.DAY_IN_MILLIS;
+        assertFalse(SyncFreshness.isImmediateSyncNeeded(
+                LOCATION, lastDate, AN_HOUR_AGO, LOCATION, TODAY, NOW));
+
+        assertFalse("A forecast that still covers today should do",
+                SyncFreshness.isImmediateSyncNeeded(
+                        LOCATION, TODAY, AN_HOUR_AGO, LOCATION, TODAY, NOW));
+    }
+
+    @Test
+    public void testStaleOrMissingForecastNeedsImmediateSync() {
+        long lastDate = TODAY + 13 * DateUtils.DAY_IN_MILLIS;
+
+        assertTrue("Nothing recorded should mean we sync",
+                SyncFreshness.isImmediateSyncNeeded(null, 0, 0, LOCATION, TODAY, NOW));
+        assertTrue("A forecast for another location shouldn't count",
+                SyncFreshness.isImmediateSyncNeeded(
+                        OTHER_LOCATION, lastDate, AN_HOUR_AGO, LOCATION, TODAY, NOW));
+        assertTrue("A forecast that ended yesterday has nothing left to show",
+                SyncFreshness.isImmediateSyncNeeded(LOCATION, TODAY - DateUtils.DAY_IN_MILLIS,
+                        AN_HOUR_AGO, LOCATION, TODAY, NOW));
+        assertTrue("A forecast we haven't synced for over a day should be synced",
+                SyncFreshness.isImmediateSyncNeeded(LOCATION, lastDate,
+                        NOW - 2 * DateUtils.DAY_IN_MILLIS, LOCATION, TODAY, NOW));
+    }
+
+    @Test
+    public void testSyncUpdatesIndex() {
+        assertTrue("Nothing recorded should mean we sync",
+                SyncFreshness.isImmediateSyncNeeded(mContext));
+
+        ForecastSyncEngine.LocationResult result = new ForecastSyncEngine.LocationResult(
+                SunshinePreferences.getPreferredWeatherLocation(mContext));
+        result.status = ForecastSyncEngine.STATUS_PARSED;
+        result.days = 14;
+        result.lastDate = SunshineDateUtils.getNormalizedUtcDateForToday()
+                + 13 * DateUtils.DAY_IN_MILLIS;
+
+        SyncStatus.recordSync(mContext, Collections.singletonList(result));
+        SyncFreshness.recordSync(mContext, Collections.singletonList(result));
+
+        assertFalse("A sync that just stored two weeks of weather should be fresh",
+                SyncFreshness.isImmediateSyncNeeded(mContext));
+    }
+
+    /**
+     * A database that is created, or discarded and recreated by onUpgrade, holds no weather, so
+     * the index must stop vouching for it.
+     */
+    @Test
+    public void testRecreatedDatabaseClearsIndex() {
+        ForecastSyncEngine.LocationResult result = new ForecastSyncEngine.LocationResult(
+                SunshinePreferences.getPreferredWeatherLocation(mContext));
+        result.status = ForecastSyncEngine.STATUS_PARSED;
+        result.days = 14;
+        result.lastDate = SunshineDateUtils.getNormalizedUtcDateForToday()
+                + 13 * DateUtils.DAY_IN_MILLIS;
+        SyncStatus.recordSync(mContext, Collections.singletonList(result));
+        SyncFreshness.recordSync(mContext, Collections.singletonList(result));
+
+        SQLiteDatabase database = SQLiteDatabase.create(null);
+        try {
+            new WeatherDbHelper(mContext).onCreate(database);
+        } finally {
+            database.close();
+        }
+
+        assertTrue("An empty database should mean we sync",
+                SyncFreshness.isImmediateSyncNeeded(mContext));
+    }
+}
@@ -0,0 +1,275 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.sync;
+
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteDatabase;
+import android.net.Uri;
+import android.os.Debug;
+import android.os.SystemClock;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.runner.AndroidJUnit4;
+import android.util.Log;
+
+import com.example.android.sunshine.data.SunshinePreferences;
+import com.example.android.sunshine.data.WeatherContract;
+import com.example.android.sunshine.data.WeatherDbHelper;
+import com.example.android.sunshine.utilities.FakeDataUtils;
+import com.example.android.sunshine.utilities.ForecastResponseCache;
+import com.example.android.sunshine.utilities.SunshineDateUtils;
+import com.example.android.sunshine.utilities.SyncMetrics;
+import com.example.android.sunshine.utils.StubHttpServer;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.IOException;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import static junit.framework.Assert.assertEquals;
+
+/**
+ * Drives the whole sync, from {@link SunshineSyncTask} through {@link ForecastSyncEngine} to the
+ * WeatherProvider, against a local stand-in for the weather server that serves forecasts made by
+ * {@link FakeDataUtils}. Each load is a number of locations and a number of days per forecast, up
+ * to a thousand locations and up to a year of days.
+ * <p>
+ * For each load we log the sync's throughput, the bytes it downloaded, the time spent in each of
+ * its stages, and how much the Java and native heaps grew, both at their peak and once the sync
+ * was done. Results are written to logcat under this class's tag.
+ */
+@RunWith(AndroidJUnit4.class)
+public class TestSyncLoad {
+
+    private static final String TAG = TestSyncLoad.class.getSimpleName();
+
+    /* How often the peak heap size is sampled while a sync runs */
+    private static final long HEAP_SAMPLE_INTERVAL_MILLIS = 5;
+
+    private final Context mContext = InstrumentationRegistry.getTargetContext();
+
+    private WeatherDbHelper mDbHelper;
+    private ForecastResponseCache mCache;
+    private StubHttpServer mServer;
+    private long mLastNotificationTime;
+
+    /* The response for each location setting. Built before a sync, so it isn't timed. */
+    private final Map<String, byte[]> mResponses = new ConcurrentHashMap<>();
+
+    @Before
+    public void setUp() throws IOException {
+        mDbHelper = new WeatherDbHelper(mContext);
+        mCache = ForecastResponseCache.getInstance(mContext);
+
+        /* Keep the syncs from notifying the user of the fake weather */
+        mLastNotificationTime = SunshinePreferences.getLastNotificationTimeInMillis(mContext);
+        SunshinePreferences.saveLastNotificationTime(mContext, System.currentTimeMillis());
+
+        mServer = new StubHttpServer(new StubHttpServer.Dispatcher() {
+            @Override
+            public StubHttpServer.StubResponse dispatch(StubHttpServer.RecordedRequest request) {
+                byte[] response = mResponses.get(Uri.parse(request.path).getQueryParameter("q"));
+                if (response == null) {
+                    return new StubHttpServer.StubResponse(HttpURLConnection.HTTP_NOT_FOUND);
+                }
+                return new StubHttpServer.StubResponse(HttpURLConnection.HTTP_OK)
+                        .setHeader("Content-Type", "application/json")
+                        .setBody(response);
+            }
+        });
+        mServer.start();
+
+        SunshineSyncTask.setUrlFactory(new ForecastSyncEngine.UrlFactory() {
+            @Override
+            public URL getUrl(String locationSetting) {
+                try {
+                    return mServer.getUrl("/forecast?q=" + Uri.encode(locationSetting));
+                } catch (IOException e) {
+                    throw new AssertionError(e);
+                }
+            }
+        });
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        SunshineSyncTask.setUrlFactory(null);
+        mServer.shutdown();
+        mCache.clear();
+
+        SQLiteDatabase database = mDbHelper.getWritableDatabase();
+        database.delete(WeatherContract.WeatherEntry.TABLE_NAME, null, null);
+        database.delete(WeatherContract.LocationEntry.TABLE_NAME, null, null);
+        mDbHelper.close();
+
+        SunshinePreferences.resetLocationCoordinates(mContext);
+        SunshinePreferences.saveLastNotificationTime(mContext, mLastNotificationTime);
+        SyncSchedule.clear(mContext);
+        SyncStatus.clear(mContext);
+        SyncFreshness.clear(mContext);
+    }
+
+    @Test
+    public void loadTestTwoWeeks() throws Exception {
+        runLoad(1, 14);
+    }
+
+    @Test
+    public void loadTestOneYear() throws Exception {
+        runLoad(1, 365);
+    }
+
+    @Test
+    public void loadTestHundredLocations() throws Exception {
+        runLoad(100, 14);
+    }
+
+    @Test
+    public void loadTestThousandLocations() throws Exception {
+        runLoad(1000, 14);
+    }
+
+    /**
+     * Stores locationCount locations, the preferred one included, and has the server answer
+     * for each with its own forecast of daysPerForecast days. Then runs a sync, checks that it
+     * stored every day of every forecast, and logs what it took.
+     */
+    private void runLoad(int locationCount, int daysPerForecast) throws Exception {
+        SQLiteDatabase database = mDbHelper.getWritableDatabase();
+        database.delete(WeatherContract.WeatherEntry.TABLE_NAME, null, null);
+        database.delete(WeatherContract.LocationEntry.TABLE_NAME, null, null);
+        mCache.clear();
+        mResponses.clear();
+
+        long today = SunshineDateUtils.getNormalizedUtcDateForToday();
+        long responseBytes = 0;
+        String preferredLocation = SunshinePreferences.getPreferredWeatherLocation(mContext);
+        database.beginTransaction();
+        try {
+            for (int i = 0; i < locationCount; i++) {
+                String locationSetting = i == 0 ? preferredLocation : "Fake location " + i;
+                byte[] response = FakeDataUtils.createForecastJson(i, today, daysPerForecast)
+                        .getBytes("UTF-8");
+                mResponses.put(locationSetting, response);
+                responseBytes += response.length;
+
+                if (i > 0) {
+                    ContentValues location = new ContentValues();
+                    location.put(WeatherContract.LocationEntry.COLUMN_LOCATION_SETTING,
+                            locationSetting);
+                    database.insertOrThrow(WeatherContract.LocationEntry.TABLE_NAME, null,
+                            location);
+                }
+            }
+            database.setTransactionSuccessful();
+        } finally {
+            database.endTransaction();
+        }
+
+        /* Start from a settled heap, so that what the sync allocates stands out */
+        Runtime runtime = Runtime.getRuntime();
+        runtime.gc();
+        long javaHeapBefore = runtime.totalMemory() - runtime.freeMemory();
+        long nativeHeapBefore = Debug.getNativeHeapAllocatedSize();
+
+        HeapSampler sampler = new HeapSampler();
+        sampler.start();
+        long start = SystemClock.elapsedRealtimeNanos();
+        int result = SunshineSyncTask.syncWeather(mContext, false);
+        long syncNanos = SystemClock.elapsedRealtimeNanos() - start;
+        sampler.finish();
+
+        runtime.gc();
+        long javaHeapAfter = runtime.totalMemory() - runtime.freeMemory();
+        long nativeHeapAfter = Debug.getNativeHeapAllocatedSize();
+
+        assertEquals("Sync failed", SyncStatus.RESULT_SUCCESS, result);
+        long rows = DatabaseUtils.queryNumEntries(database,
+                WeatherContract.WeatherEntry.TABLE_NAME);
+        assertEquals("Every day of every forecast should have been stored",
+                (long) locationCount * daysPerForecast, rows);
+
+        double seconds = syncNanos / 1e9;
+        Log.i(TAG, String.format(Locale.US,
+                "%d locations x %d days: %.1f ms, %.0f rows/s, %.0f locations/s, "
+                        + "%d KB served (%.1f MB/s)",
+                locationCount, daysPerForecast, syncNanos / 1e6, rows / seconds,
+                locationCount / seconds, responseBytes / 1024,
+                responseBytes / seconds / (1024 * 1024)));
+        Log.i(TAG, String.format(Locale.US,
+                "%d locations x %d days: java heap +%d KB at peak, +%d KB after; "
+                        + "native heap +%d KB at peak, +%d KB after",
+                locationCount, daysPerForecast,
+                (sampler.getPeakJavaHeap() - javaHeapBefore) / 1024,
+                (javaHeapAfter - javaHeapBefore) / 1024,
+                (sampler.getPeakNativeHeap() - nativeHeapBefore) / 1024,
+                (nativeHeapAfter - nativeHeapBefore) / 1024));
+
+        List<SyncMetrics.SyncRecord> records = SyncMetrics.getInstance().getRecords();
+        SyncMetrics.SyncRecord metrics = records.get(records.size() - 1);
+        Log.i(TAG, String.format(Locale.US,
+                "%d locations x %d days: fetch %.1f ms, parse %.1f ms, reconcile %.1f ms "
+                        + "(fetch and parse summed over locations), %d bytes downloaded",
+                locationCount, daysPerForecast,
+                metrics.stageNanos[SyncMetrics.STAGE_FETCH] / 1e6,
+                metrics.stageNanos[SyncMetrics.STAGE_PARSE] / 1e6,
+                metrics.stageNanos[SyncMetrics.STAGE_RECONCILE] / 1e6,
+                metrics.bytesDownloaded));
+    }
+
+    /**
+     * Samples the size of the Java and native heaps until finished, keeping the largest of each.
+     */
+    private static final class HeapSampler extends Thread {
+
+        private volatile boolean mFinished;
+        private volatile long mPeakJavaHeap;
+        private volatile long mPeakNativeHeap;
+
+        @Override
+        public void run() {
+            Runtime runtime = Runtime.getRuntime();
+            while (!mFinished) {
+                mPeakJavaHeap = Math.max(mPeakJavaHeap,
+                        runtime.totalMemory() - runtime.freeMemory());
+                mPeakNativeHeap = Math.max(mPeakNativeHeap, Debug.getNativeHeapAllocatedSize());
+                SystemClock.sleep(HEAP_SAMPLE_INTERVAL_MILLIS);
+            }
+        }
+
+        void finish() throws InterruptedException {
+            mFinished = true;
+            join();
+        }
+
+        long getPeakJavaHeap() {
+            return mPeakJavaHeap;
+        }
+
+        long getPeakNativeHeap() {
+            return mPeakNativeHeap;
+        }
+    }
+}
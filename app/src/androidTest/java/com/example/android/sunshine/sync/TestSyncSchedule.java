@@ -0,0 +1,117 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.sync;
+
+import android.content.Context;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.runner.AndroidJUnit4;
+import android.text.format.DateUtils;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.concurrent.TimeUnit;
+
+import static com.example.android.sunshine.sync.SyncSchedule.DEFAULT_CHANGE_RATE;
+import static com.example.android.sunshine.sync.SyncSchedule.MAX_SYNC_INTERVAL_SECONDS;
+import static com.example.android.sunshine.sync.SyncSchedule.MIN_SYNC_INTERVAL_SECONDS;
+import static com.example.android.sunshine.sync.SyncSchedule.computeSyncIntervalSeconds;
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertTrue;
+
+@RunWith(AndroidJUnit4.class)
+public class TestSyncSchedule {
+
+    /* Far enough away that the next notification never shortens the interval */
+    private static final long NOTIFICATION_NOT_DUE_MILLIS = 2 * DateUtils.DAY_IN_MILLIS;
+
+    private Context mContext;
+
+    @Before
+    public void setUp() {
+        mContext = InstrumentationRegistry.getTargetContext();
+        SyncSchedule.clear(mContext);
+    }
+
+    @After
+    public void tearDown() {
+        SyncSchedule.clear(mContext);
+    }
+
+    @Test
+    public void testIntervalStretchesAsChangeRateFalls() {
+        assertEquals("A forecast that changes on every sync should be synced as often as we can",
+                MIN_SYNC_INTERVAL_SECONDS,
+                computeSyncIntervalSeconds(1f, false, NOTIFICATION_NOT_DUE_MILLIS));
+        assertEquals("A forecast that never changes should be synced as rarely as we can",
+                MAX_SYNC_INTERVAL_SECONDS,
+                computeSyncIntervalSeconds(0f, false, NOTIFICATION_NOT_DUE_MILLIS));
+
+        int previousInterval = 0;
+        for (float rate = 1f; rate >= 0f; rate -= 0.1f) {
+            int interval = computeSyncIntervalSeconds(rate, false, NOTIFICATION_NOT_DUE_MILLIS);
+            assertTrue("Interval should grow as the change rate falls",
+                    interval >= previousInterval);
+            previousInterval = interval;
+        }
+    }
+
+    @Test
+    public void testIntervalIsTightenedBeforeNotificationIsDue() {
+        long twoHoursMillis = TimeUnit.HOURS.toMillis(2);
+
+        assertEquals("Next sync should run once the next notification may be shown",
+                (int) TimeUnit.HOURS.toSeconds(2),
+                computeSyncIntervalSeconds(0f, true, twoHoursMillis));
+        assertEquals("Interval shouldn't be tightened if notifications are disabled",
+                MAX_SYNC_INTERVAL_SECONDS,
+                computeSyncIntervalSeconds(0f, false, twoHoursMillis));
+        assertEquals("A notification that is already due should leave the interval to the "
+                        + "change rate",
+                MAX_SYNC_INTERVAL_SECONDS,
+                computeSyncIntervalSeconds(0f, true, -twoHoursMillis));
+        assertEquals("A notification that is due right now should leave the interval to the "
+                        + "change rate",
+                MAX_SYNC_INTERVAL_SECONDS,
+                computeSyncIntervalSeconds(0f, true, 0));
+    }
+
+    @Test
+    public void testRecordedSyncsArePersisted() {
+        assertEquals(DEFAULT_CHANGE_RATE, SyncSchedule.getChangeRate(mContext), 0.0001f);
+
+        for (int i = 0; i < 10; i++) {
+            SyncSchedule.recordSync(mContext, false);
+        }
+        SyncSchedule.recordSync(mContext, true);
+
+        float expectedRate = DEFAULT_CHANGE_RATE;
+        for (int i = 0; i < 10; i++) {
+            expectedRate = SyncSchedule.updateChangeRate(expectedRate, false);
+        }
+        expectedRate = SyncSchedule.updateChangeRate(expectedRate, true);
+
+        assertEquals(expectedRate, SyncSchedule.getChangeRate(mContext), 0.0001f);
+        assertTrue("Mostly unchanged forecasts should lower the change rate",
+                SyncSchedule.getChangeRate(mContext) < DEFAULT_CHANGE_RATE);
+
+        long[] counts = SyncSchedule.getSyncCounts(mContext);
+        assertEquals(11, counts[0]);
+        assertEquals(1, counts[1]);
+    }
+}
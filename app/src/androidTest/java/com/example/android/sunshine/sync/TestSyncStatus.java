@@ -0,0 +1,152 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.sync;
+
+import android.content.Context;
+import android.database.sqlite.SQLiteException;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.runner.AndroidJUnit4;
+import android.util.MalformedJsonException;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.IOException;
+import java.net.HttpURLConnection;
+import java.net.SocketTimeoutException;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertFalse;
+import static junit.framework.Assert.assertNotNull;
+import static junit.framework.Assert.assertNull;
+import static junit.framework.Assert.assertTrue;
+
+@RunWith(AndroidJUnit4.class)
+public class TestSyncStatus {
+
+    private static final String LOCATION = "94043,USA";
+
+    private Context mContext;
+
+    @Before
+    public void setUp() {
+        mContext = InstrumentationRegistry.getTargetContext();
+        SyncStatus.clear(mContext);
+    }
+
+    @After
+    public void tearDown() {
+        SyncStatus.clear(mContext);
+    }
+
+    @Test
+    public void testLocationResultsAreClassified() {
+        assertEquals(SyncStatus.RESULT_SUCCESS, SyncStatus.classify(
+                createResult(ForecastSyncEngine.STATUS_PARSED, HttpURLConnection.HTTP_OK)));
+        assertEquals(SyncStatus.RESULT_SUCCESS, SyncStatus.classify(
+                createResult(ForecastSyncEngine.STATUS_NOT_MODIFIED, HttpURLConnection.HTTP_OK)));
+
+        assertEquals("A location the server doesn't know should be a bad location",
+                SyncStatus.RESULT_BAD_LOCATION, SyncStatus.classify(createResult(
+                        ForecastSyncEngine.STATUS_NO_FORECAST, HttpURLConnection.HTTP_NOT_FOUND)));
+        assertEquals("An error the server reports in its JSON should be the server's fault",
+                SyncStatus.RESULT_SERVER_ERROR, SyncStatus.classify(createResult(
+                        ForecastSyncEngine.STATUS_NO_FORECAST,
+                        HttpURLConnection.HTTP_INTERNAL_ERROR)));
+        assertEquals("Being told to slow down should be retried like a server error",
+                SyncStatus.RESULT_SERVER_ERROR, SyncStatus.classify(createResult(
+                        ForecastSyncEngine.STATUS_NO_FORECAST, 429)));
+        assertEquals("A forecast without any days should be a parse error",
+                SyncStatus.RESULT_PARSE_ERROR, SyncStatus.classify(createResult(
+                        ForecastSyncEngine.STATUS_NO_FORECAST, HttpURLConnection.HTTP_OK)));
+    }
+
+    @Test
+    public void testErrorsAreClassified() {
+        assertEquals(SyncStatus.RESULT_NETWORK_ERROR,
+                SyncStatus.classify(new SocketTimeoutException()));
+        assertEquals(SyncStatus.RESULT_NETWORK_ERROR,
+                SyncStatus.classify(new IOException()));
+        assertEquals("Malformed JSON is an IOException, but not a network error",
+                SyncStatus.RESULT_PARSE_ERROR,
+                SyncStatus.classify(new MalformedJsonException("Unterminated object")));
+        assertEquals(SyncStatus.RESULT_PARSE_ERROR,
+                SyncStatus.classify(new IllegalStateException("Expected a double")));
+        assertEquals(SyncStatus.RESULT_INTERNAL_ERROR,
+                SyncStatus.classify(new SQLiteException()));
+
+        assertTrue(SyncStatus.isRetryable(SyncStatus.RESULT_NETWORK_ERROR));
+        assertTrue(SyncStatus.isRetryable(SyncStatus.RESULT_SERVER_ERROR));
+        assertFalse(SyncStatus.isRetryable(SyncStatus.RESULT_BAD_LOCATION));
+        assertFalse(SyncStatus.isRetryable(SyncStatus.RESULT_PARSE_ERROR));
+        assertFalse(SyncStatus.isRetryable(SyncStatus.RESULT_SUCCESS));
+    }
+
+    @Test
+    public void testResultsArePersisted() {
+        assertEquals("Nothing should be recorded yet", -1, SyncStatus.getLastResult(mContext));
+
+        SyncStatus.recordFailure(mContext, new SocketTimeoutException());
+        SyncStatus.recordSync(mContext, Collections.singletonList(createResult(
+                ForecastSyncEngine.STATUS_NO_FORECAST, HttpURLConnection.HTTP_UNAVAILABLE)));
+
+        assertEquals(SyncStatus.RESULT_SERVER_ERROR, SyncStatus.getLastResult(mContext));
+        assertEquals(2, SyncStatus.getConsecutiveFailureCount(mContext));
+        assertNotNull(SyncStatus.getLastError(mContext));
+        assertEquals(0, SyncStatus.getLastSuccessTimeMillis(mContext));
+        assertTrue(SyncStatus.getLastResultTimeMillis(mContext) > 0);
+
+        List<ForecastSyncEngine.LocationResult> success = Collections.singletonList(
+                createResult(ForecastSyncEngine.STATUS_PARSED, HttpURLConnection.HTTP_OK));
+        SyncStatus.recordSync(mContext, success);
+
+        assertEquals(SyncStatus.RESULT_SUCCESS, SyncStatus.getLastResult(mContext));
+        assertEquals("A success should reset the failure count",
+                0, SyncStatus.getConsecutiveFailureCount(mContext));
+        assertNull(SyncStatus.getLastError(mContext));
+        assertEquals(SyncStatus.getLastResultTimeMillis(mContext),
+                SyncStatus.getLastSuccessTimeMillis(mContext));
+    }
+
+    @Test
+    public void testRetryBackoffIsJittered() {
+        Random random = new Random(42);
+        int min = Integer.MAX_VALUE;
+        int max = Integer.MIN_VALUE;
+        for (int i = 0; i < 100; i++) {
+            int backoff = SunshineSyncUtils.getJitteredBackoffSeconds(random);
+            min = Math.min(min, backoff);
+            max = Math.max(max, backoff);
+        }
+
+        assertTrue("Backoff should never be shorter than a minute", min >= 60);
+        assertTrue("Backoff should never be longer than two minutes", max <= 120);
+        assertTrue("Backoff should vary from one device to the next", min < max);
+    }
+
+    private static ForecastSyncEngine.LocationResult createResult(int status,
+            int serverErrorCode) {
+        ForecastSyncEngine.LocationResult result = new ForecastSyncEngine.LocationResult(LOCATION);
+        result.status = status;
+        result.serverErrorCode = serverErrorCode;
+        return result;
+    }
+}
@@ -0,0 +1,97 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.utilities;
+
+import android.content.ContentValues;
+import android.support.test.runner.AndroidJUnit4;
+
+import com.example.android.sunshine.data.ForecastBatch;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.net.HttpURLConnection;
+
+import static com.example.android.sunshine.data.WeatherContract.WeatherEntry.COLUMN_DATE;
+import static com.example.android.sunshine.data.WeatherContract.WeatherEntry.COLUMN_DEGREES;
+import static com.example.android.sunshine.data.WeatherContract.WeatherEntry.COLUMN_HUMIDITY;
+import static com.example.android.sunshine.data.WeatherContract.WeatherEntry.COLUMN_MAX_TEMP;
+import static com.example.android.sunshine.data.WeatherContract.WeatherEntry.COLUMN_MIN_TEMP;
+import static com.example.android.sunshine.data.WeatherContract.WeatherEntry.COLUMN_PRESSURE;
+import static com.example.android.sunshine.data.WeatherContract.WeatherEntry.COLUMN_WEATHER_ID;
+import static com.example.android.sunshine.data.WeatherContract.WeatherEntry.COLUMN_WIND_SPEED;
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertFalse;
+import static junit.framework.Assert.assertTrue;
+
+@RunWith(AndroidJUnit4.class)
+public class TestFakeDataUtils {
+
+    private static final long START_DATE = SunshineDateUtils.getNormalizedUtcDateForToday();
+
+    @Test
+    public void testSameSeedGivesSameForecast() {
+        assertEquals(FakeDataUtils.createForecastJson(42, START_DATE, 30),
+                FakeDataUtils.createForecastJson(42, START_DATE, 30));
+        assertFalse("Different seeds should stand for different locations",
+                FakeDataUtils.createForecastJson(42, START_DATE, 30)
+                        .equals(FakeDataUtils.createForecastJson(43, START_DATE, 30)));
+    }
+
+    /**
+     * Ensures that the JSON forecast parses into exactly the weather of the ContentValues made
+     * from the same seed, and that the weather is plausible. Our parsers date each day from today
+     * rather than reading its date from the JSON, so the forecasts start today.
+     */
+    @Test
+    public void testJsonMatchesContentValues() throws IOException {
+        int numDays = 365;
+        String forecastJson = FakeDataUtils.createForecastJson(7, START_DATE, numDays);
+        ContentValues[] values = FakeDataUtils.createWeatherContentValues(7, START_DATE, numDays);
+
+        ForecastBatch forecast = ForecastBatch.obtain();
+        try {
+            assertEquals(HttpURLConnection.HTTP_OK, OpenWeatherJsonUtils.parseForecastFromStream(
+                    new ByteArrayInputStream(forecastJson.getBytes("UTF-8")), forecast,
+                    new double[2]));
+            assertEquals(numDays, forecast.size());
+
+            for (int i = 0; i < numDays; i++) {
+                String error = "Day " + i + " differs between the JSON and the ContentValues";
+                ContentValues day = values[i];
+                assertEquals(error, (long) day.getAsLong(COLUMN_DATE), forecast.getDate(i));
+                assertEquals(error, (int) day.getAsInteger(COLUMN_WEATHER_ID),
+                        forecast.getWeatherId(i));
+                assertEquals(error, day.getAsDouble(COLUMN_MIN_TEMP), forecast.getMinTemp(i));
+                assertEquals(error, day.getAsDouble(COLUMN_MAX_TEMP), forecast.getMaxTemp(i));
+                assertEquals(error, day.getAsDouble(COLUMN_HUMIDITY), forecast.getHumidity(i));
+                assertEquals(error, day.getAsDouble(COLUMN_PRESSURE), forecast.getPressure(i));
+                assertEquals(error, day.getAsDouble(COLUMN_WIND_SPEED),
+                        forecast.getWindSpeed(i));
+                assertEquals(error, day.getAsDouble(COLUMN_DEGREES), forecast.getDegrees(i));
+
+                assertTrue("Each day's low should be below its high",
+                        forecast.getMinTemp(i) < forecast.getMaxTemp(i));
+                assertTrue("Humidity should be a percentage",
+                        forecast.getHumidity(i) >= 0 && forecast.getHumidity(i) <= 100);
+            }
+        } finally {
+            forecast.recycle();
+        }
+    }
+}
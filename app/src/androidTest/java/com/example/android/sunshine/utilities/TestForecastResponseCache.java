@@ -0,0 +1,268 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.utilities;
+
+import android.support.test.InstrumentationRegistry;
+import android.support.test.runner.AndroidJUnit4;
+
+import com.example.android.sunshine.utils.StubHttpServer;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.zip.GZIPOutputStream;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertFalse;
+import static junit.framework.Assert.assertNull;
+import static junit.framework.Assert.assertTrue;
+import static junit.framework.Assert.fail;
+
+@RunWith(AndroidJUnit4.class)
+public class TestForecastResponseCache {
+
+    private static final String FORECAST_BODY = "{\"cod\":\"200\",\"list\":[]}";
+    private static final String ETAG = "\"forecast-v1\"";
+    private static final String LAST_MODIFIED = "Sat, 01 Oct 2016 00:00:00 GMT";
+
+    private StubHttpServer mServer;
+    private ForecastResponseCache mCache;
+
+    /* When true, the stub server gzips the body of its 200 responses */
+    private volatile boolean mGzipResponses;
+
+    /* When set, the stub server answers every request with this status code instead */
+    private volatile int mErrorStatusCode;
+
+    @Before
+    public void setUp() throws IOException {
+        File cacheDirectory = new File(
+                InstrumentationRegistry.getTargetContext().getCacheDir(), "test_forecast_cache");
+        mCache = new ForecastResponseCache(cacheDirectory);
+        mCache.clear();
+
+        /*
+         * The stub server behaves like a well-behaved HTTP server with a forecast that never
+         * changes: if the client presents our ETag, it answers 304.
+         */
+        mServer = new StubHttpServer(new StubHttpServer.Dispatcher() {
+            @Override
+            public StubHttpServer.StubResponse dispatch(StubHttpServer.RecordedRequest request) {
+                if (mErrorStatusCode != 0) {
+                    return new StubHttpServer.StubResponse(mErrorStatusCode)
+                            .setBody("{\"cod\":\"" + mErrorStatusCode + "\"}");
+                }
+                if (ETAG.equals(request.getHeader("If-None-Match"))) {
+                    return new StubHttpServer.StubResponse(HttpURLConnection.HTTP_NOT_MODIFIED)
+                            .setHeader("ETag", ETAG);
+                }
+
+                StubHttpServer.StubResponse response =
+                        new StubHttpServer.StubResponse(HttpURLConnection.HTTP_OK)
+                                .setHeader("ETag", ETAG)
+                                .setHeader("Last-Modified", LAST_MODIFIED);
+                if (mGzipResponses) {
+                    response.setHeader("Content-Encoding", "gzip").setBody(gzip(FORECAST_BODY));
+                } else {
+                    response.setBody(FORECAST_BODY);
+                }
+                return response;
+            }
+        });
+        mServer.start();
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        mServer.shutdown();
+        mCache.clear();
+    }
+
+    /**
+     * The first fetch of a URL must be unconditional. Once that response is cached, the next
+     * fetch must send the cached validators, and the resulting 304 must replay the cached body.
+     */
+    @Test
+    public void testConditionalRequestAfterSuccessfulResponse() throws IOException {
+        URL url = mServer.getUrl("/weather?q=94043");
+
+        ForecastResponseCache.Response first = mCache.fetch(url);
+        try {
+            assertFalse("First response should not be a 304", first.isNotModified());
+            assertEquals(FORECAST_BODY, readFully(first.getBody()));
+            first.setSuccessful();
+        } finally {
+            first.close();
+        }
+
+        assertNull("First request should have been unconditional",
+                mServer.getRequests().get(0).getHeader("If-None-Match"));
+
+        ForecastResponseCache.Response second = mCache.fetch(url);
+        try {
+            assertTrue("Second response should be a 304", second.isNotModified());
+            assertEquals("A 304 should replay the cached body",
+                    FORECAST_BODY, readFully(second.getBody()));
+        } finally {
+            second.close();
+        }
+
+        StubHttpServer.RecordedRequest conditionalRequest = mServer.getRequests().get(1);
+        assertEquals(ETAG, conditionalRequest.getHeader("If-None-Match"));
+        assertEquals(LAST_MODIFIED, conditionalRequest.getHeader("If-Modified-Since"));
+        assertEquals("gzip", conditionalRequest.getHeader("Accept-Encoding"));
+    }
+
+    /**
+     * A response that was never marked successful (for example, one that failed to parse) must
+     * not be cached, so the next request has to be unconditional.
+     */
+    @Test
+    public void testUnsuccessfulResponseIsNotCached() throws IOException {
+        URL url = mServer.getUrl("/weather?q=94043");
+
+        ForecastResponseCache.Response first = mCache.fetch(url);
+        try {
+            readFully(first.getBody());
+        } finally {
+            first.close();
+        }
+
+        ForecastResponseCache.Response second = mCache.fetch(url);
+        try {
+            assertFalse("Response should not have been revalidated", second.isNotModified());
+        } finally {
+            second.close();
+        }
+
+        assertNull("Second request should have been unconditional",
+                mServer.getRequests().get(1).getHeader("If-None-Match"));
+    }
+
+    /**
+     * An error response must be reported along with its status code, so that callers can tell
+     * a location the server doesn't know from a server that is down.
+     */
+    @Test
+    public void testErrorStatusIsReported() throws IOException {
+        URL url = mServer.getUrl("/weather?q=94043");
+
+        int[] statusCodes = {HttpURLConnection.HTTP_NOT_FOUND, HttpURLConnection.HTTP_UNAVAILABLE};
+        for (int statusCode : statusCodes) {
+            mErrorStatusCode = statusCode;
+            try {
+                mCache.fetch(url).close();
+                fail("Fetching a " + statusCode + " response should have thrown");
+            } catch (ForecastResponseCache.HttpStatusException e) {
+                assertEquals(statusCode, e.getStatusCode());
+            }
+        }
+    }
+
+    /**
+     * Gzipped responses must be decompressed, and their decompressed body must be cached.
+     */
+    @Test
+    public void testGzipResponseIsDecompressed() throws IOException {
+        mGzipResponses = true;
+        URL url = mServer.getUrl("/weather?q=94043");
+
+        ForecastResponseCache.Response first = mCache.fetch(url);
+        try {
+            assertEquals(FORECAST_BODY, readFully(first.getBody()));
+            first.setSuccessful();
+        } finally {
+            first.close();
+        }
+
+        ForecastResponseCache.Response second = mCache.fetch(url);
+        try {
+            assertTrue(second.isNotModified());
+            assertEquals(FORECAST_BODY, readFully(second.getBody()));
+        } finally {
+            second.close();
+        }
+    }
+
+    /**
+     * The first date a body was parsed with must come back with the 304 for it, and parsing the
+     * cached body again with another first date, as after midnight, must replace it.
+     */
+    @Test
+    public void testFirstDateIsKeptWithValidators() throws IOException {
+        URL url = mServer.getUrl("/weather?q=94043");
+        long today = SunshineDateUtils.getNormalizedUtcDateForToday();
+        long tomorrow = today + SunshineDateUtils.DAY_IN_MILLIS;
+
+        ForecastResponseCache.Response first = mCache.fetch(url);
+        try {
+            assertEquals(ForecastResponseCache.UNKNOWN_DATE, first.getCachedFirstDate());
+            readFully(first.getBody());
+            first.setSuccessful(today);
+        } finally {
+            first.close();
+        }
+
+        ForecastResponseCache.Response second = mCache.fetch(url);
+        try {
+            assertTrue(second.isNotModified());
+            assertEquals(today, second.getCachedFirstDate());
+            readFully(second.getBody());
+            second.setSuccessful(tomorrow);
+        } finally {
+            second.close();
+        }
+
+        ForecastResponseCache.Response third = mCache.fetch(url);
+        try {
+            assertTrue(third.isNotModified());
+            assertEquals("Parsing the cached body again should have stored its new first date",
+                    tomorrow, third.getCachedFirstDate());
+        } finally {
+            third.close();
+        }
+    }
+
+    private static String readFully(InputStream in) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[1024];
+        int read;
+        while ((read = in.read(buffer)) != -1) {
+            out.write(buffer, 0, read);
+        }
+        return out.toString("UTF-8");
+    }
+
+    private static byte[] gzip(String body) {
+        try {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            GZIPOutputStream gzipOut = new GZIPOutputStream(out);
+            gzipOut.write(body.getBytes("UTF-8"));
+            gzipOut.close();
+            return out.toByteArray();
+        } catch (IOException e) {
+            throw new AssertionError(e);
+        }
+    }
+}
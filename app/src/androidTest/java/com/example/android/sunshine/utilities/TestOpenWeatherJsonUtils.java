@@ -0,0 +1,215 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.utilities;
+
+import android.content.ContentValues;
+import android.content.Context;
+import android.os.SystemClock;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.runner.AndroidJUnit4;
+import android.util.Log;
+
+import com.example.android.sunshine.data.ForecastBatch;
+
+import org.json.JSONException;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.util.Locale;
+
+import static com.example.android.sunshine.data.WeatherContract.WeatherEntry.COLUMN_DATE;
+import static com.example.android.sunshine.data.WeatherContract.WeatherEntry.COLUMN_DEGREES;
+import static com.example.android.sunshine.data.WeatherContract.WeatherEntry.COLUMN_HUMIDITY;
+import static com.example.android.sunshine.data.WeatherContract.WeatherEntry.COLUMN_MAX_TEMP;
+import static com.example.android.sunshine.data.WeatherContract.WeatherEntry.COLUMN_MIN_TEMP;
+import static com.example.android.sunshine.data.WeatherContract.WeatherEntry.COLUMN_PRESSURE;
+import static com.example.android.sunshine.data.WeatherContract.WeatherEntry.COLUMN_WEATHER_ID;
+import static com.example.android.sunshine.data.WeatherContract.WeatherEntry.COLUMN_WIND_SPEED;
+import static junit.framework.Assert.assertEquals;
+
+@RunWith(AndroidJUnit4.class)
+public class TestOpenWeatherJsonUtils {
+
+    private static final String TAG = TestOpenWeatherJsonUtils.class.getSimpleName();
+
+    /* Number of times each parser is run before we start timing, so the JIT has warmed up */
+    private static final int WARMUP_ITERATIONS = 5;
+
+    /* Number of timed runs of each parser */
+    private static final int MEASURED_ITERATIONS = 20;
+
+    private final Context mContext = InstrumentationRegistry.getTargetContext();
+
+    /**
+     * Builds a forecast in the same shape as the one returned by our weather server. The keys
+     * for the error code and city are deliberately placed AFTER the list of days to make sure
+     * the streaming parser doesn't depend on key order.
+     *
+     * @param numDays Number of days to include in the "list" array
+     * @return JSON String of the forecast
+     */
+    static String createForecastJson(int numDays) {
+        StringBuilder json = new StringBuilder("{\"cnt\":").append(numDays).append(",\"list\":[");
+        for (int i = 0; i < numDays; i++) {
+            if (i > 0) json.append(',');
+            json.append(String.format(Locale.US,
+                    "{\"dt\":%d,\"temp\":{\"day\":17.2,\"min\":%.2f,\"max\":%.2f,\"night\":9.5},"
+                            + "\"pressure\":%.2f,\"humidity\":%d,"
+                            + "\"weather\":[{\"id\":%d,\"main\":\"Clear\",\"icon\":\"01d\"}],"
+                            + "\"speed\":%.2f,\"deg\":%d,\"clouds\":0}",
+                    1475280000L + i * 86400L,
+                    5 + (i % 7) * 0.5,
+                    15 + (i % 11) * 0.75,
+                    1000 + (i % 13),
+                    40 + (i % 50),
+                    200 + (i % 7) * 100,
+                    1.5 + (i % 5),
+                    (i * 37) % 360));
+        }
+        json.append("],\"cod\":\"200\",\"message\":0.0032,")
+                .append("\"city\":{\"id\":5375480,\"name\":\"Mountain View\",")
+                .append("\"coord\":{\"lon\":-122.0838,\"lat\":37.3861},\"country\":\"US\"}}");
+        return json.toString();
+    }
+
+    private static InputStream toStream(String json) throws IOException {
+        return new ByteArrayInputStream(json.getBytes("UTF-8"));
+    }
+
+    /**
+     * Ensures that the streaming parser produces exactly the same values as the DOM parser for
+     * the same response.
+     */
+    @Test
+    public void testStreamingParserMatchesDomParser() throws JSONException, IOException {
+        String forecastJson = createForecastJson(14);
+
+        ContentValues[] domValues = OpenWeatherJsonUtils
+                .getWeatherContentValuesFromJson(mContext, forecastJson);
+
+        ForecastBatch forecast = ForecastBatch.obtain();
+        try {
+            int errorCode = OpenWeatherJsonUtils
+                    .parseForecastFromStream(toStream(forecastJson), forecast, new double[2]);
+
+            assertEquals("Streaming parser failed to parse a valid forecast",
+                    HttpURLConnection.HTTP_OK, errorCode);
+            assertEquals("Streaming parser returned a different number of days",
+                    domValues.length,
+                    forecast.size());
+
+            /*
+             * The DOM parser stores humidity and weather ID as Integers, while a ForecastBatch
+             * holds every value as a primitive, so we compare the values numerically.
+             */
+            for (int i = 0; i < domValues.length; i++) {
+                String error = "Day " + i + " differs between the DOM and streaming parsers";
+                ContentValues dom = domValues[i];
+                assertEquals(error, (long) dom.getAsLong(COLUMN_DATE), forecast.getDate(i));
+                assertEquals(error, (int) dom.getAsInteger(COLUMN_WEATHER_ID),
+                        forecast.getWeatherId(i));
+                assertEquals(error, dom.getAsDouble(COLUMN_MIN_TEMP), forecast.getMinTemp(i));
+                assertEquals(error, dom.getAsDouble(COLUMN_MAX_TEMP), forecast.getMaxTemp(i));
+                assertEquals(error, dom.getAsDouble(COLUMN_HUMIDITY), forecast.getHumidity(i));
+                assertEquals(error, dom.getAsDouble(COLUMN_PRESSURE), forecast.getPressure(i));
+                assertEquals(error, dom.getAsDouble(COLUMN_WIND_SPEED),
+                        forecast.getWindSpeed(i));
+                assertEquals(error, dom.getAsDouble(COLUMN_DEGREES), forecast.getDegrees(i));
+            }
+        } finally {
+            forecast.recycle();
+        }
+    }
+
+    /**
+     * Ensures that the streaming parser, like the DOM parser, rejects a response in which the
+     * server reports an invalid location, and hands back the error code the server reported.
+     */
+    @Test
+    public void testStreamingParserReportsErrorCode() throws IOException {
+        String notFoundJson = "{\"cod\":\"404\",\"message\":\"city not found\"}";
+
+        ForecastBatch forecast = ForecastBatch.obtain();
+        try {
+            int errorCode = OpenWeatherJsonUtils
+                    .parseForecastFromStream(toStream(notFoundJson), forecast, new double[2]);
+
+            assertEquals("Streaming parser should reject a 404 response",
+                    HttpURLConnection.HTTP_NOT_FOUND, errorCode);
+            assertEquals(0, forecast.size());
+        } finally {
+            forecast.recycle();
+        }
+    }
+
+    /**
+     * Compares the time taken by the DOM parser (String to JSONObject to ContentValues) with the
+     * streaming parser (InputStream to ForecastBatch) for a two week, a one year and a ten year
+     * forecast. Results are written to logcat under this class's tag.
+     */
+    @Test
+    public void benchmarkStreamingParserAgainstDomParser() throws JSONException, IOException {
+        int[] forecastSizes = {14, 365, 3650};
+
+        for (int numDays : forecastSizes) {
+            String forecastJson = createForecastJson(numDays);
+            byte[] forecastBytes = forecastJson.getBytes("UTF-8");
+
+            /* As in our sync, one batch is reused for every streaming parse */
+            ForecastBatch forecast = ForecastBatch.obtain();
+            double[] cityCoord = new double[2];
+
+            for (int i = 0; i < WARMUP_ITERATIONS; i++) {
+                OpenWeatherJsonUtils.getWeatherContentValuesFromJson(mContext,
+                        new String(forecastBytes, "UTF-8"));
+                OpenWeatherJsonUtils.parseForecastFromStream(
+                        new ByteArrayInputStream(forecastBytes), forecast, cityCoord);
+            }
+
+            /*
+             * The DOM parser needs the whole response as a String, so building that String is
+             * part of what we time. That is the work NetworkUtils does for it today.
+             */
+            long domStart = SystemClock.elapsedRealtimeNanos();
+            for (int i = 0; i < MEASURED_ITERATIONS; i++) {
+                OpenWeatherJsonUtils.getWeatherContentValuesFromJson(mContext,
+                        new String(forecastBytes, "UTF-8"));
+            }
+            long domNanos = (SystemClock.elapsedRealtimeNanos() - domStart) / MEASURED_ITERATIONS;
+
+            long streamStart = SystemClock.elapsedRealtimeNanos();
+            for (int i = 0; i < MEASURED_ITERATIONS; i++) {
+                OpenWeatherJsonUtils.parseForecastFromStream(
+                        new ByteArrayInputStream(forecastBytes), forecast, cityCoord);
+            }
+            long streamNanos =
+                    (SystemClock.elapsedRealtimeNanos() - streamStart) / MEASURED_ITERATIONS;
+
+            forecast.recycle();
+
+            Log.i(TAG, String.format(Locale.US,
+                    "%d days (%d bytes): DOM %.3f ms, streaming %.3f ms per parse",
+                    numDays,
+                    forecastBytes.length,
+                    domNanos / 1e6,
+                    streamNanos / 1e6));
+        }
+    }
+}
@@ -0,0 +1,88 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.utilities;
+
+import android.content.Context;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.runner.AndroidJUnit4;
+
+import org.junit.After;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.TimeZone;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertFalse;
+import static junit.framework.Assert.assertSame;
+
+@RunWith(AndroidJUnit4.class)
+public class TestSunshineDateUtils {
+
+    private final Context mContext = InstrumentationRegistry.getTargetContext();
+
+    private final TimeZone mDefaultTimeZone = TimeZone.getDefault();
+
+    @After
+    public void restoreTimeZone() {
+        TimeZone.setDefault(mDefaultTimeZone);
+    }
+
+    @Test
+    public void testFriendlyDatesAreCached() {
+        long date = SunshineDateUtils.getNormalizedUtcDateForToday()
+                + 3 * SunshineDateUtils.DAY_IN_MILLIS;
+
+        String first = SunshineDateUtils.getFriendlyDateString(mContext, date, false);
+        assertSame("The date should have been formatted only once", first,
+                SunshineDateUtils.getFriendlyDateString(mContext, date, false));
+
+        String full = SunshineDateUtils.getFriendlyDateString(mContext, date, true);
+        assertSame(full, SunshineDateUtils.getFriendlyDateString(mContext, date, true));
+        assertFalse("Short and full dates are cached apart", first.equals(full));
+    }
+
+    /**
+     * Ensures that dates too far out to be cached are still formatted, the same way every time.
+     */
+    @Test
+    public void testDatesOutsideOfCache() {
+        long date = SunshineDateUtils.getNormalizedUtcDateForToday()
+                + 400 * SunshineDateUtils.DAY_IN_MILLIS;
+        assertEquals(SunshineDateUtils.getFriendlyDateString(mContext, date, true),
+                SunshineDateUtils.getFriendlyDateString(mContext, date, true));
+    }
+
+    /**
+     * Ensures that a change of time zone formats the dates again rather than returning a string
+     * made for the old time zone.
+     */
+    @Test
+    public void testTimeZoneChangeInvalidatesCache() {
+        long date = SunshineDateUtils.getNormalizedUtcDateForToday()
+                + 5 * SunshineDateUtils.DAY_IN_MILLIS;
+
+        TimeZone.setDefault(TimeZone.getTimeZone("UTC"));
+        String utc = SunshineDateUtils.getFriendlyDateString(mContext, date, true);
+
+        TimeZone.setDefault(TimeZone.getTimeZone("Pacific/Kiritimati"));
+        String kiritimati = SunshineDateUtils.getFriendlyDateString(mContext, date, true);
+        assertFalse("A new time zone should not reuse the old strings", utc == kiritimati);
+
+        TimeZone.setDefault(TimeZone.getTimeZone("UTC"));
+        assertEquals(utc, SunshineDateUtils.getFriendlyDateString(mContext, date, true));
+    }
+}
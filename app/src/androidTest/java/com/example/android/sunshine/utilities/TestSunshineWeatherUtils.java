@@ -0,0 +1,163 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.utilities;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.preference.PreferenceManager;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.runner.AndroidJUnit4;
+
+import com.example.android.sunshine.R;
+
+import org.junit.After;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertSame;
+import static junit.framework.Assert.assertTrue;
+
+@RunWith(AndroidJUnit4.class)
+public class TestSunshineWeatherUtils {
+
+    private final Context mContext = InstrumentationRegistry.getTargetContext();
+
+    @After
+    public void restoreUnits() {
+        setUnits(mContext.getString(R.string.pref_units_metric));
+    }
+
+    /**
+     * Checks the lookup tables at the edges of their range and at the IDs where one group of
+     * conditions gives way to the next.
+     */
+    @Test
+    public void testArtLookups() {
+        int[][] expected = {
+                {200, R.drawable.ic_storm, R.drawable.art_storm},
+                {321, R.drawable.ic_light_rain, R.drawable.art_light_rain},
+                {504, R.drawable.ic_rain, R.drawable.art_rain},
+                {511, R.drawable.ic_snow, R.drawable.art_snow},
+                {531, R.drawable.ic_rain, R.drawable.art_rain},
+                /* 761 is caught by the fog range before it can be a storm */
+                {761, R.drawable.ic_fog, R.drawable.art_fog},
+                {781, R.drawable.ic_storm, R.drawable.art_storm},
+                {800, R.drawable.ic_clear, R.drawable.art_clear},
+                {801, R.drawable.ic_light_clouds, R.drawable.art_light_clouds},
+                {804, R.drawable.ic_cloudy, R.drawable.art_clouds},
+                {951, R.drawable.ic_clear, R.drawable.art_clear},
+                {962, R.drawable.ic_storm, R.drawable.art_storm},
+        };
+
+        for (int[] row : expected) {
+            assertEquals("Wrong small art for " + row[0], row[1],
+                    SunshineWeatherUtils.getSmallArtResourceIdForWeatherCondition(row[0]));
+            assertEquals("Wrong large art for " + row[0], row[2],
+                    SunshineWeatherUtils.getLargeArtResourceIdForWeatherCondition(row[0]));
+        }
+
+        /* Unknown IDs, inside and outside of the tables, fall back to the storm art */
+        for (int weatherId : new int[]{0, 199, 450, 963, 10000}) {
+            assertEquals(R.drawable.ic_storm,
+                    SunshineWeatherUtils.getSmallArtResourceIdForWeatherCondition(weatherId));
+            assertEquals(R.drawable.art_storm,
+                    SunshineWeatherUtils.getLargeArtResourceIdForWeatherCondition(weatherId));
+        }
+    }
+
+    @Test
+    public void testStringLookups() {
+        assertEquals(mContext.getString(R.string.condition_2xx),
+                SunshineWeatherUtils.getStringForWeatherCondition(mContext, 232));
+        assertEquals(mContext.getString(R.string.condition_800),
+                SunshineWeatherUtils.getStringForWeatherCondition(mContext, 800));
+        assertEquals(mContext.getString(R.string.condition_962),
+                SunshineWeatherUtils.getStringForWeatherCondition(mContext, 962));
+
+        for (int weatherId : new int[]{199, 450, 963}) {
+            assertTrue("Unknown conditions should show their ID",
+                    SunshineWeatherUtils.getStringForWeatherCondition(mContext, weatherId)
+                            .contains(String.valueOf(weatherId)));
+        }
+    }
+
+    @Test
+    public void testResolvedStringsAreCached() {
+        String first = SunshineWeatherUtils.getStringForWeatherCondition(mContext, 501);
+        assertSame("The string should have been resolved only once", first,
+                SunshineWeatherUtils.getStringForWeatherCondition(mContext, 501));
+    }
+
+    /**
+     * Ensures that cached temperatures read exactly as the format would show them, including
+     * at the halves where rounding changes, below zero, and outside of the cached range.
+     */
+    @Test
+    public void testTemperaturesMatchFormat() {
+        setUnits(mContext.getString(R.string.pref_units_metric));
+        String format = mContext.getString(R.string.format_temperature);
+
+        double[] temperatures = {-120.5, -40.5, -2.5, -2.4, -0.5, -0.4, 0, 0.4999, 0.5, 17.25,
+                21.6, 35.5, 150.4, 150.5, 1000, Double.NaN};
+        for (double temperature : temperatures) {
+            String expected = String.format(format, temperature);
+            assertEquals("Wrong string for " + temperature, expected,
+                    SunshineWeatherUtils.formatTemperature(mContext, temperature));
+            assertEquals("Wrong cached string for " + temperature, expected,
+                    SunshineWeatherUtils.formatTemperature(mContext, temperature));
+        }
+
+        String first = SunshineWeatherUtils.formatTemperature(mContext, 21.6);
+        assertSame("The temperature should have been formatted only once", first,
+                SunshineWeatherUtils.formatTemperature(mContext, 21.9));
+    }
+
+    /**
+     * Ensures that picking other units is reflected right away, rather than the strings of the
+     * old units being served from the cache.
+     */
+    @Test
+    public void testUnitsChangeInvalidatesCache() {
+        setUnits(mContext.getString(R.string.pref_units_metric));
+        String format = mContext.getString(R.string.format_temperature);
+        assertEquals(String.format(format, 100.0),
+                SunshineWeatherUtils.formatTemperature(mContext, 100));
+        assertEquals(String.format(mContext.getString(R.string.format_wind_kmh), 4.5f, "SW"),
+                SunshineWeatherUtils.getFormattedWind(mContext, 4.5f, 217f));
+
+        setUnits(mContext.getString(R.string.pref_units_imperial));
+        assertEquals(String.format(format, 212.0),
+                SunshineWeatherUtils.formatTemperature(mContext, 100));
+        assertEquals(String.format(mContext.getString(R.string.format_wind_mph),
+                .621371192237334f * 4.5f, "SW"),
+                SunshineWeatherUtils.getFormattedWind(mContext, 4.5f, 217f));
+    }
+
+    /*
+     * Commits on the main thread, so that SharedPreferences tells its listeners about the change
+     * before this returns.
+     */
+    private void setUnits(final String units) {
+        InstrumentationRegistry.getInstrumentation().runOnMainSync(new Runnable() {
+            @Override
+            public void run() {
+                SharedPreferences sp = PreferenceManager.getDefaultSharedPreferences(mContext);
+                sp.edit().putString(mContext.getString(R.string.pref_units_key), units).commit();
+            }
+        });
+    }
+}
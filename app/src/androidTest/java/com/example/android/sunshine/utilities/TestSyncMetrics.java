@@ -0,0 +1,113 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.utilities;
+
+import android.database.Cursor;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.runner.AndroidJUnit4;
+
+import com.example.android.sunshine.data.WeatherContract.SyncMetricsEntry;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertNotNull;
+import static junit.framework.Assert.assertTrue;
+
+@RunWith(AndroidJUnit4.class)
+public class TestSyncMetrics {
+
+    @Test
+    public void testRingBufferKeepsLastSyncsInOrder() {
+        SyncMetrics metrics = new SyncMetrics(3);
+        for (int i = 0; i < 5; i++) {
+            metrics.record(createRecord(i, 10));
+        }
+
+        List<SyncMetrics.SyncRecord> records = metrics.getRecords();
+        assertEquals("Only the last 3 syncs should be kept", 3, records.size());
+        for (int i = 0; i < records.size(); i++) {
+            assertEquals("Syncs should be returned oldest first",
+                    i + 2, records.get(i).startTimeMillis);
+        }
+    }
+
+    @Test
+    public void testHistogramBuckets() {
+        assertEquals(0, SyncMetrics.getHistogramBucket(TimeUnit.MICROSECONDS.toNanos(500)));
+        assertEquals(1, SyncMetrics.getHistogramBucket(TimeUnit.MILLISECONDS.toNanos(1)));
+        assertEquals(2, SyncMetrics.getHistogramBucket(TimeUnit.MILLISECONDS.toNanos(3)));
+        assertEquals(8, SyncMetrics.getHistogramBucket(TimeUnit.MILLISECONDS.toNanos(200)));
+        assertEquals("Anything slower should land in the last bucket",
+                SyncMetrics.HISTOGRAM_BUCKET_COUNT - 1,
+                SyncMetrics.getHistogramBucket(TimeUnit.MINUTES.toNanos(10)));
+
+        SyncMetrics metrics = new SyncMetrics(SyncMetrics.MAX_RECORDED_SYNCS);
+        metrics.record(createRecord(0, 200));
+        metrics.record(createRecord(1, 250));
+        metrics.record(createRecord(2, 3));
+
+        long[] histogram = metrics.getHistogram(SyncMetrics.STAGE_FETCH);
+        assertEquals(2, histogram[8]);
+        assertEquals(1, histogram[2]);
+    }
+
+    @Test
+    public void testDumpAndQuery() {
+        SyncMetrics metrics = SyncMetrics.getInstance();
+        SyncMetrics.SyncRecord record = createRecord(System.currentTimeMillis(), 120);
+        metrics.record(record);
+
+        StringWriter dump = new StringWriter();
+        metrics.dump(new PrintWriter(dump));
+        assertTrue("Dump should include the latency histograms",
+                dump.toString().contains("fetch:"));
+
+        /* Debug builds, which is what we test, answer queries for the metrics */
+        Cursor cursor = InstrumentationRegistry.getTargetContext().getContentResolver().query(
+                SyncMetricsEntry.CONTENT_URI, null, null, null, null);
+        assertNotNull(cursor);
+        try {
+            assertTrue("Query should return the sync we just recorded", cursor.moveToLast());
+            assertEquals(record.startTimeMillis, cursor.getLong(
+                    cursor.getColumnIndexOrThrow(SyncMetricsEntry.COLUMN_START_TIME)));
+            assertEquals(120, cursor.getLong(
+                    cursor.getColumnIndexOrThrow(SyncMetricsEntry.COLUMN_FETCH_MILLIS)));
+            assertEquals(record.bytesDownloaded, cursor.getLong(
+                    cursor.getColumnIndexOrThrow(SyncMetricsEntry.COLUMN_BYTES_DOWNLOADED)));
+        } finally {
+            cursor.close();
+        }
+    }
+
+    private static SyncMetrics.SyncRecord createRecord(long startTimeMillis, long fetchMillis) {
+        SyncMetrics.SyncRecord record = new SyncMetrics.SyncRecord();
+        record.startTimeMillis = startTimeMillis;
+        record.result = "success";
+        record.locationCount = 1;
+        record.bytesDownloaded = 4096;
+        record.rowsInserted = 14;
+        record.addStageNanos(SyncMetrics.STAGE_FETCH, TimeUnit.MILLISECONDS.toNanos(fetchMillis));
+        record.durationNanos = TimeUnit.MILLISECONDS.toNanos(fetchMillis);
+        return record;
+    }
+}
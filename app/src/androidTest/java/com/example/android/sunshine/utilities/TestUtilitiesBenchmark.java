@@ -0,0 +1,194 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.utilities;
+
+import android.content.Context;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.runner.AndroidJUnit4;
+
+import com.example.android.sunshine.data.ForecastBatch;
+import com.example.android.sunshine.utils.MicroBenchmark;
+
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.ByteArrayInputStream;
+import java.net.HttpURLConnection;
+
+import static junit.framework.Assert.assertEquals;
+
+/**
+ * Times the utilities on our hot paths: parsing a forecast during a sync, and the date, weather
+ * and resource lookups that run for every row the forecast list binds. Results are logged under
+ * MicroBenchmark's tag and written to files/benchmarks/utilities.tsv, so that a run on one commit
+ * can be compared with a run on the next. See {@link MicroBenchmark} for details.
+ */
+@RunWith(AndroidJUnit4.class)
+public class TestUtilitiesBenchmark {
+
+    /* The size of the forecast we ask OWM for */
+    private static final int FORECAST_DAYS = 14;
+
+    /* A spread of conditions: storms, drizzle, rain, snow, fog, clear, clouds and extremes */
+    private static final int[] WEATHER_IDS =
+            {200, 232, 300, 321, 500, 511, 520, 600, 622, 701, 761, 781, 800, 801, 804, 900, 962};
+
+    /* Today, tomorrow, later this week and further out, which are all formatted differently */
+    private static final int[] DAY_OFFSETS = {0, 1, 3, 6, 10};
+
+    private static MicroBenchmark sBenchmark;
+
+    private final Context mContext = InstrumentationRegistry.getTargetContext();
+
+    @BeforeClass
+    public static void setUpBenchmark() {
+        sBenchmark = new MicroBenchmark(InstrumentationRegistry.getTargetContext(), "utilities");
+    }
+
+    @AfterClass
+    public static void writeReport() throws Exception {
+        sBenchmark.writeReport(InstrumentationRegistry.getTargetContext());
+    }
+
+    @Test
+    public void benchmarkJsonParsing() throws Exception {
+        final String forecastJson = TestOpenWeatherJsonUtils.createForecastJson(FORECAST_DAYS);
+        final byte[] forecastBytes = forecastJson.getBytes("UTF-8");
+
+        /* As in our sync, one batch and one coordinate array are reused for every parse */
+        final ForecastBatch forecast = ForecastBatch.obtain();
+        final double[] cityCoord = new double[2];
+        try {
+            assertEquals(HttpURLConnection.HTTP_OK, OpenWeatherJsonUtils.parseForecastFromStream(
+                    new ByteArrayInputStream(forecastBytes), forecast, cityCoord));
+            assertEquals(FORECAST_DAYS, forecast.size());
+
+            sBenchmark.measure("parseForecastFromStream", new MicroBenchmark.Operation() {
+                @Override
+                public Object run() throws Exception {
+                    return OpenWeatherJsonUtils.parseForecastFromStream(
+                            new ByteArrayInputStream(forecastBytes), forecast, cityCoord);
+                }
+            });
+        } finally {
+            forecast.recycle();
+        }
+
+        sBenchmark.measure("getWeatherContentValuesFromJson", new MicroBenchmark.Operation() {
+            @Override
+            public Object run() throws Exception {
+                return OpenWeatherJsonUtils.getWeatherContentValuesFromJson(mContext, forecastJson);
+            }
+        });
+    }
+
+    @Test
+    public void benchmarkDateUtils() throws Exception {
+        final long today = SunshineDateUtils.getNormalizedUtcDateForToday();
+        final long[] dates = new long[DAY_OFFSETS.length];
+        for (int i = 0; i < dates.length; i++) {
+            dates[i] = today + DAY_OFFSETS[i] * SunshineDateUtils.DAY_IN_MILLIS;
+        }
+
+        /* A time in the middle of a day, as returned by the server */
+        final long dateWithTime = today + SunshineDateUtils.DAY_IN_MILLIS / 2 + 12345;
+        sBenchmark.measure("normalizeDate", new MicroBenchmark.Operation() {
+            @Override
+            public Object run() {
+                return SunshineDateUtils.normalizeDate(dateWithTime);
+            }
+        });
+
+        sBenchmark.measure("getFriendlyDateString", new MicroBenchmark.Operation() {
+            @Override
+            public Object run() {
+                int hash = 0;
+                for (long date : dates) {
+                    hash += SunshineDateUtils.getFriendlyDateString(mContext, date, false)
+                            .hashCode();
+                }
+                return hash;
+            }
+        });
+    }
+
+    @Test
+    public void benchmarkWeatherFormatting() throws Exception {
+        sBenchmark.measure("formatTemperature", new MicroBenchmark.Operation() {
+            @Override
+            public Object run() {
+                return SunshineWeatherUtils.formatTemperature(mContext, 17.25);
+            }
+        });
+
+        sBenchmark.measure("formatHighLows", new MicroBenchmark.Operation() {
+            @Override
+            public Object run() {
+                return SunshineWeatherUtils.formatHighLows(mContext, 21.5, 9.75);
+            }
+        });
+
+        sBenchmark.measure("getFormattedWind", new MicroBenchmark.Operation() {
+            @Override
+            public Object run() {
+                return SunshineWeatherUtils.getFormattedWind(mContext, 4.5f, 217f);
+            }
+        });
+    }
+
+    @Test
+    public void benchmarkWeatherIdLookups() throws Exception {
+        sBenchmark.measure("getSmallArtResourceIdForWeatherCondition",
+                new MicroBenchmark.Operation() {
+                    @Override
+                    public Object run() {
+                        int sum = 0;
+                        for (int weatherId : WEATHER_IDS) {
+                            sum += SunshineWeatherUtils
+                                    .getSmallArtResourceIdForWeatherCondition(weatherId);
+                        }
+                        return sum;
+                    }
+                });
+
+        sBenchmark.measure("getLargeArtResourceIdForWeatherCondition",
+                new MicroBenchmark.Operation() {
+                    @Override
+                    public Object run() {
+                        int sum = 0;
+                        for (int weatherId : WEATHER_IDS) {
+                            sum += SunshineWeatherUtils
+                                    .getLargeArtResourceIdForWeatherCondition(weatherId);
+                        }
+                        return sum;
+                    }
+                });
+
+        sBenchmark.measure("getStringForWeatherCondition", new MicroBenchmark.Operation() {
+            @Override
+            public Object run() {
+                int hash = 0;
+                for (int weatherId : WEATHER_IDS) {
+                    hash += SunshineWeatherUtils.getStringForWeatherCondition(mContext, weatherId)
+                            .hashCode();
+                }
+                return hash;
+            }
+        });
+    }
+}
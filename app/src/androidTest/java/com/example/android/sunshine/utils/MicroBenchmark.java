@@ -0,0 +1,251 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.utils;
+
+import android.app.Instrumentation;
+import android.content.Context;
+import android.os.Build;
+import android.os.Bundle;
+import android.os.SystemClock;
+import android.support.test.InstrumentationRegistry;
+import android.util.Log;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A small harness for timing hot paths in the style of JMH, on the device itself. Our utilities
+ * lean on the Android framework (JsonReader, Resources, DateUtils), so they are measured where
+ * they actually run rather than on a desktop JVM.
+ * <p>
+ * Each benchmark is warmed up until the JIT has had its go at it, then timed in a number of
+ * samples. Every sample runs the operation enough times to last about SAMPLE_MILLIS, and is
+ * reported as nanoseconds per operation. We report the median, the fastest and the 90th
+ * percentile sample.
+ * <p>
+ * Results are written to logcat, and to a tab-separated report in the app's files directory.
+ * The report is also sent to the instrumentation as a status, so it shows up in the output of
+ * a run started with {@code adb shell am instrument -r -w}. The report can also be copied off
+ * the device after any run:
+ * <pre>
+ *     adb shell run-as com.example.android.sunshine cat files/benchmarks/&lt;suite&gt;.tsv \
+ *             &gt; &lt;suite&gt;.tsv
+ * </pre>
+ * The report from the previous run is kept alongside it as &lt;suite&gt;.previous.tsv, and each
+ * result is logged with its change from that run. To compare two commits, run the benchmarks on
+ * one, then on the other, on the same device.
+ */
+public final class MicroBenchmark {
+
+    private static final String TAG = MicroBenchmark.class.getSimpleName();
+
+    private static final long WARMUP_MILLIS = 250;
+    private static final long SAMPLE_MILLIS = 10;
+    private static final int SAMPLE_COUNT = 25;
+
+    private static final String REPORT_DIRECTORY = "benchmarks";
+    private static final String REPORT_EXTENSION = ".tsv";
+    private static final String PREVIOUS_REPORT_EXTENSION = ".previous.tsv";
+
+    /* The status code test runners expect for anything reported while tests are running */
+    private static final int STATUS_IN_PROGRESS = 2;
+
+    /**
+     * One operation of a benchmark.
+     */
+    public interface Operation {
+        /**
+         * @return Anything derived from the work done, so that the work can't be optimized away
+         */
+        Object run() throws Exception;
+    }
+
+    private final String mSuite;
+    private final List<String> mReportLines = new ArrayList<>();
+    private final Map<String, Long> mPreviousMedians;
+
+    /* Consumes whatever the operations return */
+    private volatile int mSink;
+
+    /**
+     * @param context Used to find the report of the previous run
+     * @param suite   Name of the report, which should stay the same from one commit to the next
+     */
+    public MicroBenchmark(Context context, String suite) {
+        mSuite = suite;
+        mPreviousMedians = readMedians(getReportFile(context, REPORT_EXTENSION));
+    }
+
+    /**
+     * Warms up and times an operation, then logs and records the result.
+     *
+     * @param name      Name of the benchmark, which should stay the same from one commit to the
+     *                  next so that runs can be compared
+     * @param operation The operation to time
+     * @return The median time per operation, in nanoseconds
+     */
+    public long measure(String name, Operation operation) throws Exception {
+        int operationsPerSample = warmUp(operation);
+
+        long[] samples = new long[SAMPLE_COUNT];
+        int sink = 0;
+        for (int sample = 0; sample < SAMPLE_COUNT; sample++) {
+            long start = SystemClock.elapsedRealtimeNanos();
+            for (int i = 0; i < operationsPerSample; i++) {
+                sink += consume(operation.run());
+            }
+            samples[sample] = (SystemClock.elapsedRealtimeNanos() - start) / operationsPerSample;
+        }
+        mSink += sink;
+
+        Arrays.sort(samples);
+        long median = samples[SAMPLE_COUNT / 2];
+        long min = samples[0];
+        long p90 = samples[(SAMPLE_COUNT * 9) / 10];
+
+        String change = "";
+        Long previousMedian = mPreviousMedians.get(name);
+        if (previousMedian != null && previousMedian > 0) {
+            change = String.format(Locale.US, " (%+.1f%% vs previous run)",
+                    (median - previousMedian) * 100.0 / previousMedian);
+        }
+        Log.i(TAG, String.format(Locale.US, "%s/%s: median %d ns, min %d ns, p90 %d ns%s",
+                mSuite, name, median, min, p90, change));
+
+        mReportLines.add(name + '\t' + median + '\t' + min + '\t' + p90 + '\t'
+                + operationsPerSample);
+        return median;
+    }
+
+    /**
+     * Runs the operation for at least WARMUP_MILLIS, in batches that double in size, so that
+     * the last batch is long enough to time even the fastest operation accurately.
+     *
+     * @return How many operations fit in SAMPLE_MILLIS, based on the last batch
+     */
+    private int warmUp(Operation operation) throws Exception {
+        long warmupEnd = SystemClock.elapsedRealtime() + WARMUP_MILLIS;
+        int sink = 0;
+        long batchSize = 1;
+        long batchNanos;
+        while (true) {
+            long start = SystemClock.elapsedRealtimeNanos();
+            for (long i = 0; i < batchSize; i++) {
+                sink += consume(operation.run());
+            }
+            batchNanos = SystemClock.elapsedRealtimeNanos() - start;
+
+            if (SystemClock.elapsedRealtime() >= warmupEnd) break;
+            batchSize *= 2;
+        }
+        mSink += sink;
+
+        long nanosPerOperation = Math.max(1, batchNanos / batchSize);
+        long operationsPerSample = TimeUnit.MILLISECONDS.toNanos(SAMPLE_MILLIS) / nanosPerOperation;
+        return (int) Math.max(1, Math.min(Integer.MAX_VALUE, operationsPerSample));
+    }
+
+    private static int consume(Object result) {
+        return result == null ? 0 : result.hashCode();
+    }
+
+    /**
+     * Writes the report of this run, keeping the report of the previous run as
+     * &lt;suite&gt;.previous.tsv, and sends it to the instrumentation as a status.
+     *
+     * @param context Used to find the app's files directory
+     */
+    public void writeReport(Context context) throws IOException {
+        File report = getReportFile(context, REPORT_EXTENSION);
+        File previousReport = getReportFile(context, PREVIOUS_REPORT_EXTENSION);
+        File directory = report.getParentFile();
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Unable to create " + directory);
+        }
+        if (report.exists() && !report.renameTo(previousReport)) {
+            throw new IOException("Unable to move " + report + " to " + previousReport);
+        }
+
+        StringWriter text = new StringWriter();
+        PrintWriter textWriter = new PrintWriter(text);
+        textWriter.println("# " + Build.MANUFACTURER + ' ' + Build.MODEL
+                + ", API " + Build.VERSION.SDK_INT + ", sink " + mSink);
+        textWriter.println("benchmark\tmedian_ns\tmin_ns\tp90_ns\toperations_per_sample");
+        for (String line : mReportLines) {
+            textWriter.println(line);
+        }
+        textWriter.close();
+
+        FileWriter writer = new FileWriter(report);
+        try {
+            writer.write(text.toString());
+        } finally {
+            writer.close();
+        }
+        Log.i(TAG, "Wrote " + report);
+
+        Bundle status = new Bundle();
+        status.putString(Instrumentation.REPORT_KEY_STREAMRESULT,
+                "\n" + mSuite + " benchmarks:\n" + text);
+        InstrumentationRegistry.getInstrumentation().sendStatus(STATUS_IN_PROGRESS, status);
+    }
+
+    private File getReportFile(Context context, String extension) {
+        return new File(new File(context.getFilesDir(), REPORT_DIRECTORY), mSuite + extension);
+    }
+
+    /**
+     * @return The median of each benchmark in a report, or nothing if there is no report
+     */
+    private static Map<String, Long> readMedians(File report) {
+        Map<String, Long> medians = new HashMap<>();
+        if (!report.exists()) {
+            return medians;
+        }
+
+        try {
+            BufferedReader reader = new BufferedReader(new FileReader(report));
+            try {
+                /* Skip the device line and the header */
+                reader.readLine();
+                reader.readLine();
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    String[] fields = line.split("\t");
+                    medians.put(fields[0], Long.parseLong(fields[1]));
+                }
+            } finally {
+                reader.close();
+            }
+        } catch (IOException | RuntimeException e) {
+            Log.w(TAG, "Ignoring unreadable report " + report, e);
+            medians.clear();
+        }
+        return medians;
+    }
+}
@@ -0,0 +1,228 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.utils;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * A tiny HTTP/1.1 server bound to the loopback interface, used to stand in for the weather
+ * server in tests. Each request is answered by the {@link Dispatcher} passed to the constructor
+ * and every request that is received is recorded so that tests can make assertions on the
+ * headers that were sent.
+ * <p>
+ * This server only supports what our tests need: GET requests without a body and one request
+ * per connection.
+ */
+public class StubHttpServer {
+
+    /**
+     * Decides what to answer for each request the server receives. Called on a server thread.
+     */
+    public interface Dispatcher {
+        StubResponse dispatch(RecordedRequest request);
+    }
+
+    /**
+     * A request as received by the server.
+     */
+    public static class RecordedRequest {
+        public final String method;
+        public final String path;
+        /* Header names are stored in lower case */
+        public final Map<String, String> headers;
+
+        RecordedRequest(String method, String path, Map<String, String> headers) {
+            this.method = method;
+            this.path = path;
+            this.headers = headers;
+        }
+
+        public String getHeader(String name) {
+            return headers.get(name.toLowerCase(Locale.US));
+        }
+    }
+
+    /**
+     * A response for the server to send.
+     */
+    public static class StubResponse {
+        final int code;
+        final Map<String, String> headers = new LinkedHashMap<>();
+        byte[] body = new byte[0];
+
+        public StubResponse(int code) {
+            this.code = code;
+        }
+
+        public StubResponse setHeader(String name, String value) {
+            headers.put(name, value);
+            return this;
+        }
+
+        public StubResponse setBody(byte[] body) {
+            this.body = body;
+            return this;
+        }
+
+        public StubResponse setBody(String body) {
+            try {
+                this.body = body.getBytes("UTF-8");
+            } catch (IOException e) {
+                throw new AssertionError(e);
+            }
+            return this;
+        }
+    }
+
+    private final Dispatcher mDispatcher;
+    private final List<RecordedRequest> mRequests =
+            Collections.synchronizedList(new ArrayList<RecordedRequest>());
+
+    private ServerSocket mServerSocket;
+    private ExecutorService mExecutor;
+
+    public StubHttpServer(Dispatcher dispatcher) {
+        mDispatcher = dispatcher;
+    }
+
+    /**
+     * Starts listening on an ephemeral port of the loopback interface.
+     */
+    public void start() throws IOException {
+        mServerSocket = new ServerSocket(0, 50, InetAddress.getByName("127.0.0.1"));
+        mExecutor = Executors.newCachedThreadPool();
+        mExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                acceptConnections();
+            }
+        });
+    }
+
+    /**
+     * Stops accepting new connections and closes the server socket.
+     */
+    public void shutdown() throws IOException {
+        mServerSocket.close();
+        mExecutor.shutdownNow();
+    }
+
+    /**
+     * @param path Path (and optional query) of the URL
+     * @return A URL pointing at this server
+     */
+    public URL getUrl(String path) throws IOException {
+        return new URL("http", "127.0.0.1", mServerSocket.getLocalPort(), path);
+    }
+
+    /**
+     * @return Every request received so far, in order of arrival
+     */
+    public List<RecordedRequest> getRequests() {
+        synchronized (mRequests) {
+            return new ArrayList<>(mRequests);
+        }
+    }
+
+    public int getRequestCount() {
+        return mRequests.size();
+    }
+
+    private void acceptConnections() {
+        while (!mServerSocket.isClosed()) {
+            final Socket socket;
+            try {
+                socket = mServerSocket.accept();
+            } catch (SocketException e) {
+                /* The server socket was closed by shutdown */
+                return;
+            } catch (IOException e) {
+                return;
+            }
+
+            mExecutor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        serveConnection(socket);
+                    } catch (IOException e) {
+                        /* The client went away; nothing left to do for this connection */
+                    } finally {
+                        try {
+                            socket.close();
+                        } catch (IOException ignored) {
+                        }
+                    }
+                }
+            });
+        }
+    }
+
+    private void serveConnection(Socket socket) throws IOException {
+        BufferedReader reader = new BufferedReader(
+                new InputStreamReader(socket.getInputStream(), "US-ASCII"));
+
+        String requestLine = reader.readLine();
+        if (requestLine == null) return;
+        String[] requestParts = requestLine.split(" ");
+
+        Map<String, String> headers = new HashMap<>();
+        String headerLine;
+        while ((headerLine = reader.readLine()) != null && headerLine.length() != 0) {
+            int separator = headerLine.indexOf(':');
+            if (separator > 0) {
+                headers.put(headerLine.substring(0, separator).trim().toLowerCase(Locale.US),
+                        headerLine.substring(separator + 1).trim());
+            }
+        }
+
+        RecordedRequest request = new RecordedRequest(requestParts[0], requestParts[1], headers);
+        mRequests.add(request);
+
+        StubResponse response = mDispatcher.dispatch(request);
+
+        StringBuilder head = new StringBuilder()
+                .append("HTTP/1.1 ").append(response.code).append(" Stub\r\n")
+                .append("Connection: close\r\n")
+                .append("Content-Length: ").append(response.body.length).append("\r\n");
+        for (Map.Entry<String, String> header : response.headers.entrySet()) {
+            head.append(header.getKey()).append(": ").append(header.getValue()).append("\r\n");
+        }
+        head.append("\r\n");
+
+        OutputStream out = socket.getOutputStream();
+        out.write(head.toString().getBytes("US-ASCII"));
+        out.write(response.body);
+        out.flush();
+    }
+}
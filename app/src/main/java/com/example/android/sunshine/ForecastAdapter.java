@@ -16,7 +16,6 @@
 package com.example.android.sunshine;
 
 import android.content.Context;
-import android.database.Cursor;
 import android.support.annotation.NonNull;
 import android.support.v7.widget.RecyclerView;
 import android.view.LayoutInflater;
@@ -25,12 +24,9 @@ import android.view.ViewGroup;
 import android.widget.ImageView;
 import android.widget.TextView;
 
-import com.example.android.sunshine.utilities.SunshineDateUtils;
-import com.example.android.sunshine.utilities.SunshineWeatherUtils;
-
 /**
- * {@link ForecastAdapter} exposes a list of weather forecasts
- * from a {@link android.database.Cursor} to a {@link android.support.v7.widget.RecyclerView}.
+ * {@link ForecastAdapter} exposes a list of weather forecasts, as loaded and formatted by
+ * {@link ForecastLoader}, to a {@link android.support.v7.widget.RecyclerView}.
  */
 class ForecastAdapter extends RecyclerView.Adapter<ForecastAdapter.ForecastAdapterViewHolder> {
 
@@ -63,7 +59,7 @@ class ForecastAdapter extends RecyclerView.Adapter<ForecastAdapter.ForecastAdapt
      */
     private boolean mUseTodayLayout;
 
-    private Cursor mCursor;
+    private ForecastRow[] mRows;
 
     /**
      * Creates a ForecastAdapter.
@@ -129,12 +125,15 @@ class ForecastAdapter extends RecyclerView.Adapter<ForecastAdapter.ForecastAdapt
      */
     @Override
     public void onBindViewHolder(ForecastAdapterViewHolder forecastAdapterViewHolder, int position) {
-        mCursor.moveToPosition(position);
+        /*
+         * Every String below was formatted by ForecastLoader on a background thread, so binding
+         * a row while the user scrolls formats and allocates nothing.
+         */
+        ForecastRow row = mRows[position];
 
         /****************
          * Weather Icon *
          ****************/
-        int weatherId = mCursor.getInt(MainActivity.INDEX_WEATHER_CONDITION_ID);
         int weatherImageId;
 
         int viewType = getItemViewType(position);
@@ -142,13 +141,11 @@ class ForecastAdapter extends RecyclerView.Adapter<ForecastAdapter.ForecastAdapt
         switch (viewType) {
 
             case VIEW_TYPE_TODAY:
-                weatherImageId = SunshineWeatherUtils
-                        .getLargeArtResourceIdForWeatherCondition(weatherId);
+                weatherImageId = row.largeIconResourceId;
                 break;
 
             case VIEW_TYPE_FUTURE_DAY:
-                weatherImageId = SunshineWeatherUtils
-                        .getSmallArtResourceIdForWeatherCondition(weatherId);
+                weatherImageId = row.smallIconResourceId;
                 break;
 
             default:
@@ -160,59 +157,26 @@ class ForecastAdapter extends RecyclerView.Adapter<ForecastAdapter.ForecastAdapt
         /****************
          * Weather Date *
          ****************/
-         /* Read date from the cursor */
-        long dateInMillis = mCursor.getLong(MainActivity.INDEX_WEATHER_DATE);
-         /* Get human readable string using our utility method */
-        String dateString = SunshineDateUtils.getFriendlyDateString(mContext, dateInMillis, false);
-
-         /* Display friendly date string */
-        forecastAdapterViewHolder.dateView.setText(dateString);
+        forecastAdapterViewHolder.dateView.setText(row.dateText);
 
         /***********************
          * Weather Description *
          ***********************/
-        String description = SunshineWeatherUtils.getStringForWeatherCondition(mContext, weatherId);
-         /* Create the accessibility (a11y) String from the weather description */
-        String descriptionA11y = mContext.getString(R.string.a11y_forecast, description);
-
          /* Set the text and content description (for accessibility purposes) */
-        forecastAdapterViewHolder.descriptionView.setText(description);
-        forecastAdapterViewHolder.descriptionView.setContentDescription(descriptionA11y);
+        forecastAdapterViewHolder.descriptionView.setText(row.description);
+        forecastAdapterViewHolder.descriptionView.setContentDescription(row.descriptionA11y);
 
         /**************************
          * High (max) temperature *
          **************************/
-         /* Read high temperature from the cursor (in degrees celsius) */
-        double highInCelsius = mCursor.getDouble(MainActivity.INDEX_WEATHER_MAX_TEMP);
-         /*
-          * If the user's preference for weather is fahrenheit, formatTemperature will convert
-          * the temperature. This method will also append either °C or °F to the temperature
-          * String.
-          */
-        String highString = SunshineWeatherUtils.formatTemperature(mContext, highInCelsius);
-         /* Create the accessibility (a11y) String from the weather description */
-        String highA11y = mContext.getString(R.string.a11y_high_temp, highString);
-
-         /* Set the text and content description (for accessibility purposes) */
-        forecastAdapterViewHolder.highTempView.setText(highString);
-        forecastAdapterViewHolder.highTempView.setContentDescription(highA11y);
+        forecastAdapterViewHolder.highTempView.setText(row.highText);
+        forecastAdapterViewHolder.highTempView.setContentDescription(row.highA11y);
 
         /*************************
          * Low (min) temperature *
          *************************/
-         /* Read low temperature from the cursor (in degrees celsius) */
-        double lowInCelsius = mCursor.getDouble(MainActivity.INDEX_WEATHER_MIN_TEMP);
-         /*
-          * If the user's preference for weather is fahrenheit, formatTemperature will convert
-          * the temperature. This method will also append either °C or °F to the temperature
-          * String.
-          */
-        String lowString = SunshineWeatherUtils.formatTemperature(mContext, lowInCelsius);
-        String lowA11y = mContext.getString(R.string.a11y_low_temp, lowString);
-
-         /* Set the text and content description (for accessibility purposes) */
-        forecastAdapterViewHolder.lowTempView.setText(lowString);
-        forecastAdapterViewHolder.lowTempView.setContentDescription(lowA11y);
+        forecastAdapterViewHolder.lowTempView.setText(row.lowText);
+        forecastAdapterViewHolder.lowTempView.setContentDescription(row.lowA11y);
     }
 
     /**
@@ -223,8 +187,8 @@ class ForecastAdapter extends RecyclerView.Adapter<ForecastAdapter.ForecastAdapt
      */
     @Override
     public int getItemCount() {
-        if (null == mCursor) return 0;
-        return mCursor.getCount();
+        if (null == mRows) return 0;
+        return mRows.length;
     }
 
     /**
@@ -247,15 +211,37 @@ class ForecastAdapter extends RecyclerView.Adapter<ForecastAdapter.ForecastAdapt
     }
 
     /**
-     * Swaps the cursor used by the ForecastAdapter for its weather data. This method is called by
-     * MainActivity after a load has finished, as well as when the Loader responsible for loading
-     * the weather data is reset. When this method is called, we assume we have a completely new
-     * set of data, so we call notifyDataSetChanged to tell the RecyclerView to update.
+     * Swaps the rows shown by the ForecastAdapter for those of a new load. This method is called
+     * by MainActivity after a load has finished.
+     * <p>
+     * If the load was compared with the rows we are showing, only the rows that were added,
+     * removed or changed are updated, so the RecyclerView keeps the rest of its views as they
+     * are and animates just what changed. Otherwise, such as for the first load, we assume we
+     * have a completely new set of data and call notifyDataSetChanged.
      *
-     * @param newCursor the new cursor to use as ForecastAdapter's data source
+     * @param result the new rows to show, and how they differ from the previous ones
+     */
+    void swapRows(ForecastLoader.Result result) {
+        ForecastRow[] oldRows = mRows;
+        if (oldRows == result.rows) {
+            /* A load we are already showing, delivered again */
+            return;
+        }
+
+        mRows = result.rows;
+        if (result.diff != null && oldRows == result.previousRows) {
+            result.diff.dispatchUpdatesTo(this);
+        } else {
+            notifyDataSetChanged();
+        }
+    }
+
+    /**
+     * Removes every row. This method is called by MainActivity when the Loader responsible for
+     * loading the weather data is reset.
      */
-    void swapCursor(Cursor newCursor) {
-        mCursor = newCursor;
+    void clearRows() {
+        mRows = null;
         notifyDataSetChanged();
     }
 
@@ -294,9 +280,8 @@ class ForecastAdapter extends RecyclerView.Adapter<ForecastAdapter.ForecastAdapt
         @Override
         public void onClick(View v) {
             int adapterPosition = getAdapterPosition();
-            mCursor.moveToPosition(adapterPosition);
-            long dateInMillis = mCursor.getLong(MainActivity.INDEX_WEATHER_DATE);
-            mClickHandler.onClick(dateInMillis);
+            if (adapterPosition == RecyclerView.NO_POSITION) return;
+            mClickHandler.onClick(mRows[adapterPosition].date);
         }
     }
 }
\ No newline at end of file
@@ -0,0 +1,261 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine;
+
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.database.Cursor;
+import android.net.Uri;
+import android.support.v4.content.AsyncTaskLoader;
+import android.support.v4.os.OperationCanceledException;
+import android.support.v7.util.DiffUtil;
+
+import com.example.android.sunshine.data.ForecastBatch;
+import com.example.android.sunshine.data.WeatherContract;
+
+/**
+ * Loads the forecast list the way a CursorLoader would, but on its background thread it copies
+ * the cursor into a primitive snapshot, a {@link ForecastBatch}, and closes it straight away. It
+ * then turns every day of the snapshot into a {@link ForecastRow}. The list is handed over as an
+ * array that never changes, so the adapter doesn't need to format anything or touch a cursor
+ * while the user scrolls.
+ * <p>
+ * Like a CursorLoader, this reloads whenever the content at its URI changes. That includes a
+ * change to the units the user prefers, which SettingsFragment announces as a change to the
+ * weather. As the rows are formatted ahead of time, with labels such as "Today" and
+ * "Tomorrow", it also reloads when the date or the time zone changes.
+ * <p>
+ * Each reload is compared with the rows delivered before it, day by day, still on the background
+ * thread. The adapter uses that comparison to update only the rows that changed, so a sync that
+ * changes one day's high rebinds one row rather than every row on screen.
+ */
+class ForecastLoader extends AsyncTaskLoader<ForecastLoader.Result> {
+
+    /**
+     * The rows of one load, and how they differ from the rows of the load before it.
+     */
+    static final class Result {
+
+        /* Never modified */
+        final ForecastRow[] rows;
+
+        /* The rows the diff was computed against, or null if there was nothing to compare to */
+        final ForecastRow[] previousRows;
+        final DiffUtil.DiffResult diff;
+
+        Result(ForecastRow[] rows, ForecastRow[] previousRows, DiffUtil.DiffResult diff) {
+            this.rows = rows;
+            this.previousRows = previousRows;
+            this.diff = diff;
+        }
+    }
+
+    /**
+     * Compares two loads of the forecast list. Days are identified by their date.
+     */
+    private static final class RowDiffCallback extends DiffUtil.Callback {
+
+        private final ForecastRow[] mOldRows;
+        private final ForecastRow[] mNewRows;
+
+        RowDiffCallback(ForecastRow[] oldRows, ForecastRow[] newRows) {
+            mOldRows = oldRows;
+            mNewRows = newRows;
+        }
+
+        @Override
+        public int getOldListSize() {
+            return mOldRows.length;
+        }
+
+        @Override
+        public int getNewListSize() {
+            return mNewRows.length;
+        }
+
+        @Override
+        public boolean areItemsTheSame(int oldItemPosition, int newItemPosition) {
+            return mOldRows[oldItemPosition].date == mNewRows[newItemPosition].date;
+        }
+
+        @Override
+        public boolean areContentsTheSame(int oldItemPosition, int newItemPosition) {
+            /*
+             * The first row may use the "today" layout. A day that moves into or out of the
+             * first row has to be rebound, so that the adapter gets to pick its layout again.
+             */
+            if ((oldItemPosition == 0) != (newItemPosition == 0)) {
+                return false;
+            }
+            return mOldRows[oldItemPosition].hasSameContents(mNewRows[newItemPosition]);
+        }
+    }
+
+    private final ForceLoadContentObserver mObserver = new ForceLoadContentObserver();
+
+    /* Runs on the main thread, like the observer's onChange */
+    private final BroadcastReceiver mDateChangeReceiver = new BroadcastReceiver() {
+        @Override
+        public void onReceive(Context context, Intent intent) {
+            onContentChanged();
+        }
+    };
+
+    private final Uri mUri;
+    private final String[] mProjection;
+    private final String mSortOrder;
+
+    private Result mResult;
+    private boolean mObserversRegistered;
+
+    /* The rows of the last load delivered, read by the background thread to diff against */
+    private volatile ForecastRow[] mDeliveredRows;
+
+    /**
+     * @param context    Used to query the ContentResolver and format the rows
+     * @param uri        The URI to query
+     * @param projection Must hold the columns of {@link MainActivity#MAIN_FORECAST_PROJECTION}
+     *                   in the same order
+     * @param sortOrder  The order to show them in
+     */
+    ForecastLoader(Context context, Uri uri, String[] projection, String sortOrder) {
+        super(context);
+        mUri = uri;
+        mProjection = projection;
+        mSortOrder = sortOrder;
+    }
+
+    @Override
+    public Result loadInBackground() {
+        ForecastRow[] previousRows = mDeliveredRows;
+        ForecastRow[] rows = loadRows();
+        if (previousRows == null) {
+            return new Result(rows, null, null);
+        }
+
+        /* Days are sorted by date, so no day ever moves relative to the others */
+        DiffUtil.DiffResult diff =
+                DiffUtil.calculateDiff(new RowDiffCallback(previousRows, rows), false);
+        return new Result(rows, previousRows, diff);
+    }
+
+    private ForecastRow[] loadRows() {
+        Context context = getContext();
+        ForecastBatch snapshot = ForecastBatch.obtain();
+        try {
+            if (!readSnapshot(context, snapshot)) {
+                return new ForecastRow[0];
+            }
+
+            ForecastRow[] rows = new ForecastRow[snapshot.size()];
+            for (int i = 0; i < rows.length; i++) {
+                if (isLoadInBackgroundCanceled()) {
+                    throw new OperationCanceledException();
+                }
+                rows[i] = ForecastRow.fromSnapshot(context, snapshot, i);
+            }
+            return rows;
+        } finally {
+            snapshot.recycle();
+        }
+    }
+
+    /**
+     * Copies every day of the forecast, from today onwards, out of the cursor in one pass, then
+     * closes it right away. That way the cursor's window is filled once, from start to end, and
+     * we let go of our connection to the database before we spend any time formatting the rows.
+     * <p>
+     * Only the columns of MAIN_FORECAST_PROJECTION are read. The snapshot's other columns are 0.
+     *
+     * @param context  Used to query the ContentResolver
+     * @param snapshot Receives every day of the forecast
+     * @return false if the query failed
+     */
+    private boolean readSnapshot(Context context, ForecastBatch snapshot) {
+        /* Today is worked out afresh, so that a reload after midnight drops yesterday */
+        String selection = WeatherContract.WeatherEntry.getSqlSelectForTodayOnwards();
+        Cursor cursor = context.getContentResolver()
+                .query(mUri, mProjection, selection, null, mSortOrder);
+        if (cursor == null) {
+            return false;
+        }
+
+        try {
+            while (cursor.moveToNext()) {
+                snapshot.add(cursor.getLong(MainActivity.INDEX_WEATHER_DATE),
+                        cursor.getInt(MainActivity.INDEX_WEATHER_CONDITION_ID),
+                        cursor.getDouble(MainActivity.INDEX_WEATHER_MIN_TEMP),
+                        cursor.getDouble(MainActivity.INDEX_WEATHER_MAX_TEMP),
+                        0, 0, 0, 0);
+            }
+        } finally {
+            cursor.close();
+        }
+        return true;
+    }
+
+    @Override
+    public void deliverResult(Result result) {
+        if (isReset()) {
+            return;
+        }
+        mResult = result;
+        mDeliveredRows = result.rows;
+        if (isStarted()) {
+            super.deliverResult(result);
+        }
+    }
+
+    @Override
+    protected void onStartLoading() {
+        if (!mObserversRegistered) {
+            getContext().getContentResolver().registerContentObserver(mUri, true, mObserver);
+
+            IntentFilter dateChangeFilter = new IntentFilter(Intent.ACTION_DATE_CHANGED);
+            dateChangeFilter.addAction(Intent.ACTION_TIMEZONE_CHANGED);
+            getContext().registerReceiver(mDateChangeReceiver, dateChangeFilter);
+            mObserversRegistered = true;
+        }
+
+        if (mResult != null) {
+            deliverResult(mResult);
+        }
+        if (takeContentChanged() || mResult == null) {
+            forceLoad();
+        }
+    }
+
+    @Override
+    protected void onStopLoading() {
+        cancelLoad();
+    }
+
+    @Override
+    protected void onReset() {
+        super.onReset();
+        onStopLoading();
+
+        if (mObserversRegistered) {
+            getContext().getContentResolver().unregisterContentObserver(mObserver);
+            getContext().unregisterReceiver(mDateChangeReceiver);
+            mObserversRegistered = false;
+        }
+        mResult = null;
+        mDeliveredRows = null;
+    }
+}
@@ -0,0 +1,110 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine;
+
+import android.content.Context;
+
+import com.example.android.sunshine.data.ForecastBatch;
+import com.example.android.sunshine.utilities.SunshineDateUtils;
+import com.example.android.sunshine.utilities.SunshineWeatherUtils;
+
+/**
+ * Everything a row of the forecast list shows, formatted ahead of time. Rows are built on a
+ * background thread by {@link ForecastLoader} once per load, so that binding a row while the
+ * user scrolls only hands these Strings and resource IDs to its views.
+ */
+final class ForecastRow {
+
+    /* Normalized UTC date of the day, passed on when the row is clicked */
+    final long date;
+
+    /* The raw values, for anything that needs more than what the list shows */
+    final int weatherId;
+    final double highInCelsius;
+    final double lowInCelsius;
+
+    /* The art for the "today" layout and for every other day */
+    final int largeIconResourceId;
+    final int smallIconResourceId;
+
+    final String dateText;
+    final String description;
+    final String descriptionA11y;
+    final String highText;
+    final String highA11y;
+    final String lowText;
+    final String lowA11y;
+
+    private ForecastRow(Context context, long date, int weatherId, double highInCelsius,
+            double lowInCelsius) {
+        this.date = date;
+        this.weatherId = weatherId;
+        this.highInCelsius = highInCelsius;
+        this.lowInCelsius = lowInCelsius;
+
+        largeIconResourceId =
+                SunshineWeatherUtils.getLargeArtResourceIdForWeatherCondition(weatherId);
+        smallIconResourceId =
+                SunshineWeatherUtils.getSmallArtResourceIdForWeatherCondition(weatherId);
+
+        dateText = SunshineDateUtils.getFriendlyDateString(context, date, false);
+
+        description = SunshineWeatherUtils.getStringForWeatherCondition(context, weatherId);
+        descriptionA11y = context.getString(R.string.a11y_forecast, description);
+
+        /*
+         * If the user's preference for weather is fahrenheit, formatTemperature will convert
+         * the temperature. This method will also append either °C or °F to the temperature
+         * String.
+         */
+        highText = SunshineWeatherUtils.formatTemperature(context, highInCelsius);
+        highA11y = context.getString(R.string.a11y_high_temp, highText);
+        lowText = SunshineWeatherUtils.formatTemperature(context, lowInCelsius);
+        lowA11y = context.getString(R.string.a11y_low_temp, lowText);
+    }
+
+    /**
+     * @param other Another row, typically for the same day from an earlier load
+     * @return true if both rows look exactly the same on screen
+     */
+    boolean hasSameContents(ForecastRow other) {
+        return largeIconResourceId == other.largeIconResourceId
+                && smallIconResourceId == other.smallIconResourceId
+                && dateText.equals(other.dateText)
+                && description.equals(other.description)
+                && descriptionA11y.equals(other.descriptionA11y)
+                && highText.equals(other.highText)
+                && highA11y.equals(other.highA11y)
+                && lowText.equals(other.lowText)
+                && lowA11y.equals(other.lowA11y);
+    }
+
+    /**
+     * Builds a row for one day of a snapshot of the forecast.
+     *
+     * @param context  Used to access preferences and resources
+     * @param snapshot The days of the forecast
+     * @param index    The day to build a row for
+     * @return The row for the day
+     */
+    static ForecastRow fromSnapshot(Context context, ForecastBatch snapshot, int index) {
+        return new ForecastRow(context,
+                snapshot.getDate(index),
+                snapshot.getWeatherId(index),
+                snapshot.getMaxTemp(index),
+                snapshot.getMinTemp(index));
+    }
+}
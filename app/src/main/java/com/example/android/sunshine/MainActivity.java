@@ -17,7 +17,6 @@ package com.example.android.sunshine;
 
 import android.content.Context;
 import android.content.Intent;
-import android.database.Cursor;
 import android.graphics.Bitmap;
 import android.graphics.BitmapFactory;
 import android.net.Uri;
@@ -25,7 +24,6 @@ import android.os.Bundle;
 import android.support.annotation.NonNull;
 import android.support.annotation.Nullable;
 import android.support.v4.app.LoaderManager;
-import android.support.v4.content.CursorLoader;
 import android.support.v4.content.Loader;
 import android.support.v7.app.AppCompatActivity;
 import android.support.v7.widget.LinearLayoutManager;
@@ -51,7 +49,7 @@ import com.google.android.gms.wearable.Wearable;
 import java.io.ByteArrayOutputStream;
 
 public class MainActivity extends AppCompatActivity implements
-        LoaderManager.LoaderCallbacks<Cursor>,
+        LoaderManager.LoaderCallbacks<ForecastLoader.Result>,
         ForecastAdapter.ForecastAdapterOnClickHandler,
         GoogleApiClient.ConnectionCallbacks,
         GoogleApiClient.OnConnectionFailedListener {
@@ -237,7 +235,7 @@ public class MainActivity extends AppCompatActivity implements
      * @return A new Loader instance that is ready to start loading.
      */
     @Override
-    public Loader<Cursor> onCreateLoader(int loaderId, Bundle bundle) {
+    public Loader<ForecastLoader.Result> onCreateLoader(int loaderId, Bundle bundle) {
 
 
         switch (loaderId) {
@@ -247,18 +245,15 @@ public class MainActivity extends AppCompatActivity implements
                 Uri forecastQueryUri = WeatherContract.WeatherEntry.CONTENT_URI;
                 /* Sort order: Ascending by date */
                 String sortOrder = WeatherContract.WeatherEntry.COLUMN_DATE + " ASC";
+
                 /*
-                 * A SELECTION in SQL declares which rows you'd like to return. In our case, we
-                 * want all weather data from today onwards that is stored in our weather table.
-                 * We created a handy method to do that in our WeatherEntry class.
+                 * The loader formats each row on its background thread, so the list doesn't
+                 * have to as the user scrolls. It only shows the days from today onwards, and
+                 * works out which day is today on every load.
                  */
-                String selection = WeatherContract.WeatherEntry.getSqlSelectForTodayOnwards();
-
-                return new CursorLoader(this,
+                return new ForecastLoader(this,
                         forecastQueryUri,
                         MAIN_FORECAST_PROJECTION,
-                        selection,
-                        null,
                         sortOrder);
 
             default:
@@ -269,25 +264,27 @@ public class MainActivity extends AppCompatActivity implements
     /**
      * Called when a Loader has finished loading its data.
      * <p>
-     * NOTE: There is one small bug in this code. If no data is present in the cursor do to an
+     * NOTE: There is one small bug in this code. If no data is present in the forecast due to an
      * initial load being performed with no access to internet, the loading indicator will show
      * indefinitely, until data is present from the ContentProvider. This will be fixed in a
      * future version of the course.
      *
      * @param loader The Loader that has finished.
-     * @param data   The data generated by the Loader.
+     * @param result The rows generated by the Loader, and how they differ from the last load.
      */
     @Override
-    public void onLoadFinished(Loader<Cursor> loader, Cursor data) {
-        mForecastAdapter.swapCursor(data);
+    public void onLoadFinished(Loader<ForecastLoader.Result> loader,
+            ForecastLoader.Result result) {
+        ForecastRow[] data = result.rows;
+        mForecastAdapter.swapRows(result);
         if (mPosition == RecyclerView.NO_POSITION) mPosition = 0;
         mRecyclerView.smoothScrollToPosition(mPosition);
-        if (data.getCount() != 0) showWeatherDataView();
-        if (data.moveToFirst()) {
-            Log.d("GoogleClient", "cursor move to first");
-            weatherId = data.getInt(INDEX_WEATHER_CONDITION_ID);
-            high = data.getDouble(INDEX_WEATHER_MAX_TEMP);
-            low = data.getDouble(INDEX_WEATHER_MIN_TEMP);
+        if (data.length != 0) {
+            showWeatherDataView();
+            Log.d("GoogleClient", "sending today's weather");
+            weatherId = data[0].weatherId;
+            high = data[0].highInCelsius;
+            low = data[0].lowInCelsius;
             updateWear(this, high, low, weatherId);
         }
     }
@@ -299,12 +296,12 @@ public class MainActivity extends AppCompatActivity implements
      * @param loader The Loader that is being reset.
      */
     @Override
-    public void onLoaderReset(Loader<Cursor> loader) {
+    public void onLoaderReset(Loader<ForecastLoader.Result> loader) {
         /*
          * Since this Loader's data is now invalid, we need to clear the Adapter that is
          * displaying the data.
          */
-        mForecastAdapter.swapCursor(null);
+        mForecastAdapter.clearRows();
     }
 
     @Override
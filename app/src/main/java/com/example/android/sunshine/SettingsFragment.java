@@ -98,7 +98,14 @@ public class SettingsFragment extends PreferenceFragmentCompat implements
             // we've changed the location
             // Wipe out any potential PlacePicker latlng values so that we can use this text entry.
             SunshinePreferences.resetLocationCoordinates(activity);
-            SunshineSyncUtils.startImmediateSync(activity);
+            /*
+             * Our weather URIs always refer to the preferred location, so any weather we've
+             * already stored for the new location shows up as soon as the lists reload, while
+             * the sync fetches a fresh forecast for it. The locations we've moved away from are
+             * forgotten before that sync, so they stop being fetched.
+             */
+            activity.getContentResolver().notifyChange(WeatherContract.WeatherEntry.CONTENT_URI, null);
+            SunshineSyncUtils.startLocationChangedSync(activity);
         } else if (key.equals(getString(R.string.pref_units_key))) {
             // units have changed. update lists of weather entries accordingly
             activity.getContentResolver().notifyChange(WeatherContract.WeatherEntry.CONTENT_URI, null);
@@ -0,0 +1,283 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.data;
+
+import android.content.ContentValues;
+import android.os.Parcel;
+import android.os.Parcelable;
+
+import com.example.android.sunshine.data.WeatherContract.WeatherEntry;
+
+import java.util.Arrays;
+
+/**
+ * A forecast of any number of days, stored column by column in primitive arrays.
+ * <p>
+ * An array of ContentValues costs us a HashMap per day, holding a boxed Long, Integer or Double
+ * for each of our eight weather columns. A ForecastBatch holds the same data in one array per
+ * column, so adding a day allocates nothing once the arrays are large enough. Batches are
+ * pooled, in the same spirit as {@link android.os.Message#obtain()}: get one with
+ * {@link #obtain()} and hand it back with {@link #recycle()} when you're done with it, and the
+ * next sync will reuse the same arrays.
+ * <p>
+ * ContentValues are still accepted through {@link #fromContentValues}, but only for callers
+ * that talk to our ContentProvider with ContentValues, such as
+ * {@link android.content.ContentResolver#bulkInsert}.
+ * <p>
+ * A ForecastBatch is not thread safe.
+ */
+public final class ForecastBatch implements Parcelable {
+
+    /* Two weeks of weather, the length of the forecast we request from the server */
+    private static final int DEFAULT_CAPACITY = 14;
+
+    /* We rarely sync more than one forecast at a time; there is no point in keeping many around */
+    private static final int MAX_POOL_SIZE = 4;
+
+    private static final Object sPoolLock = new Object();
+    private static final ForecastBatch[] sPool = new ForecastBatch[MAX_POOL_SIZE];
+    private static int sPoolSize = 0;
+
+    /* Set while the batch sits in the pool, to catch a batch being recycled twice */
+    private boolean mRecycled;
+
+    private int mSize;
+    private long[] mDates;
+    private int[] mWeatherIds;
+    private double[] mMinTemps;
+    private double[] mMaxTemps;
+    private double[] mHumidities;
+    private double[] mPressures;
+    private double[] mWindSpeeds;
+    private double[] mDegrees;
+
+    private ForecastBatch(int capacity) {
+        mDates = new long[capacity];
+        mWeatherIds = new int[capacity];
+        mMinTemps = new double[capacity];
+        mMaxTemps = new double[capacity];
+        mHumidities = new double[capacity];
+        mPressures = new double[capacity];
+        mWindSpeeds = new double[capacity];
+        mDegrees = new double[capacity];
+    }
+
+    /**
+     * Returns an empty batch, reusing a recycled one if one is available.
+     *
+     * @return An empty ForecastBatch
+     */
+    public static ForecastBatch obtain() {
+        synchronized (sPoolLock) {
+            if (sPoolSize > 0) {
+                ForecastBatch batch = sPool[--sPoolSize];
+                sPool[sPoolSize] = null;
+                batch.mRecycled = false;
+                return batch;
+            }
+        }
+        return new ForecastBatch(DEFAULT_CAPACITY);
+    }
+
+    /**
+     * Empties this batch and returns it to the pool. The batch must not be used after this.
+     *
+     * @throws IllegalStateException If this batch has already been recycled
+     */
+    public void recycle() {
+        synchronized (sPoolLock) {
+            if (mRecycled) {
+                throw new IllegalStateException("This batch has already been recycled");
+            }
+            mRecycled = true;
+            mSize = 0;
+            if (sPoolSize < MAX_POOL_SIZE) {
+                sPool[sPoolSize++] = this;
+            }
+        }
+    }
+
+    /**
+     * Removes every day from this batch while keeping its arrays for reuse.
+     */
+    public void clear() {
+        mSize = 0;
+    }
+
+    /**
+     * @return The number of days in this batch
+     */
+    public int size() {
+        return mSize;
+    }
+
+    /**
+     * Appends a day to the end of this batch.
+     *
+     * @param date      Normalized UTC date of the day
+     * @param weatherId Weather condition ID as returned by the server
+     * @param minTemp   Low temperature, in Celsius
+     * @param maxTemp   High temperature, in Celsius
+     * @param humidity  Humidity, in percent
+     * @param pressure  Pressure, in hPa
+     * @param windSpeed Wind speed
+     * @param degrees   Wind direction, in meteorological degrees
+     */
+    public void add(long date, int weatherId, double minTemp, double maxTemp, double humidity,
+            double pressure, double windSpeed, double degrees) {
+        if (mSize == mDates.length) {
+            grow();
+        }
+        int i = mSize++;
+        mDates[i] = date;
+        mWeatherIds[i] = weatherId;
+        mMinTemps[i] = minTemp;
+        mMaxTemps[i] = maxTemp;
+        mHumidities[i] = humidity;
+        mPressures[i] = pressure;
+        mWindSpeeds[i] = windSpeed;
+        mDegrees[i] = degrees;
+    }
+
+    private void grow() {
+        int capacity = Math.max(DEFAULT_CAPACITY, mDates.length * 2);
+        mDates = Arrays.copyOf(mDates, capacity);
+        mWeatherIds = Arrays.copyOf(mWeatherIds, capacity);
+        mMinTemps = Arrays.copyOf(mMinTemps, capacity);
+        mMaxTemps = Arrays.copyOf(mMaxTemps, capacity);
+        mHumidities = Arrays.copyOf(mHumidities, capacity);
+        mPressures = Arrays.copyOf(mPressures, capacity);
+        mWindSpeeds = Arrays.copyOf(mWindSpeeds, capacity);
+        mDegrees = Arrays.copyOf(mDegrees, capacity);
+    }
+
+    public long getDate(int index) {
+        return mDates[index];
+    }
+
+    public int getWeatherId(int index) {
+        return mWeatherIds[index];
+    }
+
+    public double getMinTemp(int index) {
+        return mMinTemps[index];
+    }
+
+    public double getMaxTemp(int index) {
+        return mMaxTemps[index];
+    }
+
+    public double getHumidity(int index) {
+        return mHumidities[index];
+    }
+
+    public double getPressure(int index) {
+        return mPressures[index];
+    }
+
+    public double getWindSpeed(int index) {
+        return mWindSpeeds[index];
+    }
+
+    public double getDegrees(int index) {
+        return mDegrees[index];
+    }
+
+    /**
+     * Converts ContentValues, as handed to us through the ContentResolver, into a batch. Every
+     * weather column must be present for every day.
+     *
+     * @param values One set of ContentValues per day
+     * @return A batch holding the same days. Recycle it when you're done with it.
+     * @throws IllegalArgumentException if a day is missing one of the weather columns
+     */
+    public static ForecastBatch fromContentValues(ContentValues[] values) {
+        ForecastBatch batch = obtain();
+        for (ContentValues value : values) {
+            batch.add(
+                    getLong(value, WeatherEntry.COLUMN_DATE),
+                    (int) getLong(value, WeatherEntry.COLUMN_WEATHER_ID),
+                    getDouble(value, WeatherEntry.COLUMN_MIN_TEMP),
+                    getDouble(value, WeatherEntry.COLUMN_MAX_TEMP),
+                    getDouble(value, WeatherEntry.COLUMN_HUMIDITY),
+                    getDouble(value, WeatherEntry.COLUMN_PRESSURE),
+                    getDouble(value, WeatherEntry.COLUMN_WIND_SPEED),
+                    getDouble(value, WeatherEntry.COLUMN_DEGREES));
+        }
+        return batch;
+    }
+
+    private static long getLong(ContentValues value, String column) {
+        Long columnValue = value.getAsLong(column);
+        if (columnValue == null) {
+            throw new IllegalArgumentException("Weather values are missing " + column);
+        }
+        return columnValue;
+    }
+
+    private static double getDouble(ContentValues value, String column) {
+        Double columnValue = value.getAsDouble(column);
+        if (columnValue == null) {
+            throw new IllegalArgumentException("Weather values are missing " + column);
+        }
+        return columnValue;
+    }
+
+    @Override
+    public int describeContents() {
+        return 0;
+    }
+
+    /*
+     * Only the first mSize entries of each column are written, one column after the other, so a
+     * batch with spare capacity costs nothing extra to parcel.
+     */
+    @Override
+    public void writeToParcel(Parcel dest, int flags) {
+        dest.writeInt(mSize);
+        for (int i = 0; i < mSize; i++) dest.writeLong(mDates[i]);
+        for (int i = 0; i < mSize; i++) dest.writeInt(mWeatherIds[i]);
+        for (int i = 0; i < mSize; i++) dest.writeDouble(mMinTemps[i]);
+        for (int i = 0; i < mSize; i++) dest.writeDouble(mMaxTemps[i]);
+        for (int i = 0; i < mSize; i++) dest.writeDouble(mHumidities[i]);
+        for (int i = 0; i < mSize; i++) dest.writeDouble(mPressures[i]);
+        for (int i = 0; i < mSize; i++) dest.writeDouble(mWindSpeeds[i]);
+        for (int i = 0; i < mSize; i++) dest.writeDouble(mDegrees[i]);
+    }
+
+    public static final Creator<ForecastBatch> CREATOR = new Creator<ForecastBatch>() {
+        @Override
+        public ForecastBatch createFromParcel(Parcel source) {
+            int size = source.readInt();
+            ForecastBatch batch = new ForecastBatch(Math.max(size, DEFAULT_CAPACITY));
+            batch.mSize = size;
+            for (int i = 0; i < size; i++) batch.mDates[i] = source.readLong();
+            for (int i = 0; i < size; i++) batch.mWeatherIds[i] = source.readInt();
+            for (int i = 0; i < size; i++) batch.mMinTemps[i] = source.readDouble();
+            for (int i = 0; i < size; i++) batch.mMaxTemps[i] = source.readDouble();
+            for (int i = 0; i < size; i++) batch.mHumidities[i] = source.readDouble();
+            for (int i = 0; i < size; i++) batch.mPressures[i] = source.readDouble();
+            for (int i = 0; i < size; i++) batch.mWindSpeeds[i] = source.readDouble();
+            for (int i = 0; i < size; i++) batch.mDegrees[i] = source.readDouble();
+            return batch;
+        }
+
+        @Override
+        public ForecastBatch[] newArray(int size) {
+            return new ForecastBatch[size];
+        }
+    };
+}
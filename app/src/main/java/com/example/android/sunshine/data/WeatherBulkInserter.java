@@ -0,0 +1,269 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.data;
+
+import android.content.ContentValues;
+import android.database.SQLException;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
+
+import com.example.android.sunshine.data.WeatherContract.WeatherEntry;
+import com.example.android.sunshine.utilities.SunshineDateUtils;
+
+/**
+ * Inserts many weather rows using a single compiled INSERT OR REPLACE statement.
+ * <p>
+ * SQLiteDatabase#insert builds the INSERT SQL from the ContentValues it's given and compiles it
+ * again on every call. When we insert a whole forecast, every row has the same columns, so we
+ * compile the statement once and simply rebind its arguments for each row. Values are bound as
+ * longs and doubles rather than being converted to Strings or re-boxed along the way.
+ * <p>
+ * Days we already have are updated in place through a second compiled statement, so that their
+ * rows keep their _ID rather than being deleted and inserted again.
+ * <p>
+ * Every row an inserter writes belongs to the location it was opened for. An inserter is meant
+ * to be used within a single transaction, on the thread that opened it. Always call
+ * {@link #close()} when you're through with it.
+ */
+class WeatherBulkInserter {
+
+    /*
+     * The weather columns our statement binds, in the order they appear in the SQL after the
+     * location ID. The date and weather ID are stored as integers; every other column is stored
+     * as a REAL.
+     */
+    private static final String[] COLUMNS = {
+            WeatherEntry.COLUMN_DATE,
+            WeatherEntry.COLUMN_WEATHER_ID,
+            WeatherEntry.COLUMN_MIN_TEMP,
+            WeatherEntry.COLUMN_MAX_TEMP,
+            WeatherEntry.COLUMN_HUMIDITY,
+            WeatherEntry.COLUMN_PRESSURE,
+            WeatherEntry.COLUMN_WIND_SPEED,
+            WeatherEntry.COLUMN_DEGREES
+    };
+
+    /* Bind indices in SQLiteStatement start at 1 */
+    private static final int INDEX_LOCATION_ID = 1;
+    private static final int INDEX_DATE = 2;
+    private static final int INDEX_WEATHER_ID = 3;
+    private static final int INDEX_FIRST_REAL = 4;
+
+    private static final String INSERT_SQL = buildInsertSql();
+    private static final String UPDATE_SQL = buildUpdateSql();
+
+    private final SQLiteDatabase mDatabase;
+    private final SQLiteStatement mInsertStatement;
+    private final long mLocationId;
+
+    /* Only compiled once the first day is updated, as bulk inserts never need it */
+    private SQLiteStatement mUpdateStatement;
+
+    /**
+     * Compiles the insert statement against the given database.
+     *
+     * @param database   A writable database, usually within a transaction
+     * @param locationId _ID of the location every inserted row belongs to
+     */
+    WeatherBulkInserter(SQLiteDatabase database, long locationId) {
+        mDatabase = database;
+        mInsertStatement = database.compileStatement(INSERT_SQL);
+        mLocationId = locationId;
+    }
+
+    private static String buildInsertSql() {
+        StringBuilder sql = new StringBuilder("INSERT OR REPLACE INTO ")
+                .append(WeatherEntry.TABLE_NAME)
+                .append(" (")
+                .append(WeatherEntry.COLUMN_LOCATION_ID);
+        for (String column : COLUMNS) {
+            sql.append(',').append(column);
+        }
+        sql.append(") VALUES (?");
+        for (int i = 0; i < COLUMNS.length; i++) {
+            sql.append(",?");
+        }
+        return sql.append(')').toString();
+    }
+
+    /*
+     * Sets every weather column but the date, which together with the location ID picks the row
+     * to update. The columns are bound in the same order as for an insert, starting at 1.
+     */
+    private static String buildUpdateSql() {
+        StringBuilder sql = new StringBuilder("UPDATE ")
+                .append(WeatherEntry.TABLE_NAME)
+                .append(" SET ");
+        for (int i = 1; i < COLUMNS.length; i++) {
+            if (i > 1) {
+                sql.append(',');
+            }
+            sql.append(COLUMNS[i]).append("=?");
+        }
+        return sql.append(" WHERE ")
+                .append(WeatherEntry.COLUMN_LOCATION_ID).append("=? AND ")
+                .append(WeatherEntry.COLUMN_DATE).append("=?")
+                .toString();
+    }
+
+    /**
+     * Inserts (or replaces, for a date we already have) a single weather row for our location.
+     *
+     * @param value The values for one day. The date must be normalized. Any location ID in the
+     *              values is replaced with our own.
+     * @return true if a row was written
+     * @throws IllegalArgumentException if the date is missing or isn't normalized
+     */
+    boolean insert(ContentValues value) {
+        /*
+         * Reading the date as a Number lets us check it and bind it as a primitive long,
+         * without ContentValues converting it into a new Long for us first.
+         */
+        Object date = value.get(WeatherEntry.COLUMN_DATE);
+        if (!(date instanceof Number)
+                || !SunshineDateUtils.isDateNormalized(((Number) date).longValue())) {
+            throw new IllegalArgumentException("Date must be normalized to insert");
+        }
+
+        /*
+         * Our statement binds every weather column. If the values are missing one of them, or
+         * hold a column our statement doesn't know about, we let SQLiteDatabase build the SQL
+         * for this row so that column defaults and constraints behave exactly as they would
+         * for any other insert.
+         */
+        boolean hasLocationId = value.containsKey(WeatherEntry.COLUMN_LOCATION_ID);
+        if (value.size() != COLUMNS.length + (hasLocationId ? 1 : 0)) {
+            return insertWithDatabase(value);
+        }
+        for (String column : COLUMNS) {
+            if (!value.containsKey(column)) {
+                return insertWithDatabase(value);
+            }
+        }
+
+        mInsertStatement.clearBindings();
+        mInsertStatement.bindLong(INDEX_LOCATION_ID, mLocationId);
+        mInsertStatement.bindLong(INDEX_DATE, ((Number) date).longValue());
+        bindLongOrNull(INDEX_WEATHER_ID, value.get(WeatherEntry.COLUMN_WEATHER_ID));
+        for (int i = INDEX_FIRST_REAL; i <= COLUMNS.length + 1; i++) {
+            bindDoubleOrNull(i, value.get(COLUMNS[i - 2]));
+        }
+
+        return executeInsert();
+    }
+
+    /*
+     * Like SQLiteDatabase#insert, reports a row that breaks a constraint as not inserted rather
+     * than aborting the caller's transaction, whichever way the row's values were bound.
+     */
+    private boolean executeInsert() {
+        try {
+            return mInsertStatement.executeInsert() != -1;
+        } catch (SQLException e) {
+            return false;
+        }
+    }
+
+    private boolean insertWithDatabase(ContentValues value) {
+        ContentValues locatedValue = new ContentValues(value);
+        locatedValue.put(WeatherEntry.COLUMN_LOCATION_ID, mLocationId);
+        return mDatabase.insert(WeatherEntry.TABLE_NAME, null, locatedValue) != -1;
+    }
+
+    /**
+     * Inserts (or replaces, for a date we already have) one day of a forecast for our location.
+     * Every value is bound straight from the batch's primitive arrays.
+     *
+     * @param forecast The forecast to take the day from
+     * @param index    The day within the forecast to insert
+     * @return true if a row was written
+     * @throws IllegalArgumentException if the day's date isn't normalized
+     */
+    boolean insert(ForecastBatch forecast, int index) {
+        long date = forecast.getDate(index);
+        if (!SunshineDateUtils.isDateNormalized(date)) {
+            throw new IllegalArgumentException("Date must be normalized to insert");
+        }
+
+        mInsertStatement.bindLong(INDEX_LOCATION_ID, mLocationId);
+        mInsertStatement.bindLong(INDEX_DATE, date);
+        mInsertStatement.bindLong(INDEX_WEATHER_ID, forecast.getWeatherId(index));
+        mInsertStatement.bindDouble(INDEX_FIRST_REAL, forecast.getMinTemp(index));
+        mInsertStatement.bindDouble(INDEX_FIRST_REAL + 1, forecast.getMaxTemp(index));
+        mInsertStatement.bindDouble(INDEX_FIRST_REAL + 2, forecast.getHumidity(index));
+        mInsertStatement.bindDouble(INDEX_FIRST_REAL + 3, forecast.getPressure(index));
+        mInsertStatement.bindDouble(INDEX_FIRST_REAL + 4, forecast.getWindSpeed(index));
+        mInsertStatement.bindDouble(INDEX_FIRST_REAL + 5, forecast.getDegrees(index));
+
+        return executeInsert();
+    }
+
+    /**
+     * Updates the row we already have for one day of a forecast in place, keeping its _ID. Every
+     * value is bound straight from the batch's primitive arrays.
+     *
+     * @param forecast The forecast to take the day from
+     * @param index    The day within the forecast to update
+     * @return true if a row was updated, false if we have no row for the day's date
+     */
+    boolean update(ForecastBatch forecast, int index) {
+        if (mUpdateStatement == null) {
+            mUpdateStatement = mDatabase.compileStatement(UPDATE_SQL);
+        }
+
+        mUpdateStatement.bindLong(1, forecast.getWeatherId(index));
+        mUpdateStatement.bindDouble(2, forecast.getMinTemp(index));
+        mUpdateStatement.bindDouble(3, forecast.getMaxTemp(index));
+        mUpdateStatement.bindDouble(4, forecast.getHumidity(index));
+        mUpdateStatement.bindDouble(5, forecast.getPressure(index));
+        mUpdateStatement.bindDouble(6, forecast.getWindSpeed(index));
+        mUpdateStatement.bindDouble(7, forecast.getDegrees(index));
+        mUpdateStatement.bindLong(8, mLocationId);
+        mUpdateStatement.bindLong(9, forecast.getDate(index));
+
+        return mUpdateStatement.executeUpdateDelete() > 0;
+    }
+
+    private void bindLongOrNull(int index, Object value) {
+        if (value instanceof Number) {
+            mInsertStatement.bindLong(index, ((Number) value).longValue());
+        } else if (value == null) {
+            mInsertStatement.bindNull(index);
+        } else {
+            mInsertStatement.bindString(index, value.toString());
+        }
+    }
+
+    private void bindDoubleOrNull(int index, Object value) {
+        if (value instanceof Number) {
+            mInsertStatement.bindDouble(index, ((Number) value).doubleValue());
+        } else if (value == null) {
+            mInsertStatement.bindNull(index);
+        } else {
+            mInsertStatement.bindString(index, value.toString());
+        }
+    }
+
+    /**
+     * Releases the compiled statements.
+     */
+    void close() {
+        mInsertStatement.close();
+        if (mUpdateStatement != null) {
+            mUpdateStatement.close();
+        }
+    }
+}
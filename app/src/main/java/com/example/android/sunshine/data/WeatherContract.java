@@ -56,10 +56,50 @@ public class WeatherContract {
      */
     public static final String PATH_WEATHER = "weather";
 
+    /*
+     * Appended to the weather path to ask for the weather of one particular location, such as
+     *
+     *     content://com.example.android.sunshine/weather/location/2
+     *
+     * and also used on its own for the location table itself.
+     */
+    public static final String PATH_LOCATION = "location";
+
+    /*
+     * Used for the metrics of the last few syncs, which debug builds expose at
+     *
+     *     content://com.example.android.sunshine/sync_metrics
+     */
+    public static final String PATH_SYNC_METRICS = "sync_metrics";
+
+    /* Inner class that defines the table contents of the location table */
+    public static final class LocationEntry implements BaseColumns {
+
+        /* The base CONTENT_URI used to query the location table from the content provider */
+        public static final Uri CONTENT_URI = BASE_CONTENT_URI.buildUpon()
+                .appendPath(PATH_LOCATION)
+                .build();
+
+        /* Used internally as the name of our location table. */
+        public static final String TABLE_NAME = "location";
+
+        /*
+         * The location setting is the string the user entered in Settings and that we send to
+         * OpenWeatherMap, such as "94043,USA". Each location setting is stored only once, and
+         * every weather row refers to the location it was fetched for by its _ID.
+         */
+        public static final String COLUMN_LOCATION_SETTING = "location_setting";
+    }
+
     /* Inner class that defines the table contents of the weather table */
     public static final class WeatherEntry implements BaseColumns {
 
-        /* The base CONTENT_URI used to query the Weather table from the content provider */
+        /*
+         * The base CONTENT_URI used to query the Weather table from the content provider. This
+         * URI, and any built from it with buildWeatherUriWithDate, always refer to the weather
+         * for the location currently set in SunshinePreferences. Use
+         * buildWeatherUriWithLocation to refer to the weather for any other stored location.
+         */
         public static final Uri CONTENT_URI = BASE_CONTENT_URI.buildUpon()
                 .appendPath(PATH_WEATHER)
                 .build();
@@ -67,6 +107,9 @@ public class WeatherContract {
         /* Used internally as the name of our weather table. */
         public static final String TABLE_NAME = "weather";
 
+        /* The _ID of the row in the location table this weather was fetched for */
+        public static final String COLUMN_LOCATION_ID = "location_id";
+
         /*
          * The date column will store the UTC date that correlates to the local date for which
          * each particular weather row represents. For example, if you live in the Eastern
@@ -109,6 +152,43 @@ public class WeatherContract {
          */
         public static final String COLUMN_DEGREES = "degrees";
 
+        /*
+         * Name of the provider method that reconciles a freshly downloaded forecast with the
+         * weather we already have stored. Call it with ContentResolver#call on CONTENT_URI and
+         * pass the forecast in the extras, either as a ForecastBatch under EXTRA_FORECAST_BATCH
+         * or as a ContentValues[] under EXTRA_WEATHER_VALUES. Pass the location setting the
+         * forecast was fetched for as the call's argument, or null for the preferred location.
+         *
+         * Rather than deleting every row and inserting the forecast again, the provider compares
+         * each incoming day with the stored day for that location that has the same COLUMN_DATE.
+         * Weather stored for any other location is never touched. Only new days are
+         * inserted, only days that have changed are updated and only days older than today are
+         * deleted. All of that happens in one transaction, followed by at most one change
+         * notification. The returned Bundle holds the number of rows inserted, updated and
+         * deleted under the RESULT_ROWS_* keys.
+         *
+         * ContentResolver#call(Uri, ...) and ContentProvider#call were added in API 11, which is
+         * why our minSdkVersion is 11. There is no delete-then-bulkInsert fallback to maintain.
+         */
+        public static final String METHOD_RECONCILE = "reconcile";
+        public static final String EXTRA_FORECAST_BATCH = "forecast_batch";
+        public static final String EXTRA_WEATHER_VALUES = "weather_values";
+        public static final String RESULT_ROWS_INSERTED = "rows_inserted";
+        public static final String RESULT_ROWS_UPDATED = "rows_updated";
+        public static final String RESULT_ROWS_DELETED = "rows_deleted";
+
+        /*
+         * Name of the provider method that reconciles the forecasts of several locations at
+         * once, exactly as METHOD_RECONCILE would for each one of them, but within a single
+         * transaction. Pass the location settings as a String[] under EXTRA_LOCATION_SETTINGS
+         * and, in the same order, their forecasts as a ForecastBatch[] under
+         * EXTRA_FORECAST_BATCHES. The returned Bundle holds the totals across every location
+         * under the RESULT_ROWS_* keys.
+         */
+        public static final String METHOD_RECONCILE_LOCATIONS = "reconcile_locations";
+        public static final String EXTRA_LOCATION_SETTINGS = "location_settings";
+        public static final String EXTRA_FORECAST_BATCHES = "forecast_batches";
+
         /**
          * Builds a URI that adds the weather date to the end of the forecast content URI path.
          * This is used to query details about a single weather entry by date. This is what we
@@ -123,6 +203,33 @@ public class WeatherContract {
                     .build();
         }
 
+        /**
+         * Builds a URI for every day of weather we have stored for one location.
+         *
+         * @param locationId _ID of the location in the location table
+         * @return Uri to query the weather for a single location
+         */
+        public static Uri buildWeatherUriWithLocation(long locationId) {
+            return CONTENT_URI.buildUpon()
+                    .appendPath(PATH_LOCATION)
+                    .appendPath(Long.toString(locationId))
+                    .build();
+        }
+
+        /**
+         * Builds a URI for the weather on a single day at one location. We assume a normalized
+         * date is passed to this method.
+         *
+         * @param locationId _ID of the location in the location table
+         * @param date       Normalized date in milliseconds
+         * @return Uri to query details about a single weather entry at a single location
+         */
+        public static Uri buildWeatherUriWithLocationAndDate(long locationId, long date) {
+            return buildWeatherUriWithLocation(locationId).buildUpon()
+                    .appendPath(Long.toString(date))
+                    .build();
+        }
+
         /**
          * Returns just the selection part of the weather query from a normalized today value.
          * This is used to get a weather forecast from today's date. To make this easy to use
@@ -135,4 +242,42 @@ public class WeatherContract {
             return WeatherContract.WeatherEntry.COLUMN_DATE + " >= " + normalizedUtcNow;
         }
     }
+
+    /*
+     * Inner class that defines the columns of the sync metrics. These aren't stored in our
+     * database; our ContentProvider answers queries for them from memory, and only in debug
+     * builds. There is one row for each of the last few syncs, oldest first.
+     */
+    public static final class SyncMetricsEntry {
+
+        public static final Uri CONTENT_URI = BASE_CONTENT_URI.buildUpon()
+                .appendPath(PATH_SYNC_METRICS)
+                .build();
+
+        /* When the sync started, in milliseconds since the epoch */
+        public static final String COLUMN_START_TIME = "start_time";
+        /* How long the sync took from start to finish */
+        public static final String COLUMN_DURATION_MILLIS = "duration_ms";
+        /* How the sync went, such as "success" or "network error" */
+        public static final String COLUMN_RESULT = "result";
+
+        public static final String COLUMN_LOCATIONS = "locations";
+        public static final String COLUMN_FAILED_LOCATIONS = "failed_locations";
+        /* Bytes of forecasts received from the network, before decompression */
+        public static final String COLUMN_BYTES_DOWNLOADED = "bytes_downloaded";
+
+        public static final String COLUMN_ROWS_INSERTED = "rows_inserted";
+        public static final String COLUMN_ROWS_UPDATED = "rows_updated";
+        public static final String COLUMN_ROWS_DELETED = "rows_deleted";
+
+        /*
+         * Time spent in each stage of the sync. Building URLs, fetching and parsing are done for
+         * each location, so those are the totals across every location.
+         */
+        public static final String COLUMN_BUILD_URL_MILLIS = "build_url_ms";
+        public static final String COLUMN_FETCH_MILLIS = "fetch_ms";
+        public static final String COLUMN_PARSE_MILLIS = "parse_ms";
+        public static final String COLUMN_RECONCILE_MILLIS = "reconcile_ms";
+        public static final String COLUMN_NOTIFY_MILLIS = "notify_ms";
+    }
 }
\ No newline at end of file
@@ -15,11 +15,16 @@
  */
 package com.example.android.sunshine.data;
 
+import android.annotation.TargetApi;
+import android.content.ContentValues;
 import android.content.Context;
 import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteOpenHelper;
+import android.os.Build;
 
+import com.example.android.sunshine.data.WeatherContract.LocationEntry;
 import com.example.android.sunshine.data.WeatherContract.WeatherEntry;
+import com.example.android.sunshine.sync.SyncFreshness;
 
 /**
  * Manages a local database for weather data.
@@ -42,72 +47,299 @@ public class WeatherDbHelper extends SQLiteOpenHelper {
      * versions of Sunshine could cause everything to break. Although that is certainly a rare
      * use-case, we wanted to watch out for it and warn you what could happen if you mistakenly
      * version your databases.
+     *
+     * Version 4 adds FORECAST_INDEX_NAME, our covering index for the forecast list.
+     *
+     * Version 5 adds the location table, so that we can keep the weather for several locations
+     * at once, and a COLUMN_LOCATION_ID to every weather row.
      */
-    private static final int DATABASE_VERSION = 3;
+    private static final int DATABASE_VERSION = 5;
 
-    public WeatherDbHelper(Context context) {
-        super(context, DATABASE_NAME, null, DATABASE_VERSION);
-    }
+    /*
+     * The forecast list, and the check for whether we have any weather at all, both select one
+     * location's rows from today onwards in date order and only ever read the date, temperatures
+     * and weather ID. An index on exactly those columns, leading with the location and then the
+     * date, lets SQLite answer both queries from the index alone, in order, without ever
+     * touching the table itself. Single days are looked up through the index SQLite already
+     * maintains for our UNIQUE (location, date) constraint.
+     */
+    static final String FORECAST_INDEX_NAME = "weather_forecast_index";
+
+    /*
+     * Size of the page cache for our writing connection, in KiB. A few weeks of forecast fit in a
+     * handful of pages, so this keeps the whole database in memory with plenty to spare while
+     * staying well below SQLite's default of about 2 MiB per connection.
+     */
+    private static final int PAGE_CACHE_SIZE_KIB = 512;
+
+    private static final String SQL_CREATE_LOCATION_TABLE =
+
+            "CREATE TABLE " + LocationEntry.TABLE_NAME + " (" +
+
+            LocationEntry._ID                     + " INTEGER PRIMARY KEY AUTOINCREMENT, " +
+
+            /* Each location setting is stored once, so we can look its _ID up by the setting */
+            LocationEntry.COLUMN_LOCATION_SETTING + " TEXT UNIQUE NOT NULL);";
+
+    private static final String SQL_CREATE_WEATHER_TABLE =
+
+            "CREATE TABLE " + WeatherEntry.TABLE_NAME + " (" +
+
+            /*
+             * WeatherEntry did not explicitly declare a column called "_ID". However,
+             * WeatherEntry implements the interface, "BaseColumns", which does have a field
+             * named "_ID". We use that here to designate our table's primary key.
+             */
+            WeatherEntry._ID                + " INTEGER PRIMARY KEY AUTOINCREMENT, " +
+
+            /*
+             * Every weather row belongs to a location. If a location is ever deleted, its
+             * weather goes along with it.
+             */
+            WeatherEntry.COLUMN_LOCATION_ID + " INTEGER NOT NULL REFERENCES "      +
+                    LocationEntry.TABLE_NAME + " (" + LocationEntry._ID + ") ON DELETE CASCADE, " +
+
+            WeatherEntry.COLUMN_DATE        + " INTEGER NOT NULL, "                 +
+
+            WeatherEntry.COLUMN_WEATHER_ID  + " INTEGER NOT NULL,"                  +
+
+            WeatherEntry.COLUMN_MIN_TEMP    + " REAL NOT NULL, "                    +
+            WeatherEntry.COLUMN_MAX_TEMP    + " REAL NOT NULL, "                    +
+
+            WeatherEntry.COLUMN_HUMIDITY    + " REAL NOT NULL, "                    +
+            WeatherEntry.COLUMN_PRESSURE    + " REAL NOT NULL, "                    +
+
+            WeatherEntry.COLUMN_WIND_SPEED  + " REAL NOT NULL, "                    +
+            WeatherEntry.COLUMN_DEGREES     + " REAL NOT NULL, "                    +
+
+            /*
+             * To ensure this table can only contain one weather entry per date for each
+             * location, we declare the location and date to be unique together. We also specify
+             * "ON CONFLICT REPLACE". This tells SQLite that if we have a weather entry for a
+             * certain date at a location and we attempt to insert another weather entry with
+             * that date and location, we replace the old weather entry. Weather for the same
+             * date at another location is left alone.
+             */
+            " UNIQUE (" + WeatherEntry.COLUMN_LOCATION_ID + ", " + WeatherEntry.COLUMN_DATE +
+            ") ON CONFLICT REPLACE);";
+
+    private static final String SQL_CREATE_FORECAST_INDEX =
+            "CREATE INDEX IF NOT EXISTS " + FORECAST_INDEX_NAME + " ON " + WeatherEntry.TABLE_NAME +
+            " (" +
+            WeatherEntry.COLUMN_LOCATION_ID + ", " +
+            WeatherEntry.COLUMN_DATE        + ", " +
+            WeatherEntry.COLUMN_MAX_TEMP    + ", " +
+            WeatherEntry.COLUMN_MIN_TEMP    + ", " +
+            WeatherEntry.COLUMN_WEATHER_ID  + ");";
 
     /**
-     * Called when the database is created for the first time. This is where the creation of
-     * tables and the initial population of the tables should happen.
-     *
-     * @param sqLiteDatabase The database.
+     * A single step in upgrading our schema, from one version to the next. Each step must keep
+     * whatever data can be kept; after an app update, the user should still see their forecast
+     * straight away rather than an empty screen while we download a new one.
      */
-    @Override
-    public void onCreate(SQLiteDatabase sqLiteDatabase) {
+    abstract static class Migration {
 
-        /*
-         * This String will contain a simple SQL statement that will create a table that will
-         * cache our weather data.
+        /* The version this step upgrades from. It upgrades to fromVersion + 1. */
+        final int fromVersion;
+
+        Migration(int fromVersion) {
+            this.fromVersion = fromVersion;
+        }
+
+        /**
+         * @param context Used to read the user's preferences, should the step need them
+         * @param db      The database being upgraded, at fromVersion
          */
-        final String SQL_CREATE_WEATHER_TABLE =
+        abstract void migrate(Context context, SQLiteDatabase db);
+    }
+
+    /*
+     * Every migration step we know about, in order. When you increment DATABASE_VERSION, add the
+     * step that upgrades the previous version to the end of this list, along with a test that
+     * runs it against a database created with the previous version's schema.
+     *
+     * A step must leave the database exactly as its target version had it, so a step only uses
+     * the SQL constants above for as long as they still describe that version. Before changing
+     * one of them, copy what it used to say into the steps that rely on it.
+     */
+    static final Migration[] MIGRATIONS = {
+
+            /* Version 4 adds our covering index for the forecast list */
+            new Migration(3) {
+                @Override
+                void migrate(Context context, SQLiteDatabase db) {
+                    db.execSQL("CREATE INDEX IF NOT EXISTS " + FORECAST_INDEX_NAME + " ON " +
+                            WeatherEntry.TABLE_NAME + " (" +
+                            WeatherEntry.COLUMN_DATE + ", " +
+                            WeatherEntry.COLUMN_MAX_TEMP + ", " +
+                            WeatherEntry.COLUMN_MIN_TEMP + ", " +
+                            WeatherEntry.COLUMN_WEATHER_ID + ");");
+                }
+            },
+
+            /*
+             * Version 5 adds the location table. Every forecast a version 4 database holds was
+             * fetched for the location the user has set right now, so we keep it as that
+             * location's weather.
+             */
+            new Migration(4) {
+                @Override
+                void migrate(Context context, SQLiteDatabase db) {
+                    final String oldTable = WeatherEntry.TABLE_NAME + "_v4";
 
-                "CREATE TABLE " + WeatherEntry.TABLE_NAME + " (" +
+                    db.execSQL(SQL_CREATE_LOCATION_TABLE);
+                    ContentValues location = new ContentValues();
+                    location.put(LocationEntry.COLUMN_LOCATION_SETTING,
+                            SunshinePreferences.getPreferredWeatherLocation(context));
+                    long locationId = db.insertOrThrow(LocationEntry.TABLE_NAME, null, location);
 
-                /*
-                 * WeatherEntry did not explicitly declare a column called "_ID". However,
-                 * WeatherEntry implements the interface, "BaseColumns", which does have a field
-                 * named "_ID". We use that here to designate our table's primary key.
-                 */
-                WeatherEntry._ID               + " INTEGER PRIMARY KEY AUTOINCREMENT, " +
+                    /*
+                     * SQLite can't add a column to a UNIQUE constraint, so we move the old table
+                     * aside, create the new one and copy every row over. Dropping the old table
+                     * drops its version of our forecast index along with it.
+                     */
+                    db.execSQL("ALTER TABLE " + WeatherEntry.TABLE_NAME + " RENAME TO " + oldTable);
+                    db.execSQL(SQL_CREATE_WEATHER_TABLE);
 
-                WeatherEntry.COLUMN_DATE       + " INTEGER NOT NULL, "                 +
+                    final String weatherColumns =
+                            WeatherEntry.COLUMN_DATE + ", " +
+                            WeatherEntry.COLUMN_WEATHER_ID + ", " +
+                            WeatherEntry.COLUMN_MIN_TEMP + ", " +
+                            WeatherEntry.COLUMN_MAX_TEMP + ", " +
+                            WeatherEntry.COLUMN_HUMIDITY + ", " +
+                            WeatherEntry.COLUMN_PRESSURE + ", " +
+                            WeatherEntry.COLUMN_WIND_SPEED + ", " +
+                            WeatherEntry.COLUMN_DEGREES;
+                    db.execSQL("INSERT INTO " + WeatherEntry.TABLE_NAME +
+                            " (" + WeatherEntry.COLUMN_LOCATION_ID + ", " + weatherColumns + ")" +
+                            " SELECT " + locationId + ", " + weatherColumns + " FROM " + oldTable);
 
-                WeatherEntry.COLUMN_WEATHER_ID + " INTEGER NOT NULL,"                  +
+                    db.execSQL("DROP TABLE " + oldTable);
+                    db.execSQL(SQL_CREATE_FORECAST_INDEX);
+                }
+            }
+    };
 
-                WeatherEntry.COLUMN_MIN_TEMP   + " REAL NOT NULL, "                    +
-                WeatherEntry.COLUMN_MAX_TEMP   + " REAL NOT NULL, "                    +
+    /* Migration steps may need to read the user's preferences */
+    private final Context mContext;
 
-                WeatherEntry.COLUMN_HUMIDITY   + " REAL NOT NULL, "                    +
-                WeatherEntry.COLUMN_PRESSURE   + " REAL NOT NULL, "                    +
+    /* Only our real database is described by the sync's freshness index, not a test's copy */
+    private final boolean mIndexedByFreshness;
 
-                WeatherEntry.COLUMN_WIND_SPEED + " REAL NOT NULL, "                    +
-                WeatherEntry.COLUMN_DEGREES    + " REAL NOT NULL, "                    +
+    public WeatherDbHelper(Context context) {
+        this(context, DATABASE_NAME);
+    }
+
+    /**
+     * Opens a database with a name other than {@link #DATABASE_NAME}. Used by our tests to
+     * upgrade copies of older databases without touching the real one.
+     *
+     * @param context Used to locate the database
+     * @param name    Name of the database file
+     */
+    WeatherDbHelper(Context context, String name) {
+        super(context, name, null, DATABASE_VERSION);
+        mContext = context;
+        mIndexedByFreshness = DATABASE_NAME.equals(name);
+    }
+
+    /**
+     * Called when the database connection is being configured, before it is created or upgraded.
+     * This is only called on Jelly Bean and newer. Older devices get the same setup from
+     * {@link #onOpen}, once the database has been created or upgraded.
+     * <p>
+     * We turn on write-ahead logging here. With WAL, our sync can write a new forecast while
+     * the UI keeps reading the previous one, rather than the two blocking each other.
+     * <p>
+     * With WAL on, synchronous mode NORMAL only syncs at checkpoints rather than on every commit.
+     * A power cut can lose the last forecast we wrote, but never corrupt the database, and the
+     * next sync simply downloads it again. These pragmas must come after enabling WAL, which
+     * resets the synchronous mode of the connection.
+     * <p>
+     * SQLite leaves foreign keys unenforced unless asked, so we ask, both to keep every weather
+     * row pointing at a location we have and to delete a location's weather along with it.
+     *
+     * @param db The database.
+     */
+    @Override
+    @TargetApi(16)
+    public void onConfigure(SQLiteDatabase db) {
+        super.onConfigure(db);
+        db.enableWriteAheadLogging();
+        setPragmas(db);
+        db.setForeignKeyConstraintsEnabled(true);
+    }
+
+    /**
+     * Called when the database has been opened. Before Jelly Bean, onConfigure is never called,
+     * so this is where those devices turn on write-ahead logging, our pragmas and foreign keys.
+     * Without foreign keys, deleting a location wouldn't delete its weather along with it.
+     * <p>
+     * A read-only database can't switch its journal mode, so it keeps the rollback journal.
+     *
+     * @param db The database.
+     */
+    @Override
+    public void onOpen(SQLiteDatabase db) {
+        super.onOpen(db);
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN) {
+            return;
+        }
+
+        if (!db.isReadOnly()) {
+            db.enableWriteAheadLogging();
+            setPragmas(db);
+        }
+        db.execSQL("PRAGMA foreign_keys = ON");
+    }
 
-                /*
-                 * To ensure this table can only contain one weather entry per date, we declare
-                 * the date column to be unique. We also specify "ON CONFLICT REPLACE". This tells
-                 * SQLite that if we have a weather entry for a certain date and we attempt to
-                 * insert another weather entry with that date, we replace the old weather entry.
-                 */
-                " UNIQUE (" + WeatherEntry.COLUMN_DATE + ") ON CONFLICT REPLACE);";
+    /* Must come after enabling WAL, which resets the synchronous mode of the connection */
+    private static void setPragmas(SQLiteDatabase db) {
+        db.execSQL("PRAGMA synchronous = NORMAL");
+        /* A negative cache_size is in KiB rather than in pages */
+        db.execSQL("PRAGMA cache_size = -" + PAGE_CACHE_SIZE_KIB);
+    }
+
+    /**
+     * Called when the database is created for the first time. This is where the creation of
+     * tables and the initial population of the tables should happen.
+     *
+     * @param sqLiteDatabase The database.
+     */
+    @Override
+    public void onCreate(SQLiteDatabase sqLiteDatabase) {
 
         /*
-         * After we've spelled out our SQLite table creation statement above, we actually execute
-         * that SQL with the execSQL method of our SQLite database object.
+         * After we've spelled out our SQLite table creation statements above, we actually
+         * execute that SQL with the execSQL method of our SQLite database object. The location
+         * table comes first, as the weather table refers to it.
          */
+        sqLiteDatabase.execSQL(SQL_CREATE_LOCATION_TABLE);
         sqLiteDatabase.execSQL(SQL_CREATE_WEATHER_TABLE);
+        sqLiteDatabase.execSQL(SQL_CREATE_FORECAST_INDEX);
+
+        /*
+         * The tables start out empty, whether this is a new database or one that onUpgrade had
+         * to discard, so the index of what we've synced no longer holds.
+         */
+        if (mIndexedByFreshness) {
+            SyncFreshness.clear(mContext);
+        }
     }
 
     /**
-     * This database is only a cache for online data, so its upgrade policy is simply to discard
-     * the data and call through to onCreate to recreate the table. Note that this only fires if
-     * you change the version number for your database (in our case, DATABASE_VERSION). It does NOT
-     * depend on the version number for your application found in your app/build.gradle file. If
-     * you want to update the schema without wiping data, commenting out the current body of this
-     * method should be your top priority before modifying this method.
+     * Upgrades the database by running every step in {@link #MIGRATIONS} from oldVersion up to
+     * newVersion, in order. Note that this only fires if you change the version number for your
+     * database (in our case, DATABASE_VERSION). It does NOT depend on the version number for your
+     * application found in your app/build.gradle file.
+     * <p>
+     * SQLiteOpenHelper already runs this method within a transaction, so either every step is
+     * applied or none of them are.
+     * <p>
+     * This database is only a cache for online data. If there is no path of migration steps from
+     * oldVersion to newVersion (for example, for a version older than any we still know how to
+     * migrate), we fall back to discarding the data and calling through to onCreate to recreate
+     * the tables, which also makes the next start sync right away.
      *
      * @param sqLiteDatabase Database that is being upgraded
      * @param oldVersion     The old database version
@@ -115,7 +347,38 @@ public class WeatherDbHelper extends SQLiteOpenHelper {
      */
     @Override
     public void onUpgrade(SQLiteDatabase sqLiteDatabase, int oldVersion, int newVersion) {
-        sqLiteDatabase.execSQL("DROP TABLE IF EXISTS " + WeatherEntry.TABLE_NAME);
-        onCreate(sqLiteDatabase);
+        if (!hasMigrationPath(oldVersion, newVersion)) {
+            sqLiteDatabase.execSQL("DROP TABLE IF EXISTS " + WeatherEntry.TABLE_NAME);
+            sqLiteDatabase.execSQL("DROP TABLE IF EXISTS " + LocationEntry.TABLE_NAME);
+            onCreate(sqLiteDatabase);
+            return;
+        }
+
+        for (int version = oldVersion; version < newVersion; version++) {
+            findMigration(version).migrate(mContext, sqLiteDatabase);
+        }
+    }
+
+    /**
+     * @param oldVersion The version to upgrade from
+     * @param newVersion The version to upgrade to
+     * @return true if there is a migration step for every version from oldVersion to newVersion
+     */
+    static boolean hasMigrationPath(int oldVersion, int newVersion) {
+        for (int version = oldVersion; version < newVersion; version++) {
+            if (findMigration(version) == null) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static Migration findMigration(int fromVersion) {
+        for (Migration migration : MIGRATIONS) {
+            if (migration.fromVersion == fromVersion) {
+                return migration;
+            }
+        }
+        return null;
     }
 }
\ No newline at end of file
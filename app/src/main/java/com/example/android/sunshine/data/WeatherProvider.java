@@ -17,18 +17,31 @@ package com.example.android.sunshine.data;
 
 import android.annotation.TargetApi;
 import android.content.ContentProvider;
+import android.content.ContentResolver;
 import android.content.ContentValues;
 import android.content.UriMatcher;
 import android.database.Cursor;
+import android.database.DatabaseUtils;
 import android.database.sqlite.SQLiteDatabase;
 import android.net.Uri;
+import android.os.Bundle;
+import android.os.Parcelable;
 import android.support.annotation.NonNull;
 
+import com.example.android.sunshine.BuildConfig;
 import com.example.android.sunshine.utilities.SunshineDateUtils;
+import com.example.android.sunshine.utilities.SyncMetrics;
+
+import java.io.FileDescriptor;
+import java.io.PrintWriter;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
 
 /**
  * This class serves as the ContentProvider for all of Sunshine's data. This class allows us to
- * bulkInsert data, query data, and delete data.
+ * bulkInsert data, query data, delete data and reconcile a new forecast with the stored one.
  * <p>
  * Although ContentProvider implementation requires the implementation of additional methods to
  * perform single inserts, updates, and the ability to get the type of the data from a URI.
@@ -45,6 +58,10 @@ public class WeatherProvider extends ContentProvider {
      */
     public static final int CODE_WEATHER = 100;
     public static final int CODE_WEATHER_WITH_DATE = 101;
+    public static final int CODE_WEATHER_WITH_LOCATION = 102;
+    public static final int CODE_WEATHER_WITH_LOCATION_AND_DATE = 103;
+    public static final int CODE_LOCATION = 200;
+    public static final int CODE_SYNC_METRICS = 300;
 
     /*
      * The URI Matcher used by this content provider. The leading "s" in this variable name
@@ -52,11 +69,49 @@ public class WeatherProvider extends ContentProvider {
      * common convention in Android programming.
      */
     private static final UriMatcher sUriMatcher = buildUriMatcher();
+
+    /*
+     * The columns we read back when reconciling, in the same order ForecastBatch stores them.
+     * Reading by constant index spares us a column lookup for every value we compare.
+     */
+    private static final String[] RECONCILE_PROJECTION = {
+            WeatherContract.WeatherEntry.COLUMN_DATE,
+            WeatherContract.WeatherEntry.COLUMN_WEATHER_ID,
+            WeatherContract.WeatherEntry.COLUMN_MIN_TEMP,
+            WeatherContract.WeatherEntry.COLUMN_MAX_TEMP,
+            WeatherContract.WeatherEntry.COLUMN_HUMIDITY,
+            WeatherContract.WeatherEntry.COLUMN_PRESSURE,
+            WeatherContract.WeatherEntry.COLUMN_WIND_SPEED,
+            WeatherContract.WeatherEntry.COLUMN_DEGREES
+    };
+
+    private static final int INDEX_RECONCILE_DATE = 0;
+    private static final int INDEX_RECONCILE_WEATHER_ID = 1;
+    private static final int INDEX_RECONCILE_MIN_TEMP = 2;
+    private static final int INDEX_RECONCILE_MAX_TEMP = 3;
+    private static final int INDEX_RECONCILE_HUMIDITY = 4;
+    private static final int INDEX_RECONCILE_PRESSURE = 5;
+    private static final int INDEX_RECONCILE_WIND_SPEED = 6;
+    private static final int INDEX_RECONCILE_DEGREES = 7;
+
+    /* Positions, within the array reconcileLocation adds to, of the number of rows it changed */
+    private static final int INDEX_ROWS_INSERTED = 0;
+    private static final int INDEX_ROWS_UPDATED = 1;
+    private static final int INDEX_ROWS_DELETED = 2;
+
     private WeatherDbHelper mOpenHelper;
 
+    /* Looks up the _ID of a location by its location setting */
+    private static final String[] LOCATION_ID_PROJECTION = {WeatherContract.LocationEntry._ID};
+    private static final String LOCATION_SETTING_SELECTION =
+            WeatherContract.LocationEntry.COLUMN_LOCATION_SETTING + " = ?";
+
+    /* Returned as the _ID of a location we have never stored; no weather row refers to it */
+    private static final long NO_LOCATION_ID = -1;
+
     /**
-     * Creates the UriMatcher that will match each URI to the CODE_WEATHER and
-     * CODE_WEATHER_WITH_DATE constants defined above.
+     * Creates the UriMatcher that will match each URI to the CODE_WEATHER, CODE_LOCATION and
+     * related constants defined above.
      * <p>
      * It's possible you might be thinking, "Why create a UriMatcher when you can use regular
      * expressions instead? After all, we really just need to match some patterns, and we can
@@ -68,7 +123,7 @@ public class WeatherProvider extends ContentProvider {
      * been tested and proven, you should almost always use it unless there is a compelling
      * reason not to.
      *
-     * @return A UriMatcher that correctly matches the constants for CODE_WEATHER and CODE_WEATHER_WITH_DATE
+     * @return A UriMatcher that correctly matches the constants for each of our URIs
      */
     public static UriMatcher buildUriMatcher() {
 
@@ -96,6 +151,24 @@ public class WeatherProvider extends ContentProvider {
          */
         matcher.addURI(authority, WeatherContract.PATH_WEATHER + "/#", CODE_WEATHER_WITH_DATE);
 
+        /*
+         * These URIs look like content://com.example.android.sunshine/weather/location/2 and
+         * content://com.example.android.sunshine/weather/location/2/1472214172. The first number
+         * is the _ID of the location and the second, if there is one, is the date.
+         */
+        matcher.addURI(authority,
+                WeatherContract.PATH_WEATHER + "/" + WeatherContract.PATH_LOCATION + "/#",
+                CODE_WEATHER_WITH_LOCATION);
+        matcher.addURI(authority,
+                WeatherContract.PATH_WEATHER + "/" + WeatherContract.PATH_LOCATION + "/#/#",
+                CODE_WEATHER_WITH_LOCATION_AND_DATE);
+
+        /* This URI is content://com.example.android.sunshine/location/ */
+        matcher.addURI(authority, WeatherContract.PATH_LOCATION, CODE_LOCATION);
+
+        /* This URI is content://com.example.android.sunshine/sync_metrics/ */
+        matcher.addURI(authority, WeatherContract.PATH_SYNC_METRICS, CODE_SYNC_METRICS);
+
         return matcher;
     }
 
@@ -131,6 +204,10 @@ public class WeatherProvider extends ContentProvider {
      * for inserting a single row of data into our ContentProvider, and so we are only going to
      * implement bulkInsert. In a normal ContentProvider's implementation, you will probably want
      * to provide proper functionality for the insert method as well.
+     * <p>
+     * Rows inserted at {@link WeatherContract.WeatherEntry#CONTENT_URI} belong to the preferred
+     * location, which is added to the location table if we haven't stored it yet. Rows inserted
+     * at a URI built with buildWeatherUriWithLocation belong to that location.
      *
      * @param uri    The content:// URI of the insertion request.
      * @param values An array of sets of column_name/value pairs to add to the database.
@@ -145,23 +222,31 @@ public class WeatherProvider extends ContentProvider {
         switch (sUriMatcher.match(uri)) {
 
             case CODE_WEATHER:
+            case CODE_WEATHER_WITH_LOCATION:
                 db.beginTransaction();
                 int rowsInserted = 0;
+                WeatherBulkInserter inserter = null;
                 try {
+                    long locationId = sUriMatcher.match(uri) == CODE_WEATHER
+                            ? getOrInsertLocationId(db, getPreferredLocationSetting())
+                            : getLocationIdFromUri(uri);
+
+                    /*
+                     * Rather than letting SQLiteDatabase build and compile an INSERT for every
+                     * row, we compile one statement for the whole batch and rebind it for each
+                     * row.
+                     */
+                    inserter = new WeatherBulkInserter(db, locationId);
                     for (ContentValues value : values) {
-                        long weatherDate =
-                                value.getAsLong(WeatherContract.WeatherEntry.COLUMN_DATE);
-                        if (!SunshineDateUtils.isDateNormalized(weatherDate)) {
-                            throw new IllegalArgumentException("Date must be normalized to insert");
-                        }
-
-                        long _id = db.insert(WeatherContract.WeatherEntry.TABLE_NAME, null, value);
-                        if (_id != -1) {
+                        if (inserter.insert(value)) {
                             rowsInserted++;
                         }
                     }
                     db.setTransactionSuccessful();
                 } finally {
+                    if (inserter != null) {
+                        inserter.close();
+                    }
                     db.endTransaction();
                 }
 
@@ -176,9 +261,307 @@ public class WeatherProvider extends ContentProvider {
         }
     }
 
+    /**
+     * Handles provider-specific methods that don't map onto query, insert, update or delete.
+     * Sunshine supports {@link WeatherContract.WeatherEntry#METHOD_RECONCILE}, which merges a new
+     * forecast into the weather table, and
+     * {@link WeatherContract.WeatherEntry#METHOD_RECONCILE_LOCATIONS}, which does the same for
+     * several locations at once. See {@link #reconcileWeather(String[], ForecastBatch[])}.
+     *
+     * @param method The name of the method to call
+     * @param arg    For METHOD_RECONCILE, the location setting the forecast was fetched for, or
+     *               null for the preferred location. Unused by METHOD_RECONCILE_LOCATIONS.
+     * @param extras For METHOD_RECONCILE, must contain the new forecast, either as a
+     *               {@link ForecastBatch} under
+     *               {@link WeatherContract.WeatherEntry#EXTRA_FORECAST_BATCH} or as a
+     *               ContentValues[] under
+     *               {@link WeatherContract.WeatherEntry#EXTRA_WEATHER_VALUES}. For
+     *               METHOD_RECONCILE_LOCATIONS, must contain the location settings under
+     *               {@link WeatherContract.WeatherEntry#EXTRA_LOCATION_SETTINGS} and their
+     *               forecasts under {@link WeatherContract.WeatherEntry#EXTRA_FORECAST_BATCHES}.
+     * @return A Bundle holding the number of rows inserted, updated and deleted
+     */
+    @Override
+    public Bundle call(@NonNull String method, String arg, Bundle extras) {
+        if (WeatherContract.WeatherEntry.METHOD_RECONCILE_LOCATIONS.equals(method)) {
+            if (extras == null) {
+                throw new IllegalArgumentException("Forecasts are required to reconcile");
+            }
+
+            extras.setClassLoader(ForecastBatch.class.getClassLoader());
+            String[] locationSettings =
+                    extras.getStringArray(WeatherContract.WeatherEntry.EXTRA_LOCATION_SETTINGS);
+            Parcelable[] parcelables =
+                    extras.getParcelableArray(WeatherContract.WeatherEntry.EXTRA_FORECAST_BATCHES);
+            if (locationSettings == null || parcelables == null
+                    || locationSettings.length != parcelables.length) {
+                throw new IllegalArgumentException(
+                        "A forecast is required for every location to reconcile");
+            }
+
+            /* As with ContentValues below, the Bundle hands our batches back as a Parcelable[] */
+            ForecastBatch[] forecasts = new ForecastBatch[parcelables.length];
+            for (int i = 0; i < parcelables.length; i++) {
+                forecasts[i] = (ForecastBatch) parcelables[i];
+            }
+            return reconcileWeather(locationSettings, forecasts);
+        }
+
+        if (WeatherContract.WeatherEntry.METHOD_RECONCILE.equals(method)) {
+            if (extras == null) {
+                throw new IllegalArgumentException("Weather values are required to reconcile");
+            }
+
+            /*
+             * Our own sync hands us a ForecastBatch, which we use as is. The batch belongs to
+             * the caller, so we leave recycling it up to them.
+             */
+            extras.setClassLoader(ForecastBatch.class.getClassLoader());
+            ForecastBatch forecast =
+                    extras.getParcelable(WeatherContract.WeatherEntry.EXTRA_FORECAST_BATCH);
+            String locationSetting = arg != null ? arg : getPreferredLocationSetting();
+            if (forecast != null) {
+                return reconcileWeather(locationSetting, forecast);
+            }
+
+            /*
+             * Anyone else may hand us ContentValues instead. Bundles hand typed Parcelable
+             * arrays back as a Parcelable[], so we copy them over into an array of the type we
+             * actually need before converting them into a batch of our own.
+             */
+            Parcelable[] parcelables =
+                    extras.getParcelableArray(WeatherContract.WeatherEntry.EXTRA_WEATHER_VALUES);
+            if (parcelables == null) {
+                throw new IllegalArgumentException("Weather values are required to reconcile");
+            }
+            ContentValues[] values = new ContentValues[parcelables.length];
+            for (int i = 0; i < parcelables.length; i++) {
+                values[i] = (ContentValues) parcelables[i];
+            }
+
+            forecast = ForecastBatch.fromContentValues(values);
+            try {
+                return reconcileWeather(locationSetting, forecast);
+            } finally {
+                forecast.recycle();
+            }
+        }
+
+        return super.call(method, arg, extras);
+    }
+
+    /**
+     * Reconciles a single location's forecast. See
+     * {@link #reconcileWeather(String[], ForecastBatch[])}.
+     *
+     * @param locationSetting The location setting the forecast was fetched for
+     * @param forecast        The new forecast. Every date must be normalized.
+     * @return A Bundle holding the number of rows inserted, updated and deleted
+     */
+    private Bundle reconcileWeather(String locationSetting, ForecastBatch forecast) {
+        return reconcileWeather(new String[]{locationSetting}, new ForecastBatch[]{forecast});
+    }
+
+    /**
+     * Merges new forecasts into the weather of their locations without tearing anything down
+     * first. Each incoming day is compared, by date, with the day we already have stored for the
+     * same location:
+     * <p>
+     *   - Days we don't have yet are inserted.
+     * <p>
+     *   - Days whose values have changed are updated in place.
+     * <p>
+     *   - Days whose values haven't changed aren't touched at all.
+     * <p>
+     * Finally, each location's days that are older than today and that aren't part of its new
+     * forecast are deleted. Days from today onwards that the new forecast doesn't cover are kept,
+     * so a short forecast never leaves a gap in what we show. Weather for any location that isn't
+     * passed in is left alone.
+     * <p>
+     * All of this happens in a single transaction, however many locations there are, so loaders
+     * never see a half-written (or empty) table, and observers of each location are notified at
+     * most once.
+     *
+     * @param locationSettings The location settings the forecasts were fetched for. Each is added
+     *                         to the location table if we haven't stored it yet.
+     * @param forecasts        The new forecasts, in the same order as locationSettings. Every
+     *                         date must be normalized.
+     * @return A Bundle holding the number of rows inserted, updated and deleted in total
+     */
+    private Bundle reconcileWeather(String[] locationSettings, ForecastBatch[] forecasts) {
+        final SQLiteDatabase db = mOpenHelper.getWritableDatabase();
+
+        /* Rows inserted, updated and deleted, summed over every location */
+        int[] rowCounts = new int[INDEX_ROWS_DELETED + 1];
+        long[] changedLocationIds = new long[locationSettings.length];
+        int changedLocationCount = 0;
+        boolean preferredLocationChanged = false;
+        String preferredLocationSetting = getPreferredLocationSetting();
+
+        db.beginTransaction();
+        try {
+            for (int i = 0; i < locationSettings.length; i++) {
+                int rowsChangedBefore = countChangedRows(rowCounts);
+                long locationId = reconcileLocation(db, locationSettings[i], forecasts[i],
+                        rowCounts);
+                if (countChangedRows(rowCounts) > rowsChangedBefore) {
+                    changedLocationIds[changedLocationCount++] = locationId;
+                    if (locationSettings[i].equals(preferredLocationSetting)) {
+                        preferredLocationChanged = true;
+                    }
+                }
+            }
+
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+
+        /*
+         * A change is only delivered to observers of the notified URI, of its descendants, and of
+         * its ancestors if they asked for descendants. Our URIs by date, such as the one the
+         * detail screen watches, aren't beneath any location's URI, yet they show the preferred
+         * location's weather. So when the preferred location changed, we notify CONTENT_URI,
+         * which reaches every weather URI, including each location's. Otherwise, notifying the
+         * changed locations is enough.
+         */
+        ContentResolver resolver = getContext().getContentResolver();
+        if (preferredLocationChanged) {
+            resolver.notifyChange(WeatherContract.WeatherEntry.CONTENT_URI, null);
+        } else {
+            for (int i = 0; i < changedLocationCount; i++) {
+                resolver.notifyChange(
+                        WeatherContract.WeatherEntry.buildWeatherUriWithLocation(
+                                changedLocationIds[i]),
+                        null);
+            }
+        }
+
+        Bundle result = new Bundle();
+        result.putInt(WeatherContract.WeatherEntry.RESULT_ROWS_INSERTED,
+                rowCounts[INDEX_ROWS_INSERTED]);
+        result.putInt(WeatherContract.WeatherEntry.RESULT_ROWS_UPDATED,
+                rowCounts[INDEX_ROWS_UPDATED]);
+        result.putInt(WeatherContract.WeatherEntry.RESULT_ROWS_DELETED,
+                rowCounts[INDEX_ROWS_DELETED]);
+        return result;
+    }
+
+    /**
+     * Merges one location's new forecast into its stored weather, as described in
+     * {@link #reconcileWeather(String[], ForecastBatch[])}. Call this within a transaction.
+     *
+     * @param db              A writable database
+     * @param locationSetting The location setting the forecast was fetched for
+     * @param forecast        The new forecast. Every date must be normalized.
+     * @param rowCounts       The number of rows inserted, updated and deleted are added to
+     *                        this array at INDEX_ROWS_INSERTED, INDEX_ROWS_UPDATED and
+     *                        INDEX_ROWS_DELETED
+     * @return The _ID of the location
+     */
+    private static long reconcileLocation(SQLiteDatabase db, String locationSetting,
+            ForecastBatch forecast, int[] rowCounts) {
+        long locationId = getOrInsertLocationId(db, locationSetting);
+        String locationSelection = getLocationSelection(locationId);
+
+        /* Map every stored date to its position in the cursor so we can look days up */
+        Cursor storedWeather = db.query(
+                WeatherContract.WeatherEntry.TABLE_NAME,
+                RECONCILE_PROJECTION,
+                locationSelection,
+                null,
+                null,
+                null,
+                null);
+
+        WeatherBulkInserter inserter = new WeatherBulkInserter(db, locationId);
+        try {
+            Map<Long, Integer> storedPositions = new HashMap<>(storedWeather.getCount());
+            while (storedWeather.moveToNext()) {
+                storedPositions.put(storedWeather.getLong(INDEX_RECONCILE_DATE),
+                        storedWeather.getPosition());
+            }
+
+            Set<Long> incomingDates = new HashSet<>(forecast.size());
+
+            for (int i = 0; i < forecast.size(); i++) {
+                long weatherDate = forecast.getDate(i);
+                incomingDates.add(weatherDate);
+
+                Integer storedPosition = storedPositions.get(weatherDate);
+                if (storedPosition == null) {
+                    if (inserter.insert(forecast, i)) {
+                        rowCounts[INDEX_ROWS_INSERTED]++;
+                    }
+                    continue;
+                }
+
+                /* A day that changed is updated in place, so its row keeps its _ID */
+                storedWeather.moveToPosition(storedPosition);
+                if (!matchesCurrentRow(forecast, i, storedWeather)
+                        && inserter.update(forecast, i)) {
+                    rowCounts[INDEX_ROWS_UPDATED]++;
+                }
+            }
+
+            /* Only stale days the new forecast doesn't cover are deleted */
+            long normalizedToday = SunshineDateUtils.getNormalizedUtcDateForToday();
+            String[] dateArgs = new String[1];
+            for (Long storedDate : storedPositions.keySet()) {
+                if (storedDate < normalizedToday && !incomingDates.contains(storedDate)) {
+                    dateArgs[0] = Long.toString(storedDate);
+                    rowCounts[INDEX_ROWS_DELETED] += db.delete(
+                            WeatherContract.WeatherEntry.TABLE_NAME,
+                            locationSelection + " AND "
+                                    + WeatherContract.WeatherEntry.COLUMN_DATE + " = ?",
+                            dateArgs);
+                }
+            }
+        } finally {
+            inserter.close();
+            storedWeather.close();
+        }
+
+        return locationId;
+    }
+
+    private static int countChangedRows(int[] rowCounts) {
+        return rowCounts[INDEX_ROWS_INSERTED] + rowCounts[INDEX_ROWS_UPDATED]
+                + rowCounts[INDEX_ROWS_DELETED];
+    }
+
+    /**
+     * Compares one day of a forecast with the cursor's current row. SQLite hands REAL columns
+     * back as doubles, which is exactly how ForecastBatch stores them, so values are compared
+     * exactly.
+     *
+     * @param forecast The incoming forecast
+     * @param index    The day within the forecast to compare
+     * @param cursor   A cursor over {@link #RECONCILE_PROJECTION}, positioned on the stored row
+     *                 for the same day
+     * @return true if storing the day would not change the row
+     */
+    private static boolean matchesCurrentRow(ForecastBatch forecast, int index, Cursor cursor) {
+        return forecast.getWeatherId(index) == cursor.getInt(INDEX_RECONCILE_WEATHER_ID)
+                && sameValue(forecast.getMinTemp(index), cursor, INDEX_RECONCILE_MIN_TEMP)
+                && sameValue(forecast.getMaxTemp(index), cursor, INDEX_RECONCILE_MAX_TEMP)
+                && sameValue(forecast.getHumidity(index), cursor, INDEX_RECONCILE_HUMIDITY)
+                && sameValue(forecast.getPressure(index), cursor, INDEX_RECONCILE_PRESSURE)
+                && sameValue(forecast.getWindSpeed(index), cursor, INDEX_RECONCILE_WIND_SPEED)
+                && sameValue(forecast.getDegrees(index), cursor, INDEX_RECONCILE_DEGREES);
+    }
+
+    private static boolean sameValue(double value, Cursor cursor, int columnIndex) {
+        return Double.compare(value, cursor.getDouble(columnIndex)) == 0;
+    }
+
     /**
      * Handles query requests from clients. We will use this method in Sunshine to query for all
      * of our weather data as well as to query for the weather on a particular day.
+     * <p>
+     * Weather URIs without a location refer to the preferred location, so when the user picks
+     * a location we've stored weather for before, re-running the same query shows that weather
+     * straight away.
      *
      * @param uri           The URI to query
      * @param projection    The list of columns to put into the cursor. If null, all columns are
@@ -196,12 +579,13 @@ public class WeatherProvider extends ContentProvider {
                         String[] selectionArgs, String sortOrder) {
 
         Cursor cursor;
+        int match = sUriMatcher.match(uri);
 
         /*
          * Here's the switch statement that, given a URI, will determine what kind of request is
          * being made and query the database accordingly.
          */
-        switch (sUriMatcher.match(uri)) {
+        switch (match) {
 
             /*
              * When sUriMatcher's match method is called with a URI that looks something like this
@@ -216,7 +600,12 @@ public class WeatherProvider extends ContentProvider {
              * In this case, we want to return a cursor that contains one row of weather data for
              * a particular date.
              */
-            case CODE_WEATHER_WITH_DATE: {
+            case CODE_WEATHER_WITH_DATE:
+            case CODE_WEATHER_WITH_LOCATION_AND_DATE: {
+
+                long locationId = match == CODE_WEATHER_WITH_DATE
+                        ? getPreferredLocationId()
+                        : getLocationIdFromUri(uri);
 
                 /*
                  * In order to determine the date associated with this URI, we look at the last
@@ -252,7 +641,8 @@ public class WeatherProvider extends ContentProvider {
                          * within the selectionArguments array will be inserted into the
                          * selection statement by SQLite under the hood.
                          */
-                        WeatherContract.WeatherEntry.COLUMN_DATE + " = ? ",
+                        getLocationSelection(locationId) + " AND "
+                                + WeatherContract.WeatherEntry.COLUMN_DATE + " = ? ",
                         selectionArguments,
                         null,
                         null,
@@ -267,15 +657,35 @@ public class WeatherProvider extends ContentProvider {
              *      content://com.example.android.sunshine/weather/
              *
              * sUriMatcher's match method will return the code that indicates to us that we need
-             * to return all of the weather in our weather table.
+             * to return all of the weather for the preferred location. A URI that ends in
+             * location/2 asks for all of the weather for the location with an _ID of 2 instead.
              *
-             * In this case, we want to return a cursor that contains every row of weather data
-             * in our weather table.
+             * In either case, we want to return a cursor that contains every row of weather data
+             * in our weather table for that location that matches the caller's selection.
              */
-            case CODE_WEATHER: {
+            case CODE_WEATHER:
+            case CODE_WEATHER_WITH_LOCATION: {
+                long locationId = match == CODE_WEATHER
+                        ? getPreferredLocationId()
+                        : getLocationIdFromUri(uri);
+
                 cursor = mOpenHelper.getReadableDatabase().query(
                         WeatherContract.WeatherEntry.TABLE_NAME,
                         projection,
+                        DatabaseUtils.concatenateWhere(getLocationSelection(locationId), selection),
+                        selectionArgs,
+                        null,
+                        null,
+                        sortOrder);
+
+                break;
+            }
+
+            /* Every location we have stored weather for, so the user can switch between them */
+            case CODE_LOCATION: {
+                cursor = mOpenHelper.getReadableDatabase().query(
+                        WeatherContract.LocationEntry.TABLE_NAME,
+                        projection,
                         selection,
                         selectionArgs,
                         null,
@@ -285,6 +695,21 @@ public class WeatherProvider extends ContentProvider {
                 break;
             }
 
+            /*
+             * The metrics of the last few syncs, kept in memory rather than in our database.
+             * They're meant for debugging, so release builds don't answer for them, and every
+             * column is always returned.
+             */
+            case CODE_SYNC_METRICS: {
+                if (!BuildConfig.DEBUG) {
+                    throw new UnsupportedOperationException(
+                            "Sync metrics are only available in debug builds");
+                }
+                cursor = SyncMetrics.getInstance().query();
+
+                break;
+            }
+
             default:
                 throw new UnsupportedOperationException("Unknown uri: " + uri);
         }
@@ -318,12 +743,32 @@ public class WeatherProvider extends ContentProvider {
 
         switch (sUriMatcher.match(uri)) {
 
+            /* Just like a query, a delete without a location applies to the preferred location */
             case CODE_WEATHER:
+            case CODE_WEATHER_WITH_LOCATION:
+                long locationId = sUriMatcher.match(uri) == CODE_WEATHER
+                        ? getPreferredLocationId()
+                        : getLocationIdFromUri(uri);
+
                 numRowsDeleted = mOpenHelper.getWritableDatabase().delete(
                         WeatherContract.WeatherEntry.TABLE_NAME,
+                        DatabaseUtils.concatenateWhere(getLocationSelection(locationId), selection),
+                        selectionArgs);
+
+                break;
+
+            /* The weather of each deleted location goes with it, through ON DELETE CASCADE */
+            case CODE_LOCATION:
+                numRowsDeleted = mOpenHelper.getWritableDatabase().delete(
+                        WeatherContract.LocationEntry.TABLE_NAME,
                         selection,
                         selectionArgs);
 
+                if (numRowsDeleted != 0) {
+                    getContext().getContentResolver().notifyChange(
+                            WeatherContract.WeatherEntry.CONTENT_URI, null);
+                }
+
                 break;
 
             default:
@@ -338,6 +783,83 @@ public class WeatherProvider extends ContentProvider {
         return numRowsDeleted;
     }
 
+    /**
+     * @return The location setting the user currently has set in SunshinePreferences
+     */
+    private String getPreferredLocationSetting() {
+        return SunshinePreferences.getPreferredWeatherLocation(getContext());
+    }
+
+    /**
+     * Looks up the preferred location without adding it to the location table. Reading the
+     * weather for a location we've never stored simply finds no rows.
+     *
+     * @return The _ID of the preferred location, or NO_LOCATION_ID if we haven't stored it
+     */
+    private long getPreferredLocationId() {
+        return queryLocationId(mOpenHelper.getReadableDatabase(), getPreferredLocationSetting());
+    }
+
+    /**
+     * @param uri A URI matching CODE_WEATHER_WITH_LOCATION or CODE_WEATHER_WITH_LOCATION_AND_DATE
+     * @return The _ID of the location in the URI
+     */
+    private static long getLocationIdFromUri(Uri uri) {
+        /* The path is weather/location/<location ID>[/<date>] */
+        return Long.parseLong(uri.getPathSegments().get(2));
+    }
+
+    /**
+     * Returns the selection for one location's weather. Like getSqlSelectForTodayOnwards, we
+     * embed the ID as a literal, so callers can still pass their own selection arguments.
+     *
+     * @param locationId _ID of the location
+     * @return The selection part of a weather query for the location
+     */
+    private static String getLocationSelection(long locationId) {
+        return WeatherContract.WeatherEntry.COLUMN_LOCATION_ID + " = " + locationId;
+    }
+
+    /**
+     * @param db              The database to read from
+     * @param locationSetting The location setting to look up
+     * @return The _ID of the location, or NO_LOCATION_ID if we haven't stored it
+     */
+    private static long queryLocationId(SQLiteDatabase db, String locationSetting) {
+        Cursor cursor = db.query(
+                WeatherContract.LocationEntry.TABLE_NAME,
+                LOCATION_ID_PROJECTION,
+                LOCATION_SETTING_SELECTION,
+                new String[]{locationSetting},
+                null,
+                null,
+                null);
+        try {
+            return cursor.moveToFirst() ? cursor.getLong(0) : NO_LOCATION_ID;
+        } finally {
+            cursor.close();
+        }
+    }
+
+    /**
+     * Looks up a location, adding it to the location table if we haven't stored it yet. Call
+     * this within the transaction that writes the location's weather.
+     *
+     * @param db              A writable database
+     * @param locationSetting The location setting to look up
+     * @return The _ID of the location
+     */
+    private static long getOrInsertLocationId(SQLiteDatabase db, String locationSetting) {
+        long locationId = queryLocationId(db, locationSetting);
+        if (locationId != NO_LOCATION_ID) {
+            return locationId;
+        }
+
+        ContentValues location = new ContentValues();
+        location.put(WeatherContract.LocationEntry.COLUMN_LOCATION_SETTING, locationSetting);
+        return db.insertOrThrow(WeatherContract.LocationEntry.TABLE_NAME, null, location);
+    }
+
     /**
      * In Sunshine, we aren't going to do anything with this method. However, we are required to
      * override it as WeatherProvider extends ContentProvider and getType is an abstract method in
@@ -375,6 +897,17 @@ public class WeatherProvider extends ContentProvider {
         throw new RuntimeException("We are not implementing update in Sunshine");
     }
 
+    /**
+     * Prints the metrics of the last few syncs, so that they can be read from any build with
+     *
+     *     adb shell dumpsys activity provider com.example.android.sunshine/.data.WeatherProvider
+     */
+    @Override
+    @TargetApi(18)
+    public void dump(FileDescriptor fd, PrintWriter writer, String[] args) {
+        SyncMetrics.getInstance().dump(writer);
+    }
+
     /**
      * You do not need to call this method. This is a method specifically to assist the testing
      * framework in running smoothly. You can read more at:
@@ -0,0 +1,577 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.sync;
+
+import android.content.Context;
+import android.database.Cursor;
+import android.os.Bundle;
+import android.support.v4.os.CancellationSignal;
+import android.support.v4.os.OperationCanceledException;
+import android.util.Log;
+
+import com.example.android.sunshine.data.ForecastBatch;
+import com.example.android.sunshine.data.SunshinePreferences;
+import com.example.android.sunshine.data.WeatherContract;
+import com.example.android.sunshine.utilities.ForecastResponseCache;
+import com.example.android.sunshine.utilities.NetworkUtils;
+import com.example.android.sunshine.utilities.OpenWeatherJsonUtils;
+import com.example.android.sunshine.utilities.SunshineDateUtils;
+import com.example.android.sunshine.utilities.SyncMetrics;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Syncs the forecast of every location we store weather for. Rather than fetching one location
+ * after another, each location is fetched and parsed on a small pool of threads, so the time a
+ * sync takes is close to that of its slowest location rather than the sum of all of them. Once
+ * every location is done, the forecasts we could parse are handed to our ContentProvider
+ * together and reconciled in a single transaction.
+ * <p>
+ * The time spent fetching and parsing each location is recorded in its {@link LocationResult}.
+ * <p>
+ * A sync can be cancelled through the CancellationSignal passed to {@link #sync}. The signal is
+ * checked before each location is fetched, while its response is read and parsed, and just
+ * before the forecasts are written, so a cancelled sync stops using the network and the CPU as
+ * soon as it reads its next chunk of data. Locations that haven't started yet never will.
+ */
+class ForecastSyncEngine {
+
+    private static final String TAG = ForecastSyncEngine.class.getSimpleName();
+
+    /*
+     * Enough to overlap the round trips of the few locations a user is likely to save, without
+     * opening more connections to the weather server than it's polite to.
+     */
+    static final int MAX_CONCURRENT_FETCHES = 4;
+
+    /**
+     * Builds the URL to fetch a location's forecast from. Tests use this to point the engine at
+     * a local server instead of the real weather server.
+     */
+    interface UrlFactory {
+        URL getUrl(String locationSetting);
+    }
+
+    /* The location's forecast was parsed and is ready to be reconciled */
+    static final int STATUS_PARSED = 0;
+    /* The server told us the forecast hasn't changed since the last sync, so it was skipped */
+    static final int STATUS_NOT_MODIFIED = 1;
+    /* The server answered with an error code or a forecast without any days */
+    static final int STATUS_NO_FORECAST = 2;
+    /* The forecast couldn't be fetched or read */
+    static final int STATUS_FAILED = 3;
+
+    /**
+     * The outcome of syncing a single location, along with how long it took.
+     */
+    static final class LocationResult {
+
+        final String locationSetting;
+
+        /* One of the STATUS_* constants above */
+        int status = STATUS_FAILED;
+
+        /* Time spent building the URL to fetch the forecast from */
+        long buildUrlNanos;
+
+        /* Time from sending the request until the server's response headers arrived */
+        long fetchNanos;
+
+        /*
+         * Time spent parsing the forecast. We parse straight off of the response stream, so this
+         * includes receiving the body of the response.
+         */
+        long parseNanos;
+
+        /* Bytes of the response received from the network, before decompression */
+        long bytesDownloaded;
+
+        /* Number of days in the parsed forecast */
+        int days;
+
+        /* Date of the parsed forecast's last day, normalized to UTC midnight. 0 if it has none. */
+        long lastDate;
+
+        /* The error code the server reported in place of the forecast, for STATUS_NO_FORECAST */
+        int serverErrorCode = HttpURLConnection.HTTP_OK;
+
+        /* The cause of STATUS_FAILED */
+        Exception error;
+
+        /* Only set while the forecast waits to be reconciled */
+        ForecastBatch forecast;
+
+        /* Latitude and longitude of the location, as reported by the server */
+        final double[] cityCoord = new double[2];
+
+        LocationResult(String locationSetting) {
+            this.locationSetting = locationSetting;
+        }
+    }
+
+    private final Context mContext;
+    private final ForecastResponseCache mCache;
+    private final UrlFactory mUrlFactory;
+    private final int mMaxConcurrentFetches;
+
+    /* What the last sync's reconcile did to our weather table, and how long it took */
+    private int mRowsInserted;
+    private int mRowsUpdated;
+    private int mRowsDeleted;
+    private long mReconcileNanos;
+
+    /**
+     * Creates an engine that fetches from the weather server through the app's response cache.
+     *
+     * @param context Used to access preferences, the response cache and the ContentResolver
+     */
+    ForecastSyncEngine(Context context) {
+        this(context, ForecastResponseCache.getInstance(context),
+                new DefaultUrlFactory(context.getApplicationContext()), MAX_CONCURRENT_FETCHES);
+    }
+
+    ForecastSyncEngine(Context context, ForecastResponseCache cache, UrlFactory urlFactory,
+            int maxConcurrentFetches) {
+        mContext = context.getApplicationContext();
+        mCache = cache;
+        mUrlFactory = urlFactory;
+        mMaxConcurrentFetches = maxConcurrentFetches;
+    }
+
+    /**
+     * Fetches and parses the forecast of the preferred location and of every other location in
+     * the location table, then reconciles every forecast we could parse in one transaction. A
+     * location that fails doesn't keep the others from being stored.
+     * <p>
+     * The coordinates the server reports for the preferred location are saved in
+     * SunshinePreferences. Those reported for any other location are not.
+     *
+     * @param skipIfNotModified  true if a location may be skipped when its forecast hasn't
+     *                           changed since the last sync
+     * @param cancellationSignal Cancels the sync. Nothing is written once it has been cancelled.
+     * @return The result of each location, the preferred location first
+     * @throws InterruptedException       If the thread was interrupted while waiting for the
+     *                                    fetches
+     * @throws OperationCanceledException If the sync was cancelled
+     */
+    List<LocationResult> sync(boolean skipIfNotModified, CancellationSignal cancellationSignal)
+            throws InterruptedException {
+        mRowsInserted = 0;
+        mRowsUpdated = 0;
+        mRowsDeleted = 0;
+        mReconcileNanos = 0;
+        List<String> locationSettings = getLocationSettings();
+
+        List<LocationResult> results =
+                fetchAll(locationSettings, skipIfNotModified, cancellationSignal);
+        try {
+            /* The last moment we can back out without leaving anything half done */
+            cancellationSignal.throwIfCanceled();
+            reconcile(results);
+
+            LocationResult preferredResult = results.get(0);
+            if (preferredResult.status == STATUS_PARSED) {
+                SunshinePreferences.setLocationDetails(mContext,
+                        preferredResult.cityCoord[0], preferredResult.cityCoord[1]);
+            }
+        } finally {
+            for (LocationResult result : results) {
+                if (result.forecast != null) {
+                    result.forecast.recycle();
+                    result.forecast = null;
+                }
+            }
+        }
+
+        return results;
+    }
+
+    /**
+     * @return The preferred location setting followed by every other stored location setting
+     */
+    private List<String> getLocationSettings() {
+        Set<String> locationSettings = new LinkedHashSet<>();
+        locationSettings.add(SunshinePreferences.getPreferredWeatherLocation(mContext));
+
+        Cursor cursor = mContext.getContentResolver().query(
+                WeatherContract.LocationEntry.CONTENT_URI,
+                new String[]{WeatherContract.LocationEntry.COLUMN_LOCATION_SETTING},
+                null,
+                null,
+                WeatherContract.LocationEntry._ID + " ASC");
+        if (cursor != null) {
+            try {
+                while (cursor.moveToNext()) {
+                    locationSettings.add(cursor.getString(0));
+                }
+            } finally {
+                cursor.close();
+            }
+        }
+
+        return new ArrayList<>(locationSettings);
+    }
+
+    /**
+     * Forgets every stored location other than the preferred one, along with its weather and
+     * its cached forecast response, so that later syncs stop fetching it.
+     *
+     * @return The number of locations forgotten
+     */
+    int pruneLocations() {
+        String preferredLocation = SunshinePreferences.getPreferredWeatherLocation(mContext);
+        String selection = WeatherContract.LocationEntry.COLUMN_LOCATION_SETTING + " != ?";
+        String[] selectionArgs = {preferredLocation};
+
+        List<String> prunedSettings = new ArrayList<>();
+        Cursor cursor = mContext.getContentResolver().query(
+                WeatherContract.LocationEntry.CONTENT_URI,
+                new String[]{WeatherContract.LocationEntry.COLUMN_LOCATION_SETTING},
+                selection,
+                selectionArgs,
+                null);
+        if (cursor != null) {
+            try {
+                while (cursor.moveToNext()) {
+                    prunedSettings.add(cursor.getString(0));
+                }
+            } finally {
+                cursor.close();
+            }
+        }
+        if (prunedSettings.isEmpty()) return 0;
+
+        int pruned = mContext.getContentResolver().delete(
+                WeatherContract.LocationEntry.CONTENT_URI, selection, selectionArgs);
+
+        for (String locationSetting : prunedSettings) {
+            mCache.remove(mUrlFactory.getUrl(locationSetting));
+        }
+        return pruned;
+    }
+
+    /**
+     * Fetches and parses every location on a pool of at most mMaxConcurrentFetches threads. The
+     * pool only lives as long as the sync does.
+     * <p>
+     * Cancelling the sync cancels every fetch: those still waiting for a thread never start,
+     * and those already running stop the next time they check the signal.
+     */
+    private List<LocationResult> fetchAll(List<String> locationSettings,
+            final boolean skipIfNotModified, final CancellationSignal cancellationSignal)
+            throws InterruptedException {
+        List<Callable<LocationResult>> tasks = new ArrayList<>(locationSettings.size());
+        for (final String locationSetting : locationSettings) {
+            /* URLs are built up front, so the pool's threads never read our preferences */
+            long buildUrlStart = System.nanoTime();
+            final URL url = mUrlFactory.getUrl(locationSetting);
+            final long buildUrlNanos = System.nanoTime() - buildUrlStart;
+            tasks.add(new Callable<LocationResult>() {
+                @Override
+                public LocationResult call() {
+                    LocationResult result = fetchLocation(locationSetting, url,
+                            skipIfNotModified, cancellationSignal);
+                    result.buildUrlNanos = buildUrlNanos;
+                    return result;
+                }
+            });
+        }
+
+        int threadCount = Math.max(1, Math.min(tasks.size(), mMaxConcurrentFetches));
+        ExecutorService executor = Executors.newFixedThreadPool(threadCount);
+        final List<Future<LocationResult>> futures = new ArrayList<>(tasks.size());
+        try {
+            for (Callable<LocationResult> task : tasks) {
+                futures.add(executor.submit(task));
+            }
+
+            /* Called straight away if the sync has already been cancelled */
+            cancellationSignal.setOnCancelListener(new CancellationSignal.OnCancelListener() {
+                @Override
+                public void onCancel() {
+                    for (Future<LocationResult> future : futures) {
+                        future.cancel(true);
+                    }
+                }
+            });
+
+            List<LocationResult> results = new ArrayList<>(tasks.size());
+            boolean collected = false;
+            try {
+                for (Future<LocationResult> future : futures) {
+                    try {
+                        results.add(future.get());
+                    } catch (CancellationException e) {
+                        throw new OperationCanceledException();
+                    } catch (ExecutionException e) {
+                        if (e.getCause() instanceof OperationCanceledException) {
+                            throw (OperationCanceledException) e.getCause();
+                        }
+                        /* fetchLocation catches every other Exception, so this is an Error */
+                        throw new FetchFailedException(e.getCause());
+                    }
+                }
+                collected = true;
+                return results;
+            } finally {
+                if (!collected) {
+                    recycleFinished(futures);
+                }
+            }
+        } finally {
+            cancellationSignal.setOnCancelListener(null);
+            executor.shutdownNow();
+        }
+    }
+
+    /**
+     * Hands back the batch of every fetch that has already finished, whether or not we got
+     * around to collecting its result. Fetches still running when the sync is abandoned are left
+     * to the garbage collector; the pool simply makes new batches in their place.
+     */
+    private static void recycleFinished(List<Future<LocationResult>> futures) {
+        for (Future<LocationResult> future : futures) {
+            if (!future.isDone() || future.isCancelled()) continue;
+
+            LocationResult result;
+            try {
+                /* Doesn't block, as the future is done */
+                result = future.get();
+            } catch (ExecutionException e) {
+                continue;
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                continue;
+            }
+            if (result.forecast != null) {
+                result.forecast.recycle();
+                result.forecast = null;
+            }
+        }
+    }
+
+    /**
+     * Thrown by {@link #sync} when fetching a location failed with an Error rather than an
+     * Exception. Unlike the IllegalStateException JsonReader throws for malformed JSON, this
+     * isn't a parse error; {@link SyncStatus#classify(Throwable)} counts it as an internal one.
+     */
+    static final class FetchFailedException extends RuntimeException {
+
+        FetchFailedException(Throwable cause) {
+            super(cause);
+        }
+    }
+
+    /**
+     * Fetches and parses a single location's forecast. Runs on one of the pool's threads.
+     *
+     * @throws OperationCanceledException If the sync was cancelled
+     */
+    private LocationResult fetchLocation(String locationSetting, URL url,
+            boolean skipIfNotModified, CancellationSignal cancellationSignal) {
+        LocationResult result = new LocationResult(locationSetting);
+        try {
+            cancellationSignal.throwIfCanceled();
+
+            /* A failed fetch is timed too; a server that times out is exactly what we look for */
+            long fetchStart = System.nanoTime();
+            ForecastResponseCache.Response response;
+            try {
+                response = mCache.fetch(url);
+            } finally {
+                result.fetchNanos = System.nanoTime() - fetchStart;
+            }
+
+            try {
+                /*
+                 * Our parsers date each day from today, so our database only holds exactly this
+                 * forecast if we last parsed it today. Past midnight, the same body has to be
+                 * parsed again to move every day to its new date.
+                 */
+                if (response.isNotModified() && skipIfNotModified
+                        && response.getCachedFirstDate()
+                        == SunshineDateUtils.getNormalizedUtcDateForToday()) {
+                    result.status = STATUS_NOT_MODIFIED;
+                    return result;
+                }
+
+                /* Whatever happens from here on, sync() recycles the batch */
+                result.forecast = ForecastBatch.obtain();
+
+                long parseStart = System.nanoTime();
+                result.serverErrorCode = OpenWeatherJsonUtils.parseForecastFromStream(
+                        new CancellableInputStream(response.getBody(), cancellationSignal),
+                        result.forecast, result.cityCoord);
+                result.parseNanos = System.nanoTime() - parseStart;
+                result.days = result.forecast.size();
+                if (result.days != 0) {
+                    result.lastDate = result.forecast.getDate(result.days - 1);
+                }
+                boolean parsed = result.serverErrorCode == HttpURLConnection.HTTP_OK;
+
+                /* Only a forecast we could use is worth caching and revalidating later */
+                if (parsed) {
+                    response.setSuccessful(result.days != 0 ? result.forecast.getDate(0)
+                            : ForecastResponseCache.UNKNOWN_DATE);
+                }
+                result.status = parsed && result.days != 0 ? STATUS_PARSED : STATUS_NO_FORECAST;
+            } finally {
+                /* This also disconnects from the server, should we have been cancelled */
+                response.close();
+                result.bytesDownloaded = response.getNetworkByteCount();
+            }
+        } catch (OperationCanceledException e) {
+            /* sync() never gets to see this result, so we recycle its batch ourselves */
+            if (result.forecast != null) {
+                result.forecast.recycle();
+            }
+            throw e;
+        } catch (Exception e) {
+            result.status = STATUS_FAILED;
+            result.error = e;
+        }
+        return result;
+    }
+
+    /**
+     * @return The number of rows of weather the last call to {@link #sync} inserted or updated.
+     * Rows deleted because their day has passed don't count.
+     */
+    int getChangedRowCount() {
+        return mRowsInserted + mRowsUpdated;
+    }
+
+    /**
+     * Adds what the last call to {@link #sync} did to our weather table, and how long that
+     * took, to the sync's metrics.
+     *
+     * @param record The metrics of the sync
+     */
+    void addReconcileMetrics(SyncMetrics.SyncRecord record) {
+        record.rowsInserted += mRowsInserted;
+        record.rowsUpdated += mRowsUpdated;
+        record.rowsDeleted += mRowsDeleted;
+        record.addStageNanos(SyncMetrics.STAGE_RECONCILE, mReconcileNanos);
+    }
+
+    /**
+     * Hands every parsed forecast to our ContentProvider to be reconciled in one transaction.
+     */
+    private void reconcile(List<LocationResult> results) {
+        List<LocationResult> parsedResults = new ArrayList<>(results.size());
+        for (LocationResult result : results) {
+            if (result.status == STATUS_PARSED) {
+                parsedResults.add(result);
+            }
+        }
+        if (parsedResults.isEmpty()) {
+            return;
+        }
+
+        String[] locationSettings = new String[parsedResults.size()];
+        ForecastBatch[] forecasts = new ForecastBatch[parsedResults.size()];
+        for (int i = 0; i < parsedResults.size(); i++) {
+            locationSettings[i] = parsedResults.get(i).locationSetting;
+            forecasts[i] = parsedResults.get(i).forecast;
+        }
+
+        /*
+         * Our ContentProvider runs in our own process, so the batches are handed over as they
+         * are rather than being copied through a Parcel.
+         */
+        Bundle extras = new Bundle();
+        extras.putStringArray(WeatherContract.WeatherEntry.EXTRA_LOCATION_SETTINGS,
+                locationSettings);
+        extras.putParcelableArray(WeatherContract.WeatherEntry.EXTRA_FORECAST_BATCHES, forecasts);
+
+        long reconcileStart = System.nanoTime();
+        Bundle result = mContext.getContentResolver().call(
+                WeatherContract.WeatherEntry.CONTENT_URI,
+                WeatherContract.WeatherEntry.METHOD_RECONCILE_LOCATIONS,
+                null,
+                extras);
+        mReconcileNanos = System.nanoTime() - reconcileStart;
+
+        if (result != null) {
+            mRowsInserted = result.getInt(WeatherContract.WeatherEntry.RESULT_ROWS_INSERTED);
+            mRowsUpdated = result.getInt(WeatherContract.WeatherEntry.RESULT_ROWS_UPDATED);
+            mRowsDeleted = result.getInt(WeatherContract.WeatherEntry.RESULT_ROWS_DELETED);
+            Log.d(TAG, String.format(Locale.US,
+                    "Reconciled %d locations in %.1f ms: %d inserted, %d updated, %d deleted",
+                    parsedResults.size(), mReconcileNanos / 1e6,
+                    mRowsInserted, mRowsUpdated, mRowsDeleted));
+        }
+    }
+
+    /**
+     * Checks whether the sync has been cancelled each time more of the response is read, so that
+     * the parser gives up on a cancelled sync in the middle of a forecast.
+     */
+    private static final class CancellableInputStream extends FilterInputStream {
+
+        private final CancellationSignal mCancellationSignal;
+
+        CancellableInputStream(InputStream in, CancellationSignal cancellationSignal) {
+            super(in);
+            mCancellationSignal = cancellationSignal;
+        }
+
+        @Override
+        public int read() throws IOException {
+            mCancellationSignal.throwIfCanceled();
+            return super.read();
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int count) throws IOException {
+            mCancellationSignal.throwIfCanceled();
+            return super.read(buffer, offset, count);
+        }
+    }
+
+    /**
+     * Fetches from the weather server. The preferred location is fetched by its coordinates
+     * once we know them, just like before we stored more than one location.
+     */
+    private static final class DefaultUrlFactory implements UrlFactory {
+
+        private final Context mContext;
+
+        DefaultUrlFactory(Context context) {
+            mContext = context;
+        }
+
+        @Override
+        public URL getUrl(String locationSetting) {
+            return NetworkUtils.getUrl(mContext, locationSetting);
+        }
+    }
+}
@@ -15,18 +15,64 @@
  */
 package com.example.android.sunshine.sync;
 
-import android.content.Context;
-import android.os.AsyncTask;
+import android.os.Process;
+import android.support.v4.os.CancellationSignal;
+import android.util.Log;
 
 import com.firebase.jobdispatcher.Job;
 import com.firebase.jobdispatcher.JobParameters;
 import com.firebase.jobdispatcher.JobService;
 import com.firebase.jobdispatcher.RetryStrategy;
 
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
 
 public class SunshineFirebaseJobService extends JobService {
 
-    private AsyncTask<Void, Void, Void> mFetchWeatherTask;
+    private static final String TAG = SunshineFirebaseJobService.class.getSimpleName();
+
+    /*
+     * Concurrent syncs are coalesced by SunshineSyncTask anyway, so one thread is all our jobs
+     * need. A job that arrives while the queue is full has nothing left to add, and is simply
+     * dropped.
+     */
+    private static final int SYNC_QUEUE_CAPACITY = 2;
+
+    /*
+     * Our jobs get a thread of their own, rather than sharing AsyncTask's serial executor with
+     * everything else in the app.
+     */
+    private static final ExecutorService sSyncExecutor = new ThreadPoolExecutor(
+            1, 1, 0L, TimeUnit.MILLISECONDS,
+            new ArrayBlockingQueue<Runnable>(SYNC_QUEUE_CAPACITY),
+            new ThreadFactory() {
+                @Override
+                public Thread newThread(final Runnable runnable) {
+                    return new Thread(new Runnable() {
+                        @Override
+                        public void run() {
+                            Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                            runnable.run();
+                        }
+                    }, "sunshine-sync");
+                }
+            });
+
+    /*
+     * The periodic job and the retry job run on this same service, possibly at the same time, so
+     * each running job is kept under its tag. Jobs are added on the main thread and removed on
+     * either the main thread or the sync thread.
+     */
+    private final ConcurrentMap<String, SyncJob> mSyncJobs = new ConcurrentHashMap<>();
 
     /**
      * The entry point to your Job. Implementations should offload work to another thread of
@@ -40,29 +86,27 @@ public class SunshineFirebaseJobService extends JobService {
      */
     @Override
     public boolean onStartJob(final JobParameters jobParameters) {
+        SyncJob syncJob = new SyncJob(jobParameters);
 
-        mFetchWeatherTask = new AsyncTask<Void, Void, Void>(){
-            @Override
-            protected Void doInBackground(Void... voids) {
-                Context context = getApplicationContext();
-                SunshineSyncTask.syncWeather(context);
-                jobFinished(jobParameters, false);
-                return null;
-            }
-
-            @Override
-            protected void onPostExecute(Void aVoid) {
-                jobFinished(jobParameters, false);
-            }
-        };
-
-        mFetchWeatherTask.execute();
+        /* Added before it's submitted, so that a job that finishes right away removes itself */
+        mSyncJobs.put(jobParameters.getTag(), syncJob);
+        try {
+            syncJob.mFuture = sSyncExecutor.submit(syncJob);
+        } catch (RejectedExecutionException e) {
+            mSyncJobs.remove(jobParameters.getTag(), syncJob);
+            Log.d(TAG, "Enough syncs are already queued; dropping this one");
+            return false;
+        }
         return true;
     }
 
     /**
      * Called when the scheduling engine has decided to interrupt the execution of a running job,
      * most likely because the runtime constraints associated with the job are no longer satisfied.
+     * <p>
+     * The sync is cancelled, so it stops using the network and the CPU right away. Returning
+     * from here is the only completion signal a stopped job gives; jobFinished is never called
+     * for it.
      *
      * @return whether the job should be retried
      * @see Job.Builder#setRetryStrategy(RetryStrategy)
@@ -70,9 +114,57 @@ public class SunshineFirebaseJobService extends JobService {
      */
     @Override
     public boolean onStopJob(JobParameters jobParameters) {
-        if (mFetchWeatherTask != null) {
-            mFetchWeatherTask.cancel(true);
+        SyncJob syncJob = mSyncJobs.remove(jobParameters.getTag());
+        if (syncJob == null || !syncJob.mFinished.compareAndSet(false, true)) {
+            /* The job already finished on its own, so there's nothing to retry */
+            return false;
         }
+
+        syncJob.mCancellationSignal.cancel();
+        /* A job that hasn't started yet never will */
+        syncJob.mFuture.cancel(false);
         return true;
     }
-}
\ No newline at end of file
+
+    /**
+     * One run of our job on the sync executor.
+     */
+    private final class SyncJob implements Runnable {
+
+        final JobParameters mJobParameters;
+        final CancellationSignal mCancellationSignal = new CancellationSignal();
+
+        /* Set by whichever of run and onStopJob gets to signal the job's completion */
+        final AtomicBoolean mFinished = new AtomicBoolean();
+
+        Future<?> mFuture;
+
+        SyncJob(JobParameters jobParameters) {
+            mJobParameters = jobParameters;
+        }
+
+        @Override
+        public void run() {
+            /* A periodic sync has nothing to do if the forecast hasn't changed */
+            int syncResult = SunshineSyncTask.syncWeather(getApplicationContext(), true,
+                    mCancellationSignal);
+
+            /*
+             * A failed retry asks to be rescheduled, so that the dispatcher backs it off as its
+             * retry strategy says. A failed periodic sync keeps its own schedule, and leaves
+             * retrying to a retry job.
+             */
+            boolean needsReschedule = false;
+            if (SunshineSyncUtils.SUNSHINE_SYNC_RETRY_TAG.equals(mJobParameters.getTag())) {
+                needsReschedule = SyncStatus.isRetryable(syncResult);
+            } else {
+                SunshineSyncUtils.updateRetrySync(getApplicationContext(), syncResult);
+            }
+
+            if (mFinished.compareAndSet(false, true)) {
+                mSyncJobs.remove(mJobParameters.getTag(), this);
+                jobFinished(mJobParameters, needsReschedule);
+            }
+        }
+    }
+}
@@ -24,13 +24,21 @@ import android.content.Intent;
  */
 public class SunshineSyncIntentService extends IntentService {
 
+    /* Forget every location other than the preferred one before syncing */
+    static final String ACTION_PRUNE_AND_SYNC =
+            "com.example.android.sunshine.sync.action.PRUNE_AND_SYNC";
+
     public SunshineSyncIntentService() {
         super("SunshineSyncIntentService");
     }
 
     @Override
     protected void onHandleIntent(Intent intent) {
-        SunshineSyncTask.syncWeather(this);
+        if (ACTION_PRUNE_AND_SYNC.equals(intent.getAction())) {
+            SunshineSyncTask.pruneLocations(this);
+        }
+        int syncResult = SunshineSyncTask.syncWeather(this, false);
+        SunshineSyncUtils.updateRetrySync(this, syncResult);
     }
 
 
@@ -15,102 +15,292 @@
  */
 package com.example.android.sunshine.sync;
 
-import android.content.ContentResolver;
-import android.content.ContentValues;
 import android.content.Context;
+import android.support.v4.os.CancellationSignal;
+import android.support.v4.os.OperationCanceledException;
 import android.text.format.DateUtils;
+import android.util.Log;
 
 import com.example.android.sunshine.data.SunshinePreferences;
-import com.example.android.sunshine.data.WeatherContract;
-import com.example.android.sunshine.utilities.NetworkUtils;
+import com.example.android.sunshine.utilities.ForecastResponseCache;
 import com.example.android.sunshine.utilities.NotificationUtils;
-import com.example.android.sunshine.utilities.OpenWeatherJsonUtils;
+import com.example.android.sunshine.utilities.SyncMetrics;
 
-import java.net.URL;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ExecutionException;
 
 public class SunshineSyncTask {
 
+    private static final String TAG = SunshineSyncTask.class.getSimpleName();
+
+    /*
+     * A request to sync the same location this soon after a sync has finished is answered with
+     * that sync's results instead of fetching the very same forecasts again.
+     */
+    private static final long SYNC_FRESHNESS_WINDOW_MILLIS = 5 * DateUtils.MINUTE_IN_MILLIS;
+
+    private static SyncCoordinator sCoordinator;
+
+    /* Where syncs fetch forecasts from, or null for the weather server */
+    private static ForecastSyncEngine.UrlFactory sUrlFactory;
+
     /**
-     * Performs the network request for updated weather, parses the JSON from that request, and
-     * inserts the new weather information into our ContentProvider. Will notify the user that new
-     * weather has been loaded if the user hasn't been notified of the weather within the last day
-     * AND they haven't disabled notifications in the preferences screen.
+     * Requests updated weather for the preferred location and every other location we've stored
+     * weather for. Any number of threads may call this at once: requests that arrive while a
+     * sync is in flight share its results rather than running syncs of their own, and requests
+     * that arrive shortly after a sync has finished are skipped. See {@link SyncCoordinator}.
+     * <p>
+     * Each request is made conditional on the last response we received for the same URL. If the
+     * server tells us a forecast hasn't changed and skipIfNotModified is true, there is nothing
+     * to parse or write for that location. Otherwise, an unchanged forecast is read back from the
+     * response cache instead of being downloaded again.
      *
-     * @param context Used to access utility methods and the ContentResolver
+     * @param context           Used to access utility methods and the ContentResolver
+     * @param skipIfNotModified true if a location may be skipped when its forecast hasn't
+     *                          changed since the last sync. Pass false when the database needs
+     *                          to be (re)populated no matter what, such as for an immediate sync.
+     * @return How the sync that satisfied this request went, as one of the RESULT_* constants in
+     * {@link SyncStatus}
      */
-    synchronized public static void syncWeather(Context context) {
+    public static int syncWeather(Context context, boolean skipIfNotModified) {
+        return syncWeather(context, skipIfNotModified, new CancellationSignal());
+    }
 
+    /**
+     * Same as {@link #syncWeather(Context, boolean)}, but may be cancelled. Once cancelled, this
+     * returns as soon as possible, and the sync stops fetching, parsing and writing weather once
+     * no other request is waiting on it.
+     *
+     * @param context            Used to access utility methods and the ContentResolver
+     * @param skipIfNotModified  true if a location may be skipped when its forecast hasn't
+     *                           changed since the last sync
+     * @param cancellationSignal Cancels the request
+     * @return How the sync that satisfied this request went, as one of the RESULT_* constants in
+     * {@link SyncStatus}
+     */
+    public static int syncWeather(Context context, boolean skipIfNotModified,
+            CancellationSignal cancellationSignal) {
+        SyncCoordinator coordinator = getCoordinator(context);
+
+        int result;
         try {
-            /*
-             * The getUrl method will return the URL that we need to get the forecast JSON for the
-             * weather. It will decide whether to create a URL based off of the latitude and
-             * longitude or off of a simple location as a String.
-             */
-            URL weatherRequestUrl = NetworkUtils.getUrl(context);
-
-            /* Use the URL to retrieve the JSON */
-            String jsonWeatherResponse = NetworkUtils.getResponseFromHttpUrl(weatherRequestUrl);
-
-            /* Parse the JSON into a list of weather values */
-            ContentValues[] weatherValues = OpenWeatherJsonUtils
-                    .getWeatherContentValuesFromJson(context, jsonWeatherResponse);
-
-            /*
-             * In cases where our JSON contained an error code, getWeatherContentValuesFromJson
-             * would have returned null. We need to check for those cases here to prevent any
-             * NullPointerExceptions being thrown. We also have no reason to insert fresh data if
-             * there isn't any to insert.
-             */
-            if (weatherValues != null && weatherValues.length != 0) {
-                /* Get a handle on the ContentResolver to delete and insert data */
-                ContentResolver sunshineContentResolver = context.getContentResolver();
-
-                /* Delete old weather data because we don't need to keep multiple days' data */
-                sunshineContentResolver.delete(
-                        WeatherContract.WeatherEntry.CONTENT_URI,
-                        null,
-                        null);
-
-                /* Insert our new weather data into Sunshine's ContentProvider */
-                sunshineContentResolver.bulkInsert(
-                        WeatherContract.WeatherEntry.CONTENT_URI,
-                        weatherValues);
-
-                /*
-                 * Finally, after we insert data into the ContentProvider, determine whether or not
-                 * we should notify the user that the weather has been refreshed.
-                 */
-                boolean notificationsEnabled = SunshinePreferences.areNotificationsEnabled(context);
-
-                /*
-                 * If the last notification was shown was more than 1 day ago, we want to send
-                 * another notification to the user that the weather has been updated. Remember,
-                 * it's important that you shouldn't spam your users with notifications.
-                 */
-                long timeSinceLastNotification = SunshinePreferences
-                        .getEllapsedTimeSinceLastNotification(context);
-
-                boolean oneDayPassedSinceLastNotification = false;
-
-                if (timeSinceLastNotification >= DateUtils.DAY_IN_MILLIS) {
-                    oneDayPassedSinceLastNotification = true;
-                }
+            result = SyncStatus.classify(coordinator.requestSync(
+                    SunshinePreferences.getPreferredWeatherLocation(context),
+                    skipIfNotModified, cancellationSignal));
+        } catch (OperationCanceledException e) {
+            Log.d(TAG, "Sync request cancelled");
+            result = SyncStatus.RESULT_CANCELLED;
+        } catch (InterruptedException e) {
+            Log.d(TAG, "Sync request interrupted");
+            Thread.currentThread().interrupt();
+            result = SyncStatus.RESULT_CANCELLED;
+        } catch (ExecutionException e) {
+            Log.w(TAG, "Sync failed", e.getCause());
+            result = SyncStatus.classify(e.getCause());
+        }
+
+        Log.d(TAG, "Sync request finished with " + SyncStatus.getResultName(result) + ". "
+                + "Sync requests: " + coordinator.getExecutedCount() + " executed, "
+                + coordinator.getCoalescedCount() + " coalesced, "
+                + coordinator.getSkippedCount() + " skipped");
+        return result;
+    }
 
-                /*
-                 * We only want to show the notification if the user wants them shown and we
-                 * haven't shown a notification in the past day.
-                 */
-                if (notificationsEnabled && oneDayPassedSinceLastNotification) {
-                    NotificationUtils.notifyUserOfNewWeather(context);
+    /**
+     * @param context Used to access the application Context
+     * @return The coordinator every sync request in our process goes through
+     */
+    static synchronized SyncCoordinator getCoordinator(Context context) {
+        if (sCoordinator == null) {
+            final Context applicationContext = context.getApplicationContext();
+            sCoordinator = new SyncCoordinator(new SyncCoordinator.SyncRunner() {
+                @Override
+                public List<ForecastSyncEngine.LocationResult> runSync(boolean skipIfNotModified,
+                        CancellationSignal cancellationSignal) throws InterruptedException {
+                    return performSync(applicationContext, skipIfNotModified, cancellationSignal);
                 }
+            }, SYNC_FRESHNESS_WINDOW_MILLIS);
+        }
+        return sCoordinator;
+    }
 
-            /* If the code reaches this point, we have successfully performed our sync */
+    /**
+     * Points every sync that starts from now on at another server. Tests use this to run the
+     * whole sync against a local server. The last sync is forgotten as well, so the next request
+     * always runs a sync of its own instead of sharing that one's results.
+     *
+     * @param urlFactory Builds the URL of each location's forecast, or null to go back to the
+     *                   weather server
+     */
+    static synchronized void setUrlFactory(ForecastSyncEngine.UrlFactory urlFactory) {
+        sUrlFactory = urlFactory;
+        sCoordinator = null;
+    }
+
+    /**
+     * Forgets every stored location other than the preferred one, along with its weather and
+     * cached forecast, so that syncs don't keep fetching locations the user has moved away from.
+     * Performs disk I/O, so it must not be called on the main thread.
+     *
+     * @param context Used to access preferences, the response cache and the ContentResolver
+     */
+    public static void pruneLocations(Context context) {
+        int pruned = createEngine(context).pruneLocations();
+        Log.d(TAG, "Pruned " + pruned + " locations other than the preferred one");
+    }
+
+    private static synchronized ForecastSyncEngine createEngine(Context context) {
+        if (sUrlFactory == null) {
+            return new ForecastSyncEngine(context);
+        }
+        return new ForecastSyncEngine(context, ForecastResponseCache.getInstance(context),
+                sUrlFactory, ForecastSyncEngine.MAX_CONCURRENT_FETCHES);
+    }
+
+    /**
+     * Performs the network requests for updated weather, parses the JSON from those requests,
+     * and reconciles the new weather information with what is stored in our ContentProvider.
+     * Will notify the user that new weather has been loaded if the user hasn't been notified of
+     * the weather within the last day AND they haven't disabled notifications in the preferences
+     * screen.
+     * <p>
+     * The locations are fetched and parsed concurrently by a {@link ForecastSyncEngine}, and
+     * then reconciled together in a single transaction. Whether that changed any weather is
+     * recorded in the {@link SyncSchedule}, which decides when the next periodic sync runs. How
+     * the sync went is recorded in {@link SyncStatus}, and where its time went in
+     * {@link SyncMetrics}.
+     *
+     * @param context            Used to access utility methods and the ContentResolver
+     * @param skipIfNotModified  true if a location may be skipped when its forecast hasn't
+     *                           changed since the last sync
+     * @param cancellationSignal Cancels the sync
+     * @return The result of each location, the preferred location first
+     * @throws InterruptedException       If the sync was interrupted
+     * @throws OperationCanceledException If the sync was cancelled
+     */
+    private static List<ForecastSyncEngine.LocationResult> performSync(Context context,
+            boolean skipIfNotModified, CancellationSignal cancellationSignal)
+            throws InterruptedException {
+        SyncMetrics.SyncRecord metrics = new SyncMetrics.SyncRecord();
+        metrics.startTimeMillis = System.currentTimeMillis();
+        long syncStart = System.nanoTime();
 
-            }
+        ForecastSyncEngine engine = createEngine(context);
+        List<ForecastSyncEngine.LocationResult> results;
+        try {
+            results = engine.sync(skipIfNotModified, cancellationSignal);
+        } catch (OperationCanceledException e) {
+            /* A cancelled sync tells us nothing about the server */
+            throw e;
+        } catch (RuntimeException e) {
+            SyncStatus.recordFailure(context, e);
+
+            engine.addReconcileMetrics(metrics);
+            metrics.result = SyncStatus.getResultName(SyncStatus.classify(e));
+            metrics.durationNanos = System.nanoTime() - syncStart;
+            SyncMetrics.getInstance().record(metrics);
+            throw e;
+        }
+        SyncStatus.recordSync(context, results);
+        SyncFreshness.recordSync(context, results);
+
+        for (ForecastSyncEngine.LocationResult result : results) {
+            logResult(result);
+            addLocationMetrics(metrics, result);
+        }
+        engine.addReconcileMetrics(metrics);
+
+        /* Our notification only ever shows the weather for the preferred location */
+        int preferredStatus = results.get(0).status;
+        if (preferredStatus == ForecastSyncEngine.STATUS_PARSED) {
+            long notifyStart = System.nanoTime();
+            notifyIfNeeded(context);
+            metrics.addStageNanos(SyncMetrics.STAGE_NOTIFY,
+                    System.nanoTime() - notifyStart);
+        }
+
+        metrics.result = SyncStatus.getResultName(SyncStatus.classify(results));
+        metrics.durationNanos = System.nanoTime() - syncStart;
+        SyncMetrics.getInstance().record(metrics);
+
+        /*
+         * A sync that failed tells us nothing about how often the forecast changes. Otherwise,
+         * let the schedule know whether this one changed anything, and move the periodic sync
+         * if it should now run at a different interval.
+         */
+        if (preferredStatus != ForecastSyncEngine.STATUS_FAILED) {
+            SyncSchedule.recordSync(context, engine.getChangedRowCount() > 0);
+            SunshineSyncUtils.rescheduleIfNeeded(context);
+        }
+
+        return results;
+    }
+
+    /**
+     * Logs how syncing a location went, and how long fetching and parsing it took.
+     *
+     * @param result The result of syncing one location
+     */
+    private static void logResult(ForecastSyncEngine.LocationResult result) {
+        if (result.status == ForecastSyncEngine.STATUS_FAILED) {
+            Log.w(TAG, "Failed to sync " + result.locationSetting, result.error);
+            return;
+        }
+
+        Log.d(TAG, String.format(Locale.US,
+                "Synced %s (status %d, %d days): fetch %.1f ms, parse %.1f ms",
+                result.locationSetting, result.status, result.days,
+                result.fetchNanos / 1e6, result.parseNanos / 1e6));
+    }
+
+    /**
+     * Adds how syncing a location went to the sync's metrics.
+     *
+     * @param metrics The metrics of the sync
+     * @param result  The result of syncing one location
+     */
+    private static void addLocationMetrics(SyncMetrics.SyncRecord metrics,
+            ForecastSyncEngine.LocationResult result) {
+        metrics.locationCount++;
+        if (SyncStatus.classify(result) != SyncStatus.RESULT_SUCCESS) {
+            metrics.failedLocationCount++;
+        }
+        metrics.bytesDownloaded += result.bytesDownloaded;
+        metrics.addStageNanos(SyncMetrics.STAGE_BUILD_URL, result.buildUrlNanos);
+        metrics.addStageNanos(SyncMetrics.STAGE_FETCH, result.fetchNanos);
+        metrics.addStageNanos(SyncMetrics.STAGE_PARSE, result.parseNanos);
+    }
+
+    /**
+     * Determines whether or not we should notify the user that the weather has been refreshed,
+     * and does so if we should.
+     *
+     * @param context Used to access preferences and show the notification
+     */
+    private static void notifyIfNeeded(Context context) {
+        boolean notificationsEnabled = SunshinePreferences.areNotificationsEnabled(context);
+
+        /*
+         * If the last notification was shown was more than 1 day ago, we want to send
+         * another notification to the user that the weather has been updated. Remember,
+         * it's important that you shouldn't spam your users with notifications.
+         */
+        long timeSinceLastNotification = SunshinePreferences
+                .getEllapsedTimeSinceLastNotification(context);
+
+        boolean oneDayPassedSinceLastNotification = false;
+
+        if (timeSinceLastNotification >= DateUtils.DAY_IN_MILLIS) {
+            oneDayPassedSinceLastNotification = true;
+        }
 
-        } catch (Exception e) {
-            /* Server probably invalid */
-            e.printStackTrace();
+        /*
+         * We only want to show the notification if the user wants them shown and we
+         * haven't shown a notification in the past day.
+         */
+        if (notificationsEnabled && oneDayPassedSinceLastNotification) {
+            NotificationUtils.notifyUserOfNewWeather(context);
         }
     }
 }
\ No newline at end of file
@@ -17,34 +17,49 @@ package com.example.android.sunshine.sync;
 
 import android.content.Context;
 import android.content.Intent;
-import android.database.Cursor;
-import android.net.Uri;
 import android.support.annotation.NonNull;
 
-import com.example.android.sunshine.data.WeatherContract;
 import com.firebase.jobdispatcher.Constraint;
 import com.firebase.jobdispatcher.Driver;
 import com.firebase.jobdispatcher.FirebaseJobDispatcher;
 import com.firebase.jobdispatcher.GooglePlayDriver;
 import com.firebase.jobdispatcher.Job;
 import com.firebase.jobdispatcher.Lifetime;
+import com.firebase.jobdispatcher.RetryStrategy;
 import com.firebase.jobdispatcher.Trigger;
 
+import java.util.Random;
 import java.util.concurrent.TimeUnit;
 
 public class SunshineSyncUtils {
 
     /*
-     * Interval at which to sync with the weather. Use TimeUnit for convenience, rather than
-     * writing out a bunch of multiplication ourselves and risk making a silly mistake.
+     * The periodic sync runs somewhere between its interval and a third of that interval later.
+     * The interval itself is worked out by SyncSchedule, from how often recent syncs changed the
+     * weather we have stored.
      */
-    private static final int SYNC_INTERVAL_HOURS = 3;
-    private static final int SYNC_INTERVAL_SECONDS = (int) TimeUnit.HOURS.toSeconds(SYNC_INTERVAL_HOURS);
-    private static final int SYNC_FLEXTIME_SECONDS = SYNC_INTERVAL_SECONDS / 3;
+    private static final int SYNC_FLEXTIME_DIVISOR = 3;
+
+    /*
+     * The periodic sync is only rescheduled once its interval has moved by at least this much,
+     * so that small changes in the change rate don't replace the job after every sync.
+     */
+    private static final int SYNC_RESCHEDULE_THRESHOLD_SECONDS =
+            (int) TimeUnit.MINUTES.toSeconds(15);
+
+    /*
+     * A sync that fails for a reason that may pass is retried by a one-off job, first after one
+     * to two minutes and then with exponential backoff up to an hour. The initial backoff is
+     * jittered, so that devices that failed at the same moment, such as when the weather server
+     * went down, don't all come back to it at the same moment either.
+     */
+    private static final int RETRY_INITIAL_BACKOFF_SECONDS = (int) TimeUnit.MINUTES.toSeconds(1);
+    private static final int RETRY_MAXIMUM_BACKOFF_SECONDS = (int) TimeUnit.HOURS.toSeconds(1);
 
     private static boolean sInitialized;
 
     private static final String SUNSHINE_SYNC_TAG = "sunshine-sync";
+    static final String SUNSHINE_SYNC_RETRY_TAG = "sunshine-sync-retry";
 
     /**
      * Schedules a repeating sync of Sunshine's weather data using FirebaseJobDispatcher.
@@ -53,6 +68,9 @@ public class SunshineSyncUtils {
      */
     static void scheduleFirebaseJobDispatcherSync(@NonNull final Context context) {
 
+        int syncIntervalSeconds = SyncSchedule.getSyncIntervalSeconds(context);
+        int syncFlextimeSeconds = syncIntervalSeconds / SYNC_FLEXTIME_DIVISOR;
+
         Driver driver = new GooglePlayDriver(context);
         FirebaseJobDispatcher dispatcher = new FirebaseJobDispatcher(driver);
 
@@ -79,15 +97,16 @@ public class SunshineSyncUtils {
                  */
                 .setRecurring(true)
                 /*
-                 * We want the weather data to be synced every 3 to 4 hours. The first argument for
+                 * We want the weather data to be synced every so often, from every hour when the
+                 * forecast keeps changing to every 12 hours when it doesn't. The first argument for
                  * Trigger's static executionWindow method is the start of the time frame when the
                  * sync should be performed. The second argument is the latest point in time at
                  * which the data should be synced. Please note that this end time is not
                  * guaranteed, but is more of a guideline for FirebaseJobDispatcher to go off of.
                  */
                 .setTrigger(Trigger.executionWindow(
-                        SYNC_INTERVAL_SECONDS,
-                        SYNC_INTERVAL_SECONDS + SYNC_FLEXTIME_SECONDS))
+                        syncIntervalSeconds,
+                        syncIntervalSeconds + syncFlextimeSeconds))
                 /*
                  * If a Job with the tag with provided already exists, this new job will replace
                  * the old one.
@@ -97,14 +116,85 @@ public class SunshineSyncUtils {
                 .build();
 
         /* Schedule the Job with the dispatcher */
-        dispatcher.schedule(syncSunshineJob);
+        if (dispatcher.schedule(syncSunshineJob) == FirebaseJobDispatcher.SCHEDULE_RESULT_SUCCESS) {
+            SyncSchedule.saveScheduledIntervalSeconds(context, syncIntervalSeconds);
+        }
+    }
+
+    /**
+     * Schedules a one-off sync to retry a sync that failed for a reason that may pass, and
+     * cancels it once a sync has succeeded. Syncs that failed for any other reason are left to
+     * the next periodic sync. The retry job itself doesn't go through here: it asks
+     * FirebaseJobDispatcher to reschedule it, with backoff, for as long as it keeps failing.
+     *
+     * @param context    Context used to create the GooglePlayDriver that powers the
+     *                   FirebaseJobDispatcher
+     * @param syncResult How the sync went, as one of the RESULT_* constants in
+     *                   {@link SyncStatus}
+     */
+    static void updateRetrySync(@NonNull final Context context, int syncResult) {
+        FirebaseJobDispatcher dispatcher = new FirebaseJobDispatcher(new GooglePlayDriver(context));
+
+        if (syncResult == SyncStatus.RESULT_SUCCESS) {
+            dispatcher.cancel(SUNSHINE_SYNC_RETRY_TAG);
+        } else if (SyncStatus.isRetryable(syncResult)) {
+            int initialBackoffSeconds = getJitteredBackoffSeconds(new Random());
+
+            Job retryJob = dispatcher.newJobBuilder()
+                    .setService(SunshineFirebaseJobService.class)
+                    .setTag(SUNSHINE_SYNC_RETRY_TAG)
+                    .setConstraints(Constraint.ON_ANY_NETWORK)
+                    /* There's no point retrying after a reboot; the periodic sync has us covered */
+                    .setLifetime(Lifetime.UNTIL_NEXT_BOOT)
+                    .setRecurring(false)
+                    .setTrigger(Trigger.executionWindow(
+                            initialBackoffSeconds,
+                            initialBackoffSeconds + RETRY_INITIAL_BACKOFF_SECONDS))
+                    .setRetryStrategy(dispatcher.newRetryStrategy(
+                            RetryStrategy.RETRY_POLICY_EXPONENTIAL,
+                            initialBackoffSeconds,
+                            RETRY_MAXIMUM_BACKOFF_SECONDS))
+                    /*
+                     * A retry that is already waiting to run keeps its place and its backoff,
+                     * rather than starting over every time another sync fails.
+                     */
+                    .setReplaceCurrent(false)
+                    .build();
+
+            dispatcher.schedule(retryJob);
+        }
+    }
+
+    /**
+     * @param random Source of the jitter
+     * @return An initial backoff between one and two times RETRY_INITIAL_BACKOFF_SECONDS
+     */
+    static int getJitteredBackoffSeconds(Random random) {
+        return RETRY_INITIAL_BACKOFF_SECONDS + random.nextInt(RETRY_INITIAL_BACKOFF_SECONDS + 1);
+    }
+
+    /**
+     * Schedules the repeating sync again if the interval SyncSchedule now asks for is far
+     * enough from the one it was last scheduled with. Called after each sync, once the sync has
+     * been recorded.
+     *
+     * @param context Context used to access SharedPreferences and schedule the sync
+     */
+    static void rescheduleIfNeeded(@NonNull final Context context) {
+        int scheduledIntervalSeconds = SyncSchedule.getScheduledIntervalSeconds(context);
+        int syncIntervalSeconds = SyncSchedule.getSyncIntervalSeconds(context);
+
+        if (Math.abs(syncIntervalSeconds - scheduledIntervalSeconds)
+                >= SYNC_RESCHEDULE_THRESHOLD_SECONDS) {
+            scheduleFirebaseJobDispatcherSync(context);
+        }
     }
     /**
      * Creates periodic sync tasks and checks to see if an immediate sync is required. If an
      * immediate sync is required, this method will take care of making sure that sync occurs.
      *
-     * @param context Context that will be passed to other methods and used to access the
-     *                ContentResolver
+     * @param context Context that will be passed to other methods and used to access
+     *                SharedPreferences
      */
     synchronized public static void initialize(@NonNull final Context context) {
 
@@ -123,60 +213,14 @@ public class SunshineSyncUtils {
         scheduleFirebaseJobDispatcherSync(context);
 
         /*
-         * We need to check to see if our ContentProvider has data to display in our forecast
-         * list. However, performing a query on the main thread is a bad idea as this may
-         * cause our UI to lag. Therefore, we create a thread in which we will run the query
-         * to check the contents of our ContentProvider.
+         * We need to check to see if we have weather to display in our forecast list. Rather
+         * than querying our ContentProvider on the way to the first frame, we ask the freshness
+         * index that every sync keeps up to date. That's only a few preferences, which the
+         * activity reads on startup anyway.
          */
-        Thread checkForEmpty = new Thread(new Runnable() {
-            @Override
-            public void run() {
-
-                /* URI for every row of weather data in our weather table*/
-                Uri forecastQueryUri = WeatherContract.WeatherEntry.CONTENT_URI;
-
-                /*
-                 * Since this query is going to be used only as a check to see if we have any
-                 * data (rather than to display data), we just need to PROJECT the ID of each
-                 * row. In our queries where we display data, we need to PROJECT more columns
-                 * to determine what weather details need to be displayed.
-                 */
-                String[] projectionColumns = {WeatherContract.WeatherEntry._ID};
-                String selectionStatement = WeatherContract.WeatherEntry
-                        .getSqlSelectForTodayOnwards();
-
-                /* Here, we perform the query to check to see if we have any weather data */
-                Cursor cursor = context.getContentResolver().query(
-                        forecastQueryUri,
-                        projectionColumns,
-                        selectionStatement,
-                        null,
-                        null);
-                /*
-                 * A Cursor object can be null for various different reasons. A few are
-                 * listed below.
-                 *
-                 *   1) Invalid URI
-                 *   2) A certain ContentProvider's query method returns null
-                 *   3) A RemoteException was thrown.
-                 *
-                 * Bottom line, it is generally a good idea to check if a Cursor returned
-                 * from a ContentResolver is null.
-                 *
-                 * If the Cursor was null OR if it was empty, we need to sync immediately to
-                 * be able to display data to the user.
-                 */
-                if (null == cursor || cursor.getCount() == 0) {
-                    startImmediateSync(context);
-                }
-
-                /* Make sure to close the Cursor to avoid memory leaks! */
-                cursor.close();
-            }
-        });
-
-        /* Finally, once the thread is prepared, fire it off to perform our checks. */
-        checkForEmpty.start();
+        if (SyncFreshness.isImmediateSyncNeeded(context)) {
+            startImmediateSync(context);
+        }
     }
 
     /**
@@ -189,4 +233,18 @@ public class SunshineSyncUtils {
         Intent intentToSyncImmediately = new Intent(context, SunshineSyncIntentService.class);
         context.startService(intentToSyncImmediately);
     }
-}
\ No newline at end of file
+
+    /**
+     * Same as {@link #startImmediateSync(Context)}, for when the user has picked another
+     * location. Every stored location other than the new preferred one is forgotten first, along
+     * with its weather and cached forecast, so that syncs only ever fetch the location the user
+     * has actually chosen.
+     *
+     * @param context The Context used to start the IntentService for the sync.
+     */
+    public static void startLocationChangedSync(@NonNull final Context context) {
+        Intent intentToSyncImmediately = new Intent(context, SunshineSyncIntentService.class);
+        intentToSyncImmediately.setAction(SunshineSyncIntentService.ACTION_PRUNE_AND_SYNC);
+        context.startService(intentToSyncImmediately);
+    }
+}
@@ -0,0 +1,306 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.sync;
+
+import android.os.SystemClock;
+import android.support.v4.os.CancellationSignal;
+import android.support.v4.os.OperationCanceledException;
+
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+
+/**
+ * Decides whether a request to sync the weather actually needs a sync of its own.
+ * <p>
+ * The periodic job, the immediate sync and the settings screen can all ask for a sync at about
+ * the same time. Instead of making each caller wait for the one before it and then fetch the
+ * very same forecasts again, a request:
+ * <p>
+ *   - is skipped if a sync for the same preferred location finished within the freshness
+ *     window, and gets that sync's results, as long as that sync satisfies the request;
+ * <p>
+ *   - is coalesced with the sync already in flight, if there is one that satisfies it, and
+ *     gets the same results as everyone else waiting on that sync;
+ * <p>
+ *   - otherwise runs a sync on the calling thread.
+ * <p>
+ * A sync, in flight or finished, satisfies a request if it is for the same preferred location,
+ * and if it didn't skip unchanged forecasts when the request asked us not to. A request that isn't
+ * satisfied waits for the sync in flight to finish, then tries again.
+ * <p>
+ * Each request can be cancelled on its own. A cancelled request stops waiting straight away,
+ * unless it is the one running the sync that others are waiting on. A sync is only cancelled
+ * once every request waiting on it has been.
+ */
+class SyncCoordinator {
+
+    /**
+     * Runs a sync. Called on the thread of the request that starts the sync.
+     */
+    interface SyncRunner {
+        List<ForecastSyncEngine.LocationResult> runSync(boolean skipIfNotModified,
+                CancellationSignal cancellationSignal) throws Exception;
+    }
+
+    private final SyncRunner mRunner;
+    private final long mFreshnessWindowMillis;
+
+    /* Guards every field below */
+    private final Object mLock = new Object();
+
+    private InFlightSync mInFlightSync;
+
+    /* The last sync whose preferred location was synced successfully */
+    private String mLastLocationSetting;
+    private boolean mLastSkipAllowed;
+    private long mLastFinishedMillis;
+    private List<ForecastSyncEngine.LocationResult> mLastResults;
+
+    private long mExecutedCount;
+    private long mCoalescedCount;
+    private long mSkippedCount;
+
+    /**
+     * @param runner                Runs the syncs that are actually needed
+     * @param freshnessWindowMillis How long after a sync finishes that requests for the same
+     *                              preferred location are skipped. Pass 0 to never skip.
+     */
+    SyncCoordinator(SyncRunner runner, long freshnessWindowMillis) {
+        mRunner = runner;
+        mFreshnessWindowMillis = freshnessWindowMillis;
+    }
+
+    /**
+     * Requests a sync, and blocks until a sync that satisfies the request has finished.
+     *
+     * @param locationSetting    The preferred location at the time of the request
+     * @param skipIfNotModified  true if the sync may skip forecasts that haven't changed
+     * @param cancellationSignal Cancels the request
+     * @return The results of the sync that satisfied this request. These are shared with every
+     * other request that sync satisfied, so they must not be modified.
+     * @throws ExecutionException         If the sync that would have satisfied this request
+     *                                    failed
+     * @throws InterruptedException       If the thread was interrupted while waiting for a sync
+     * @throws OperationCanceledException If the request was cancelled
+     */
+    List<ForecastSyncEngine.LocationResult> requestSync(String locationSetting,
+            boolean skipIfNotModified, CancellationSignal cancellationSignal)
+            throws ExecutionException, InterruptedException {
+        while (true) {
+            cancellationSignal.throwIfCanceled();
+
+            final InFlightSync sync;
+            boolean started = false;
+            boolean coalesced = false;
+
+            synchronized (mLock) {
+                if (mInFlightSync == null) {
+                    if (isFresh(locationSetting, skipIfNotModified)) {
+                        mSkippedCount++;
+                        return mLastResults;
+                    }
+
+                    mInFlightSync = new InFlightSync(locationSetting, skipIfNotModified);
+                    mExecutedCount++;
+                    started = true;
+                } else if (mInFlightSync.satisfies(locationSetting, skipIfNotModified)) {
+                    mCoalescedCount++;
+                    coalesced = true;
+                }
+
+                sync = mInFlightSync;
+                if (started || coalesced) {
+                    sync.mWaiterCount++;
+                }
+            }
+
+            final boolean waiting = started || coalesced;
+            cancellationSignal.setOnCancelListener(new CancellationSignal.OnCancelListener() {
+                @Override
+                public void onCancel() {
+                    if (waiting) {
+                        stopWaiting(sync);
+                    }
+                    sync.wakeWaiters();
+                }
+            });
+            try {
+                if (started) {
+                    run(sync);
+                } else {
+                    sync.awaitFinished(cancellationSignal);
+                }
+            } finally {
+                cancellationSignal.setOnCancelListener(null);
+            }
+
+            cancellationSignal.throwIfCanceled();
+            if (waiting) {
+                return sync.getResults();
+            }
+
+            /* The sync we waited for didn't satisfy us; try again now that it's done */
+        }
+    }
+
+    /**
+     * Called when a request waiting on the sync is cancelled. Cancels the sync if nobody is
+     * waiting on it any more.
+     */
+    private void stopWaiting(InFlightSync sync) {
+        boolean abandoned;
+        synchronized (mLock) {
+            abandoned = --sync.mWaiterCount == 0;
+        }
+        if (abandoned) {
+            sync.cancellationSignal.cancel();
+        }
+    }
+
+    /**
+     * Runs a sync we started, and hands its results to everyone waiting on it.
+     */
+    private void run(InFlightSync sync) {
+        List<ForecastSyncEngine.LocationResult> results = null;
+        Exception error = null;
+        try {
+            results = mRunner.runSync(sync.skipIfNotModified, sync.cancellationSignal);
+        } catch (Exception e) {
+            error = e;
+        } finally {
+            synchronized (mLock) {
+                if (error == null && isSuccessful(results)) {
+                    mLastLocationSetting = sync.locationSetting;
+                    mLastSkipAllowed = sync.skipIfNotModified;
+                    mLastFinishedMillis = SystemClock.elapsedRealtime();
+                    mLastResults = results;
+                }
+                mInFlightSync = null;
+            }
+            sync.finish(results, error);
+        }
+    }
+
+    /**
+     * A sync only counts as fresh if we managed to sync the preferred location. Otherwise, the
+     * next request tries again straight away.
+     */
+    private static boolean isSuccessful(List<ForecastSyncEngine.LocationResult> results) {
+        return results != null && !results.isEmpty()
+                && results.get(0).status != ForecastSyncEngine.STATUS_FAILED;
+    }
+
+    /*
+     * Must be called while holding mLock. Like InFlightSync#satisfies, a sync that skipped
+     * unchanged forecasts doesn't stand in for a request that asked us not to skip them.
+     */
+    private boolean isFresh(String locationSetting, boolean skipIfNotModified) {
+        return mLastResults != null
+                && locationSetting.equals(mLastLocationSetting)
+                && (skipIfNotModified || !mLastSkipAllowed)
+                && SystemClock.elapsedRealtime() - mLastFinishedMillis < mFreshnessWindowMillis;
+    }
+
+    /**
+     * @return The number of requests that ran a sync of their own
+     */
+    long getExecutedCount() {
+        synchronized (mLock) {
+            return mExecutedCount;
+        }
+    }
+
+    /**
+     * @return The number of requests that shared the results of a sync already in flight
+     */
+    long getCoalescedCount() {
+        synchronized (mLock) {
+            return mCoalescedCount;
+        }
+    }
+
+    /**
+     * @return The number of requests that were skipped because the last sync was still fresh
+     */
+    long getSkippedCount() {
+        synchronized (mLock) {
+            return mSkippedCount;
+        }
+    }
+
+    /**
+     * A sync that has been started, and that any number of requests may be waiting on.
+     */
+    private static final class InFlightSync {
+
+        final String locationSetting;
+        final boolean skipIfNotModified;
+
+        /* Cancelled once every request waiting on this sync has been cancelled */
+        final CancellationSignal cancellationSignal = new CancellationSignal();
+
+        /* Number of requests waiting on this sync, guarded by the coordinator's mLock */
+        int mWaiterCount;
+
+        /* Guarded by this */
+        private boolean mFinished;
+        private List<ForecastSyncEngine.LocationResult> mResults;
+        private Exception mError;
+
+        InFlightSync(String locationSetting, boolean skipIfNotModified) {
+            this.locationSetting = locationSetting;
+            this.skipIfNotModified = skipIfNotModified;
+        }
+
+        /* Must be called while holding the coordinator's mLock */
+        boolean satisfies(String locationSetting, boolean skipIfNotModified) {
+            return mWaiterCount > 0
+                    && this.locationSetting.equals(locationSetting)
+                    && (skipIfNotModified || !this.skipIfNotModified);
+        }
+
+        synchronized void finish(List<ForecastSyncEngine.LocationResult> results,
+                Exception error) {
+            mResults = results;
+            mError = error;
+            mFinished = true;
+            notifyAll();
+        }
+
+        synchronized void wakeWaiters() {
+            notifyAll();
+        }
+
+        /**
+         * Blocks until the sync has finished or the request has been cancelled.
+         */
+        synchronized void awaitFinished(CancellationSignal cancellationSignal)
+                throws InterruptedException {
+            while (!mFinished && !cancellationSignal.isCanceled()) {
+                wait();
+            }
+        }
+
+        /* Only call once the sync has finished */
+        synchronized List<ForecastSyncEngine.LocationResult> getResults()
+                throws ExecutionException {
+            if (mError != null) {
+                throw new ExecutionException(mError);
+            }
+            return mResults;
+        }
+    }
+}
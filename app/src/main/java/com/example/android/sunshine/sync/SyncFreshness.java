@@ -0,0 +1,123 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.sync;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.preference.PreferenceManager;
+import android.text.format.DateUtils;
+
+import com.example.android.sunshine.data.SunshinePreferences;
+import com.example.android.sunshine.utilities.SunshineDateUtils;
+
+import java.util.List;
+
+/**
+ * Remembers which location the weather we have stored is for, and up to which day it reaches.
+ * This lets us decide whether the app needs an immediate sync when it starts by reading a few
+ * preferences, rather than querying our database on the way to the first frame.
+ * <p>
+ * The index is updated after every sync that stores the preferred location's forecast. If the
+ * index is missing, for example on the first launch after an update, we assume we need to sync.
+ */
+public final class SyncFreshness {
+
+    /*
+     * The periodic sync runs at least every 12 hours. If the last successful sync is older than
+     * this, the periodic sync evidently isn't getting to run, and the app syncs when it starts.
+     */
+    static final long MAX_SYNC_AGE_MILLIS = DateUtils.DAY_IN_MILLIS;
+
+    private static final String PREF_FRESHNESS_LOCATION = "freshness_location";
+    private static final String PREF_FRESHNESS_LAST_DATE = "freshness_last_date";
+
+    private SyncFreshness() {
+    }
+
+    /**
+     * Updates the index with the preferred location's forecast, if the sync stored one.
+     *
+     * @param context Used to access SharedPreferences
+     * @param results The result of each location, the preferred location first
+     */
+    static void recordSync(Context context, List<ForecastSyncEngine.LocationResult> results) {
+        ForecastSyncEngine.LocationResult preferredResult = results.get(0);
+        if (preferredResult.status != ForecastSyncEngine.STATUS_PARSED) {
+            /* Either nothing was stored, or what we stored hasn't changed */
+            return;
+        }
+
+        SharedPreferences sp = PreferenceManager.getDefaultSharedPreferences(context);
+        sp.edit()
+                .putString(PREF_FRESHNESS_LOCATION, preferredResult.locationSetting)
+                .putLong(PREF_FRESHNESS_LAST_DATE, preferredResult.lastDate)
+                .apply();
+    }
+
+    /**
+     * @param context Used to access SharedPreferences
+     * @return true if we have no weather to show for the preferred location from today onwards,
+     * or if we haven't synced successfully for too long
+     */
+    static boolean isImmediateSyncNeeded(Context context) {
+        SharedPreferences sp = PreferenceManager.getDefaultSharedPreferences(context);
+        return isImmediateSyncNeeded(
+                sp.getString(PREF_FRESHNESS_LOCATION, null),
+                sp.getLong(PREF_FRESHNESS_LAST_DATE, 0),
+                SyncStatus.getLastSuccessTimeMillis(context),
+                SunshinePreferences.getPreferredWeatherLocation(context),
+                SunshineDateUtils.getNormalizedUtcDateForToday(),
+                System.currentTimeMillis());
+    }
+
+    /**
+     * @param storedLocation    The location the stored weather is for, or null if we don't know
+     * @param storedLastDate    The last day of the stored weather, normalized to UTC midnight
+     * @param lastSuccessMillis When the last successful sync finished, or 0 if none has
+     * @param preferredLocation The preferred location
+     * @param today             Today's date, normalized to UTC midnight
+     * @param nowMillis         The current time
+     * @return true if the app should sync right away
+     */
+    static boolean isImmediateSyncNeeded(String storedLocation, long storedLastDate,
+            long lastSuccessMillis, String preferredLocation, long today, long nowMillis) {
+        if (storedLocation == null || !storedLocation.equals(preferredLocation)) {
+            return true;
+        }
+
+        /* The same test as the query for today onwards that we used to run */
+        if (storedLastDate < today) {
+            return true;
+        }
+
+        return nowMillis - lastSuccessMillis >= MAX_SYNC_AGE_MILLIS;
+    }
+
+    /**
+     * Forgets what the stored weather covers, so that the next start syncs right away. Called
+     * whenever our database starts out empty, as the index would otherwise vouch for weather
+     * that is gone.
+     *
+     * @param context Used to access SharedPreferences
+     */
+    public static void clear(Context context) {
+        SharedPreferences sp = PreferenceManager.getDefaultSharedPreferences(context);
+        sp.edit()
+                .remove(PREF_FRESHNESS_LOCATION)
+                .remove(PREF_FRESHNESS_LAST_DATE)
+                .apply();
+    }
+}
@@ -0,0 +1,191 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.sync;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.preference.PreferenceManager;
+import android.text.format.DateUtils;
+
+import com.example.android.sunshine.data.SunshinePreferences;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Works out how often Sunshine's periodic sync should run.
+ * <p>
+ * Rather than syncing every three hours whatever the weather does, we keep track of how often a
+ * sync actually changes the forecast we have stored. When forecasts keep changing we sync as
+ * often as every hour, and when they hardly ever do we back off to as little as twice a day.
+ * Whatever that rate, the sync before the user's next notification is due is brought forward so
+ * that the notification shows a fresh forecast.
+ * <p>
+ * The change rate is kept in SharedPreferences, so it survives the app being killed.
+ */
+final class SyncSchedule {
+
+    static final int MIN_SYNC_INTERVAL_SECONDS = (int) TimeUnit.HOURS.toSeconds(1);
+    static final int MAX_SYNC_INTERVAL_SECONDS = (int) TimeUnit.HOURS.toSeconds(12);
+
+    /*
+     * How much each sync counts towards the change rate. The rate is an exponential moving
+     * average, so after about five syncs the ones before them hardly matter any more.
+     */
+    static final float CHANGE_RATE_WEIGHT = 0.3f;
+
+    /*
+     * Where we start before we know anything about the forecast. Halfway between our shortest
+     * and longest interval, in terms of the rate; that is every 3.5 hours or so, close to the
+     * three hours we always used to sync at.
+     */
+    static final float DEFAULT_CHANGE_RATE = 0.5f;
+
+    private static final String PREF_SYNC_CHANGE_RATE = "sync_change_rate";
+    private static final String PREF_SYNC_COUNT = "sync_count";
+    private static final String PREF_SYNC_CHANGED_COUNT = "sync_changed_count";
+    private static final String PREF_SCHEDULED_INTERVAL_SECONDS = "sync_scheduled_interval";
+
+    private SyncSchedule() {
+    }
+
+    /**
+     * Records whether a sync changed any of the weather we have stored.
+     *
+     * @param context    Used to access SharedPreferences
+     * @param rowsChanged true if the sync inserted or updated at least one day of weather
+     */
+    static void recordSync(Context context, boolean rowsChanged) {
+        SharedPreferences sp = PreferenceManager.getDefaultSharedPreferences(context);
+        float changeRate = updateChangeRate(
+                sp.getFloat(PREF_SYNC_CHANGE_RATE, DEFAULT_CHANGE_RATE), rowsChanged);
+
+        sp.edit()
+                .putFloat(PREF_SYNC_CHANGE_RATE, changeRate)
+                .putLong(PREF_SYNC_COUNT, sp.getLong(PREF_SYNC_COUNT, 0) + 1)
+                .putLong(PREF_SYNC_CHANGED_COUNT,
+                        sp.getLong(PREF_SYNC_CHANGED_COUNT, 0) + (rowsChanged ? 1 : 0))
+                .apply();
+    }
+
+    /**
+     * @param context Used to access SharedPreferences
+     * @return The fraction of recent syncs that changed the stored weather, weighted towards
+     * the most recent ones
+     */
+    static float getChangeRate(Context context) {
+        SharedPreferences sp = PreferenceManager.getDefaultSharedPreferences(context);
+        return sp.getFloat(PREF_SYNC_CHANGE_RATE, DEFAULT_CHANGE_RATE);
+    }
+
+    /**
+     * @param context Used to access SharedPreferences
+     * @return The number of syncs recorded so far, and how many of them changed the weather
+     */
+    static long[] getSyncCounts(Context context) {
+        SharedPreferences sp = PreferenceManager.getDefaultSharedPreferences(context);
+        return new long[]{sp.getLong(PREF_SYNC_COUNT, 0), sp.getLong(PREF_SYNC_CHANGED_COUNT, 0)};
+    }
+
+    /**
+     * @param context Used to access SharedPreferences
+     * @return How long to wait before the next periodic sync, in seconds
+     */
+    static int getSyncIntervalSeconds(Context context) {
+        long millisUntilNotificationDue = DateUtils.DAY_IN_MILLIS
+                - SunshinePreferences.getEllapsedTimeSinceLastNotification(context);
+        return computeSyncIntervalSeconds(getChangeRate(context),
+                SunshinePreferences.areNotificationsEnabled(context),
+                millisUntilNotificationDue);
+    }
+
+    /**
+     * @param context Used to access SharedPreferences
+     * @return The interval the periodic sync was last scheduled with, or 0 if it never was
+     */
+    static int getScheduledIntervalSeconds(Context context) {
+        SharedPreferences sp = PreferenceManager.getDefaultSharedPreferences(context);
+        return sp.getInt(PREF_SCHEDULED_INTERVAL_SECONDS, 0);
+    }
+
+    /**
+     * @param context         Used to access SharedPreferences
+     * @param intervalSeconds The interval the periodic sync has just been scheduled with
+     */
+    static void saveScheduledIntervalSeconds(Context context, int intervalSeconds) {
+        SharedPreferences sp = PreferenceManager.getDefaultSharedPreferences(context);
+        sp.edit().putInt(PREF_SCHEDULED_INTERVAL_SECONDS, intervalSeconds).apply();
+    }
+
+    /**
+     * Forgets every sync recorded so far, so that the schedule starts over from the default
+     * change rate.
+     *
+     * @param context Used to access SharedPreferences
+     */
+    static void clear(Context context) {
+        SharedPreferences sp = PreferenceManager.getDefaultSharedPreferences(context);
+        sp.edit()
+                .remove(PREF_SYNC_CHANGE_RATE)
+                .remove(PREF_SYNC_COUNT)
+                .remove(PREF_SYNC_CHANGED_COUNT)
+                .remove(PREF_SCHEDULED_INTERVAL_SECONDS)
+                .apply();
+    }
+
+    /**
+     * Folds the outcome of one more sync into the change rate.
+     */
+    static float updateChangeRate(float changeRate, boolean rowsChanged) {
+        return (1 - CHANGE_RATE_WEIGHT) * changeRate
+                + CHANGE_RATE_WEIGHT * (rowsChanged ? 1 : 0);
+    }
+
+    /**
+     * Maps the change rate onto our range of intervals. The range is covered geometrically, so
+     * each step in the rate stretches or shrinks the interval by the same factor.
+     *
+     * @param changeRate                 From 0 (the forecast never changes) to 1 (it changes
+     *                                   on every sync)
+     * @param notificationsEnabled       true if the user wants to be notified of new weather
+     * @param millisUntilNotificationDue Time left until we may show the next notification. 0 or
+     *                                   less if we may show one right away, in which case the
+     *                                   interval is left to the change rate alone.
+     * @return How long to wait before the next periodic sync, in seconds
+     */
+    static int computeSyncIntervalSeconds(float changeRate, boolean notificationsEnabled,
+            long millisUntilNotificationDue) {
+        double range = (double) MAX_SYNC_INTERVAL_SECONDS / MIN_SYNC_INTERVAL_SECONDS;
+        double clampedRate = Math.max(0, Math.min(1, changeRate));
+        int intervalSeconds =
+                (int) Math.round(MIN_SYNC_INTERVAL_SECONDS * Math.pow(range, 1 - clampedRate));
+
+        /*
+         * Make sure a sync runs at about the time the next notification may be shown. Once that
+         * time has passed, any sync may show it, and syncing sooner than the change rate asks for
+         * wouldn't show it any earlier.
+         */
+        if (notificationsEnabled && millisUntilNotificationDue > 0) {
+            long secondsUntilNotificationDue =
+                    TimeUnit.MILLISECONDS.toSeconds(millisUntilNotificationDue);
+            if (secondsUntilNotificationDue < intervalSeconds) {
+                intervalSeconds = (int) secondsUntilNotificationDue;
+            }
+        }
+
+        return Math.max(MIN_SYNC_INTERVAL_SECONDS,
+                Math.min(MAX_SYNC_INTERVAL_SECONDS, intervalSeconds));
+    }
+}
@@ -0,0 +1,277 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.sync;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.preference.PreferenceManager;
+import android.util.MalformedJsonException;
+
+import com.example.android.sunshine.utilities.ForecastResponseCache;
+
+import java.io.IOException;
+import java.net.HttpURLConnection;
+import java.util.List;
+
+/**
+ * Classifies how a sync went, and keeps the outcome of the last one in SharedPreferences so that
+ * it can be inspected after the fact.
+ * <p>
+ * Whether a failed sync is worth retrying soon depends on whose fault it was. The network
+ * dropping out or the server having trouble usually passes, so those syncs are retried with
+ * backoff. The server not knowing our location or sending us something we can't parse won't go
+ * away by asking again, so those syncs wait for the next periodic sync.
+ */
+final class SyncStatus {
+
+    /* The preferred location's forecast was stored, or was already up to date */
+    static final int RESULT_SUCCESS = 0;
+    /* The server couldn't be reached, or the connection dropped while reading the forecast */
+    static final int RESULT_NETWORK_ERROR = 1;
+    /* The server answered with a 5xx status, or asked us to slow down */
+    static final int RESULT_SERVER_ERROR = 2;
+    /* The server doesn't know the preferred location, or rejected our request */
+    static final int RESULT_BAD_LOCATION = 3;
+    /* The server's response wasn't a forecast we could use */
+    static final int RESULT_PARSE_ERROR = 4;
+    /* Anything else, such as failing to write the forecast to our database */
+    static final int RESULT_INTERNAL_ERROR = 5;
+    /* The sync was cancelled before it finished. This is never recorded. */
+    static final int RESULT_CANCELLED = 6;
+
+    /* HttpURLConnection has no constant for 429 (Too Many Requests) */
+    private static final int HTTP_TOO_MANY_REQUESTS = 429;
+
+    private static final String PREF_SYNC_LAST_RESULT = "sync_last_result";
+    private static final String PREF_SYNC_LAST_RESULT_TIME = "sync_last_result_time";
+    private static final String PREF_SYNC_LAST_SUCCESS_TIME = "sync_last_success_time";
+    private static final String PREF_SYNC_LAST_ERROR = "sync_last_error";
+    private static final String PREF_SYNC_CONSECUTIVE_FAILURES = "sync_consecutive_failures";
+
+    private SyncStatus() {
+    }
+
+    /**
+     * Classifies a sync by how its preferred location went. That is the location the user sees
+     * and gets notified about; the other locations are synced along with it on a best-effort
+     * basis.
+     *
+     * @param results The result of each location, the preferred location first
+     * @return One of the RESULT_* constants
+     */
+    static int classify(List<ForecastSyncEngine.LocationResult> results) {
+        return classify(results.get(0));
+    }
+
+    /**
+     * @param result The result of syncing a single location
+     * @return One of the RESULT_* constants
+     */
+    static int classify(ForecastSyncEngine.LocationResult result) {
+        switch (result.status) {
+            case ForecastSyncEngine.STATUS_PARSED:
+            case ForecastSyncEngine.STATUS_NOT_MODIFIED:
+                return RESULT_SUCCESS;
+
+            case ForecastSyncEngine.STATUS_NO_FORECAST:
+                /* A well-formed response that reported an error, or held no days at all */
+                if (result.serverErrorCode == HttpURLConnection.HTTP_OK) {
+                    return RESULT_PARSE_ERROR;
+                }
+                return classifyStatusCode(result.serverErrorCode);
+
+            default:
+                return classify(result.error);
+        }
+    }
+
+    /**
+     * @param error The exception a sync failed with
+     * @return One of the RESULT_* constants
+     */
+    static int classify(Throwable error) {
+        if (error instanceof ForecastResponseCache.HttpStatusException) {
+            return classifyStatusCode(
+                    ((ForecastResponseCache.HttpStatusException) error).getStatusCode());
+        }
+        /* JsonReader throws these for a response that isn't the JSON we expect */
+        if (error instanceof MalformedJsonException
+                || error instanceof IllegalStateException
+                || error instanceof NumberFormatException) {
+            return RESULT_PARSE_ERROR;
+        }
+        if (error instanceof IOException) {
+            return RESULT_NETWORK_ERROR;
+        }
+        return RESULT_INTERNAL_ERROR;
+    }
+
+    private static int classifyStatusCode(int statusCode) {
+        /*
+         * Asking again won't change the server's mind about a 4xx. Anything else, including a
+         * redirect we didn't follow, is the server's doing and may well pass.
+         */
+        if (statusCode >= HttpURLConnection.HTTP_BAD_REQUEST
+                && statusCode < HttpURLConnection.HTTP_INTERNAL_ERROR
+                && statusCode != HTTP_TOO_MANY_REQUESTS) {
+            return RESULT_BAD_LOCATION;
+        }
+        return RESULT_SERVER_ERROR;
+    }
+
+    /**
+     * @param result One of the RESULT_* constants
+     * @return true if a sync that ended with this result is worth retrying soon
+     */
+    static boolean isRetryable(int result) {
+        return result == RESULT_NETWORK_ERROR || result == RESULT_SERVER_ERROR;
+    }
+
+    /**
+     * @param result One of the RESULT_* constants
+     * @return The name of the result, for logging
+     */
+    static String getResultName(int result) {
+        switch (result) {
+            case RESULT_SUCCESS:
+                return "success";
+            case RESULT_NETWORK_ERROR:
+                return "network error";
+            case RESULT_SERVER_ERROR:
+                return "server error";
+            case RESULT_BAD_LOCATION:
+                return "bad location";
+            case RESULT_PARSE_ERROR:
+                return "parse error";
+            case RESULT_INTERNAL_ERROR:
+                return "internal error";
+            case RESULT_CANCELLED:
+                return "cancelled";
+            default:
+                throw new IllegalArgumentException("Unknown sync result: " + result);
+        }
+    }
+
+    /**
+     * Records the outcome of a sync that ran to completion.
+     *
+     * @param context Used to access SharedPreferences
+     * @param results The result of each location, the preferred location first
+     */
+    static void recordSync(Context context, List<ForecastSyncEngine.LocationResult> results) {
+        ForecastSyncEngine.LocationResult preferredResult = results.get(0);
+        String error = null;
+        if (preferredResult.error != null) {
+            error = preferredResult.error.toString();
+        } else if (preferredResult.status == ForecastSyncEngine.STATUS_NO_FORECAST) {
+            error = "Server reported " + preferredResult.serverErrorCode + " for "
+                    + preferredResult.locationSetting;
+        }
+        record(context, classify(preferredResult), error);
+    }
+
+    /**
+     * Records a sync that failed as a whole, rather than for any one location.
+     *
+     * @param context Used to access SharedPreferences
+     * @param error   The exception the sync failed with
+     */
+    static void recordFailure(Context context, Exception error) {
+        record(context, classify(error), error.toString());
+    }
+
+    private static void record(Context context, int result, String error) {
+        SharedPreferences sp = PreferenceManager.getDefaultSharedPreferences(context);
+        long now = System.currentTimeMillis();
+
+        SharedPreferences.Editor editor = sp.edit()
+                .putInt(PREF_SYNC_LAST_RESULT, result)
+                .putLong(PREF_SYNC_LAST_RESULT_TIME, now);
+        if (result == RESULT_SUCCESS) {
+            editor.putLong(PREF_SYNC_LAST_SUCCESS_TIME, now)
+                    .putInt(PREF_SYNC_CONSECUTIVE_FAILURES, 0)
+                    .remove(PREF_SYNC_LAST_ERROR);
+        } else {
+            editor.putInt(PREF_SYNC_CONSECUTIVE_FAILURES,
+                    sp.getInt(PREF_SYNC_CONSECUTIVE_FAILURES, 0) + 1)
+                    .putString(PREF_SYNC_LAST_ERROR, error);
+        }
+        editor.apply();
+    }
+
+    /**
+     * @param context Used to access SharedPreferences
+     * @return The result of the last sync that was recorded, or -1 if none has been
+     */
+    static int getLastResult(Context context) {
+        SharedPreferences sp = PreferenceManager.getDefaultSharedPreferences(context);
+        return sp.getInt(PREF_SYNC_LAST_RESULT, -1);
+    }
+
+    /**
+     * @param context Used to access SharedPreferences
+     * @return When the last sync was recorded, in milliseconds since the epoch, or 0 if none has
+     * been
+     */
+    static long getLastResultTimeMillis(Context context) {
+        SharedPreferences sp = PreferenceManager.getDefaultSharedPreferences(context);
+        return sp.getLong(PREF_SYNC_LAST_RESULT_TIME, 0);
+    }
+
+    /**
+     * @param context Used to access SharedPreferences
+     * @return When the last successful sync was recorded, in milliseconds since the epoch, or 0
+     * if none has been
+     */
+    static long getLastSuccessTimeMillis(Context context) {
+        SharedPreferences sp = PreferenceManager.getDefaultSharedPreferences(context);
+        return sp.getLong(PREF_SYNC_LAST_SUCCESS_TIME, 0);
+    }
+
+    /**
+     * @param context Used to access SharedPreferences
+     * @return What went wrong with the last sync, or null if it succeeded
+     */
+    static String getLastError(Context context) {
+        SharedPreferences sp = PreferenceManager.getDefaultSharedPreferences(context);
+        return sp.getString(PREF_SYNC_LAST_ERROR, null);
+    }
+
+    /**
+     * @param context Used to access SharedPreferences
+     * @return The number of syncs that have failed since the last successful one
+     */
+    static int getConsecutiveFailureCount(Context context) {
+        SharedPreferences sp = PreferenceManager.getDefaultSharedPreferences(context);
+        return sp.getInt(PREF_SYNC_CONSECUTIVE_FAILURES, 0);
+    }
+
+    /**
+     * Forgets every sync recorded so far.
+     *
+     * @param context Used to access SharedPreferences
+     */
+    static void clear(Context context) {
+        SharedPreferences sp = PreferenceManager.getDefaultSharedPreferences(context);
+        sp.edit()
+                .remove(PREF_SYNC_LAST_RESULT)
+                .remove(PREF_SYNC_LAST_RESULT_TIME)
+                .remove(PREF_SYNC_LAST_SUCCESS_TIME)
+                .remove(PREF_SYNC_LAST_ERROR)
+                .remove(PREF_SYNC_CONSECUTIVE_FAILURES)
+                .apply();
+    }
+}
@@ -5,33 +5,227 @@ import android.content.Context;
 
 import com.example.android.sunshine.data.WeatherContract;
 
-import java.util.ArrayList;
-import java.util.List;
+import java.util.Calendar;
+import java.util.Locale;
+import java.util.Random;
+import java.util.TimeZone;
 import java.util.concurrent.TimeUnit;
 
 import static com.example.android.sunshine.data.WeatherContract.WeatherEntry;
 
+/**
+ * Generates fake, but plausible, weather. The same seed always generates the same weather, so
+ * tests, benchmarks and load tests can build forecasts of any size, for any number of locations,
+ * and get exactly the same data from one run to the next.
+ * <p>
+ * Each seed stands for a location with its own climate: a typical temperature, how much it
+ * changes with the seasons, and how wet it is. Each day's weather follows from the day before,
+ * so rain, storms and fine weather come in spells rather than at random.
+ */
 public class FakeDataUtils {
 
-    private static int [] weatherIDs = {200,300,500,711,900,962};
+    /* Weather IDs for each kind of day, from http://openweathermap.org/weather-conditions */
+    private static final int[] CLEAR_IDS = {800, 800, 801, 802};
+    private static final int[] CLOUDY_IDS = {802, 803, 804, 741};
+    private static final int[] RAIN_IDS = {300, 500, 500, 501, 502, 520, 521};
+    private static final int[] STORM_IDS = {200, 201, 211, 212, 221, 231};
+    private static final int[] SNOW_IDS = {600, 601, 611, 615, 620};
+
+    private static final int SKY_CLEAR = 0;
+    private static final int SKY_CLOUDY = 1;
+    private static final int SKY_RAIN = 2;
+    private static final int SKY_STORM = 3;
+
+    /* Below this daily high, in Celsius, precipitation falls as snow */
+    private static final double SNOW_TEMPERATURE = 1.5;
 
     /**
-     * Creates a single ContentValues object with random weather data for the provided date
-     * @param date a normalized date
-     * @return ContentValues object filled with random weather data
+     * One day of fake weather, in the units our database stores.
      */
-    private static ContentValues createTestWeatherContentValues(long date) {
-        ContentValues testWeatherValues = new ContentValues();
-        testWeatherValues.put(WeatherEntry.COLUMN_DATE, date);
-        testWeatherValues.put(WeatherEntry.COLUMN_DEGREES, Math.random()*2);
-        testWeatherValues.put(WeatherEntry.COLUMN_HUMIDITY, Math.random()*100);
-        testWeatherValues.put(WeatherEntry.COLUMN_PRESSURE, 870 + Math.random()*100);
-        int maxTemp = (int)(Math.random()*100);
-        testWeatherValues.put(WeatherEntry.COLUMN_MAX_TEMP, maxTemp);
-        testWeatherValues.put(WeatherEntry.COLUMN_MIN_TEMP, maxTemp - (int) (Math.random()*10));
-        testWeatherValues.put(WeatherEntry.COLUMN_WIND_SPEED, Math.random()*10);
-        testWeatherValues.put(WeatherEntry.COLUMN_WEATHER_ID, weatherIDs[(int)(Math.random()*10)%5]);
-        return testWeatherValues;
+    private static final class FakeDay {
+        long date;
+        int weatherId;
+        double minTemp;
+        double maxTemp;
+        double humidity;
+        double pressure;
+        double windSpeed;
+        double degrees;
+    }
+
+    /**
+     * The climate of one fake location, and the state of its weather from one day to the next.
+     */
+    private static final class FakeClimate {
+
+        private final Random mRandom;
+
+        final double latitude;
+        final double longitude;
+
+        private final double mMeanTemp;
+        private final double mSeasonalSwing;
+        private final double mDailyRange;
+        private final double mWetness;
+
+        /* Today's departure from the seasonal temperature, which drifts from day to day */
+        private double mTempAnomaly;
+        private int mSky = SKY_CLEAR;
+        private double mWindDegrees;
+
+        FakeClimate(long seed) {
+            mRandom = new Random(seed);
+            latitude = round(-60 + mRandom.nextDouble() * 130, 4);
+            longitude = round(-180 + mRandom.nextDouble() * 360, 4);
+
+            /* The further from the equator, the colder and the more seasonal */
+            double polarity = Math.abs(latitude) / 70;
+            mMeanTemp = 28 - 30 * polarity + mRandom.nextGaussian() * 3;
+            mSeasonalSwing = (2 + 14 * polarity) * (latitude < 0 ? -1 : 1);
+            mDailyRange = 4 + mRandom.nextDouble() * 8;
+            mWetness = 0.1 + mRandom.nextDouble() * 0.5;
+            mWindDegrees = mRandom.nextInt(360);
+        }
+
+        FakeDay nextDay(long date) {
+            FakeDay day = new FakeDay();
+            day.date = date;
+
+            Calendar calendar = Calendar.getInstance(TimeZone.getTimeZone("UTC"));
+            calendar.setTimeInMillis(date);
+            int dayOfYear = calendar.get(Calendar.DAY_OF_YEAR);
+            /* Warmest in the north in mid July, and in the south in mid January */
+            double season = Math.sin(2 * Math.PI * (dayOfYear - 105) / 365.0);
+
+            mTempAnomaly = 0.7 * mTempAnomaly + mRandom.nextGaussian() * 2;
+            mSky = nextSky();
+
+            double averageTemp = mMeanTemp + mSeasonalSwing * season + mTempAnomaly;
+            double range = mDailyRange * (mSky == SKY_CLEAR ? 1.2 : 0.7);
+            day.maxTemp = round(averageTemp + range / 2, 2);
+            day.minTemp = round(averageTemp - range / 2 - mRandom.nextDouble(), 2);
+
+            boolean wet = mSky == SKY_RAIN || mSky == SKY_STORM;
+            day.weatherId = pickWeatherId(wet && day.maxTemp < SNOW_TEMPERATURE);
+
+            day.humidity = Math.min(100, Math.round(
+                    (wet ? 75 : mSky == SKY_CLOUDY ? 60 : 40) + mRandom.nextDouble() * 25));
+            day.pressure = round((wet ? 1000 : 1015) + mRandom.nextGaussian() * 6, 2);
+            day.windSpeed = round(Math.abs(mRandom.nextGaussian() * (wet ? 6 : 3)) + 0.5, 2);
+
+            mWindDegrees = (mWindDegrees + mRandom.nextGaussian() * 40 + 360) % 360;
+            day.degrees = Math.round(mWindDegrees);
+            return day;
+        }
+
+        /* Weather comes in spells: each kind of sky tends to stay for a few days */
+        private int nextSky() {
+            double roll = mRandom.nextDouble();
+            if (roll < 0.6) {
+                /* Today's sky, or its milder neighbour for a storm */
+                return mSky == SKY_STORM ? SKY_RAIN : mSky;
+            }
+            roll = mRandom.nextDouble();
+            if (roll < mWetness) {
+                return mRandom.nextDouble() < 0.2 ? SKY_STORM : SKY_RAIN;
+            }
+            return roll < mWetness + (1 - mWetness) / 2 ? SKY_CLOUDY : SKY_CLEAR;
+        }
+
+        private int pickWeatherId(boolean snow) {
+            int[] ids;
+            if (snow) {
+                ids = SNOW_IDS;
+            } else if (mSky == SKY_STORM) {
+                ids = STORM_IDS;
+            } else if (mSky == SKY_RAIN) {
+                ids = RAIN_IDS;
+            } else if (mSky == SKY_CLOUDY) {
+                ids = CLOUDY_IDS;
+            } else {
+                ids = CLEAR_IDS;
+            }
+            return ids[mRandom.nextInt(ids.length)];
+        }
+    }
+
+    private static double round(double value, int decimals) {
+        double scale = Math.pow(10, decimals);
+        return Math.round(value * scale) / scale;
+    }
+
+    private static FakeDay[] createDays(FakeClimate climate, long startDate, int numDays) {
+        FakeDay[] days = new FakeDay[numDays];
+        for (int i = 0; i < numDays; i++) {
+            days[i] = climate.nextDay(startDate + SunshineDateUtils.DAY_IN_MILLIS * i);
+        }
+        return days;
+    }
+
+    /**
+     * Creates a forecast in the same shape as the JSON our weather server returns.
+     *
+     * @param seed      Stands for the location. The same seed always gives the same forecast.
+     * @param startDate The first day of the forecast, normalized to UTC midnight
+     * @param numDays   Number of days to include in the "list" array
+     * @return JSON String of the forecast
+     */
+    public static String createForecastJson(long seed, long startDate, int numDays) {
+        FakeClimate climate = new FakeClimate(seed);
+        FakeDay[] days = createDays(climate, startDate, numDays);
+
+        /* Roughly 200 characters for each day */
+        StringBuilder json = new StringBuilder(256 + numDays * 200);
+        json.append(String.format(Locale.US,
+                "{\"city\":{\"id\":%d,\"name\":\"Fake %d\",\"coord\":{\"lon\":%s,\"lat\":%s},"
+                        + "\"country\":\"XX\",\"population\":0},"
+                        + "\"cod\":\"200\",\"message\":0.0032,\"cnt\":%d,\"list\":[",
+                seed & 0x7fffffff, seed, climate.longitude, climate.latitude, numDays));
+        for (int i = 0; i < numDays; i++) {
+            FakeDay day = days[i];
+            if (i > 0) json.append(',');
+            json.append(String.format(Locale.US,
+                    "{\"dt\":%d,\"temp\":{\"day\":%s,\"min\":%s,\"max\":%s,\"night\":%s,"
+                            + "\"eve\":%s,\"morn\":%s},\"pressure\":%s,\"humidity\":%d,"
+                            + "\"weather\":[{\"id\":%d,\"main\":\"Fake\",\"description\":\"fake\","
+                            + "\"icon\":\"01d\"}],\"speed\":%s,\"deg\":%d,\"clouds\":0}",
+                    TimeUnit.MILLISECONDS.toSeconds(day.date) + TimeUnit.HOURS.toSeconds(12),
+                    day.maxTemp, day.minTemp, day.maxTemp, day.minTemp,
+                    day.maxTemp, day.minTemp, day.pressure, (int) day.humidity,
+                    day.weatherId, day.windSpeed, (int) day.degrees));
+        }
+        return json.append("]}").toString();
+    }
+
+    /**
+     * Creates the weather our database would store for the forecast of
+     * {@link #createForecastJson(long, long, int)} with the same arguments. The values don't
+     * include a location, so callers add one before inserting them.
+     *
+     * @param seed      Stands for the location. The same seed always gives the same forecast.
+     * @param startDate The first day of the forecast, normalized to UTC midnight
+     * @param numDays   Number of days to create
+     * @return One ContentValues for each day
+     */
+    public static ContentValues[] createWeatherContentValues(long seed, long startDate,
+            int numDays) {
+        FakeDay[] days = createDays(new FakeClimate(seed), startDate, numDays);
+
+        ContentValues[] values = new ContentValues[numDays];
+        for (int i = 0; i < numDays; i++) {
+            FakeDay day = days[i];
+            ContentValues weatherValues = new ContentValues();
+            weatherValues.put(WeatherEntry.COLUMN_DATE, day.date);
+            weatherValues.put(WeatherEntry.COLUMN_WEATHER_ID, day.weatherId);
+            weatherValues.put(WeatherEntry.COLUMN_MIN_TEMP, day.minTemp);
+            weatherValues.put(WeatherEntry.COLUMN_MAX_TEMP, day.maxTemp);
+            weatherValues.put(WeatherEntry.COLUMN_HUMIDITY, day.humidity);
+            weatherValues.put(WeatherEntry.COLUMN_PRESSURE, day.pressure);
+            weatherValues.put(WeatherEntry.COLUMN_WIND_SPEED, day.windSpeed);
+            weatherValues.put(WeatherEntry.COLUMN_DEGREES, day.degrees);
+            values[i] = weatherValues;
+        }
+        return values;
     }
 
     /**
@@ -41,14 +235,10 @@ public class FakeDataUtils {
     public static void insertFakeData(Context context) {
         //Get today's normalized date
         long today = SunshineDateUtils.normalizeDate(System.currentTimeMillis());
-        List<ContentValues> fakeValues = new ArrayList<ContentValues>();
-        //loop over 7 days starting today onwards
-        for(int i=0; i<7; i++) {
-            fakeValues.add(FakeDataUtils.createTestWeatherContentValues(today + TimeUnit.DAYS.toMillis(i)));
-        }
+        ContentValues[] fakeValues = createWeatherContentValues(new Random().nextLong(), today, 7);
         // Bulk Insert our new weather data into Sunshine's Database
         context.getContentResolver().bulkInsert(
                 WeatherContract.WeatherEntry.CONTENT_URI,
-                fakeValues.toArray(new ContentValues[7]));
+                fakeValues);
     }
 }
@@ -0,0 +1,648 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.utilities;
+
+import android.content.Context;
+import android.util.Log;
+
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * A small disk-backed cache for the forecast responses we receive from the weather server.
+ * <p>
+ * For every URL we fetch, we store the body of the response along with the ETag and
+ * Last-Modified validators the server sent with it. The next time the same URL is fetched, those
+ * validators are sent back to the server as If-None-Match and If-Modified-Since. If the forecast
+ * hasn't changed, the server answers with a bodiless 304 (Not Modified) and the caller can skip
+ * parsing and writing to the database entirely. We also ask the server to gzip its responses.
+ * <p>
+ * Usage mirrors a database transaction:
+ * <pre>
+ *     ForecastResponseCache.Response response = cache.fetch(url);
+ *     try {
+ *         if (!response.isNotModified()) {
+ *             parse(response.getBody());
+ *             response.setSuccessful();
+ *         }
+ *     } finally {
+ *         response.close();
+ *     }
+ * </pre>
+ * A response body is only written to the cache if it was marked successful before being closed,
+ * so a body that failed to parse is never replayed or revalidated.
+ * <p>
+ * Our parsers date each day of a forecast from the day it is parsed, not from the body itself.
+ * So that a caller can tell whether the database still holds a 304's body under the same dates,
+ * the date the parser gave the body's first day can be stored along with the validators.
+ */
+public final class ForecastResponseCache {
+
+    private static final String TAG = ForecastResponseCache.class.getSimpleName();
+
+    /* Name of the directory, within the app's cache directory, that holds cached responses */
+    private static final String CACHE_DIRECTORY_NAME = "forecast_responses";
+
+    private static final String BODY_FILE_EXTENSION = ".body";
+    private static final String METADATA_FILE_EXTENSION = ".meta";
+    private static final String TEMP_FILE_EXTENSION = ".tmp";
+
+    private static final String HEADER_ACCEPT_ENCODING = "Accept-Encoding";
+    private static final String HEADER_CONTENT_ENCODING = "Content-Encoding";
+    private static final String HEADER_ETAG = "ETag";
+    private static final String HEADER_LAST_MODIFIED = "Last-Modified";
+    private static final String HEADER_IF_NONE_MATCH = "If-None-Match";
+    private static final String HEADER_IF_MODIFIED_SINCE = "If-Modified-Since";
+
+    private static final String ENCODING_GZIP = "gzip";
+
+    /* Stands for a first date we don't know, as no normalized date is ever negative */
+    public static final long UNKNOWN_DATE = -1;
+
+    private static ForecastResponseCache sInstance;
+
+    private final File mDirectory;
+
+    /**
+     * Returns the cache stored in the app's cache directory.
+     *
+     * @param context Used to locate the app's cache directory
+     * @return The app's forecast response cache
+     */
+    public static synchronized ForecastResponseCache getInstance(Context context) {
+        if (sInstance == null) {
+            File directory = new File(context.getCacheDir(), CACHE_DIRECTORY_NAME);
+            sInstance = new ForecastResponseCache(directory);
+        }
+        return sInstance;
+    }
+
+    ForecastResponseCache(File directory) {
+        mDirectory = directory;
+    }
+
+    /**
+     * Performs a GET request for the provided URL. If a response for this URL has been cached,
+     * the request is made conditional on the cached response's validators.
+     *
+     * @param url The URL to fetch
+     * @return The server's response. This must be closed by the caller.
+     * @throws HttpStatusException If the server responded with anything other than 200 (OK) or
+     *                             304 (Not Modified)
+     * @throws IOException         Related to network and stream reading
+     */
+    public Response fetch(URL url) throws IOException {
+        String key = keyForUrl(url);
+        File bodyFile = new File(mDirectory, key + BODY_FILE_EXTENSION);
+        File metadataFile = new File(mDirectory, key + METADATA_FILE_EXTENSION);
+
+        /* We only revalidate when we still have the body that the validators describe */
+        Validators cachedValidators = null;
+        if (bodyFile.exists()) {
+            cachedValidators = readValidators(metadataFile, url);
+        }
+
+        HttpURLConnection urlConnection = (HttpURLConnection) url.openConnection();
+        try {
+            /*
+             * Setting Accept-Encoding ourselves turns off HttpURLConnection's transparent gzip
+             * handling, so we are responsible for decompressing the body below.
+             */
+            urlConnection.setRequestProperty(HEADER_ACCEPT_ENCODING, ENCODING_GZIP);
+
+            if (cachedValidators != null) {
+                if (cachedValidators.etag != null) {
+                    urlConnection.setRequestProperty(HEADER_IF_NONE_MATCH, cachedValidators.etag);
+                }
+                if (cachedValidators.lastModified != null) {
+                    urlConnection.setRequestProperty(HEADER_IF_MODIFIED_SINCE,
+                            cachedValidators.lastModified);
+                }
+            }
+
+            int responseCode = urlConnection.getResponseCode();
+
+            if (responseCode == HttpURLConnection.HTTP_NOT_MODIFIED && cachedValidators != null) {
+                return new Response(urlConnection, bodyFile, url, key, cachedValidators);
+            }
+
+            /* The status code tells our callers whether the server or the request was at fault */
+            if (responseCode != HttpURLConnection.HTTP_OK) {
+                throw new HttpStatusException(responseCode, url);
+            }
+            /* Counted before decompression, so that we know what actually crossed the network */
+            CountingInputStream networkIn = new CountingInputStream(urlConnection.getInputStream());
+            InputStream in = networkIn;
+
+            if (ENCODING_GZIP.equalsIgnoreCase(
+                    urlConnection.getHeaderField(HEADER_CONTENT_ENCODING))) {
+                in = new GZIPInputStream(in);
+            }
+
+            Validators validators = new Validators(
+                    urlConnection.getHeaderField(HEADER_ETAG),
+                    urlConnection.getHeaderField(HEADER_LAST_MODIFIED));
+
+            return new Response(urlConnection, in, networkIn, url, key, validators);
+        } catch (IOException e) {
+            urlConnection.disconnect();
+            throw e;
+        }
+    }
+
+    /**
+     * Removes the response cached for a URL, if there is one.
+     *
+     * @param url The URL whose response should be forgotten
+     */
+    public synchronized void remove(URL url) {
+        String key = keyForUrl(url);
+        for (String extension : new String[]{BODY_FILE_EXTENSION, METADATA_FILE_EXTENSION}) {
+            File file = new File(mDirectory, key + extension);
+            if (file.exists() && !file.delete()) {
+                Log.w(TAG, "Unable to delete " + file);
+            }
+        }
+    }
+
+    /**
+     * Removes every cached response.
+     */
+    public synchronized void clear() {
+        File[] files = mDirectory.listFiles();
+        if (files == null) return;
+        for (File file : files) {
+            if (!file.delete()) {
+                Log.w(TAG, "Unable to delete " + file);
+            }
+        }
+    }
+
+    /**
+     * Moves a fully read response body into place and records its validators. Called when a
+     * successful Response is closed.
+     */
+    private synchronized void commit(URL url, String key, File tempBodyFile, Validators validators)
+            throws IOException {
+        File bodyFile = new File(mDirectory, key + BODY_FILE_EXTENSION);
+
+        if (!tempBodyFile.renameTo(bodyFile)) {
+            throw new IOException("Unable to move " + tempBodyFile + " to " + bodyFile);
+        }
+
+        writeValidators(url, key, validators);
+    }
+
+    /**
+     * Records the validators of the body cached for a URL, along with the first date it was
+     * parsed with.
+     */
+    private synchronized void writeValidators(URL url, String key, Validators validators)
+            throws IOException {
+        File metadataFile = new File(mDirectory, key + METADATA_FILE_EXTENSION);
+
+        Writer writer = new OutputStreamWriter(new FileOutputStream(metadataFile), "UTF-8");
+        try {
+            writer.write(url.toString());
+            writer.write('\n');
+            writer.write(validators.etag != null ? validators.etag : "");
+            writer.write('\n');
+            writer.write(validators.lastModified != null ? validators.lastModified : "");
+            writer.write('\n');
+            writer.write(validators.firstDate != UNKNOWN_DATE
+                    ? Long.toString(validators.firstDate) : "");
+            writer.write('\n');
+        } finally {
+            writer.close();
+        }
+    }
+
+    /**
+     * Reads the validators we stored for a URL. The URL itself is stored alongside them to guard
+     * against two URLs sharing a key.
+     *
+     * @return The stored validators, or null if there are none for this URL
+     */
+    private static Validators readValidators(File metadataFile, URL url) {
+        if (!metadataFile.exists()) return null;
+
+        try {
+            BufferedReader reader = new BufferedReader(
+                    new InputStreamReader(new FileInputStream(metadataFile), "UTF-8"));
+            try {
+                String cachedUrl = reader.readLine();
+                String etag = reader.readLine();
+                String lastModified = reader.readLine();
+                String firstDate = reader.readLine();
+
+                if (!url.toString().equals(cachedUrl)) return null;
+
+                Validators validators = new Validators(etag, lastModified);
+                if (firstDate != null && firstDate.length() != 0) {
+                    validators.firstDate = Long.parseLong(firstDate);
+                }
+                return validators.isEmpty() ? null : validators;
+            } finally {
+                reader.close();
+            }
+        } catch (IOException | NumberFormatException e) {
+            Log.w(TAG, "Unable to read cached validators for " + url, e);
+            return null;
+        }
+    }
+
+    /**
+     * @return A file name safe key that identifies the provided URL
+     */
+    private static String keyForUrl(URL url) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("MD5");
+            byte[] hash = digest.digest(url.toString().getBytes("UTF-8"));
+            StringBuilder key = new StringBuilder(hash.length * 2);
+            for (byte b : hash) {
+                key.append(Character.forDigit((b >> 4) & 0xf, 16))
+                        .append(Character.forDigit(b & 0xf, 16));
+            }
+            return key.toString();
+        } catch (NoSuchAlgorithmException | IOException e) {
+            throw new AssertionError(e);
+        }
+    }
+
+    /**
+     * The ETag and Last-Modified headers of a response. Either may be null. Also holds the date
+     * the parser gave the first day of the response's body, if it told us.
+     */
+    private static final class Validators {
+        final String etag;
+        final String lastModified;
+        long firstDate = UNKNOWN_DATE;
+
+        Validators(String etag, String lastModified) {
+            this.etag = emptyToNull(etag);
+            this.lastModified = emptyToNull(lastModified);
+        }
+
+        boolean isEmpty() {
+            return etag == null && lastModified == null;
+        }
+
+        private static String emptyToNull(String value) {
+            return value == null || value.length() == 0 ? null : value;
+        }
+    }
+
+    /**
+     * Thrown by {@link #fetch} when the server answers with a status code we can't use.
+     */
+    public static final class HttpStatusException extends IOException {
+
+        private final int mStatusCode;
+
+        HttpStatusException(int statusCode, URL url) {
+            super("Unexpected HTTP response " + statusCode + " for " + url);
+            mStatusCode = statusCode;
+        }
+
+        /**
+         * @return The HTTP status code the server answered with
+         */
+        public int getStatusCode() {
+            return mStatusCode;
+        }
+    }
+
+    /**
+     * A response to a forecast request, either fresh from the server or confirmed by the server
+     * to be unchanged since we cached it.
+     */
+    public final class Response implements Closeable {
+
+        private final HttpURLConnection mUrlConnection;
+        private final boolean mNotModified;
+
+        /* For 304 responses, the body we cached earlier */
+        private final File mCachedBodyFile;
+
+        /* What to store the body's validators under */
+        private final URL mUrl;
+        private final String mKey;
+        private final Validators mValidators;
+
+        /* For 200 responses, the body as it is being read from the network */
+        private final CachingInputStream mNetworkBody;
+
+        /* For 200 responses, counts the bytes of the body as they were received */
+        private final CountingInputStream mNetworkByteCounter;
+
+        /* For 304 responses, the first date the cached body was last parsed with */
+        private final long mCachedFirstDate;
+
+        private InputStream mCachedBody;
+        private boolean mSuccessful;
+        private boolean mClosed;
+
+        Response(HttpURLConnection urlConnection, File cachedBodyFile, URL url, String key,
+                 Validators validators) {
+            mUrlConnection = urlConnection;
+            mNotModified = true;
+            mCachedBodyFile = cachedBodyFile;
+            mNetworkBody = null;
+            mNetworkByteCounter = null;
+            mUrl = url;
+            mKey = key;
+            mValidators = validators;
+            mCachedFirstDate = validators.firstDate;
+        }
+
+        Response(HttpURLConnection urlConnection, InputStream in,
+                 CountingInputStream networkByteCounter, URL url, String key,
+                 Validators validators) throws IOException {
+            mUrlConnection = urlConnection;
+            mNotModified = false;
+            mCachedBodyFile = null;
+            mNetworkBody = new CachingInputStream(in, url, key, validators);
+            mNetworkByteCounter = networkByteCounter;
+            mUrl = url;
+            mKey = key;
+            mValidators = validators;
+            mCachedFirstDate = UNKNOWN_DATE;
+        }
+
+        /**
+         * @return true if the server told us the forecast hasn't changed since it was cached
+         */
+        public boolean isNotModified() {
+            return mNotModified;
+        }
+
+        /**
+         * @return For a 304 (Not Modified) response, the date the first day of the cached body
+         * was given the last time it was parsed, or {@link #UNKNOWN_DATE} if we weren't told.
+         * Always UNKNOWN_DATE for a 200 (OK) response.
+         */
+        public long getCachedFirstDate() {
+            return mCachedFirstDate;
+        }
+
+        /**
+         * @return The number of bytes of the body received from the network so far, before
+         * decompression. Always 0 for a 304 (Not Modified) response, whose body comes from the
+         * cache.
+         */
+        public long getNetworkByteCount() {
+            return mNetworkByteCounter == null ? 0 : mNetworkByteCounter.getCount();
+        }
+
+        /**
+         * Returns the body of this response. For a 304 (Not Modified) response, this is the body
+         * that was cached when the forecast was last fetched; the network isn't touched.
+         *
+         * @return A stream over the body of the response. It is closed when this Response is.
+         * @throws IOException If the cached body can't be opened
+         */
+        public InputStream getBody() throws IOException {
+            if (!mNotModified) return mNetworkBody;
+
+            if (mCachedBody == null) {
+                mCachedBody = new FileInputStream(mCachedBodyFile);
+            }
+            return mCachedBody;
+        }
+
+        /**
+         * Marks the body of this response as valid, so that it will be cached when this
+         * Response is closed. The rest of the body is read from the network on close if the
+         * caller stopped reading early.
+         */
+        public void setSuccessful() {
+            mSuccessful = true;
+        }
+
+        /**
+         * Same as {@link #setSuccessful()}, and also stores the date the parser gave the first
+         * day of the body, to be handed back by {@link #getCachedFirstDate()} when the server
+         * next answers 304.
+         *
+         * @param firstDate The normalized UTC date of the body's first day as it was parsed
+         */
+        public void setSuccessful(long firstDate) {
+            mSuccessful = true;
+            mValidators.firstDate = firstDate;
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (mClosed) return;
+            mClosed = true;
+
+            try {
+                if (mCachedBody != null) {
+                    mCachedBody.close();
+                }
+                if (mNetworkBody != null) {
+                    mNetworkBody.finish(mSuccessful);
+                } else if (mSuccessful && mValidators.firstDate != mCachedFirstDate) {
+                    /* The cached body was parsed again, with other dates than the last time */
+                    writeValidators(mUrl, mKey, mValidators);
+                }
+            } finally {
+                mUrlConnection.disconnect();
+            }
+        }
+    }
+
+    /**
+     * Counts the bytes read through it.
+     */
+    private static final class CountingInputStream extends FilterInputStream {
+
+        private long mCount;
+
+        CountingInputStream(InputStream in) {
+            super(in);
+        }
+
+        @Override
+        public int read() throws IOException {
+            int b = super.read();
+            if (b != -1) {
+                mCount++;
+            }
+            return b;
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int count) throws IOException {
+            int read = super.read(buffer, offset, count);
+            if (read > 0) {
+                mCount += read;
+            }
+            return read;
+        }
+
+        @Override
+        public long skip(long byteCount) throws IOException {
+            long skipped = super.skip(byteCount);
+            mCount += skipped;
+            return skipped;
+        }
+
+        @Override
+        public boolean markSupported() {
+            return false;
+        }
+
+        long getCount() {
+            return mCount;
+        }
+    }
+
+    /**
+     * Copies every byte read from the network into a temporary file, which becomes the cached
+     * body once the response has been marked successful.
+     */
+    private final class CachingInputStream extends FilterInputStream {
+
+        private final URL mUrl;
+        private final String mKey;
+        private final Validators mValidators;
+
+        /* Null if we're not caching this response, either by choice or because of an error */
+        private OutputStream mCacheOut;
+        private File mTempBodyFile;
+
+        CachingInputStream(InputStream in, URL url, String key, Validators validators) {
+            super(in);
+            mUrl = url;
+            mKey = key;
+            mValidators = validators;
+
+            /* Without validators, a cached body could never be revalidated, so don't keep it */
+            if (validators.isEmpty()) return;
+
+            if (!mDirectory.isDirectory() && !mDirectory.mkdirs()) {
+                Log.w(TAG, "Unable to create cache directory " + mDirectory);
+                return;
+            }
+
+            try {
+                mTempBodyFile = new File(mDirectory, key + TEMP_FILE_EXTENSION);
+                mCacheOut = new FileOutputStream(mTempBodyFile);
+            } catch (IOException e) {
+                Log.w(TAG, "Unable to cache response for " + url, e);
+                mCacheOut = null;
+            }
+        }
+
+        @Override
+        public int read() throws IOException {
+            int b = super.read();
+            if (b != -1) writeToCache(new byte[]{(byte) b}, 0, 1);
+            return b;
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int count) throws IOException {
+            int read = super.read(buffer, offset, count);
+            if (read > 0) writeToCache(buffer, offset, read);
+            return read;
+        }
+
+        @Override
+        public long skip(long byteCount) throws IOException {
+            /* Skipped bytes must still end up in the cache, so read them instead */
+            byte[] buffer = new byte[(int) Math.min(byteCount, 2048)];
+            int read = read(buffer, 0, buffer.length);
+            return read == -1 ? 0 : read;
+        }
+
+        @Override
+        public boolean markSupported() {
+            return false;
+        }
+
+        @Override
+        public void close() throws IOException {
+            /* The stream is finished by its Response, which knows if the body was valid */
+        }
+
+        private void writeToCache(byte[] buffer, int offset, int count) {
+            if (mCacheOut == null) return;
+            try {
+                mCacheOut.write(buffer, offset, count);
+            } catch (IOException e) {
+                Log.w(TAG, "Unable to cache response for " + mUrl, e);
+                abandonCache();
+            }
+        }
+
+        /**
+         * Closes the network stream and, if the body was valid, commits it to the cache.
+         *
+         * @param successful true if the body was marked successful by the caller
+         */
+        void finish(boolean successful) throws IOException {
+            try {
+                if (successful && mCacheOut != null) {
+                    /* Read whatever the parser left behind so the cached body is complete */
+                    byte[] buffer = new byte[2048];
+                    while (read(buffer, 0, buffer.length) != -1) {
+                        /* Each read is copied into the cache by read itself */
+                    }
+                }
+            } finally {
+                in.close();
+            }
+
+            if (mCacheOut == null) return;
+
+            if (successful) {
+                mCacheOut.close();
+                mCacheOut = null;
+                commit(mUrl, mKey, mTempBodyFile, mValidators);
+            } else {
+                abandonCache();
+            }
+        }
+
+        private void abandonCache() {
+            try {
+                mCacheOut.close();
+            } catch (IOException ignored) {
+            }
+            mCacheOut = null;
+            if (!mTempBodyFile.delete()) {
+                Log.w(TAG, "Unable to delete " + mTempBodyFile);
+            }
+        }
+    }
+}
@@ -98,14 +98,29 @@ public final class NetworkUtils {
      * @return URL to query weather service
      */
     public static URL getUrl(Context context) {
-        if (SunshinePreferences.isLocationLatLonAvailable(context)) {
+        return getUrl(context, SunshinePreferences.getPreferredWeatherLocation(context));
+    }
+
+    /**
+     * Retrieves the URL to query for the weather data of any stored location. The coordinates
+     * we save in SunshinePreferences belong to the preferred location, so they are only used
+     * when locationSetting is the preferred location. Every other location is queried by its
+     * location setting.
+     *
+     * @param context         used to access other Utility methods
+     * @param locationSetting The location setting to fetch the weather for
+     * @return URL to query weather service
+     */
+    public static URL getUrl(Context context, String locationSetting) {
+        boolean isPreferredLocation = locationSetting
+                .equals(SunshinePreferences.getPreferredWeatherLocation(context));
+        if (isPreferredLocation && SunshinePreferences.isLocationLatLonAvailable(context)) {
             double[] preferredCoordinates = SunshinePreferences.getLocationCoordinates(context);
             double latitude = preferredCoordinates[0];
             double longitude = preferredCoordinates[1];
             return buildUrlWithLatitudeLongitude(latitude, longitude);
         } else {
-            String locationQuery = SunshinePreferences.getPreferredWeatherLocation(context);
-            return buildUrlWithLocationQuery(locationQuery);
+            return buildUrlWithLocationQuery(locationSetting);
         }
     }
 
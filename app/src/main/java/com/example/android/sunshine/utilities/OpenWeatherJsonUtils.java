@@ -17,7 +17,11 @@ package com.example.android.sunshine.utilities;
 
 import android.content.ContentValues;
 import android.content.Context;
+import android.util.JsonReader;
+import android.util.JsonToken;
+import android.util.MalformedJsonException;
 
+import com.example.android.sunshine.data.ForecastBatch;
 import com.example.android.sunshine.data.SunshinePreferences;
 import com.example.android.sunshine.data.WeatherContract;
 
@@ -25,6 +29,9 @@ import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
 
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
 import java.net.HttpURLConnection;
 
 /**
@@ -60,6 +67,20 @@ public final class OpenWeatherJsonUtils {
 
     private static final String OWM_MESSAGE_CODE = "cod";
 
+    /*
+     * Bit flags used by the streaming parser to make sure every field we need for a day was
+     * present in that day's JSON object. The DOM parser gets this for free, as getDouble and
+     * friends throw when a key is missing.
+     */
+    private static final int FIELD_PRESSURE = 1;
+    private static final int FIELD_HUMIDITY = 1 << 1;
+    private static final int FIELD_WIND_SPEED = 1 << 2;
+    private static final int FIELD_WIND_DIRECTION = 1 << 3;
+    private static final int FIELD_MAX = 1 << 4;
+    private static final int FIELD_MIN = 1 << 5;
+    private static final int FIELD_WEATHER_ID = 1 << 6;
+    private static final int ALL_DAY_FIELDS = (1 << 7) - 1;
+
     /**
      * This method parses JSON from a web response and returns an array of Strings
      * describing the weather over various days from the forecast.
@@ -181,4 +202,239 @@ public final class OpenWeatherJsonUtils {
 
         return weatherContentValues;
     }
+
+    /**
+     * Streaming counterpart to {@link #getWeatherContentValuesFromJson(Context, String)}. Rather
+     * than building the whole response String and then a JSONObject tree out of it, this method
+     * pulls tokens straight off of the InputStream and appends each day to the given
+     * {@link ForecastBatch} as soon as that day's JSON object has been read. No ContentValues,
+     * boxed numbers or per-day objects are allocated, which keeps peak heap usage flat no matter
+     * how many days the server sends us.
+     * <p>
+     * The values added are identical to those returned from the DOM based parser. The stream is
+     * NOT closed by this method; that is left up to the caller who opened it.
+     * <p>
+     * Unlike the DOM based parser, this doesn't save the city's coordinates in SharedPreferences.
+     * They are handed back to the caller, which knows whether the forecast is the preferred
+     * location's, and may be parsing on a thread that shouldn't touch SharedPreferences.
+     *
+     * @param forecastJsonStream Stream of the JSON response from the server (UTF-8)
+     * @param forecast           Batch to add each day to. It is cleared first.
+     * @param cityCoord          Array of length two to store the city's latitude and longitude in
+     *
+     * @return {@link HttpURLConnection#HTTP_OK} if the forecast was read, otherwise the error code
+     * the server reported in place of the forecast, such as 404 for a location it doesn't know
+     *
+     * @throws IOException If the stream cannot be read or the JSON is missing required data
+     */
+    public static int parseForecastFromStream(InputStream forecastJsonStream,
+            ForecastBatch forecast, double[] cityCoord) throws IOException {
+
+        JsonReader reader = new JsonReader(new InputStreamReader(forecastJsonStream, "UTF-8"));
+
+        /*
+         * OWM doesn't promise any particular key order, so the error code and the city's
+         * coordinates may arrive after the list of days. We hold on to them until we've read the
+         * entire object before deciding what to do with the days we've parsed.
+         */
+        int errorCode = HttpURLConnection.HTTP_OK;
+        boolean hasCityCoord = false;
+        boolean hasList = false;
+        forecast.clear();
+
+        long normalizedUtcStartDay = SunshineDateUtils.getNormalizedUtcDateForToday();
+
+        reader.beginObject();
+        while (reader.hasNext()) {
+            String name = reader.nextName();
+            switch (name) {
+                case OWM_MESSAGE_CODE:
+                    errorCode = reader.nextInt();
+                    break;
+
+                case OWM_CITY:
+                    hasCityCoord = readCityCoord(reader, cityCoord);
+                    break;
+
+                case OWM_LIST:
+                    hasList = true;
+                    forecast.clear();
+                    reader.beginArray();
+                    while (reader.hasNext()) {
+                        /*
+                         * As with the DOM parser, we ignore the datetime values embedded in the
+                         * JSON and assume that the days are returned in-order.
+                         */
+                        long dateTimeMillis = normalizedUtcStartDay
+                                + SunshineDateUtils.DAY_IN_MILLIS * forecast.size();
+                        readDayForecast(reader, dateTimeMillis, forecast);
+                    }
+                    reader.endArray();
+                    break;
+
+                default:
+                    reader.skipValue();
+                    break;
+            }
+        }
+        reader.endObject();
+
+        /* Is there an error? Location invalid (404) or server probably down */
+        if (errorCode != HttpURLConnection.HTTP_OK) {
+            forecast.clear();
+            return errorCode;
+        }
+
+        if (!hasList) {
+            throw new MalformedJsonException("Forecast is missing \"" + OWM_LIST + "\"");
+        }
+
+        if (!hasCityCoord) {
+            throw new MalformedJsonException("Forecast is missing the city's coordinates");
+        }
+
+        return HttpURLConnection.HTTP_OK;
+    }
+
+    /**
+     * Reads the "city" object and stores the latitude and longitude found within its "coord"
+     * object into the provided array.
+     *
+     * @param reader    JsonReader positioned at the "city" object
+     * @param cityCoord Array of length two to store latitude and longitude in
+     *
+     * @return true if both the latitude and longitude were found, false otherwise
+     *
+     * @throws IOException If the JSON cannot be read
+     */
+    private static boolean readCityCoord(JsonReader reader, double[] cityCoord)
+            throws IOException {
+        boolean hasLatitude = false;
+        boolean hasLongitude = false;
+
+        reader.beginObject();
+        while (reader.hasNext()) {
+            if (OWM_COORD.equals(reader.nextName()) && reader.peek() == JsonToken.BEGIN_OBJECT) {
+                reader.beginObject();
+                while (reader.hasNext()) {
+                    String name = reader.nextName();
+                    if (OWM_LATITUDE.equals(name)) {
+                        cityCoord[0] = reader.nextDouble();
+                        hasLatitude = true;
+                    } else if (OWM_LONGITUDE.equals(name)) {
+                        cityCoord[1] = reader.nextDouble();
+                        hasLongitude = true;
+                    } else {
+                        reader.skipValue();
+                    }
+                }
+                reader.endObject();
+            } else {
+                reader.skipValue();
+            }
+        }
+        reader.endObject();
+
+        return hasLatitude && hasLongitude;
+    }
+
+    /**
+     * Reads a single day's forecast object from the "list" array and appends it to the forecast
+     * we're building.
+     *
+     * @param reader         JsonReader positioned at a day's forecast object
+     * @param dateTimeMillis Normalized UTC date for this day
+     * @param forecast       Batch to append the day to
+     *
+     * @throws IOException If the JSON cannot be read or the day is missing required data
+     */
+    private static void readDayForecast(JsonReader reader, long dateTimeMillis,
+            ForecastBatch forecast) throws IOException {
+        double pressure = 0;
+        int humidity = 0;
+        double windSpeed = 0;
+        double windDirection = 0;
+        double high = 0;
+        double low = 0;
+        int weatherId = 0;
+
+        int fieldsRead = 0;
+
+        reader.beginObject();
+        while (reader.hasNext()) {
+            String name = reader.nextName();
+            switch (name) {
+                case OWM_PRESSURE:
+                    pressure = reader.nextDouble();
+                    fieldsRead |= FIELD_PRESSURE;
+                    break;
+
+                case OWM_HUMIDITY:
+                    /* JSONObject#getInt truncates fractional values, so we do the same here */
+                    humidity = (int) reader.nextDouble();
+                    fieldsRead |= FIELD_HUMIDITY;
+                    break;
+
+                case OWM_WINDSPEED:
+                    windSpeed = reader.nextDouble();
+                    fieldsRead |= FIELD_WIND_SPEED;
+                    break;
+
+                case OWM_WIND_DIRECTION:
+                    windDirection = reader.nextDouble();
+                    fieldsRead |= FIELD_WIND_DIRECTION;
+                    break;
+
+                case OWM_TEMPERATURE:
+                    reader.beginObject();
+                    while (reader.hasNext()) {
+                        String temperatureName = reader.nextName();
+                        if (OWM_MAX.equals(temperatureName)) {
+                            high = reader.nextDouble();
+                            fieldsRead |= FIELD_MAX;
+                        } else if (OWM_MIN.equals(temperatureName)) {
+                            low = reader.nextDouble();
+                            fieldsRead |= FIELD_MIN;
+                        } else {
+                            reader.skipValue();
+                        }
+                    }
+                    reader.endObject();
+                    break;
+
+                case OWM_WEATHER:
+                    /* Only the first element of the "weather" array is of interest to us */
+                    reader.beginArray();
+                    if (reader.hasNext()) {
+                        reader.beginObject();
+                        while (reader.hasNext()) {
+                            if (OWM_WEATHER_ID.equals(reader.nextName())) {
+                                weatherId = (int) reader.nextDouble();
+                                fieldsRead |= FIELD_WEATHER_ID;
+                            } else {
+                                reader.skipValue();
+                            }
+                        }
+                        reader.endObject();
+                    }
+                    while (reader.hasNext()) {
+                        reader.skipValue();
+                    }
+                    reader.endArray();
+                    break;
+
+                default:
+                    reader.skipValue();
+                    break;
+            }
+        }
+        reader.endObject();
+
+        if (fieldsRead != ALL_DAY_FIELDS) {
+            throw new MalformedJsonException("Day forecast is missing required values");
+        }
+
+        forecast.add(dateTimeMillis, weatherId, low, high, humidity, pressure, windSpeed,
+                windDirection);
+    }
 }
\ No newline at end of file
@@ -21,6 +21,7 @@ import android.text.format.DateUtils;
 import com.example.android.sunshine.R;
 
 import java.text.SimpleDateFormat;
+import java.util.Locale;
 import java.util.TimeZone;
 import java.util.concurrent.TimeUnit;
 
@@ -32,6 +33,43 @@ public final class SunshineDateUtils {
     /* Milliseconds in a day */
     public static final long DAY_IN_MILLIS = TimeUnit.DAYS.toMillis(1);
 
+    /* Friendly date strings are remembered for this many days, starting today */
+    private static final int CACHED_DAYS = 32;
+
+    /**
+     * The friendly date strings formatted so far, indexed by the number of days from today to
+     * the date. Every string depends on the locale, the time zone and which day is today, so a
+     * new cache replaces this one as soon as any of them changes.
+     * <p>
+     * Loaders and the UI thread share the arrays without locking. getFriendlyDateString reads a
+     * day's slot a single time and returns what it read, formatting the date itself if that was
+     * null, so a slot another thread hasn't filled in yet only costs us a second format. The
+     * cache itself is published through a volatile field, and a String is immutable, so a
+     * String found in a slot is always complete.
+     */
+    private static final class FriendlyDateCache {
+        final Locale locale;
+        final String timeZoneId;
+        final long daysFromEpochToToday;
+
+        final String[] dates = new String[CACHED_DAYS];
+        final String[] fullDates = new String[CACHED_DAYS];
+
+        FriendlyDateCache(Locale locale, String timeZoneId, long daysFromEpochToToday) {
+            this.locale = locale;
+            this.timeZoneId = timeZoneId;
+            this.daysFromEpochToToday = daysFromEpochToToday;
+        }
+
+        boolean isValidFor(Locale locale, String timeZoneId, long daysFromEpochToToday) {
+            return this.daysFromEpochToToday == daysFromEpochToToday
+                    && this.locale.equals(locale)
+                    && this.timeZoneId.equals(timeZoneId);
+        }
+    }
+
+    private static volatile FriendlyDateCache sFriendlyDateCache;
+
     /**
      * This method returns the number of milliseconds (UTC time) for today's date at midnight in
      * the local time zone. For example, if you live in California and the day is September 20th,
@@ -199,6 +237,48 @@ public final class SunshineDateUtils {
      * or "Friday"
      */
     public static String getFriendlyDateString(Context context, long normalizedUtcMidnight, boolean showFullDate) {
+        /* As a basis for comparison, we use the number of days from the epoch until today */
+        long daysFromEpochToToday = elapsedDaysSinceEpoch(System.currentTimeMillis());
+
+        /*
+         * The forecast list and the detail screen ask for the same few days over and over, so
+         * we remember each string until the locale, the time zone or the day changes.
+         */
+        int daysAfterToday = (int) (elapsedDaysSinceEpoch(normalizedUtcMidnight)
+                - daysFromEpochToToday);
+        if (!isDateNormalized(normalizedUtcMidnight)
+                || daysAfterToday < 0 || daysAfterToday >= CACHED_DAYS) {
+            return formatFriendlyDateString(context, normalizedUtcMidnight, showFullDate,
+                    daysFromEpochToToday);
+        }
+
+        Locale locale = context.getResources().getConfiguration().locale;
+        String timeZoneId = TimeZone.getDefault().getID();
+        FriendlyDateCache cache = sFriendlyDateCache;
+        if (cache == null || !cache.isValidFor(locale, timeZoneId, daysFromEpochToToday)) {
+            cache = new FriendlyDateCache(locale, timeZoneId, daysFromEpochToToday);
+            sFriendlyDateCache = cache;
+        }
+
+        String[] dates = showFullDate ? cache.fullDates : cache.dates;
+        String friendlyDate = dates[daysAfterToday];
+        if (friendlyDate == null) {
+            friendlyDate = formatFriendlyDateString(context, normalizedUtcMidnight, showFullDate,
+                    daysFromEpochToToday);
+            dates[daysAfterToday] = friendlyDate;
+        }
+        return friendlyDate;
+    }
+
+    /**
+     * Formats a date as described at {@link #getFriendlyDateString}, without the cache.
+     *
+     * @param daysFromEpochToToday The number of days from the epoch until today, so that the
+     *                             string matches the cache it ends up in even if the day changes
+     *                             while it's being formatted
+     */
+    private static String formatFriendlyDateString(Context context, long normalizedUtcMidnight,
+            boolean showFullDate, long daysFromEpochToToday) {
 
         /*
          * NOTE: localDate should be localDateMidnightMillis and should be straight from the
@@ -217,18 +297,12 @@ public final class SunshineDateUtils {
          */
         long daysFromEpochToProvidedDate = elapsedDaysSinceEpoch(localDate);
 
-        /*
-         * As a basis for comparison, we use the number of days that have passed from the epoch
-         * until today.
-         */
-        long daysFromEpochToToday = elapsedDaysSinceEpoch(System.currentTimeMillis());
-
         if (daysFromEpochToProvidedDate == daysFromEpochToToday || showFullDate) {
             /*
              * If the date we're building the String for is today's date, the format
              * is "Today, June 24"
              */
-            String dayName = getDayName(context, localDate);
+            String dayName = getDayName(context, localDate, daysFromEpochToToday);
             String readableDate = getReadableDateString(context, localDate);
             if (daysFromEpochToProvidedDate - daysFromEpochToToday < 2) {
                 /*
@@ -248,7 +322,7 @@ public final class SunshineDateUtils {
             }
         } else if (daysFromEpochToProvidedDate < daysFromEpochToToday + 7) {
             /* If the input date is less than a week in the future, just return the day name. */
-            return getDayName(context, localDate);
+            return getDayName(context, localDate, daysFromEpochToToday);
         } else {
             int flags = DateUtils.FORMAT_SHOW_DATE
                     | DateUtils.FORMAT_NO_YEAR
@@ -280,18 +354,19 @@ public final class SunshineDateUtils {
      * Given a day, returns just the name to use for that day.
      *   E.g "today", "tomorrow", "Wednesday".
      *
-     * @param context      Context to use for resource localization
-     * @param dateInMillis The date in milliseconds (UTC time)
+     * @param context              Context to use for resource localization
+     * @param dateInMillis         The date in milliseconds (UTC time)
+     * @param daysFromEpochToToday The number of days from the epoch until today
      *
      * @return the string day of the week
      */
-    private static String getDayName(Context context, long dateInMillis) {
+    private static String getDayName(Context context, long dateInMillis,
+            long daysFromEpochToToday) {
         /*
          * If the date is today, return the localized version of "Today" instead of the actual
          * day name.
          */
         long daysFromEpochToProvidedDate = elapsedDaysSinceEpoch(dateInMillis);
-        long daysFromEpochToToday = elapsedDaysSinceEpoch(System.currentTimeMillis());
 
         int daysAfterToday = (int) (daysFromEpochToProvidedDate - daysFromEpochToToday);
 
@@ -16,11 +16,15 @@
 package com.example.android.sunshine.utilities;
 
 import android.content.Context;
+import android.content.SharedPreferences;
+import android.preference.PreferenceManager;
 import android.util.Log;
 
 import com.example.android.sunshine.R;
 import com.example.android.sunshine.data.SunshinePreferences;
 
+import java.util.Locale;
+
 /**
  * Contains useful utilities for a weather app, such as conversion between Celsius and Fahrenheit,
  * from kph to mph, and from degrees to NSEW.  It also contains the mapping of weather condition
@@ -30,6 +34,99 @@ public final class SunshineWeatherUtils {
 
     private static final String LOG_TAG = SunshineWeatherUtils.class.getSimpleName();
 
+    /* Every weather condition OpenWeatherMap defines has an ID in this range */
+    private static final int MIN_WEATHER_ID = 200;
+    private static final int MAX_WEATHER_ID = 962;
+
+    /* Stands for "no relation found" in the tables below. No resource ID is ever 0. */
+    private static final int NO_RESOURCE = 0;
+
+    /*
+     * Resources for each weather ID from MIN_WEATHER_ID to MAX_WEATHER_ID, indexed by the ID
+     * minus MIN_WEATHER_ID. Built once from the find* methods, so they remain the only place the
+     * mapping is spelled out.
+     */
+    private static final int[] CONDITION_STRING_IDS = new int[MAX_WEATHER_ID - MIN_WEATHER_ID + 1];
+    private static final int[] SMALL_ART_IDS = new int[CONDITION_STRING_IDS.length];
+    private static final int[] LARGE_ART_IDS = new int[CONDITION_STRING_IDS.length];
+
+    static {
+        for (int i = 0; i < CONDITION_STRING_IDS.length; i++) {
+            int weatherId = MIN_WEATHER_ID + i;
+            CONDITION_STRING_IDS[i] = findStringIdForWeatherCondition(weatherId);
+            SMALL_ART_IDS[i] = findSmallArtResourceIdForWeatherCondition(weatherId);
+            LARGE_ART_IDS[i] = findLargeArtResourceIdForWeatherCondition(weatherId);
+        }
+    }
+
+    /**
+     * The weather condition strings resolved so far for one locale, indexed like
+     * CONDITION_STRING_IDS.
+     * <p>
+     * The array is filled in without any locking. Each caller reads its slot exactly once, into
+     * a local, and returns that local: it either finds null and resolves the string itself, or
+     * finds a String some other thread stored. A String's fields are final, so even a reference
+     * read without synchronization never shows a String that is only partly built. At worst,
+     * two threads resolve the same string, and one of the two equal values is kept.
+     */
+    private static final class ConditionStrings {
+        final Locale locale;
+        final String[] strings = new String[CONDITION_STRING_IDS.length];
+
+        ConditionStrings(Locale locale) {
+            this.locale = locale;
+        }
+    }
+
+    /* Replaced when the locale changes */
+    private static volatile ConditionStrings sConditionStrings;
+
+    /* Whole degrees, in the user's units, whose formatted Strings are remembered */
+    private static final int MIN_CACHED_TEMPERATURE = -100;
+    private static final int MAX_CACHED_TEMPERATURE = 150;
+
+    /* Whole wind speeds, in the user's units, whose formatted Strings are remembered */
+    private static final int MAX_CACHED_WIND_SPEED = 200;
+
+    /* The compass directions getFormattedWind can show, the last one for no direction at all */
+    private static final String[] WIND_DIRECTIONS =
+            {"N", "NE", "E", "SE", "S", "SW", "W", "NW", "Unknown"};
+
+    /**
+     * A snapshot of the user's units, along with the temperature and wind Strings formatted in
+     * them so far for one locale. Temperatures are indexed by their whole degrees minus
+     * MIN_CACHED_TEMPERATURE, and winds by their whole speed and direction. Both arrays are
+     * filled in without locking, and read a slot at a time, just like ConditionStrings. The
+     * formats and units are final, so every thread sees them as the constructor left them.
+     */
+    private static final class UnitStrings {
+        final Locale locale;
+        final boolean metric;
+        final String temperatureFormat;
+        final String windFormat;
+
+        final String[] temperatures =
+                new String[MAX_CACHED_TEMPERATURE - MIN_CACHED_TEMPERATURE + 1];
+        final String[] winds = new String[(MAX_CACHED_WIND_SPEED + 1) * WIND_DIRECTIONS.length];
+
+        UnitStrings(Context context, Locale locale) {
+            this.locale = locale;
+            metric = SunshinePreferences.isMetric(context);
+            temperatureFormat = context.getString(R.string.format_temperature);
+            windFormat = context.getString(
+                    metric ? R.string.format_wind_kmh : R.string.format_wind_mph);
+        }
+    }
+
+    /* Replaced when the locale changes, and dropped when the user picks other units */
+    private static volatile UnitStrings sUnitStrings;
+
+    /*
+     * Drops sUnitStrings when the units change. SharedPreferences only keeps a weak reference to
+     * its listeners, so we hold on to it here.
+     */
+    private static SharedPreferences.OnSharedPreferenceChangeListener sUnitsListener;
+
     /**
      * This method will convert a temperature from Celsius to Fahrenheit.
      *
@@ -55,14 +152,29 @@ public final class SunshineWeatherUtils {
      * "21°"
      */
     public static String formatTemperature(Context context, double temperature) {
-        if (!SunshinePreferences.isMetric(context)) {
+        UnitStrings strings = getUnitStrings(context);
+        if (!strings.metric) {
             temperature = celsiusToFahrenheit(temperature);
         }
 
-        int temperatureFormatResourceId = R.string.format_temperature;
+        /*
+         * For presentation, assume the user doesn't care about tenths of a degree. That leaves a
+         * few hundred temperatures anyone will ever see, so each one is formatted only once.
+         */
+        long degrees = roundHalfUp(temperature);
+        if (degrees < MIN_CACHED_TEMPERATURE || degrees > MAX_CACHED_TEMPERATURE
+                || (degrees == 0 && temperature < 0)) {
+            /* The format shows "-0" for a temperature just below zero, so that's not cached */
+            return String.format(strings.temperatureFormat, temperature);
+        }
 
-        /* For presentation, assume the user doesn't care about tenths of a degree. */
-        return String.format(context.getString(temperatureFormatResourceId), temperature);
+        int index = (int) degrees - MIN_CACHED_TEMPERATURE;
+        String temperatureString = strings.temperatures[index];
+        if (temperatureString == null) {
+            temperatureString = String.format(strings.temperatureFormat, temperature);
+            strings.temperatures[index] = temperatureString;
+        }
+        return temperatureString;
     }
 
     /**
@@ -98,10 +210,8 @@ public final class SunshineWeatherUtils {
      * @return Wind String in the following form: "2 km/h SW"
      */
     public static String getFormattedWind(Context context, float windSpeed, float degrees) {
-        int windFormat = R.string.format_wind_kmh;
-
-        if (!SunshinePreferences.isMetric(context)) {
-            windFormat = R.string.format_wind_mph;
+        UnitStrings strings = getUnitStrings(context);
+        if (!strings.metric) {
             windSpeed = .621371192237334f * windSpeed;
         }
 
@@ -109,39 +219,158 @@ public final class SunshineWeatherUtils {
          * You know what's fun? Writing really long if/else statements with tons of possible
          * conditions. Seriously, try it!
          */
-        String direction = "Unknown";
+        int direction = WIND_DIRECTIONS.length - 1;
         if (degrees >= 337.5 || degrees < 22.5) {
-            direction = "N";
+            direction = 0;
         } else if (degrees >= 22.5 && degrees < 67.5) {
-            direction = "NE";
+            direction = 1;
         } else if (degrees >= 67.5 && degrees < 112.5) {
-            direction = "E";
+            direction = 2;
         } else if (degrees >= 112.5 && degrees < 157.5) {
-            direction = "SE";
+            direction = 3;
         } else if (degrees >= 157.5 && degrees < 202.5) {
-            direction = "S";
+            direction = 4;
         } else if (degrees >= 202.5 && degrees < 247.5) {
-            direction = "SW";
+            direction = 5;
         } else if (degrees >= 247.5 && degrees < 292.5) {
-            direction = "W";
+            direction = 6;
         } else if (degrees >= 292.5 && degrees < 337.5) {
-            direction = "NW";
+            direction = 7;
+        }
+
+        /* Like temperatures, wind speeds are shown in whole units */
+        long speed = roundHalfUp(windSpeed);
+        if (speed < 0 || speed > MAX_CACHED_WIND_SPEED || (speed == 0 && windSpeed < 0)) {
+            return String.format(strings.windFormat, windSpeed, WIND_DIRECTIONS[direction]);
+        }
+
+        int index = (int) speed * WIND_DIRECTIONS.length + direction;
+        String windString = strings.winds[index];
+        if (windString == null) {
+            windString = String.format(strings.windFormat, windSpeed, WIND_DIRECTIONS[direction]);
+            strings.winds[index] = windString;
+        }
+        return windString;
+    }
+
+    /**
+     * Rounds a value to a whole number the way "%1.0f" does, with halves rounded away from zero,
+     * so that two values share a cached String only if the format shows them the same way.
+     *
+     * @param value The value to round
+     * @return The rounded value, or Long.MAX_VALUE if the value isn't a number
+     */
+    private static long roundHalfUp(double value) {
+        if (Double.isNaN(value)) {
+            return Long.MAX_VALUE;
+        }
+        double magnitude = Math.abs(value);
+        double whole = Math.floor(magnitude);
+
+        /* Exact, as both are doubles of the same magnitude */
+        long rounded = (long) whole + (magnitude - whole >= 0.5 ? 1 : 0);
+        return value < 0 ? -rounded : rounded;
+    }
+
+    /**
+     * Returns the snapshot of the user's units for the current locale, taking a new one if the
+     * locale changed or the units changed since the last one was taken. Between changes,
+     * formatting a temperature or wind doesn't read SharedPreferences or resources at all.
+     *
+     * @param context Used to access preferences and resources
+     * @return The snapshot to format with
+     */
+    private static UnitStrings getUnitStrings(Context context) {
+        Locale locale = context.getResources().getConfiguration().locale;
+        UnitStrings strings = sUnitStrings;
+        if (strings == null || !strings.locale.equals(locale)) {
+            strings = takeUnitStrings(context, locale);
         }
+        return strings;
+    }
+
+    /*
+     * Synchronized with forgetUnitStrings, so that a snapshot of the old units that's being taken
+     * while the units change can't replace the listener clearing it.
+     */
+    private static synchronized UnitStrings takeUnitStrings(Context context, Locale locale) {
+        if (sUnitsListener == null) {
+            final String keyForUnits = context.getString(R.string.pref_units_key);
+            sUnitsListener = new SharedPreferences.OnSharedPreferenceChangeListener() {
+                @Override
+                public void onSharedPreferenceChanged(SharedPreferences sp, String key) {
+                    if (keyForUnits.equals(key)) {
+                        forgetUnitStrings();
+                    }
+                }
+            };
+            PreferenceManager.getDefaultSharedPreferences(context)
+                    .registerOnSharedPreferenceChangeListener(sUnitsListener);
+        }
+
+        UnitStrings strings = new UnitStrings(context, locale);
+        sUnitStrings = strings;
+        return strings;
+    }
 
-        return String.format(context.getString(windFormat), windSpeed, direction);
+    private static synchronized void forgetUnitStrings() {
+        sUnitStrings = null;
     }
 
     /**
      * Helper method to provide the string according to the weather
      * condition id returned by the OpenWeatherMap call.
+     * <p>
+     * The string is looked up in a table built once for every ID from MIN_WEATHER_ID to
+     * MAX_WEATHER_ID, and resolved strings are cached for as long as the locale stays the same,
+     * so this is an array read for every row the forecast list binds.
      *
      * @param context   Android context
      * @param weatherId from OpenWeatherMap API response
      *                  See http://openweathermap.org/weather-conditions for a list of all IDs
      *
-     * @return String for the weather condition, null if no relation is found.
+     * @return String for the weather condition, or a String containing the ID if no relation is
+     * found.
      */
     public static String getStringForWeatherCondition(Context context, int weatherId) {
+        if (weatherId < MIN_WEATHER_ID || weatherId > MAX_WEATHER_ID) {
+            return resolveStringForWeatherCondition(context,
+                    findStringIdForWeatherCondition(weatherId), weatherId);
+        }
+
+        Locale locale = context.getResources().getConfiguration().locale;
+        ConditionStrings strings = sConditionStrings;
+        if (strings == null || !strings.locale.equals(locale)) {
+            strings = new ConditionStrings(locale);
+            sConditionStrings = strings;
+        }
+
+        int index = weatherId - MIN_WEATHER_ID;
+        String conditionString = strings.strings[index];
+        if (conditionString == null) {
+            conditionString = resolveStringForWeatherCondition(context,
+                    CONDITION_STRING_IDS[index], weatherId);
+            strings.strings[index] = conditionString;
+        }
+        return conditionString;
+    }
+
+    private static String resolveStringForWeatherCondition(Context context, int stringId,
+            int weatherId) {
+        if (stringId == NO_RESOURCE) {
+            return context.getString(R.string.condition_unknown, weatherId);
+        }
+        return context.getString(stringId);
+    }
+
+    /**
+     * Walks the weather conditions we know of to find the string for one. Only used to build
+     * CONDITION_STRING_IDS, and for IDs outside of it.
+     *
+     * @param weatherId from OpenWeatherMap API response
+     * @return The string resource ID, or NO_RESOURCE if no relation is found
+     */
+    private static int findStringIdForWeatherCondition(int weatherId) {
         int stringId;
         if (weatherId >= 200 && weatherId <= 232) {
             stringId = R.string.condition_2xx;
@@ -305,10 +534,10 @@ public final class SunshineWeatherUtils {
                 stringId = R.string.condition_962;
                 break;
             default:
-                return context.getString(R.string.condition_unknown, weatherId);
+                return NO_RESOURCE;
         }
 
-        return context.getString(stringId);
+        return stringId;
     }
 
     /**
@@ -323,9 +552,27 @@ public final class SunshineWeatherUtils {
      * @param weatherId from OpenWeatherMap API response
      *                  See http://openweathermap.org/weather-conditions for a list of all IDs
      *
-     * @return resource id for the corresponding icon. -1 if no relation is found.
+     * @return resource id for the corresponding icon. The storm icon if no relation is found.
      */
     public static int getSmallArtResourceIdForWeatherCondition(int weatherId) {
+        int resourceId = weatherId >= MIN_WEATHER_ID && weatherId <= MAX_WEATHER_ID
+                ? SMALL_ART_IDS[weatherId - MIN_WEATHER_ID]
+                : findSmallArtResourceIdForWeatherCondition(weatherId);
+        if (resourceId == NO_RESOURCE) {
+            Log.e(LOG_TAG, "Unknown Weather: " + weatherId);
+            return R.drawable.ic_storm;
+        }
+        return resourceId;
+    }
+
+    /**
+     * Walks the weather conditions we know of to find the small art for one. Only used to
+     * build SMALL_ART_IDS, and for IDs outside of it.
+     *
+     * @param weatherId from OpenWeatherMap API response
+     * @return The drawable resource ID, or NO_RESOURCE if no relation is found
+     */
+    private static int findSmallArtResourceIdForWeatherCondition(int weatherId) {
 
         /*
          * Based on weather code data for Open Weather Map.
@@ -360,8 +607,7 @@ public final class SunshineWeatherUtils {
             return R.drawable.ic_clear;
         }
 
-        Log.e(LOG_TAG, "Unknown Weather: " + weatherId);
-        return R.drawable.ic_storm;
+        return NO_RESOURCE;
     }
 
     /**
@@ -376,9 +622,27 @@ public final class SunshineWeatherUtils {
      * @param weatherId from OpenWeatherMap API response
      *                  See http://openweathermap.org/weather-conditions for a list of all IDs
      *
-     * @return resource ID for the corresponding icon. -1 if no relation is found.
+     * @return resource ID for the corresponding icon. The storm art if no relation is found.
      */
     public static int getLargeArtResourceIdForWeatherCondition(int weatherId) {
+        int resourceId = weatherId >= MIN_WEATHER_ID && weatherId <= MAX_WEATHER_ID
+                ? LARGE_ART_IDS[weatherId - MIN_WEATHER_ID]
+                : findLargeArtResourceIdForWeatherCondition(weatherId);
+        if (resourceId == NO_RESOURCE) {
+            Log.e(LOG_TAG, "Unknown Weather: " + weatherId);
+            return R.drawable.art_storm;
+        }
+        return resourceId;
+    }
+
+    /**
+     * Walks the weather conditions we know of to find the large art for one. Only used to
+     * build LARGE_ART_IDS, and for IDs outside of it.
+     *
+     * @param weatherId from OpenWeatherMap API response
+     * @return The drawable resource ID, or NO_RESOURCE if no relation is found
+     */
+    private static int findLargeArtResourceIdForWeatherCondition(int weatherId) {
 
         /*
          * Based on weather code data for Open Weather Map.
@@ -413,7 +677,6 @@ public final class SunshineWeatherUtils {
             return R.drawable.art_clear;
         }
 
-        Log.e(LOG_TAG, "Unknown Weather: " + weatherId);
-        return R.drawable.art_storm;
+        return NO_RESOURCE;
     }
 }
\ No newline at end of file
@@ -0,0 +1,251 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.utilities;
+
+import android.database.Cursor;
+import android.database.MatrixCursor;
+
+import com.example.android.sunshine.data.WeatherContract.SyncMetricsEntry;
+
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Keeps the metrics of the last few syncs in memory, so that we can see where the time of a
+ * sync goes and spot regressions on real devices.
+ * <p>
+ * Each sync is timed stage by stage: building the URLs, fetching, parsing, reconciling the
+ * forecasts with our database, and notifying the user. Alongside the timings, we keep the bytes
+ * downloaded, the rows written and the number of locations that failed.
+ * <p>
+ * The metrics can be read in two ways:
+ * <pre>
+ *     adb shell dumpsys activity provider com.example.android.sunshine/.data.WeatherProvider
+ * </pre>
+ * prints every recorded sync along with a latency histogram for each stage, and debug builds
+ * answer queries for {@link SyncMetricsEntry#CONTENT_URI} with one row per recorded sync.
+ */
+public final class SyncMetrics {
+
+    public static final int STAGE_BUILD_URL = 0;
+    public static final int STAGE_FETCH = 1;
+    public static final int STAGE_PARSE = 2;
+    public static final int STAGE_RECONCILE = 3;
+    public static final int STAGE_NOTIFY = 4;
+    static final int STAGE_COUNT = 5;
+
+    private static final String[] STAGE_NAMES =
+            {"build url", "fetch", "parse", "reconcile", "notify"};
+
+    /* Enough to cover a day or so of periodic syncs */
+    static final int MAX_RECORDED_SYNCS = 32;
+
+    /*
+     * Histogram buckets double in width: the first holds stages that took less than 1 ms, the
+     * next less than 2 ms, then less than 4 ms and so on. The last holds everything from
+     * 2^(HISTOGRAM_BUCKET_COUNT - 2) ms, about 16 seconds, upwards.
+     */
+    static final int HISTOGRAM_BUCKET_COUNT = 16;
+
+    private static final String[] COLUMNS = {
+            SyncMetricsEntry.COLUMN_START_TIME,
+            SyncMetricsEntry.COLUMN_DURATION_MILLIS,
+            SyncMetricsEntry.COLUMN_RESULT,
+            SyncMetricsEntry.COLUMN_LOCATIONS,
+            SyncMetricsEntry.COLUMN_FAILED_LOCATIONS,
+            SyncMetricsEntry.COLUMN_BYTES_DOWNLOADED,
+            SyncMetricsEntry.COLUMN_ROWS_INSERTED,
+            SyncMetricsEntry.COLUMN_ROWS_UPDATED,
+            SyncMetricsEntry.COLUMN_ROWS_DELETED,
+            SyncMetricsEntry.COLUMN_BUILD_URL_MILLIS,
+            SyncMetricsEntry.COLUMN_FETCH_MILLIS,
+            SyncMetricsEntry.COLUMN_PARSE_MILLIS,
+            SyncMetricsEntry.COLUMN_RECONCILE_MILLIS,
+            SyncMetricsEntry.COLUMN_NOTIFY_MILLIS,
+    };
+
+    private static SyncMetrics sInstance;
+
+    /* A ring buffer of the last syncs. Guarded by this. */
+    private final SyncRecord[] mRecords;
+    private int mNextIndex;
+    private int mRecordCount;
+    private long mTotalSyncCount;
+
+    /**
+     * The metrics of a single sync. Filled in by the sync as it goes, then handed to
+     * {@link #record}.
+     */
+    public static final class SyncRecord {
+
+        public long startTimeMillis;
+        public long durationNanos;
+        public String result;
+
+        public int locationCount;
+        public int failedLocationCount;
+        public long bytesDownloaded;
+
+        public int rowsInserted;
+        public int rowsUpdated;
+        public int rowsDeleted;
+
+        /* Indexed by the STAGE_* constants */
+        public final long[] stageNanos = new long[STAGE_COUNT];
+
+        /**
+         * Adds time spent in a stage. Stages that run once for every location are added up.
+         *
+         * @param stage One of the STAGE_* constants
+         * @param nanos Time spent in the stage
+         */
+        public void addStageNanos(int stage, long nanos) {
+            stageNanos[stage] += nanos;
+        }
+    }
+
+    SyncMetrics(int capacity) {
+        mRecords = new SyncRecord[capacity];
+    }
+
+    /**
+     * @return The metrics every sync in our process records into
+     */
+    public static synchronized SyncMetrics getInstance() {
+        if (sInstance == null) {
+            sInstance = new SyncMetrics(MAX_RECORDED_SYNCS);
+        }
+        return sInstance;
+    }
+
+    /**
+     * Records a finished sync, replacing the oldest one if the buffer is full. The record must
+     * not be modified afterwards.
+     *
+     * @param record The metrics of the sync
+     */
+    public synchronized void record(SyncRecord record) {
+        mRecords[mNextIndex] = record;
+        mNextIndex = (mNextIndex + 1) % mRecords.length;
+        mRecordCount = Math.min(mRecordCount + 1, mRecords.length);
+        mTotalSyncCount++;
+    }
+
+    /**
+     * @return The recorded syncs, oldest first
+     */
+    public synchronized List<SyncRecord> getRecords() {
+        List<SyncRecord> records = new ArrayList<>(mRecordCount);
+        int oldestIndex = (mNextIndex - mRecordCount + mRecords.length) % mRecords.length;
+        for (int i = 0; i < mRecordCount; i++) {
+            records.add(mRecords[(oldestIndex + i) % mRecords.length]);
+        }
+        return records;
+    }
+
+    /**
+     * @param stage One of the STAGE_* constants
+     * @return How many of the recorded syncs fall into each bucket of the histogram for the
+     * stage, as described at HISTOGRAM_BUCKET_COUNT
+     */
+    public long[] getHistogram(int stage) {
+        long[] histogram = new long[HISTOGRAM_BUCKET_COUNT];
+        for (SyncRecord record : getRecords()) {
+            histogram[getHistogramBucket(record.stageNanos[stage])]++;
+        }
+        return histogram;
+    }
+
+    static int getHistogramBucket(long nanos) {
+        long millis = nanos / 1000000;
+        /* Bucket 0 holds [0, 1) ms, and bucket n holds [2^(n-1), 2^n) ms */
+        int bucket = 64 - Long.numberOfLeadingZeros(millis);
+        return Math.min(bucket, HISTOGRAM_BUCKET_COUNT - 1);
+    }
+
+    /**
+     * @return A cursor with a row for each recorded sync, oldest first, holding the columns
+     * defined in {@link SyncMetricsEntry}
+     */
+    public Cursor query() {
+        List<SyncRecord> records = getRecords();
+        MatrixCursor cursor = new MatrixCursor(COLUMNS, records.size());
+        for (SyncRecord record : records) {
+            cursor.newRow()
+                    .add(record.startTimeMillis)
+                    .add(record.durationNanos / 1000000)
+                    .add(record.result)
+                    .add(record.locationCount)
+                    .add(record.failedLocationCount)
+                    .add(record.bytesDownloaded)
+                    .add(record.rowsInserted)
+                    .add(record.rowsUpdated)
+                    .add(record.rowsDeleted)
+                    .add(record.stageNanos[STAGE_BUILD_URL] / 1000000)
+                    .add(record.stageNanos[STAGE_FETCH] / 1000000)
+                    .add(record.stageNanos[STAGE_PARSE] / 1000000)
+                    .add(record.stageNanos[STAGE_RECONCILE] / 1000000)
+                    .add(record.stageNanos[STAGE_NOTIFY] / 1000000);
+        }
+        return cursor;
+    }
+
+    /**
+     * Prints every recorded sync and a latency histogram for each stage. Used by dumpsys.
+     *
+     * @param writer Where to print to
+     */
+    public void dump(PrintWriter writer) {
+        List<SyncRecord> records = getRecords();
+        long totalSyncCount;
+        synchronized (this) {
+            totalSyncCount = mTotalSyncCount;
+        }
+
+        writer.println("Sync metrics: last " + records.size() + " of " + totalSyncCount
+                + " syncs");
+        for (SyncRecord record : records) {
+            writer.println(String.format(Locale.US,
+                    "  %tF %<tT %s: %.1f ms, %d locations (%d failed), %d bytes, "
+                            + "%d inserted, %d updated, %d deleted",
+                    record.startTimeMillis, record.result, record.durationNanos / 1e6,
+                    record.locationCount, record.failedLocationCount, record.bytesDownloaded,
+                    record.rowsInserted, record.rowsUpdated, record.rowsDeleted));
+
+            StringBuilder stages = new StringBuilder("   ");
+            for (int stage = 0; stage < STAGE_COUNT; stage++) {
+                stages.append(String.format(Locale.US, " %s %.1f ms",
+                        STAGE_NAMES[stage], record.stageNanos[stage] / 1e6));
+            }
+            writer.println(stages);
+        }
+
+        writer.println("Latency histograms (syncs per bucket, bucket upper bounds in ms):");
+        for (int stage = 0; stage < STAGE_COUNT; stage++) {
+            long[] histogram = getHistogram(stage);
+            StringBuilder line = new StringBuilder("  " + STAGE_NAMES[stage] + ":");
+            for (int bucket = 0; bucket < histogram.length; bucket++) {
+                if (histogram[bucket] == 0) continue;
+                String upperBound = bucket == histogram.length - 1
+                        ? "inf" : String.valueOf(1L << bucket);
+                line.append(" <").append(upperBound).append('=').append(histogram[bucket]);
+            }
+            writer.println(line);
+        }
+    }
+}